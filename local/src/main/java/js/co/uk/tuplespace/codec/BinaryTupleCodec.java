@@ -0,0 +1,924 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.codec;
+
+import js.co.uk.tuplespace.comms.channel.ChannelMessage;
+import js.co.uk.tuplespace.tuple.Condition;
+import js.co.uk.tuplespace.tuple.DoubleTuple;
+import js.co.uk.tuplespace.tuple.IntTuple;
+import js.co.uk.tuplespace.tuple.LongTuple;
+import js.co.uk.tuplespace.tuple.MatchAllTuplesTemplate;
+import js.co.uk.tuplespace.tuple.SimpleTuple;
+import js.co.uk.tuplespace.tuple.Tuple;
+import js.co.uk.tuplespace.util.SharedVar;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A compact binary codec. Each value is a tag byte followed by its content:
+ * <ul>
+ * <li>ints, longs, shorts and chars are zig-zag varints, so small values of either sign take a byte or two;</li>
+ * <li>a string is written once per tuple, as UTF-8, and is a varint reference to the first occurrence from then on,
+ * so the repeated names and keys in a tuple cost next to nothing and decode to a single instance;</li>
+ * <li>int[], long[] and double[] are packed, the ints and longs as varints;</li>
+ * <li>ArrayList, LinkedList, HashSet, LinkedHashSet, HashMap and LinkedHashMap are written element by element;</li>
+ * <li>any other object is written field by field. Its class is written as the varint id it was registered with, see
+ * {@link #register(Class, int)}, or by name the first time it appears in a tuple and by reference after that. The
+ * fields, and how to write and read each, are worked out once per class and cached.</li>
+ * </ul>
+ * Classes that control their own serialisation (with writeObject, readObject, writeReplace, readResolve or by being
+ * Externalizable), JDK classes other than those above, and other arrays are written with Java serialisation
+ * so that they round trip as they always have.
+ * <p/>
+ * The bytes may come from a remote client, so decoding only ever creates tuples, registered classes, enums and a
+ * few JDK value classes: the boxed primitives, BigInteger, BigDecimal, Date, UUID and the common collections. A
+ * serialised value is read by a stream that resolves nothing else and, on Java 9 and later, limits its size and
+ * depth too. Any other class in a tuple has to be registered at both ends, and encoding a tuple that could not be
+ * decoded fails.
+ * <p/>
+ * Unlike Java serialisation, an object referred to twice in a tuple is written twice and comes back as two objects,
+ * and a tuple must not refer to itself. Both ends must have the same version of each class that is written field by
+ * field, and must have registered the same ids. SimpleTuple, MatchAllTuplesTemplate, ChannelMessage, SharedVar, the
+ * primitive tuples and Condition are registered by the constructor with ids 1 to 8, the ids below 64 are reserved for
+ * the library.
+ */
+public class BinaryTupleCodec implements TupleCodec {
+
+    /**
+     * The first byte of every encoded tuple. Not 0xAC, the first byte of a Java serialisation stream, so that the two
+     * can be told apart.
+     */
+    private static final int FORMAT = 1;
+
+    /**
+     * Guards against a tuple that refers to itself.
+     */
+    private static final int MAX_DEPTH = 256;
+
+    private static final int NULL = 0;
+    private static final int TRUE = 1;
+    private static final int FALSE = 2;
+    private static final int BYTE = 3;
+    private static final int SHORT = 4;
+    private static final int CHAR = 5;
+    private static final int INT = 6;
+    private static final int LONG = 7;
+    private static final int FLOAT = 8;
+    private static final int DOUBLE = 9;
+    private static final int STRING = 10;
+    private static final int STRING_REF = 11;
+    private static final int BYTES = 12;
+    private static final int ARRAY_LIST = 13;
+    private static final int LINKED_LIST = 14;
+    private static final int HASH_SET = 15;
+    private static final int LINKED_HASH_SET = 16;
+    private static final int HASH_MAP = 17;
+    private static final int LINKED_HASH_MAP = 18;
+    private static final int ENUM = 19;
+    private static final int OBJECT = 20;
+    private static final int SERIALIZED = 21;
+    private static final int INTS = 22;
+    private static final int LONGS = 23;
+    private static final int DOUBLES = 24;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The JDK classes, other than those written natively, that a serialised value may contain.
+     */
+    private static final Set<Class<?>> VALUE_CLASSES = new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+            String.class, Boolean.class, Byte.class, Short.class, Character.class, Integer.class, Long.class,
+            Float.class, Double.class, Number.class, Enum.class, BigInteger.class, BigDecimal.class, Date.class,
+            UUID.class, ArrayList.class, LinkedList.class, HashSet.class, LinkedHashSet.class, TreeSet.class,
+            HashMap.class, LinkedHashMap.class, TreeMap.class));
+
+    private final Map<Class<?>, Integer> ids = new ConcurrentHashMap<Class<?>, Integer>();
+    private final Map<Integer, Class<?>> types = new ConcurrentHashMap<Integer, Class<?>>();
+    private final ConcurrentMap<Class<?>, ClassCodec> classCodecs = new ConcurrentHashMap<Class<?>, ClassCodec>();
+
+    /**
+     * Creates a codec with the library's own tuples registered.
+     */
+    public BinaryTupleCodec() {
+        register(SimpleTuple.class, 1);
+        register(MatchAllTuplesTemplate.class, 2);
+        register(ChannelMessage.class, 3);
+        register(SharedVar.class, 4);
+        register(IntTuple.class, 5);
+        register(LongTuple.class, 6);
+        register(DoubleTuple.class, 7);
+        register(Condition.class, 8);
+    }
+
+    /**
+     * Registers a class so that it is written as a small id rather than by name. Every codec that is to read what
+     * this one writes must register the same class with the same id.
+     *
+     * @param type the class
+     * @param id   a positive id, unique to the class
+     * @throws IllegalArgumentException if the class is not Serializable, or the id is not positive or is registered
+     *                                  to another class
+     */
+    public synchronized void register(final Class<?> type, final int id) {
+        if (!Serializable.class.isAssignableFrom(type)) {
+            throw new IllegalArgumentException(type.getName() + " is not Serializable");
+        }
+        if (id <= 0) {
+            throw new IllegalArgumentException("The id must be positive, not " + id);
+        }
+        final Class<?> registered = types.get(id);
+        if (registered != null && registered != type) {
+            throw new IllegalArgumentException("The id " + id + " is already registered to " + registered.getName());
+        }
+        types.put(id, type);
+        ids.put(type, id);
+    }
+
+    public byte[] encode(final Tuple tuple) throws IOException {
+        final Encoder out = new Encoder();
+        out.write(FORMAT);
+        writeValue(out, tuple, 0);
+        return out.toByteArray();
+    }
+
+    public Tuple decode(final byte[] bytes) throws IOException {
+        final Decoder in = new Decoder(bytes);
+        if (in.read() != FORMAT) {
+            throw new IOException("Not a tuple written by " + getClass().getSimpleName());
+        }
+        final Object value = readValue(in, 0);
+        if (value != null && !(value instanceof Tuple)) {
+            throw new IOException("Decoded a " + value.getClass().getName() + " rather than a tuple");
+        }
+        return (Tuple) value;
+    }
+
+    private void writeValue(final Encoder out, final Object value, final int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("The tuple is nested too deeply or refers to itself");
+        }
+        if (value == null) {
+            out.write(NULL);
+            return;
+        }
+        final Class<?> type = value.getClass();
+        if (type == String.class) {
+            out.writeString((String) value);
+        } else if (type == Integer.class) {
+            out.write(INT);
+            out.writeSignedVarLong((Integer) value);
+        } else if (type == Long.class) {
+            out.write(LONG);
+            out.writeSignedVarLong((Long) value);
+        } else if (type == Boolean.class) {
+            out.write((Boolean) value ? TRUE : FALSE);
+        } else if (type == Double.class) {
+            out.write(DOUBLE);
+            out.writeLong(Double.doubleToLongBits((Double) value));
+        } else if (type == Float.class) {
+            out.write(FLOAT);
+            out.writeInt(Float.floatToIntBits((Float) value));
+        } else if (type == Short.class) {
+            out.write(SHORT);
+            out.writeSignedVarLong((Short) value);
+        } else if (type == Byte.class) {
+            out.write(BYTE);
+            out.write((Byte) value);
+        } else if (type == Character.class) {
+            out.write(CHAR);
+            out.writeVarLong((Character) value);
+        } else if (type == byte[].class) {
+            final byte[] bytes = (byte[]) value;
+            out.write(BYTES);
+            out.writeVarLong(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        } else if (type == int[].class) {
+            final int[] ints = (int[]) value;
+            out.write(INTS);
+            out.writeVarLong(ints.length);
+            for (final int each : ints) {
+                out.writeSignedVarLong(each);
+            }
+        } else if (type == long[].class) {
+            final long[] longs = (long[]) value;
+            out.write(LONGS);
+            out.writeVarLong(longs.length);
+            for (final long each : longs) {
+                out.writeSignedVarLong(each);
+            }
+        } else if (type == double[].class) {
+            final double[] doubles = (double[]) value;
+            out.write(DOUBLES);
+            out.writeVarLong(doubles.length);
+            for (final double each : doubles) {
+                out.writeLong(Double.doubleToLongBits(each));
+            }
+        } else if (type == ArrayList.class) {
+            writeElements(out, ARRAY_LIST, (Collection<?>) value, depth);
+        } else if (type == LinkedList.class) {
+            writeElements(out, LINKED_LIST, (Collection<?>) value, depth);
+        } else if (type == HashSet.class) {
+            writeElements(out, HASH_SET, (Collection<?>) value, depth);
+        } else if (type == LinkedHashSet.class) {
+            writeElements(out, LINKED_HASH_SET, (Collection<?>) value, depth);
+        } else if (type == HashMap.class) {
+            writeEntries(out, HASH_MAP, (Map<?, ?>) value, depth);
+        } else if (type == LinkedHashMap.class) {
+            writeEntries(out, LINKED_HASH_MAP, (Map<?, ?>) value, depth);
+        } else if (value instanceof Enum) {
+            out.write(ENUM);
+            writeClass(out, ((Enum<?>) value).getDeclaringClass());
+            out.writeString(((Enum<?>) value).name());
+        } else {
+            final ClassCodec codec = classCodec(type);
+            if (codec == null) {
+                writeSerialized(out, value);
+            } else if (isReadableObject(type)) {
+                out.write(OBJECT);
+                writeClass(out, type);
+                codec.write(out, value, depth);
+            } else {
+                throw new IOException(type.getName() + " is neither a tuple nor registered, so it could not be read");
+            }
+        }
+    }
+
+    private Object readValue(final Decoder in, final int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("The tuple is nested too deeply");
+        }
+        final int tag = in.read();
+        switch (tag) {
+            case NULL:
+                return null;
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case BYTE:
+                return (byte) in.read();
+            case SHORT:
+                return (short) in.readSignedVarLong();
+            case CHAR:
+                return (char) in.readVarLong();
+            case INT:
+                return (int) in.readSignedVarLong();
+            case LONG:
+                return in.readSignedVarLong();
+            case FLOAT:
+                return Float.intBitsToFloat(in.readInt());
+            case DOUBLE:
+                return Double.longBitsToDouble(in.readLong());
+            case STRING:
+            case STRING_REF:
+                return in.readString(tag);
+            case BYTES:
+                return in.readBytes(in.readLength());
+            case INTS: {
+                final int[] ints = new int[in.readLength()];
+                for (int i = 0; i < ints.length; i++) {
+                    ints[i] = (int) in.readSignedVarLong();
+                }
+                return ints;
+            }
+            case LONGS: {
+                final long[] longs = new long[in.readLength()];
+                for (int i = 0; i < longs.length; i++) {
+                    longs[i] = in.readSignedVarLong();
+                }
+                return longs;
+            }
+            case DOUBLES: {
+                final double[] doubles = new double[in.readLength()];
+                for (int i = 0; i < doubles.length; i++) {
+                    doubles[i] = Double.longBitsToDouble(in.readLong());
+                }
+                return doubles;
+            }
+            case ARRAY_LIST: {
+                final int size = in.readLength();
+                return readElements(in, new ArrayList<Object>(size), size, depth);
+            }
+            case LINKED_LIST:
+                return readElements(in, new LinkedList<Object>(), in.readLength(), depth);
+            case HASH_SET: {
+                final int size = in.readLength();
+                return readElements(in, new HashSet<Object>(capacity(size)), size, depth);
+            }
+            case LINKED_HASH_SET: {
+                final int size = in.readLength();
+                return readElements(in, new LinkedHashSet<Object>(capacity(size)), size, depth);
+            }
+            case HASH_MAP: {
+                final int size = in.readLength();
+                return readEntries(in, new HashMap<Object, Object>(capacity(size)), size, depth);
+            }
+            case LINKED_HASH_MAP: {
+                final int size = in.readLength();
+                return readEntries(in, new LinkedHashMap<Object, Object>(capacity(size)), size, depth);
+            }
+            case ENUM:
+                return readEnum(readClass(in), in.readString(in.read()));
+            case OBJECT: {
+                final Class<?> type = readClass(in);
+                if (!isReadableObject(type)) {
+                    throw new IOException(type.getName() + " is neither a tuple nor registered, so it cannot be read");
+                }
+                final ClassCodec codec = classCodec(type);
+                if (codec == null) {
+                    throw new IOException(type.getName() + " cannot be read field by field");
+                }
+                return codec.read(in, depth);
+            }
+            case SERIALIZED:
+                return readSerialized(in);
+            default:
+                throw new IOException("Unknown tag " + tag);
+        }
+    }
+
+    private void writeElements(final Encoder out, final int tag, final Collection<?> elements, final int depth)
+            throws IOException {
+        out.write(tag);
+        out.writeVarLong(elements.size());
+        for (final Object element : elements) {
+            writeValue(out, element, depth + 1);
+        }
+    }
+
+    private Collection<Object> readElements(final Decoder in, final Collection<Object> elements, final int size,
+                                            final int depth) throws IOException {
+        for (int i = 0; i < size; i++) {
+            elements.add(readValue(in, depth + 1));
+        }
+        return elements;
+    }
+
+    private void writeEntries(final Encoder out, final int tag, final Map<?, ?> entries, final int depth)
+            throws IOException {
+        out.write(tag);
+        out.writeVarLong(entries.size());
+        for (final Map.Entry<?, ?> entry : entries.entrySet()) {
+            writeValue(out, entry.getKey(), depth + 1);
+            writeValue(out, entry.getValue(), depth + 1);
+        }
+    }
+
+    private Map<Object, Object> readEntries(final Decoder in, final Map<Object, Object> entries, final int size,
+                                            final int depth) throws IOException {
+        for (int i = 0; i < size; i++) {
+            final Object key = readValue(in, depth + 1);
+            entries.put(key, readValue(in, depth + 1));
+        }
+        return entries;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object readEnum(final Class<?> type, final String name) throws IOException {
+        if (!type.isEnum()) {
+            throw new IOException(type.getName() + " is not an enum");
+        }
+        return Enum.valueOf((Class) type, name);
+    }
+
+    /**
+     * A class is written as an even varint, twice its registered id, or as an odd one: 1 followed by the name the
+     * first time an unregistered class appears and 2n + 3 after that, n being the order in which it first appeared.
+     */
+    private void writeClass(final Encoder out, final Class<?> type) throws IOException {
+        final Integer id = ids.get(type);
+        if (id != null) {
+            out.writeVarLong((long) id << 1);
+            return;
+        }
+        final Integer seen = out.classes.get(type);
+        if (seen != null) {
+            out.writeVarLong(((long) seen << 1) + 3);
+        } else {
+            out.classes.put(type, out.classes.size());
+            out.writeVarLong(1);
+            out.writeString(type.getName());
+        }
+    }
+
+    private Class<?> readClass(final Decoder in) throws IOException {
+        final long ref = in.readVarLong();
+        if ((ref & 1) == 0) {
+            final Class<?> type = types.get((int) (ref >>> 1));
+            if (type == null) {
+                throw new IOException("No class is registered with the id " + (ref >>> 1));
+            }
+            return type;
+        }
+        if (ref == 1) {
+            final String name = in.readString(in.read());
+            final Class<?> type;
+            try {
+                type = Class.forName(name, false, classLoader());
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Unable to load " + name, e);
+            }
+            in.classes.add(type);
+            return type;
+        }
+        final int index = (int) ((ref - 3) >>> 1);
+        if (index >= in.classes.size()) {
+            throw new IOException("Unknown class reference " + ref);
+        }
+        return in.classes.get(index);
+    }
+
+    private static ClassLoader classLoader() {
+        final ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        return loader != null ? loader : BinaryTupleCodec.class.getClassLoader();
+    }
+
+    private void writeSerialized(final Encoder out, final Object value) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream objects = new CheckedOutputStream(bytes);
+        objects.writeObject(value);
+        objects.close();
+        out.write(SERIALIZED);
+        out.writeVarLong(bytes.size());
+        bytes.writeTo(out);
+    }
+
+    private Object readSerialized(final Decoder in) throws IOException {
+        final ObjectInputStream objects = new CheckedInputStream(in.readBytes(in.readLength()));
+        try {
+            return objects.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unable to read a serialised value", e);
+        }
+    }
+
+    /**
+     * @param type a class
+     * @return true if the class may be read field by field: it is a tuple or it has been registered
+     */
+    private boolean isReadableObject(final Class<?> type) {
+        return Tuple.class.isAssignableFrom(type) || ids.containsKey(type);
+    }
+
+    /**
+     * @param type a class
+     * @return true if the class may be read from a serialised value: it may be read field by field, it is an enum or
+     *         one of the {@link #VALUE_CLASSES}, or it is an array of these, of primitives or of Object
+     */
+    private boolean isReadableSerialized(final Class<?> type) {
+        Class<?> element = type;
+        while (element.isArray()) {
+            element = element.getComponentType();
+        }
+        return element.isPrimitive() || (element == Object.class && type.isArray()) || element.isEnum()
+                || VALUE_CLASSES.contains(element) || isReadableObject(element);
+    }
+
+    /**
+     * Checks a class met in a serialised value. The description of a class is followed by those of its superclasses,
+     * which may be read too.
+     *
+     * @param type     the class
+     * @param admitted the classes already admitted by the stream
+     * @throws InvalidClassException if the class may not be read
+     */
+    private void admit(final Class<?> type, final Set<Class<?>> admitted) throws InvalidClassException {
+        if (admitted.contains(type)) {
+            return;
+        }
+        if (!isReadableSerialized(type)) {
+            throw new InvalidClassException(type.getName(), "neither a tuple, registered nor a JDK value class");
+        }
+        for (Class<?> each = type; each != null; each = each.getSuperclass()) {
+            admitted.add(each);
+        }
+    }
+
+    private static int capacity(final int size) {
+        return Math.max(16, (int) (size / 0.75f) + 1);
+    }
+
+    /**
+     * @param type a class
+     * @return how to write and read the class field by field, null if it has to be serialised
+     */
+    private ClassCodec classCodec(final Class<?> type) {
+        ClassCodec codec = classCodecs.get(type);
+        if (codec == null) {
+            codec = ClassCodec.create(type);
+            final ClassCodec raced = classCodecs.putIfAbsent(type, codec);
+            if (raced != null) {
+                codec = raced;
+            }
+        }
+        return codec == ClassCodec.SERIALIZED ? null : codec;
+    }
+
+    /**
+     * Writes and reads the fields of a class. Primitive fields are written without a tag.
+     */
+    private static final class ClassCodec {
+
+        /**
+         * Marks a class that has to be serialised.
+         */
+        static final ClassCodec SERIALIZED = new ClassCodec(null, new Field[0]);
+
+        private final Constructor<?> constructor;
+        private final Field[] fields;
+
+        private ClassCodec(final Constructor<?> constructor, final Field[] fields) {
+            this.constructor = constructor;
+            this.fields = fields;
+        }
+
+        static ClassCodec create(final Class<?> type) {
+            if (type.isArray() || type.isInterface() || Modifier.isAbstract(type.getModifiers())
+                    || Externalizable.class.isAssignableFrom(type) || isPlatformClass(type)) {
+                return SERIALIZED;
+            }
+            try {
+                final List<Field> fields = new ArrayList<Field>();
+                for (Class<?> each = type; each != Object.class; each = each.getSuperclass()) {
+                    if (isPlatformClass(each) || controlsItsSerialisation(each)) {
+                        return SERIALIZED;
+                    }
+                    final List<Field> declared = new ArrayList<Field>();
+                    for (final Field field : each.getDeclaredFields()) {
+                        final int modifiers = field.getModifiers();
+                        if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers)) {
+                            field.setAccessible(true);
+                            declared.add(field);
+                        }
+                    }
+                    //superclass fields first, each class's in name order so both ends agree
+                    java.util.Collections.sort(declared, new java.util.Comparator<Field>() {
+                        public int compare(final Field a, final Field b) {
+                            return a.getName().compareTo(b.getName());
+                        }
+                    });
+                    fields.addAll(0, declared);
+                }
+                final Constructor<?> constructor = instantiator(type);
+                return constructor == null ? SERIALIZED : new ClassCodec(constructor, fields.toArray(new Field[fields.size()]));
+            } catch (RuntimeException e) {
+                //fields that cannot be made accessible
+                return SERIALIZED;
+            }
+        }
+
+        private static boolean isPlatformClass(final Class<?> type) {
+            final String name = type.getName();
+            return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("sun.");
+        }
+
+        private static boolean controlsItsSerialisation(final Class<?> type) {
+            return hasMethod(type, "writeObject", ObjectOutputStream.class)
+                    || hasMethod(type, "readObject", ObjectInputStream.class)
+                    || hasMethod(type, "readObjectNoData")
+                    || hasMethod(type, "writeReplace")
+                    || hasMethod(type, "readResolve");
+        }
+
+        private static boolean hasMethod(final Class<?> type, final String name, final Class<?>... parameters) {
+            try {
+                type.getDeclaredMethod(name, parameters);
+                return true;
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+
+        /**
+         * The class's no argument constructor if it has one, otherwise a constructor that makes an instance without
+         * running any of the class's constructors, as serialisation does.
+         */
+        private static Constructor<?> instantiator(final Class<?> type) {
+            try {
+                final Constructor<?> constructor = type.getDeclaredConstructor();
+                constructor.setAccessible(true);
+                return constructor;
+            } catch (NoSuchMethodException e) {
+                //fall through
+            }
+            if (!Serializable.class.isAssignableFrom(type)) {
+                return null;
+            }
+            try {
+                final Class<?> factoryClass = Class.forName("sun.reflect.ReflectionFactory");
+                final Object factory = factoryClass.getMethod("getReflectionFactory").invoke(null);
+                final Method create = factoryClass.getMethod("newConstructorForSerialization", Class.class, Constructor.class);
+                final Constructor<?> constructor = (Constructor<?>) create.invoke(factory, type, Object.class.getDeclaredConstructor());
+                constructor.setAccessible(true);
+                return constructor;
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        void write(final Encoder out, final Object value, final int depth) throws IOException {
+            try {
+                for (final Field field : fields) {
+                    final Class<?> type = field.getType();
+                    if (!type.isPrimitive()) {
+                        out.codec.writeValue(out, field.get(value), depth + 1);
+                    } else if (type == int.class) {
+                        out.writeSignedVarLong(field.getInt(value));
+                    } else if (type == long.class) {
+                        out.writeSignedVarLong(field.getLong(value));
+                    } else if (type == boolean.class) {
+                        out.write(field.getBoolean(value) ? 1 : 0);
+                    } else if (type == double.class) {
+                        out.writeLong(Double.doubleToLongBits(field.getDouble(value)));
+                    } else if (type == float.class) {
+                        out.writeInt(Float.floatToIntBits(field.getFloat(value)));
+                    } else if (type == short.class) {
+                        out.writeSignedVarLong(field.getShort(value));
+                    } else if (type == byte.class) {
+                        out.write(field.getByte(value));
+                    } else {
+                        out.writeVarLong(field.getChar(value));
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new IOException("Unable to write a " + value.getClass().getName(), e);
+            }
+        }
+
+        Object read(final Decoder in, final int depth) throws IOException {
+            try {
+                final Object value = constructor.newInstance();
+                for (final Field field : fields) {
+                    final Class<?> type = field.getType();
+                    if (!type.isPrimitive()) {
+                        field.set(value, in.codec.readValue(in, depth + 1));
+                    } else if (type == int.class) {
+                        field.setInt(value, (int) in.readSignedVarLong());
+                    } else if (type == long.class) {
+                        field.setLong(value, in.readSignedVarLong());
+                    } else if (type == boolean.class) {
+                        field.setBoolean(value, in.read() != 0);
+                    } else if (type == double.class) {
+                        field.setDouble(value, Double.longBitsToDouble(in.readLong()));
+                    } else if (type == float.class) {
+                        field.setFloat(value, Float.intBitsToFloat(in.readInt()));
+                    } else if (type == short.class) {
+                        field.setShort(value, (short) in.readSignedVarLong());
+                    } else if (type == byte.class) {
+                        field.setByte(value, (byte) in.read());
+                    } else {
+                        field.setChar(value, (char) in.readVarLong());
+                    }
+                }
+                return value;
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("Unable to read a " + constructor.getDeclaringClass().getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Refuses to serialise a class that {@link CheckedInputStream} would refuse to read, so that it is the writer
+     * that fails.
+     */
+    private final class CheckedOutputStream extends ObjectOutputStream {
+
+        private final Set<Class<?>> admitted = new HashSet<Class<?>>();
+
+        CheckedOutputStream(final OutputStream out) throws IOException {
+            super(out);
+        }
+
+        @Override
+        protected void annotateClass(final Class<?> type) throws IOException {
+            admit(type, admitted);
+        }
+
+        @Override
+        protected void annotateProxyClass(final Class<?> type) throws IOException {
+            throw new InvalidClassException(type.getName(), "a proxy cannot be written");
+        }
+    }
+
+    /**
+     * Reads a serialised value, resolving only the classes that may be read. Where the JVM has an ObjectInputFilter,
+     * Java 9 on, arrays and references are also limited to what the bytes could hold and nesting to
+     * {@link #MAX_DEPTH}, so that a few bytes cannot claim a huge array.
+     */
+    private final class CheckedInputStream extends ObjectInputStream {
+
+        private final Set<Class<?>> admitted = new HashSet<Class<?>>();
+
+        CheckedInputStream(final byte[] bytes) throws IOException {
+            super(new ByteArrayInputStream(bytes));
+            final String limits = "maxarray=" + bytes.length + ";maxrefs=" + bytes.length + ";maxdepth=" + MAX_DEPTH;
+            try {
+                final Class<?> filter = Class.forName("java.io.ObjectInputFilter");
+                ObjectInputStream.class.getMethod("setObjectInputFilter", filter).invoke(this,
+                        Class.forName("java.io.ObjectInputFilter$Config").getMethod("createFilter", String.class)
+                                .invoke(null, limits));
+            } catch (ClassNotFoundException e) {
+                //before Java 9, only the classes are checked
+            } catch (Exception e) {
+                //eg a filter set for the whole process, which still applies, as does the check of the classes
+            }
+        }
+
+        @Override
+        protected Class<?> resolveClass(final ObjectStreamClass description) throws IOException, ClassNotFoundException {
+            final Class<?> type = super.resolveClass(description);
+            admit(type, admitted);
+            return type;
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass(final String[] interfaces) throws IOException {
+            throw new InvalidClassException("a proxy cannot be read");
+        }
+    }
+
+    /**
+     * The bytes being written and the strings and classes already written.
+     */
+    private final class Encoder extends ByteArrayOutputStream {
+
+        final BinaryTupleCodec codec = BinaryTupleCodec.this;
+        final Map<String, Integer> strings = new HashMap<String, Integer>();
+        final Map<Class<?>, Integer> classes = new IdentityHashMap<Class<?>, Integer>();
+
+        Encoder() {
+            super(64);
+        }
+
+        void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeSignedVarLong(final long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        void writeInt(final int value) {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+
+        void writeLong(final long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        void writeString(final String value) {
+            final Integer seen = strings.get(value);
+            if (seen != null) {
+                write(STRING_REF);
+                writeVarLong(seen);
+                return;
+            }
+            strings.put(value, strings.size());
+            final byte[] bytes = value.getBytes(UTF8);
+            write(STRING);
+            writeVarLong(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * The bytes being read and the strings and classes already read.
+     */
+    private final class Decoder {
+
+        final BinaryTupleCodec codec = BinaryTupleCodec.this;
+        final List<String> strings = new ArrayList<String>();
+        final List<Class<?>> classes = new ArrayList<Class<?>>();
+        private final byte[] bytes;
+        private int position = 0;
+
+        Decoder(final byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        int read() throws IOException {
+            if (position >= bytes.length) {
+                throw new IOException("Unexpected end of the encoded tuple");
+            }
+            return bytes[position++] & 0xFF;
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int b = read();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        long readSignedVarLong() throws IOException {
+            final long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        int readLength() throws IOException {
+            final long length = readVarLong();
+            if (length < 0 || length > bytes.length - position) {
+                throw new IOException("Malformed length " + length);
+            }
+            return (int) length;
+        }
+
+        int readInt() throws IOException {
+            return (read() << 24) | (read() << 16) | (read() << 8) | read();
+        }
+
+        long readLong() throws IOException {
+            return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+        }
+
+        byte[] readBytes(final int length) {
+            final byte[] read = new byte[length];
+            System.arraycopy(bytes, position, read, 0, length);
+            position += length;
+            return read;
+        }
+
+        String readString(final int tag) throws IOException {
+            if (tag == STRING_REF) {
+                final long index = readVarLong();
+                if (index >= strings.size()) {
+                    throw new IOException("Unknown string reference " + index);
+                }
+                return strings.get((int) index);
+            }
+            if (tag != STRING) {
+                throw new IOException("Expected a string, not tag " + tag);
+            }
+            final int length = readLength();
+            final String value = new String(bytes, position, length, UTF8);
+            position += length;
+            strings.add(value);
+            return value;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.codec;
+
+import js.co.uk.tuplespace.tuple.Tuple;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * A codec that uses Java serialisation, as the spaces did before there were codecs. It is slower and its output
+ * larger than {@link BinaryTupleCodec} but it copes with any Serializable tuple, cycles and all.
+ * <p/>
+ * It will create an instance of any class named in the bytes, so it must only decode bytes that are trusted, eg a log
+ * written by the same process, and never be the codec of a server that remote clients can reach.
+ */
+public class SerializingTupleCodec implements TupleCodec {
+
+    public byte[] encode(final Tuple tuple) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(tuple);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    public Tuple decode(final byte[] bytes) throws IOException {
+        final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return (Tuple) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unable to decode a tuple", e);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.codec;
+
+import js.co.uk.tuplespace.tuple.Tuple;
+
+import java.io.IOException;
+
+/**
+ * Turns tuples into bytes and back, for the remote transport and for the durable store. An implementation must be
+ * thread safe as a single codec is shared.
+ * <p/>
+ * The codec used is found by {@link TupleCodecs#getDefault()}, which looks for an implementation registered as a
+ * service in META-INF/services/js.co.uk.tuplespace.codec.TupleCodec before falling back to {@link BinaryTupleCodec}.
+ * Both ends of a connection, and the process that reads a log, must use the same codec.
+ */
+public interface TupleCodec {
+
+    /**
+     * @param tuple the tuple
+     * @return the encoded tuple
+     * @throws IOException if the tuple cannot be encoded
+     */
+    byte[] encode(final Tuple tuple) throws IOException;
+
+    /**
+     * @param bytes bytes written by {@link #encode(Tuple)}
+     * @return the tuple
+     * @throws IOException if the bytes cannot be decoded
+     */
+    Tuple decode(final byte[] bytes) throws IOException;
+}
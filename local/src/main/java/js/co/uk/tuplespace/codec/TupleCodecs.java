@@ -0,0 +1,159 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.ServiceLoader;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds the codec to use.
+ */
+public final class TupleCodecs {
+
+    /**
+     * The name of the system property, and of the property in spaces.properties, that lists the classes to register
+     * with the default codec, see {@link #register(BinaryTupleCodec, String)}.
+     */
+    public static final String REGISTER_PROPERTY = "space.codec.register";
+
+    private static final Logger LOG = Logger.getLogger(TupleCodecs.class.getName());
+
+    private static volatile TupleCodec defaultCodec;
+
+    private TupleCodecs() {
+    }
+
+    /**
+     * The first codec registered with {@link ServiceLoader}, or a {@link BinaryTupleCodec} if there is none. The
+     * codec is looked up once. A BinaryTupleCodec has the classes listed by the system property
+     * {@value #REGISTER_PROPERTY}, or else by the same property in a spaces.properties on the classpath, registered
+     * with it.
+     *
+     * @return the codec
+     */
+    public static TupleCodec getDefault() {
+        TupleCodec codec = defaultCodec;
+        if (codec == null) {
+            synchronized (TupleCodecs.class) {
+                codec = defaultCodec;
+                if (codec == null) {
+                    final Iterator<TupleCodec> registered = ServiceLoader.load(TupleCodec.class).iterator();
+                    if (registered.hasNext()) {
+                        codec = registered.next();
+                    } else {
+                        final BinaryTupleCodec binary = new BinaryTupleCodec();
+                        register(binary, configured(REGISTER_PROPERTY));
+                        codec = binary;
+                    }
+                    defaultCodec = codec;
+                }
+            }
+        }
+        return codec;
+    }
+
+    /**
+     * Replaces the default codec, typically so that every space in the process shares a codec that has had types
+     * registered with it. Spaces already created keep the codec they were given.
+     *
+     * @param codec the codec
+     */
+    public static void setDefault(final TupleCodec codec) {
+        if (codec == null) {
+            throw new IllegalArgumentException("codec must not be null");
+        }
+        defaultCodec = codec;
+    }
+
+    /**
+     * Registers classes with a codec, so that tuples with fields of those classes can be encoded. Each end of a remote
+     * space must register the same classes with the same ids.
+     *
+     * @param codec   the codec
+     * @param classes a comma separated list of class:id, for example
+     *                {@code com.example.Order:64, com.example.Line:65}, null or empty for none
+     * @throws IllegalArgumentException if an entry is not a class:id, its class cannot be loaded, or the codec will
+     *                                  not register it
+     */
+    public static void register(final BinaryTupleCodec codec, final String classes) {
+        if (classes == null) {
+            return;
+        }
+        for (final String entry : classes.split(",")) {
+            if (entry.trim().isEmpty()) {
+                continue;
+            }
+            final int colon = entry.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Expected class:id, not " + entry.trim());
+            }
+            final String name = entry.substring(0, colon).trim();
+            final int id;
+            try {
+                id = Integer.parseInt(entry.substring(colon + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Expected class:id, not " + entry.trim(), e);
+            }
+            try {
+                codec.register(Class.forName(name, false, classLoader()), id);
+            } catch (ClassNotFoundException e) {
+                throw new IllegalArgumentException("Unable to load " + name + " to register with the codec", e);
+            }
+        }
+    }
+
+    /**
+     * @param name the name of a property
+     * @return the system property of that name, or else the property in a spaces.properties on the classpath, or null
+     */
+    private static String configured(final String name) {
+        final String value = System.getProperty(name);
+        if (value != null) {
+            return value;
+        }
+        final InputStream in = classLoader().getResourceAsStream("spaces.properties");
+        if (in == null) {
+            return null;
+        }
+        try {
+            final Properties props = new Properties();
+            props.load(in);
+            return props.getProperty(name);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Unable to read spaces.properties", e);
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                //nothing more to do
+            }
+        }
+    }
+
+    private static ClassLoader classLoader() {
+        final ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        return loader != null ? loader : TupleCodecs.class.getClassLoader();
+    }
+}
@@ -66,6 +66,9 @@ public class BasicChannel implements Channel<Tuple> {
         this.name = name;
         this.txnTimeout = txnTimeout;
         this.bounded = channelLimit == null ? false : true;
+        //the messages and status of a channel are always looked up by these fields
+        space.createIndex(Status.class, "name");
+        space.createIndex(ChannelMessage.class, "channelName", "index");
         //TODO should I check for an existing channel of that name?
         final Status status = new Status(name);
         status.setLimit(channelLimit);
@@ -33,10 +33,22 @@ public enum EventHint {
      *
      */
     TUPLE_REMOVED,
+    /**
+     * Several tuples added in one operation, see {@link SpaceChange#getTuples()}
+     */
+    TUPLES_ADDED,
+    /**
+     * Several tuples removed in one operation, see {@link SpaceChange#getTuples()}
+     */
+    TUPLES_REMOVED,
     /**
      *
      */
     TUPLE_TIMEDOUT,
+    /**
+     * A tuple removed to make room for others, see {@link js.co.uk.tuplespace.store.CapacityPolicy}
+     */
+    TUPLE_EVICTED,
     /**
      *
      */
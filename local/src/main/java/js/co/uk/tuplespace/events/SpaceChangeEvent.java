@@ -55,6 +55,20 @@ public class SpaceChangeEvent implements SpaceChange{
         this.txnID = txnID;
     }
 
+    /**
+     * Creates SpaceChangeEvent for several tuples with the supplied values
+     * @param spaceName
+     * @param txnID
+     * @param tuples
+     * @param eventHint
+     */
+    public SpaceChangeEvent(final String spaceName, TransactionID txnID, final Collection<Tuple> tuples, final EventHint eventHint) {
+        this.spaceName = spaceName;
+        this.tuples = tuples;
+        this.eventHint = eventHint;
+        this.txnID = txnID;
+    }
+
     /**
      * 
      * @return
@@ -107,6 +121,7 @@ public class SpaceChangeEvent implements SpaceChange{
                 "txnID=" + txnID +
                 ", spaceName='" + spaceName + '\'' +
                 ", tuple=" + tuple +
+                ", tuples=" + tuples +
                 ", eventHint=" + eventHint +
                 '}';
     }
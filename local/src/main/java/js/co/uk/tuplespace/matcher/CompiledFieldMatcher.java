@@ -0,0 +1,210 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.matcher;
+
+import js.co.uk.tuplespace.tuple.PrimitiveTuple;
+import js.co.uk.tuplespace.tuple.SimpleTuple;
+import js.co.uk.tuplespace.tuple.Tuple;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Matches as {@link FieldBasedMatcher} does but without reflecting on every comparison. The first time a class is
+ * matched its fields are looked up once and a getter method handle is made for each, typed to the field so that
+ * primitive fields are compared as primitives, and the resulting per-class matcher is cached. A template field that
+ * is null or "*" matches anything, as before, and a null tuple field only matches such a wildcard.
+ * <p/>
+ * SimpleTuples, primitive tuples, tuples of different classes and any class whose fields cannot be made accessible
+ * are left to FieldBasedMatcher.
+ */
+@SuppressWarnings("serial")
+public class CompiledFieldMatcher extends FieldBasedMatcher {
+
+    /**
+     * Marks a class that could not be compiled.
+     */
+    private static final ClassMatcher NOT_COMPILED = new ClassMatcher(new FieldTest[0]);
+
+    private transient volatile ConcurrentMap<Class<?>, ClassMatcher> compiled;
+
+    @Override
+    public boolean match(final Tuple tuple, final Tuple template) {
+
+        final Class<?> tupleClass = tuple.getClass();
+        if (tupleClass != template.getClass() || tuple instanceof SimpleTuple || tuple instanceof PrimitiveTuple) {
+            return super.match(tuple, template);
+        }
+        final ClassMatcher classMatcher = classMatcher(tupleClass);
+        if (classMatcher == NOT_COMPILED) {
+            return super.match(tuple, template);
+        }
+        return classMatcher.match(tuple, template);
+    }
+
+    private ClassMatcher classMatcher(final Class<?> type) {
+        ConcurrentMap<Class<?>, ClassMatcher> classMatchers = compiled;
+        if (classMatchers == null) {
+            //the cache is not serialised with the matcher
+            classMatchers = new ConcurrentHashMap<Class<?>, ClassMatcher>();
+            compiled = classMatchers;
+        }
+        ClassMatcher classMatcher = classMatchers.get(type);
+        if (classMatcher == null) {
+            classMatcher = compile(type);
+            classMatchers.put(type, classMatcher);
+        }
+        return classMatcher;
+    }
+
+    private static ClassMatcher compile(final Class<?> type) {
+        try {
+            final MethodHandles.Lookup lookup = MethodHandles.lookup();
+            final List<FieldTest> tests = new ArrayList<FieldTest>();
+            for (final Field field : type.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) {
+                    continue;
+                }
+                field.setAccessible(true);
+                tests.add(FieldTest.create(field, lookup.unreflectGetter(field)));
+            }
+            return new ClassMatcher(tests.toArray(new FieldTest[tests.size()]));
+        } catch (IllegalAccessException e) {
+            return NOT_COMPILED;
+        } catch (RuntimeException e) {
+            //the field cannot be made accessible
+            return NOT_COMPILED;
+        }
+    }
+
+    /**
+     * The tests for each field of a class.
+     */
+    private static final class ClassMatcher {
+
+        private final FieldTest[] tests;
+
+        ClassMatcher(final FieldTest[] tests) {
+            this.tests = tests;
+        }
+
+        boolean match(final Object tuple, final Object template) {
+            try {
+                for (final FieldTest test : tests) {
+                    if (!test.matches(tuple, template)) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException("Unable to read a field", e);
+            }
+        }
+    }
+
+    /**
+     * Compares one field of the tuple with the same field of the template.
+     */
+    private abstract static class FieldTest {
+
+        protected final MethodHandle getter;
+
+        FieldTest(final MethodHandle getter, final Class<?> fieldType) {
+            this.getter = getter.asType(MethodType.methodType(fieldType, Object.class));
+        }
+
+        abstract boolean matches(final Object tuple, final Object template) throws Throwable;
+
+        static FieldTest create(final Field field, final MethodHandle getter) {
+            final Class<?> type = field.getType();
+            if (!type.isPrimitive()) {
+                return new FieldTest(getter, Object.class) {
+                    boolean matches(final Object tuple, final Object template) throws Throwable {
+                        final Object templateValue = (Object) this.getter.invokeExact(template);
+                        if (templateValue == null || "*".equals(templateValue)) {
+                            return true;
+                        }
+                        final Object tupleValue = (Object) this.getter.invokeExact(tuple);
+                        return templateValue.equals(tupleValue);
+                    }
+                };
+            } else if (type == int.class) {
+                return new FieldTest(getter, int.class) {
+                    boolean matches(final Object tuple, final Object template) throws Throwable {
+                        return (int) this.getter.invokeExact(tuple) == (int) this.getter.invokeExact(template);
+                    }
+                };
+            } else if (type == long.class) {
+                return new FieldTest(getter, long.class) {
+                    boolean matches(final Object tuple, final Object template) throws Throwable {
+                        return (long) this.getter.invokeExact(tuple) == (long) this.getter.invokeExact(template);
+                    }
+                };
+            } else if (type == boolean.class) {
+                return new FieldTest(getter, boolean.class) {
+                    boolean matches(final Object tuple, final Object template) throws Throwable {
+                        return (boolean) this.getter.invokeExact(tuple) == (boolean) this.getter.invokeExact(template);
+                    }
+                };
+            } else if (type == double.class) {
+                //as Double.equals compares
+                return new FieldTest(getter, double.class) {
+                    boolean matches(final Object tuple, final Object template) throws Throwable {
+                        return Double.doubleToLongBits((double) this.getter.invokeExact(tuple))
+                                == Double.doubleToLongBits((double) this.getter.invokeExact(template));
+                    }
+                };
+            } else if (type == float.class) {
+                return new FieldTest(getter, float.class) {
+                    boolean matches(final Object tuple, final Object template) throws Throwable {
+                        return Float.floatToIntBits((float) this.getter.invokeExact(tuple))
+                                == Float.floatToIntBits((float) this.getter.invokeExact(template));
+                    }
+                };
+            } else if (type == short.class) {
+                return new FieldTest(getter, short.class) {
+                    boolean matches(final Object tuple, final Object template) throws Throwable {
+                        return (short) this.getter.invokeExact(tuple) == (short) this.getter.invokeExact(template);
+                    }
+                };
+            } else if (type == byte.class) {
+                return new FieldTest(getter, byte.class) {
+                    boolean matches(final Object tuple, final Object template) throws Throwable {
+                        return (byte) this.getter.invokeExact(tuple) == (byte) this.getter.invokeExact(template);
+                    }
+                };
+            } else {
+                return new FieldTest(getter, char.class) {
+                    boolean matches(final Object tuple, final Object template) throws Throwable {
+                        return (char) this.getter.invokeExact(tuple) == (char) this.getter.invokeExact(template);
+                    }
+                };
+            }
+        }
+    }
+}
@@ -21,6 +21,8 @@ package js.co.uk.tuplespace.matcher;
 
 import java.lang.reflect.Field;
 import java.util.logging.Logger;
+import js.co.uk.tuplespace.tuple.PrimitiveTuple;
+import js.co.uk.tuplespace.tuple.QueryTemplate;
 import js.co.uk.tuplespace.tuple.SimpleTuple;
 import js.co.uk.tuplespace.tuple.Tuple;
 
@@ -28,7 +30,7 @@ import js.co.uk.tuplespace.tuple.Tuple;
  * This does matching based on a field by field  comparison of the tuple and the template.
  */
 @SuppressWarnings("serial")
-public class FieldBasedMatcher implements Matcher<Tuple> {
+public class FieldBasedMatcher implements TypeRespectingMatcher<Tuple> {
 
 
     private static final Logger logger = Logger.getLogger(FieldBasedMatcher.class.getName());
@@ -40,11 +42,18 @@ public class FieldBasedMatcher implements Matcher<Tuple> {
      */
     private final Matcher<Tuple> naiveMatcher = new NaiveMatcher();
 
+    /**
+     * Matches the primitive tuples without boxing.
+     */
+    private final Matcher<Tuple> primitiveMatcher = new PrimitiveTupleMatcher();
+
     /**
      * Matching is performed in the following way
      * <p/>
      * If tuple and template are both of type {@link js.co.uk.tuplespace.tuple.SimpleTuple} then a {@link NaiveMatcher} is used to match them and <br>
      * the result of the NaiveMatcher is returned.<p>
+     * If both are {@link PrimitiveTuple}s then a {@link PrimitiveTupleMatcher} is used in the same way.<p>
+     * If the template is a {@link QueryTemplate} then the result of {@link QueryTemplate#matches(Tuple)} is returned.<p>
      * <p/>
      * <p/>
      * Otherwise the following is done: <p>
@@ -66,6 +75,12 @@ public class FieldBasedMatcher implements Matcher<Tuple> {
     @Override
     public boolean match(final Tuple tuple, final Tuple template) {
 
+        if (template instanceof QueryTemplate) {
+
+            return ((QueryTemplate) template).matches(tuple);
+
+        }
+
         // do this to allow the semantically useful SimpleTuple to be used.
         // ie it's useful in the sense of we can do new SimpleTuple(1,1,2) or new SimpleTuple("fred",1 "xx",1,2,2) etc
         if ((tuple instanceof SimpleTuple) && (template instanceof SimpleTuple)) {
@@ -74,6 +89,12 @@ public class FieldBasedMatcher implements Matcher<Tuple> {
 
         }
 
+        if ((tuple instanceof PrimitiveTuple) && (template instanceof PrimitiveTuple)) {
+
+            return primitiveMatcher.match(tuple, template);
+
+        }
+
         final Class tupleClass = tuple.getClass();
         final Class templateClass = template.getClass();
 
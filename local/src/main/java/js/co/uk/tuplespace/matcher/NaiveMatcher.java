@@ -20,6 +20,7 @@
 package js.co.uk.tuplespace.matcher;
 
 import java.util.Iterator;
+import js.co.uk.tuplespace.tuple.Condition;
 import js.co.uk.tuplespace.tuple.MatchAllTuplesTemplate;
 import js.co.uk.tuplespace.tuple.SimpleTuple;
 import js.co.uk.tuplespace.tuple.Tuple;
@@ -40,6 +41,8 @@ import js.co.uk.tuplespace.tuple.Tuple;
  * Tuple template = new Tuple(1,2,'*'); <br>
  * then match(t, template) would return true.<br>
  * but match(t, new Tuple(1,2,4) would return false.</p> <br>
+ * An entry in the template that is a {@link Condition} matches the entries that satisfy it, so
+ * new Tuple(1, 2, Condition.gt(2)) would also match t.<br>
  * <p/>
  * <b>
  * Note<br>
@@ -47,7 +50,7 @@ import js.co.uk.tuplespace.tuple.Tuple;
  * <p/>
  * </b>
  */
-public class NaiveMatcher implements Matcher<Tuple> {
+public class NaiveMatcher implements TypeRespectingMatcher<Tuple> {
 
     /**
      * A simple match on the individual entries of a {@link js.co.uk.tuplespace.tuple.SimpleTuple}  collection.<br>
@@ -55,7 +58,8 @@ public class NaiveMatcher implements Matcher<Tuple> {
      * For a Tuple and a Tuple template to match the following must all be true:<p>
      * 1. The Collections returned by {@link js.co.uk.tuplespace.tuple.SimpleTuple#getData()} must have the same size.<br>
      * 2. Corresponding individual entries in the data collections must be equal (based on the entries notion of equality)<br>
-     * or the entry in the template collection must be the string literal '*'.
+     * or the entry in the template collection must be the string literal '*', or a {@link Condition} that the entry
+     * in the tuple satisfies.
      *
      * @param aTuple    the tuple
      * @param aTemplate the template for matching
@@ -87,6 +91,10 @@ public class NaiveMatcher implements Matcher<Tuple> {
             if (templateObj.equals("*")) {
 
                 //do nothing
+            } else if (templateObj instanceof Condition) {
+                if (!((Condition) templateObj).test(tupleObj)) {
+                    return false;
+                }
             } else if (!templateObj.equals(tupleObj)) {
                 return false;
             }
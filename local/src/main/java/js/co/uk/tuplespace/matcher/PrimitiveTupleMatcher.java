@@ -0,0 +1,46 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.matcher;
+
+import js.co.uk.tuplespace.tuple.MatchAllTuplesTemplate;
+import js.co.uk.tuplespace.tuple.PrimitiveTuple;
+import js.co.uk.tuplespace.tuple.Tuple;
+
+/**
+ * Matches {@link PrimitiveTuple}s, an IntTuple against an IntTuple template and so on, by comparing the packed
+ * primitives position by position and skipping the template's wildcards. {@link FieldBasedMatcher} hands primitive
+ * tuples to this.
+ */
+@SuppressWarnings("serial")
+public class PrimitiveTupleMatcher implements TypeRespectingMatcher<Tuple> {
+
+    /**
+     * @param tuple    the tuple to match
+     * @param template the template against which to match
+     * @return true if both are primitive tuples of the same class and arity and the tuple has the template's value at
+     *         each position that is not a wildcard
+     */
+    @Override
+    public boolean match(final Tuple tuple, final Tuple template) {
+        if (template instanceof MatchAllTuplesTemplate) return true;
+
+        return tuple instanceof PrimitiveTuple && template instanceof PrimitiveTuple
+                && ((PrimitiveTuple) template).matches((PrimitiveTuple) tuple);
+    }
+}
@@ -22,6 +22,7 @@ import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -33,9 +34,10 @@ import js.co.uk.tuplespace.tuple.Tuple;
  * against the regular expression to match the field. The fields do not have to
  * be string types but it would seem semantically more meaningful for them to be
  * so.
- *
- *
- *
+ * <p/>
+ * A pattern matches a field if it matches at the start of the field's string value, as Matcher.lookingAt does. The
+ * field of each class is looked up once, and before the regex is run the value is checked for the literal text the
+ * pattern must start with and the longest literal text it must contain, which turns most values away cheaply.
  */
 public class RegexMatcher implements Matcher<Tuple> {
 
@@ -46,6 +48,8 @@ public class RegexMatcher implements Matcher<Tuple> {
      */
     public static final EmptyTuple NULL_TEMPLATE = new EmptyTuple();
     
+    private static final Logger LOG = Logger.getLogger(RegexMatcher.class.getName());
+
     private final List<RegexFieldMatcher<Tuple>> regExFieldMatchers = new ArrayList<RegexFieldMatcher<Tuple>>();
 
     
@@ -118,60 +122,331 @@ public class RegexMatcher implements Matcher<Tuple> {
         private final String fieldName;
         private final String regEx;
         private final Pattern pattern;
+        private final LiteralHints hints;
+
+        /**
+         * The field, made accessible, by the class of the tuple. A class without the field maps to a null field.
+         */
+        private final ConcurrentHashMap<Class<?>, Accessor> accessors = new ConcurrentHashMap<Class<?>, Accessor>();
+
+        /**
+         * A matcher per thread, reset for each value rather than made anew.
+         */
+        private final ThreadLocal<java.util.regex.Matcher> matchers = new ThreadLocal<java.util.regex.Matcher>();
 
        private RegexFieldMatcher(String fieldName, String regEx) {
             this.fieldName = fieldName;
             this.regEx = regEx;
             pattern = Pattern.compile(regEx);
-            
+            hints = LiteralHints.of(regEx);
         }
 
         boolean isMatch(final T source) {
 
-            String fieldValue = null;;
+            final String fieldValue;
             try {
-
-                fieldValue = getFieldValue(fieldName, source);
-                final java.util.regex.Matcher matcher = pattern.matcher(fieldValue);
-                final boolean aMatch = matcher.lookingAt();
-                Logger.getLogger(RegexMatcher.class.getName()).log(Level.INFO, "Match ==> " + aMatch + " " + regEx + " < > " + fieldValue);
-
-                return aMatch;
-
-            } catch (IllegalArgumentException ex) {
-                Logger.getLogger(RegexMatcher.class.getName()).log(Level.SEVERE, null, ex);
+                fieldValue = getFieldValue(source);
             } catch (IllegalAccessException ex) {
-                Logger.getLogger(RegexMatcher.class.getName()).log(Level.SEVERE, null, ex);
-            } catch (NoSuchFieldException ex) {
-                Logger.getLogger(RegexMatcher.class.getName()).log(Level.SEVERE, null, ex);
+                LOG.log(Level.SEVERE, null, ex);
+                return false;
             }
-            return false;
-
-
+            if (fieldValue == null) {
+                return false;
+            }
+            //most values are turned away here, without running the regex
+            if (!hints.admits(fieldValue)) {
+                return false;
+            }
+            java.util.regex.Matcher matcher = matchers.get();
+            if (matcher == null) {
+                matcher = pattern.matcher(fieldValue);
+                matchers.set(matcher);
+            } else {
+                matcher.reset(fieldValue);
+            }
+            final boolean aMatch = matcher.lookingAt();
+            if (LOG.isLoggable(Level.FINEST)) {
+                LOG.log(Level.FINEST, "Match ==> " + aMatch + " " + regEx + " < > " + fieldValue);
+            }
+            return aMatch;
         }
 
         /**
          * Gets the string value of the field called fieldName in the Tuple
          * class source.
          *
-         * @param fieldName
          * @param source
-         * @return
+         * @return the value as a string, null if the field is null or the class does not have it
          */
-        private String getFieldValue(final String fieldName, final Tuple source) throws IllegalArgumentException, IllegalAccessException, NoSuchFieldException {
+        private String getFieldValue(final Tuple source) throws IllegalAccessException {
+
+            final Class<?> sourceClass = source.getClass();
+            Accessor accessor = accessors.get(sourceClass);
+            if (accessor == null) {
+                Field field = null;
+                try {
+                    field = sourceClass.getDeclaredField(fieldName);
+                    field.setAccessible(true);
+                } catch (NoSuchFieldException ex) {
+                    //only logged the once for each class
+                    LOG.log(Level.SEVERE, null, ex);
+                }
+                accessor = new Accessor(field);
+                accessors.put(sourceClass, accessor);
+            }
+            if (accessor.field == null) {
+                return null;
+            }
+            final Object value = accessor.field.get(source);
+            return value == null ? null : value.toString();
+        }
+    }
+
+    private static final class Accessor {
+
+        private final Field field;
+
+        private Accessor(final Field field) {
+            this.field = field;
+        }
+    }
+
+    /**
+     * What can be worked out about the strings a pattern can match, with lookingAt, without running it: the literal
+     * text a match must start with and the longest literal text a match must contain. Either is empty if nothing
+     * can be said, as is the case whenever the pattern has an alternation outside a group or sets flags inline.
+     */
+    static final class LiteralHints {
 
+        private static final LiteralHints NONE = new LiteralHints("", "");
 
-            final Class sourceClass = source.getClass();
-            final Field field = sourceClass.getDeclaredField(fieldName);
-            field.setAccessible(true);
+        final String prefix;
+        final String required;
 
-            final String value = field.get(source).toString();
-            field.setAccessible(false);
-            Logger.getLogger(RegexMatcher.class.getName()).log(Level.INFO, "field value of " + fieldName + "  is " + value);
-            return value;
+        private LiteralHints(final String prefix, final String required) {
+            this.prefix = prefix;
+            this.required = required;
+        }
 
+        /**
+         * @param value a value
+         * @return false if the pattern cannot match the value
+         */
+        boolean admits(final String value) {
+            return value.startsWith(prefix) && (required.length() <= prefix.length() || value.contains(required));
+        }
 
+        static LiteralHints of(final String regEx) {
+            final List<StringBuilder> runs = new ArrayList<StringBuilder>();
+            StringBuilder run = new StringBuilder();
+            boolean prefixOpen = true;
+            String prefix = null;
+            int depth = 0;
+            int i = regEx.startsWith("^") ? 1 : 0;
+            while (i < regEx.length()) {
+                final char c = regEx.charAt(i);
+                int literal = -1;
+                if (c == '\\') {
+                    final int length = escapeLength(regEx, i);
+                    if (length < 0) {
+                        return NONE;
+                    }
+                    final char escaped = regEx.charAt(i + 1);
+                    if (!Character.isLetterOrDigit(escaped) && depth == 0) {
+                        literal = escaped;
+                    }
+                    i += length;
+                } else if (c == '[') {
+                    i = skipClass(regEx, i);
+                    if (i < 0) {
+                        return NONE;
+                    }
+                } else if (c == '(') {
+                    if (regEx.startsWith("(?", i) && i + 2 < regEx.length()
+                            && (Character.isLetter(regEx.charAt(i + 2)) || regEx.charAt(i + 2) == '-')
+                            && regEx.charAt(i + 2) != '<') {
+                        //inline flags
+                        return NONE;
+                    }
+                    depth++;
+                    i++;
+                } else if (c == ')') {
+                    depth--;
+                    i++;
+                } else if (c == '|') {
+                    if (depth == 0) {
+                        return NONE;
+                    }
+                    i++;
+                } else if ("*+?{".indexOf(c) >= 0) {
+                    //a quantifier, a stray one means the pattern is not understood
+                    return NONE;
+                } else if (".^$".indexOf(c) >= 0 || depth > 0) {
+                    i++;
+                } else {
+                    literal = c;
+                    i++;
+                }
+
+                //does a quantifier follow?
+                boolean optional = false;
+                boolean repeated = false;
+                if (i < regEx.length() && "*+?{".indexOf(regEx.charAt(i)) >= 0) {
+                    final char q = regEx.charAt(i);
+                    if (q == '{') {
+                        final int close = regEx.indexOf('}', i);
+                        if (close < 0) {
+                            return NONE;
+                        }
+                        final String min = regEx.substring(i + 1, close).split(",", -1)[0].trim();
+                        try {
+                            optional = Integer.parseInt(min) == 0;
+                        } catch (NumberFormatException e) {
+                            return NONE;
+                        }
+                        i = close + 1;
+                    } else {
+                        optional = q != '+';
+                        i++;
+                    }
+                    repeated = true;
+                    if (i < regEx.length() && (regEx.charAt(i) == '?' || regEx.charAt(i) == '+')) {
+                        //lazy or possessive
+                        i++;
+                    }
+                }
+
+                if (literal >= 0 && depth == 0 && !optional) {
+                    run.append((char) literal);
+                }
+                if (literal < 0 || optional || repeated) {
+                    if (prefixOpen) {
+                        prefix = run.toString();
+                        prefixOpen = false;
+                    }
+                    runs.add(run);
+                    run = new StringBuilder();
+                }
+            }
+            if (depth != 0) {
+                return NONE;
+            }
+            runs.add(run);
+            if (prefixOpen) {
+                prefix = run.toString();
+            }
+            String required = "";
+            for (final StringBuilder each : runs) {
+                if (each.length() > required.length()) {
+                    required = each.toString();
+                }
+            }
+            return new LiteralHints(prefix, required);
+        }
 
+        /**
+         * Gets the length of the escape starting at a backslash. An escape of a letter or digit may be written with
+         * several characters, eg \x41 or \p{Lu}, and is read to its end so that none of it is taken as literal text.
+         *
+         * @return the length including the backslash, -1 if the escape is not understood, as for a back reference or
+         *         quoting with \Q
+         */
+        private static int escapeLength(final String regEx, final int start) {
+            if (start + 1 >= regEx.length()) {
+                return -1;
+            }
+            final char escaped = regEx.charAt(start + 1);
+            if (!Character.isLetterOrDigit(escaped)) {
+                return 2;
+            }
+            final int end;
+            switch (escaped) {
+                case 't': case 'n': case 'r': case 'f': case 'a': case 'e':
+                case 'd': case 'D': case 's': case 'S': case 'w': case 'W': case 'h': case 'H': case 'v': case 'V':
+                case 'b': case 'B': case 'A': case 'G': case 'Z': case 'z': case 'R': case 'X':
+                    return 2;
+                case 'c':
+                    return start + 2 < regEx.length() ? 3 : -1;
+                case '0':
+                    end = countWhile(regEx, start + 2, "01234567", regEx.length() > start + 2
+                            && regEx.charAt(start + 2) <= '3' ? 3 : 2);
+                    return end > start + 2 ? end - start : -1;
+                case 'x':
+                    if (regEx.startsWith("{", start + 2)) {
+                        return closedBy(regEx, start, '}');
+                    }
+                    end = countWhile(regEx, start + 2, "0123456789abcdefABCDEF", 2);
+                    return end == start + 4 ? 4 : -1;
+                case 'u':
+                    end = countWhile(regEx, start + 2, "0123456789abcdefABCDEF", 4);
+                    return end == start + 6 ? 6 : -1;
+                case 'p': case 'P':
+                    if (regEx.startsWith("{", start + 2)) {
+                        return closedBy(regEx, start, '}');
+                    }
+                    return start + 2 < regEx.length() ? 3 : -1;
+                case 'N':
+                    return regEx.startsWith("{", start + 2) ? closedBy(regEx, start, '}') : -1;
+                case 'k':
+                    return regEx.startsWith("<", start + 2) ? closedBy(regEx, start, '>') : -1;
+                default:
+                    return -1;
+            }
+        }
+
+        /**
+         * @return the index after the characters from start that are among the allowed, counting at most max
+         */
+        private static int countWhile(final String regEx, final int start, final String allowed, final int max) {
+            int i = start;
+            while (i < regEx.length() && i - start < max && allowed.indexOf(regEx.charAt(i)) >= 0) {
+                i++;
+            }
+            return i;
+        }
+
+        /**
+         * @return the length of the escape starting at start that ends with the closing character, -1 if it does not
+         */
+        private static int closedBy(final String regEx, final int start, final char closing) {
+            final int close = regEx.indexOf(closing, start + 2);
+            return close < 0 ? -1 : close + 1 - start;
+        }
+
+        /**
+         * @return the index after the character class starting at start, -1 if it does not end
+         */
+        private static int skipClass(final String regEx, final int start) {
+            int i = start + 1;
+            if (i < regEx.length() && regEx.charAt(i) == '^') {
+                i++;
+            }
+            if (i < regEx.length() && regEx.charAt(i) == ']') {
+                //a leading ] is a literal
+                i++;
+            }
+            int nested = 0;
+            while (i < regEx.length()) {
+                final char c = regEx.charAt(i);
+                if (c == '\\') {
+                    final int length = escapeLength(regEx, i);
+                    if (length < 0) {
+                        return -1;
+                    }
+                    i += length;
+                    continue;
+                }
+                if (c == '[') {
+                    nested++;
+                } else if (c == ']') {
+                    if (nested == 0) {
+                        return i + 1;
+                    }
+                    nested--;
+                }
+                i++;
+            }
+            return -1;
         }
     }
 }
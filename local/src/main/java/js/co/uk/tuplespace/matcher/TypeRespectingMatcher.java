@@ -0,0 +1,34 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.matcher;
+
+/**
+ * Marker for a {@link Matcher} that never matches across tuple types. A tuple can only match a template if <p>
+ * 1. both are {@link js.co.uk.tuplespace.tuple.SimpleTuple}s with the same number of entries, in which case each
+ * entry of the template must either equal the tuple's entry or be '*', or<br>
+ * 2. the tuple is of the same class as the template, or<br>
+ * 3. the template's class is the direct superclass of the tuple's class.<p>
+ * A space that knows its matcher respects types only needs to look at the tuples of the template's type when
+ * matching, rather than at every tuple in the space.
+ *
+ * @param <V>
+ */
+public interface TypeRespectingMatcher<V> extends Matcher<V> {
+
+}
@@ -27,6 +27,7 @@ import js.co.uk.tuplespace.events.SpaceChange;
 import js.co.uk.tuplespace.events.SpaceChangeEvent;
 import js.co.uk.tuplespace.events.SpaceRenderer;
 import js.co.uk.tuplespace.store.TransactionID;
+import js.co.uk.tuplespace.tuple.Tuple;
 /**
  * 
  * Experimental view of a space. Bug in the adding into the the graphView, it doesn't handle 
@@ -67,6 +68,14 @@ public class GraphSpaceRenderer implements SpaceRenderer {
                     graphView.removeTupleNode(spaceChangeEvent.getSpaceName(), spaceChangeEvent.getTuple().toString());
                 } else if (spaceChangeEvent.getEventHint() == EventHint.TUPLE_TIMEDOUT) {
                     graphView.removeTupleNode(spaceChangeEvent.getSpaceName(), spaceChangeEvent.getTuple().toString());
+                } else if (spaceChangeEvent.getEventHint() == EventHint.TUPLES_ADDED) {
+                    for (final Tuple tuple : spaceChangeEvent.getTuples()) {
+                        graphView.addTupleNode(spaceChangeEvent.getSpaceName(), tuple.toString());
+                    }
+                } else if (spaceChangeEvent.getEventHint() == EventHint.TUPLES_REMOVED) {
+                    for (final Tuple tuple : spaceChangeEvent.getTuples()) {
+                        graphView.removeTupleNode(spaceChangeEvent.getSpaceName(), tuple.toString());
+                    }
                 } else if (spaceChangeEvent.getEventHint() == EventHint.SPACE_CREATED) {
                     graphView.addSpaceNode(spaceChangeEvent.getSpaceName());
                 } else if (spaceChangeEvent.getEventHint() == EventHint.SPACE_PURGED) {
@@ -78,6 +87,14 @@ public class GraphSpaceRenderer implements SpaceRenderer {
                     graphView.addTupleNode(spaceChangeEvent.getSpaceName() + txnID, spaceChangeEvent.getTuple().toString());
                 } else if (spaceChangeEvent.getEventHint() == EventHint.TUPLE_REMOVED && spaceChangeEvent.getTuple() != null) {
                     graphView.removeTupleNode(spaceChangeEvent.getSpaceName() + txnID, spaceChangeEvent.getTuple().toString());
+                } else if (spaceChangeEvent.getEventHint() == EventHint.TUPLES_ADDED) {
+                    for (final Tuple tuple : spaceChangeEvent.getTuples()) {
+                        graphView.addTupleNode(spaceChangeEvent.getSpaceName() + txnID, tuple.toString());
+                    }
+                } else if (spaceChangeEvent.getEventHint() == EventHint.TUPLES_REMOVED) {
+                    for (final Tuple tuple : spaceChangeEvent.getTuples()) {
+                        graphView.removeTupleNode(spaceChangeEvent.getSpaceName() + txnID, tuple.toString());
+                    }
                 } else if (spaceChangeEvent.getEventHint() == EventHint.TUPLE_TIMEDOUT) {
                     //THIS WONT HAPPEN??  :)
                     graphView.removeTupleNode(spaceChangeEvent.getSpaceName() + txnID, spaceChangeEvent.getTuple().toString());
@@ -0,0 +1,91 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.space;
+
+import js.co.uk.tuplespace.tuple.Tuple;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A {@link Space} whose takes, reads and puts can be made without blocking the calling thread. A take or read that
+ * cannot be matched straight away is registered with the space rather than parking a thread, and its future is
+ * completed when a put brings a match or the attempt times out. Cancelling the future of a take or read that has not
+ * yet matched gives the attempt up.
+ * <p/>
+ * A future that is not completed straight away is completed on the default pool of CompletableFuture, as if by
+ * runAsync, so callbacks added to it run there rather than on a thread of the space. None of the operations take part
+ * in a transaction.
+ */
+public interface AsyncSpace extends Space {
+
+    /**
+     * Attempts to match a tuple in the space to the supplied template, with no timeout.
+     * The 'take' operation is destructive in that a matched tuple is removed from the space.
+     *
+     * @param template the template for matching.
+     * @return a future completed with the matched tuple.
+     */
+    public CompletableFuture<Tuple> getAsync(final Tuple template);
+
+    /**
+     * Attempts to match a tuple in the space to the supplied template for up to timeOut milliseconds.
+     * The 'take' operation is destructive in that a matched tuple is removed from the space.
+     *
+     * @param template the template
+     * @param timeOut  how long to wait for a match.
+     * @return a future completed with the matched tuple, or with null if there was no match in time.
+     */
+    public CompletableFuture<Tuple> getAsync(final Tuple template, final long timeOut);
+
+    /**
+     * Attempts to match a tuple in the space to the supplied template, with no timeout. The tuple is not removed.
+     *
+     * @param template the template for matching.
+     * @return a future completed with the matched tuple.
+     */
+    public CompletableFuture<Tuple> readAsync(final Tuple template);
+
+    /**
+     * Attempts to match a tuple in the space to the supplied template for up to timeOut milliseconds. The tuple is not
+     * removed.
+     *
+     * @param template the template
+     * @param timeOut  how long to wait for a match.
+     * @return a future completed with the matched tuple, or with null if there was no match in time.
+     */
+    public CompletableFuture<Tuple> readAsync(final Tuple template, final long timeOut);
+
+    /**
+     * Puts the tuple into the space with no timeout.
+     *
+     * @param tuple the tuple
+     * @return a future completed with the tuple once it is in the space, and durable if the space is.
+     */
+    public CompletableFuture<Tuple> putAsync(final Tuple tuple);
+
+    /**
+     * Puts the tuple into the space and the tuple will be purged after it has been in the space for timeOut
+     * milliseconds.
+     *
+     * @param tuple   the tuple
+     * @param timeOut the time out
+     * @return a future completed with the tuple once it is in the space, and durable if the space is.
+     */
+    public CompletableFuture<Tuple> putAsync(final Tuple tuple, final int timeOut);
+}
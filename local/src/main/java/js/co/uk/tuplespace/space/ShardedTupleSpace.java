@@ -0,0 +1,1050 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.space;
+
+import js.co.uk.tuplespace.events.*;
+import js.co.uk.tuplespace.matcher.CompiledFieldMatcher;
+import js.co.uk.tuplespace.matcher.Matcher;
+import js.co.uk.tuplespace.matcher.TypeRespectingMatcher;
+import js.co.uk.tuplespace.store.*;
+import js.co.uk.tuplespace.tuple.MatchAllTuplesTemplate;
+import js.co.uk.tuplespace.tuple.QueryTemplate;
+import js.co.uk.tuplespace.tuple.Routable;
+import js.co.uk.tuplespace.tuple.SimpleTuple;
+import js.co.uk.tuplespace.tuple.Tuple;
+
+import javax.swing.event.EventListenerList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A {@link Space} that spreads its tuples over a number of shards, each with its own locks and transaction manager,
+ * so that operations on different shards do not contend with each other.
+ * <p/>
+ * A tuple is stored in the shard chosen by its routing key if it is {@link Routable}, otherwise by its class. All the
+ * classes of a hierarchy share a shard so that a template is in the same shard as the tuples of its direct subclasses,
+ * and SimpleTuples are sharded by the number of their entries. A template that names a shard in the same way, when
+ * the matcher is a {@link TypeRespectingMatcher}, only touches that shard. Any other template, eg a
+ * {@link MatchAllTuplesTemplate}, or a Routable template with a null routing key, is tried against every shard in
+ * turn and waits for a put to any shard.
+ * <p/>
+ * A transaction spans every shard. Commit and abort are atomic within each shard but not across shards if they race
+ * with the transaction timing out.
+ */
+public class ShardedTupleSpace implements Space {
+
+    /**
+     * Used to indicate a template that must be tried against every shard.
+     */
+    private static final int ALL_SHARDS = -1;
+
+    private transient final List<TimeoutCollection<Tuple>> shards;
+    private transient final List<TransactionManager<Tuple>> txnMgrs;
+
+    private transient final String name;
+
+    /**
+     * Maps the space's transactions to a transaction in each shard.
+     */
+    private final Map<TransactionID, ShardedTransaction> txns = new ConcurrentHashMap<TransactionID, ShardedTransaction>();
+    private final AtomicLong txnIds = new AtomicLong(0);
+
+    /**
+     * The natural routes, see {@link #naturalRoute(Tuple)}, of Routable tuples that have been routed elsewhere by
+     * their key. Templates with these routes must be tried against every shard.
+     */
+    private final Set<Object> routedAway = java.util.Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+
+    private volatile boolean typed = true;
+
+    /**
+     * Wakes the waits that span every shard.
+     */
+    private final ReentrantLock fanOutLock = new ReentrantLock();
+    private final Condition changed = fanOutLock.newCondition();
+
+    /**
+     * Written holding fanOutLock.
+     */
+    private volatile int fanOutWaiters = 0;
+
+    /**
+     * Counts the puts, commits and aborts seen by waits spanning every shard. Guarded by fanOutLock.
+     */
+    private long changes = 0;
+
+    /**
+     * Counts the purges. Guarded by fanOutLock.
+     */
+    private long purges = 0;
+
+    private EventListenerList listenerList = new EventListenerList();
+
+    /**
+     * Creates a sharded space.
+     *
+     * @param name       the name of the space
+     * @param shardCount the number of shards
+     */
+    public ShardedTupleSpace(final String name, final int shardCount) {
+
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("There must be at least one shard");
+        }
+        this.name = name;
+        shards = new ArrayList<TimeoutCollection<Tuple>>(shardCount);
+        txnMgrs = new ArrayList<TransactionManager<Tuple>>(shardCount);
+
+        //all the shards share one removal queue
+        final BlockingQueue<Tuple> removalQueue = new LinkedBlockingQueue<Tuple>();
+        for (int i = 0; i < shardCount; i++) {
+            final TimeoutCollection<Tuple> shard = new TimeoutCollection<Tuple>(removalQueue);
+            shard.setMatcher(new CompiledFieldMatcher());
+            final TransactionManager<Tuple> txnMgr = new TransactionManager<Tuple>(shard);
+            shard.setTransactionManager(txnMgr);
+            shard.setSizeEstimator(TupleSpace.ENCODED_SIZE);
+            shard.setEvictionListener(new EvictionListener<Tuple>() {
+                @Override
+                public void evicted(final Tuple tuple) {
+                    fireSpaceChangedEvent(new SpaceChangeEvent(name, null, tuple, EventHint.TUPLE_EVICTED));
+                }
+            });
+            shards.add(shard);
+            txnMgrs.add(txnMgr);
+        }
+
+        final Thread header = new Thread(new Runnable() {
+            public void run() {
+                //noinspection InfiniteLoopStatement
+                while (true) {
+                    try {
+                        final Tuple tuple = removalQueue.take();
+                        fireSpaceChangedEvent(new SpaceChangeEvent(name, null, tuple, EventHint.TUPLE_TIMEDOUT));
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        });
+        header.setDaemon(true);
+        header.start();
+    }
+
+    /**
+     * @return the number of shards
+     */
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    @Override
+    public void addSpaceChangeListener(final SpaceChangeListener listener) {
+        listenerList.add(SpaceChangeListener.class, listener);
+    }
+
+    @Override
+    public void removeSpaceChangeListener(final SpaceChangeListener listener) {
+        listenerList.remove(SpaceChangeListener.class, listener);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Tuple get(final Tuple template) {
+        try {
+            return get(template, Long.MAX_VALUE, TimeUnit.DAYS, null);
+        } catch (TransactionException e) {
+            //a null txnId will not allow a TransactionException to be generated
+        }
+        return null;
+    }
+
+    @Override
+    public Tuple get(final Tuple template, final TransactionID txnId) throws TransactionException {
+        return get(template, Long.MAX_VALUE, TimeUnit.DAYS, txnId);
+    }
+
+    @Override
+    public Tuple get(final Tuple template, final long timeOut) {
+        try {
+            return get(template, timeOut, TimeUnit.MILLISECONDS, null);
+        } catch (TransactionException e) {
+            //a null txnId will not allow a TransactionException to be generated
+        }
+        return null;
+    }
+
+    @Override
+    public Tuple get(final Tuple template, final long timeOut, final TransactionID txnId) throws TransactionException {
+        return get(template, timeOut, TimeUnit.MILLISECONDS, txnId);
+    }
+
+    @Override
+    public void purgeAllEntries() {
+        for (final TimeoutCollection<Tuple> shard : shards) {
+            shard.clear();
+        }
+        fanOutLock.lock();
+        try {
+            purges++;
+            changed.signalAll();
+        }
+        finally {
+            fanOutLock.unlock();
+        }
+        fireSpaceChangedEvent(new SpaceChangeEvent(name, (TransactionID) null, (Tuple) null, EventHint.SPACE_PURGED));
+    }
+
+    @Override
+    public void put(final Tuple tuple) {
+        try {
+            put(tuple, Long.MAX_VALUE, TimeUnit.DAYS, null);
+        } catch (TransactionException e) {
+            //a null txnId will not allow a TransactionException to be generated
+        }
+    }
+
+    @Override
+    public void put(final Tuple tuple, final TransactionID txnId) throws TransactionException {
+        put(tuple, Long.MAX_VALUE, TimeUnit.DAYS, txnId);
+    }
+
+    @Override
+    public void put(final Tuple tuple, final int timeOut) {
+        try {
+            put(tuple, timeOut, TimeUnit.MILLISECONDS, null);
+        } catch (TransactionException e) {
+            //a null txnId will not allow a TransactionException to be generated
+        }
+    }
+
+    @Override
+    public void put(final Tuple tuple, final int timeOut, final TransactionID txnId) throws TransactionException {
+        put(tuple, timeOut, TimeUnit.MILLISECONDS, txnId);
+    }
+
+    @Override
+    public Tuple read(final Tuple template) {
+        try {
+            return read(template, Long.MAX_VALUE, TimeUnit.DAYS, null);
+        } catch (TransactionException e) {
+            //a null txnId will not allow a TransactionException to be generated
+        }
+        return null;
+    }
+
+    @Override
+    public Tuple read(final Tuple template, final TransactionID txnId) throws TransactionException {
+        return read(template, Long.MAX_VALUE, TimeUnit.DAYS, txnId);
+    }
+
+    @Override
+    public Tuple read(final Tuple template, final long timeOut) {
+        try {
+            return read(template, timeOut, TimeUnit.MILLISECONDS, null);
+        } catch (TransactionException e) {
+            //a null txnId will not allow a TransactionException to be generated
+        }
+        return null;
+    }
+
+    @Override
+    public Tuple read(final Tuple template, final long timeOut, final TransactionID txnId) throws TransactionException {
+        return read(template, timeOut, TimeUnit.MILLISECONDS, txnId);
+    }
+
+    @Override
+    public Tuple readIfExists(final Tuple template) {
+        try {
+            return readIfExists(template, null);
+        } catch (TransactionException e) {
+            //a null txnId will not allow a TransactionException to be generated
+        }
+        return null;
+    }
+
+    @Override
+    public Tuple readIfExists(final Tuple template, final TransactionID txnId) throws TransactionException {
+
+        final int shard = shardForTemplate(template);
+        if (shard != ALL_SHARDS) {
+            return shards.get(shard).readIfExists(template, shardTxn(txnId, shard));
+        }
+        for (int i = 0; i < shards.size(); i++) {
+            final Tuple tuple = shards.get(i).readIfExists(template, shardTxn(txnId, i));
+            if (tuple != null) {
+                return tuple;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void putAll(final Collection<Tuple> tuples, final long timeOut, final TransactionID txnId)
+            throws TransactionException {
+
+        //each shard is given its tuples in one go
+        final List<List<Tuple>> byShard = new ArrayList<List<Tuple>>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            byShard.add(new ArrayList<Tuple>());
+        }
+        final List<Tuple> added = new ArrayList<Tuple>(tuples);
+        for (final Tuple tuple : added) {
+            byShard.get(shardFor(tuple)).add(tuple);
+        }
+        for (int i = 0; i < shards.size(); i++) {
+            final List<Tuple> shardTuples = byShard.get(i);
+            if (shardTuples.isEmpty()) {
+                continue;
+            }
+            if (timeOut == Long.MAX_VALUE) {
+                shards.get(i).putAll(shardTuples, Long.MAX_VALUE, TimeUnit.DAYS, shardTxn(txnId, i));
+            } else {
+                shards.get(i).putAll(shardTuples, timeOut, TimeUnit.MILLISECONDS, shardTxn(txnId, i));
+            }
+        }
+        if (!added.isEmpty()) {
+            tupleChanged();
+            fireSpaceChangedEvent(new SpaceChangeEvent(name, txnId, added, EventHint.TUPLES_ADDED));
+        }
+    }
+
+    @Override
+    public List<Tuple> takeAll(final Tuple template, final int max, final long timeOut, final TransactionID txnId)
+            throws TransactionException {
+
+        final List<Tuple> taken = new ArrayList<Tuple>();
+        takeAvailable(template, max, txnId, taken);
+        if (taken.isEmpty() && timeOut != 0 && max > 0) {
+            //wait for the first and then take whatever else there is
+            final Tuple first = match(template, timeOut, TimeUnit.MILLISECONDS, true, txnId);
+            if (first != null) {
+                taken.add(first);
+                takeAvailable(template, max, txnId, taken);
+            }
+        }
+        if (!taken.isEmpty()) {
+            fireSpaceChangedEvent(new SpaceChangeEvent(name, txnId, taken, EventHint.TUPLES_REMOVED));
+        }
+        return taken;
+    }
+
+    @Override
+    public List<Tuple> readAll(final Tuple template, final int max) {
+
+        final int shard = shardForTemplate(template);
+        if (shard != ALL_SHARDS) {
+            return shards.get(shard).readAll(template, max);
+        }
+        final List<Tuple> read = new ArrayList<Tuple>();
+        for (final TimeoutCollection<Tuple> each : shards) {
+            if (read.size() >= max) {
+                break;
+            }
+            read.addAll(each.readAll(template, max - read.size()));
+        }
+        return read;
+    }
+
+    @Override
+    public int count(final Tuple template) {
+
+        final int shard = shardForTemplate(template);
+        if (shard != ALL_SHARDS) {
+            return shards.get(shard).count(template);
+        }
+        int count = 0;
+        for (final TimeoutCollection<Tuple> each : shards) {
+            count += each.count(template);
+        }
+        return count;
+    }
+
+    @Override
+    public boolean exists(final Tuple template) {
+
+        final int shard = shardForTemplate(template);
+        if (shard != ALL_SHARDS) {
+            return shards.get(shard).exists(template);
+        }
+        for (final TimeoutCollection<Tuple> each : shards) {
+            if (each.exists(template)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Iterator<Tuple> scan(final Tuple template) {
+
+        final int shard = shardForTemplate(template);
+        if (shard != ALL_SHARDS) {
+            return shards.get(shard).scan(template);
+        }
+        //shard by shard, each shard's scan only started when the last is done
+        return new Iterator<Tuple>() {
+
+            private int next = 0;
+            private Iterator<Tuple> current = java.util.Collections.<Tuple>emptyList().iterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext()) {
+                    if (next == shards.size()) {
+                        return false;
+                    }
+                    current = shards.get(next++).scan(template);
+                }
+                return true;
+            }
+
+            @Override
+            public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public void setMatcher(final Matcher<Tuple> matcher) {
+        typed = matcher instanceof TypeRespectingMatcher;
+        for (final TimeoutCollection<Tuple> shard : shards) {
+            shard.setMatcher(matcher);
+        }
+    }
+
+    /**
+     * Switches hash indexing of SimpleTuple entries on or off in every shard, see
+     * {@link TupleSpace#setIndexSimpleTuples(boolean)}.
+     *
+     * @param indexSimpleTuples true to index
+     */
+    public void setIndexSimpleTuples(final boolean indexSimpleTuples) {
+        for (final TimeoutCollection<Tuple> shard : shards) {
+            shard.setIndexSimpleTuples(indexSimpleTuples);
+        }
+    }
+
+    /**
+     * Limits the number of tuples in the space and their total size, see
+     * {@link TupleSpace#setCapacity(int, long, CapacityPolicy)}. The limits are shared evenly between the shards, so a
+     * put may find its shard full before the whole space is.
+     *
+     * @param maxTuples the most tuples, Integer.MAX_VALUE for no limit
+     * @param maxBytes  the most bytes, Long.MAX_VALUE for no limit
+     * @param policy    what to do when a put would go over the limits
+     */
+    public void setCapacity(final int maxTuples, final long maxBytes, final CapacityPolicy policy) {
+        final int count = shards.size();
+        for (final TimeoutCollection<Tuple> shard : shards) {
+            shard.setCapacity(maxTuples == Integer.MAX_VALUE ? maxTuples : Math.max(1, maxTuples / count),
+                    maxBytes == Long.MAX_VALUE ? maxBytes : Math.max(1, maxBytes / count), policy);
+        }
+    }
+
+    /**
+     * Sets how long a put waits for room in its shard, see {@link TupleSpace#setCapacityTimeout(long, TimeUnit)}.
+     *
+     * @param timeOut the most time to wait
+     * @param unit    the unit of the timeout
+     */
+    public void setCapacityTimeout(final long timeOut, final TimeUnit unit) {
+        for (final TimeoutCollection<Tuple> shard : shards) {
+            shard.setCapacityTimeout(timeOut, unit);
+        }
+    }
+
+    /**
+     * Sets the order that tuples are handed out in by every shard, see {@link TupleSpace#setOrdering(Ordering)}. The
+     * order holds within a shard, so it is only the order of the whole space for tuples that are routed to the same
+     * shard.
+     *
+     * @param ordering the ordering
+     */
+    public void setOrdering(final Ordering ordering) {
+        for (final TimeoutCollection<Tuple> shard : shards) {
+            shard.setOrdering(ordering);
+        }
+    }
+
+    /**
+     * Gives the tuples of a class an order of precedence in every shard, see
+     * {@link TupleSpace#setPriority(Class, Comparator)}.
+     *
+     * @param type       the class
+     * @param precedence the order of precedence, null to remove the order given to the class
+     */
+    public void setPriority(final Class<? extends Tuple> type, final Comparator<? super Tuple> precedence) {
+        for (final TimeoutCollection<Tuple> shard : shards) {
+            shard.setPriority(type, precedence);
+        }
+    }
+
+    @Override
+    public void createIndex(final Class<? extends Tuple> type, final String... fields) {
+        for (final TimeoutCollection<Tuple> shard : shards) {
+            shard.createIndex(type, fields);
+        }
+    }
+
+    /**
+     * Gets the plan for finding the tuples that could match a template, see {@link TupleSpace#explain(Tuple)}. If the
+     * template can match tuples in more than one shard this is the plan in the first shard, the plans in the others
+     * will be similar.
+     *
+     * @param template the template
+     * @return the plan
+     */
+    public QueryPlan explain(final Tuple template) {
+        final int shard = shardForTemplate(template);
+        return shards.get(shard == ALL_SHARDS ? 0 : shard).explain(template);
+    }
+
+    @Override
+    public void createSortedIndex(final Class<? extends Tuple> type, final String field) {
+        for (final TimeoutCollection<Tuple> shard : shards) {
+            shard.createSortedIndex(type, field);
+        }
+    }
+
+    @Override
+    public List<Tuple> listAllTuples() {
+        final List<Tuple> tuples = new ArrayList<Tuple>();
+        for (final TimeoutCollection<Tuple> shard : shards) {
+            tuples.addAll(shard.listAllValues());
+        }
+        return tuples;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (final TimeoutCollection<Tuple> shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    /**
+     * Registers the listener for the tuples put into the space that match the template, see
+     * {@link TupleSpace#notify(Tuple, SpaceChangeListener, long)}. The template is registered with every shard, as
+     * tuples can be routed away from the shard of their class, but each tuple is put into one shard so is notified
+     * once.
+     *
+     * @param template the template
+     * @param listener the listener
+     * @param lease    how long the registration lasts in milliseconds, {@link Lease#FOREVER} for ever
+     * @return the lease, which can be renewed or cancelled
+     */
+    public Lease notify(final Tuple template, final SpaceChangeListener listener, final long lease) {
+        final NotifyListener<Tuple> notifyListener = new NotifyListener<Tuple>() {
+            @Override
+            public void matched(final Tuple tuple) {
+                listener.spaceChanged(new SpaceChangeEvent(name, null, tuple, EventHint.TUPLE_ADDED));
+            }
+        };
+        final List<Lease> leases = new ArrayList<Lease>(shards.size());
+        for (final TimeoutCollection<Tuple> shard : shards) {
+            leases.add(shard.notify(template, notifyListener, lease, TimeUnit.MILLISECONDS));
+        }
+        return new Lease() {
+            @Override
+            public long getExpiration() {
+                return leases.get(0).getExpiration();
+            }
+
+            @Override
+            public boolean renew(final long duration, final TimeUnit unit) {
+                boolean renewed = true;
+                for (final Lease each : leases) {
+                    renewed &= each.renew(duration, unit);
+                }
+                return renewed;
+            }
+
+            @Override
+            public void cancel() {
+                for (final Lease each : leases) {
+                    each.cancel();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the number of notify registrations whose leases have not ended
+     */
+    public int notifyCount() {
+        //each registration is made with every shard
+        return shards.get(0).notifyCount();
+    }
+
+    @Override
+    public int pendingMatchesCount() {
+        int count = fanOutWaiters;
+        for (final TimeoutCollection<Tuple> shard : shards) {
+            count += shard.templateQueueSize();
+        }
+        return count;
+    }
+
+    @Override
+    public TransactionID beginTxn(final Long timeOut) throws TransactionException {
+
+        final TransactionID[] ids = new TransactionID[shards.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = txnMgrs.get(i).beginTxn(timeOut);
+        }
+        final TransactionID id = new TransactionID(txnIds.incrementAndGet());
+        final ShardedTransaction txn = new ShardedTransaction(ids);
+        txns.put(id, txn);
+
+        //the shards time out their own transactions, this just forgets the mapping
+        txn.expiry = TimingWheel.getDefault().schedule(new Runnable() {
+            @Override
+            public void run() {
+                txns.remove(id);
+            }
+        }, timeOut, TimeUnit.MILLISECONDS);
+
+        fireSpaceChangedEvent(new SpaceChangeTransactionEvent(name, id, null, EventHint.TXN_CREATED));
+        return id;
+    }
+
+    @Override
+    public Collection<TimeoutEntry<Tuple>> abortTxn(final TransactionID txnId) throws TransactionException {
+
+        final ShardedTransaction txn = removeTxn(txnId);
+        final List<TimeoutEntry<Tuple>> items = new ArrayList<TimeoutEntry<Tuple>>();
+        TransactionException failure = null;
+        for (int i = 0; i < shards.size(); i++) {
+            try {
+                items.addAll(txnMgrs.get(i).abortTxn(txn.ids[i]));
+            } catch (final TransactionException e) {
+                failure = e;
+            }
+        }
+        tupleChanged();
+        if (failure != null) {
+            throw failure;
+        }
+        fireSpaceChangedEvent(new SpaceChangeTransactionEvent(name, txnId, items, EventHint.TXN_ABORTED));
+        return items;
+    }
+
+    @Override
+    public Collection<TimeoutEntry<Tuple>> commitTxn(final TransactionID txnId) throws TransactionException {
+
+        final ShardedTransaction txn = removeTxn(txnId);
+        final List<TimeoutEntry<Tuple>> items = new ArrayList<TimeoutEntry<Tuple>>();
+        for (int i = 0; i < shards.size(); i++) {
+            try {
+                items.addAll(txnMgrs.get(i).commitTxn(txn.ids[i]));
+            } catch (final TransactionException e) {
+                //the transaction has timed out, abort what is left of it
+                for (int j = i + 1; j < shards.size(); j++) {
+                    try {
+                        txnMgrs.get(j).abortTxn(txn.ids[j]);
+                    } catch (final TransactionException ignored) {
+                        //it has timed out here too
+                    }
+                }
+                tupleChanged();
+                throw e;
+            }
+        }
+        tupleChanged();
+        fireSpaceChangedEvent(new SpaceChangeTransactionEvent(name, txnId, items, EventHint.TXN_COMMITTED));
+        return items;
+    }
+
+    private void put(final Tuple tuple, final long timeOut, final TimeUnit unit, final TransactionID txnId)
+            throws TransactionException {
+
+        final int shard = shardFor(tuple);
+        final TransactionID shardTxnId = shardTxn(txnId, shard);
+        if (txnId != null) {
+            fireSpaceChangedEvent(new SpaceChangeEvent(name, txnId, tuple, EventHint.TUPLE_ADDED));
+        }
+        shards.get(shard).put(tuple, timeOut, unit, shardTxnId);
+        tupleChanged();
+        if (txnId == null) {
+            fireSpaceChangedEvent(new SpaceChangeEvent(name, null, tuple, EventHint.TUPLE_ADDED));
+        }
+    }
+
+    private Tuple get(final Tuple template, final long timeOut, final TimeUnit unit, final TransactionID txnId)
+            throws TransactionException {
+
+        final Tuple tuple = match(template, timeOut, unit, true, txnId);
+        fireSpaceChangedEvent(new SpaceChangeEvent(name, txnId, tuple, EventHint.TUPLE_REMOVED));
+        return tuple;
+    }
+
+    private Tuple read(final Tuple template, final long timeOut, final TimeUnit unit, final TransactionID txnId)
+            throws TransactionException {
+
+        return match(template, timeOut, unit, false, txnId);
+    }
+
+    /**
+     * Waits for a tuple that matches the template in the template's shard, or in every shard if it has none.
+     * <p/>
+     * A tuple of a subclass of the template's class may be Routable, and so be routed away from the template's shard,
+     * even though the template is not. The first such put adds the template's route to those routed away and wakes the
+     * waits in its shard, which then carry on waiting across every shard.
+     *
+     * @param template the template
+     * @param timeOut  the timeout
+     * @param unit     the time unit of the timeout
+     * @param isTake   true for a take, false for a read
+     * @param txnId    the transaction, may be null
+     * @return the matching tuple or null
+     * @throws TransactionException possible transaction exception
+     */
+    private Tuple match(final Tuple template, final long timeOut, final TimeUnit unit, final boolean isTake,
+                        final TransactionID txnId) throws TransactionException {
+
+        final int shard = shardForTemplate(template);
+        if (shard == ALL_SHARDS) {
+            return fanOut(template, timeOut, unit, isTake, txnId);
+        }
+        final TimeoutCollection<Tuple> pinned = shards.get(shard);
+        if (template instanceof Routable) {
+            //it has a routing key so matches are never routed elsewhere
+            return isTake
+                    ? pinned.take(template, timeOut, unit, shardTxn(txnId, shard))
+                    : pinned.read(template, timeOut, unit, shardTxn(txnId, shard));
+        }
+
+        final Object route = naturalRoute(template);
+        final BooleanSupplier routedElsewhere = new BooleanSupplier() {
+            @Override
+            public boolean getAsBoolean() {
+                return routedAway.contains(route);
+            }
+        };
+        final long start = System.nanoTime();
+        final Tuple tuple = isTake
+                ? pinned.take(template, timeOut, unit, shardTxn(txnId, shard), routedElsewhere)
+                : pinned.read(template, timeOut, unit, shardTxn(txnId, shard), routedElsewhere);
+        if (tuple != null || !routedAway.contains(route)) {
+            return tuple;
+        }
+
+        final boolean eternal = unit.toDays(timeOut) >= TimeUnit.NANOSECONDS.toDays(Long.MAX_VALUE);
+        if (eternal) {
+            return fanOut(template, timeOut, unit, isTake, txnId);
+        }
+        final long nanosLeft = unit.toNanos(timeOut) - (System.nanoTime() - start);
+        return nanosLeft > 0 ? fanOut(template, nanosLeft, TimeUnit.NANOSECONDS, isTake, txnId) : null;
+    }
+
+    /**
+     * Tries the template against every shard in turn, waiting for a change to any shard if none match.
+     *
+     * @param template the template
+     * @param timeOut  the timeout
+     * @param unit     the time unit of the timeout
+     * @param isTake   true for a take, false for a read
+     * @param txnId    the transaction, may be null
+     * @return the matching tuple or null
+     * @throws TransactionException possible transaction exception
+     */
+    private Tuple fanOut(final Tuple template, final long timeOut, final TimeUnit unit, final boolean isTake,
+                         final TransactionID txnId) throws TransactionException {
+
+        if (timeOut == 0) {
+            throw new IllegalArgumentException("Timeout of zero is not allowed");
+        }
+        final boolean eternal = unit.toDays(timeOut) >= TimeUnit.NANOSECONDS.toDays(Long.MAX_VALUE);
+        long nanosLeft = eternal ? Long.MAX_VALUE : unit.toNanos(timeOut);
+
+        final long purgesAtStart;
+        fanOutLock.lock();
+        try {
+            fanOutWaiters++;
+            purgesAtStart = purges;
+        }
+        finally {
+            fanOutLock.unlock();
+        }
+
+        try {
+            while (true) {
+                final long seen;
+                fanOutLock.lock();
+                try {
+                    seen = changes;
+                }
+                finally {
+                    fanOutLock.unlock();
+                }
+
+                for (int i = 0; i < shards.size(); i++) {
+                    final TimeoutCollection<Tuple> shard = shards.get(i);
+                    final Tuple tuple = isTake
+                            ? shard.takeIfExists(template, shardTxn(txnId, i))
+                            : shard.readIfExists(template, shardTxn(txnId, i));
+                    if (tuple != null) {
+                        return tuple;
+                    }
+                }
+
+                fanOutLock.lock();
+                try {
+                    while (changes == seen) {
+                        if (purges != purgesAtStart) {
+                            return null;
+                        }
+                        if (eternal) {
+                            changed.await();
+                        } else if (nanosLeft > 0) {
+                            nanosLeft = changed.awaitNanos(nanosLeft);
+                        } else {
+                            return null;  //timed out
+                        }
+                    }
+                    if (purges != purgesAtStart) {
+                        return null;
+                    }
+                }
+                finally {
+                    fanOutLock.unlock();
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        finally {
+            fanOutLock.lock();
+            try {
+                fanOutWaiters--;
+            }
+            finally {
+                fanOutLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Takes, without waiting, whatever matches the template from its shard, or from every shard if it has none, until
+     * there are max tuples.
+     *
+     * @param template the template
+     * @param max      the most tuples to have taken
+     * @param txnId    the transaction, may be null
+     * @param taken    the tuples taken so far, to which those taken are added
+     * @throws TransactionException possible transaction exception
+     */
+    private void takeAvailable(final Tuple template, final int max, final TransactionID txnId,
+                               final List<Tuple> taken) throws TransactionException {
+        final int shard = shardForTemplate(template);
+        if (shard == ALL_SHARDS) {
+            takeFromAllShards(template, max, txnId, taken);
+        } else if (taken.size() < max) {
+            taken.addAll(shards.get(shard).takeAll(template, max - taken.size(), 0, TimeUnit.MILLISECONDS,
+                    shardTxn(txnId, shard)));
+        }
+    }
+
+    /**
+     * Takes, without waiting, from each shard in turn until there are max tuples.
+     *
+     * @param template the template
+     * @param max      the most tuples to have taken
+     * @param txnId    the transaction, may be null
+     * @param taken    the tuples taken so far, to which those taken are added
+     * @throws TransactionException possible transaction exception
+     */
+    private void takeFromAllShards(final Tuple template, final int max, final TransactionID txnId,
+                                   final List<Tuple> taken) throws TransactionException {
+        for (int i = 0; i < shards.size() && taken.size() < max; i++) {
+            taken.addAll(shards.get(i).takeAll(template, max - taken.size(), 0, TimeUnit.MILLISECONDS, shardTxn(txnId, i)));
+        }
+    }
+
+    /**
+     * Wakes the waits that span every shard, if there are any.
+     */
+    private void tupleChanged() {
+        if (fanOutWaiters > 0) {
+            fanOutLock.lock();
+            try {
+                changes++;
+                changed.signalAll();
+            }
+            finally {
+                fanOutLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @param tuple a tuple to be stored
+     * @return the index of its shard
+     */
+    private int shardFor(final Tuple tuple) {
+        if (tuple instanceof Routable) {
+            final Object key = ((Routable) tuple).getRoutingKey();
+            if (key != null) {
+                final Object route = naturalRoute(tuple);
+                if (!routedAway.contains(route) && routedAway.add(route)) {
+                    //waits pinned to the route's shard must now look in every shard
+                    shards.get(index(route)).wakeWaiters();
+                }
+                return index(key);
+            }
+        }
+        return index(naturalRoute(tuple));
+    }
+
+    /**
+     * @param template a template
+     * @return the index of the only shard that can hold a match, or ALL_SHARDS
+     */
+    private int shardForTemplate(final Tuple template) {
+        if (!typed || template instanceof MatchAllTuplesTemplate) {
+            return ALL_SHARDS;
+        }
+        if (template instanceof Routable) {
+            final Object key = ((Routable) template).getRoutingKey();
+            return key == null ? ALL_SHARDS : index(key);
+        }
+        if (template instanceof QueryTemplate && Routable.class.isAssignableFrom(((QueryTemplate) template).getType())) {
+            //the routing key cannot be derived from conditions
+            return ALL_SHARDS;
+        }
+        final Object route = naturalRoute(template);
+        return routedAway.contains(route) ? ALL_SHARDS : index(route);
+    }
+
+    /**
+     * Gets the route of a tuple ignoring any routing key. This is the BucketKey of a SimpleTuple, otherwise the class
+     * at the top of the tuple's class hierarchy, or of the class queried by a QueryTemplate.
+     *
+     * @param tuple the tuple
+     * @return the route
+     */
+    private static Object naturalRoute(final Tuple tuple) {
+        if (tuple instanceof SimpleTuple) {
+            return BucketKey.forValue(tuple);
+        }
+        Class<?> root = tuple instanceof QueryTemplate ? ((QueryTemplate) tuple).getType() : tuple.getClass();
+        while (root.getSuperclass() != null && root.getSuperclass() != Object.class) {
+            root = root.getSuperclass();
+        }
+        return root;
+    }
+
+    /**
+     * @param route a route
+     * @return the index of the route's shard
+     */
+    private int index(final Object route) {
+        final int hash = route.hashCode();
+        return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % shards.size();
+    }
+
+    /**
+     * @param txnId the space's transaction, may be null
+     * @param shard the index of a shard
+     * @return the shard's part of the transaction or null
+     * @throws TransactionException if the transaction is not known
+     */
+    private TransactionID shardTxn(final TransactionID txnId, final int shard) throws TransactionException {
+        if (txnId == null) {
+            return null;
+        }
+        final ShardedTransaction txn = txns.get(txnId);
+        if (txn == null) {
+            throw new TransactionException("Transaction id " + txnId + " does not reference a valid transaction");
+        }
+        return txn.ids[shard];
+    }
+
+    /**
+     * @param txnId the space's transaction
+     * @return the transaction, no longer known to the space
+     * @throws TransactionException if the transaction is not known
+     */
+    private ShardedTransaction removeTxn(final TransactionID txnId) throws TransactionException {
+        final ShardedTransaction txn = txns.remove(txnId);
+        if (txn == null) {
+            throw new TransactionException("Transaction id " + txnId + " does not reference a valid transaction");
+        }
+        txn.expiry.cancel();
+        return txn;
+    }
+
+    /**
+     * Tells listeners of change event
+     *
+     * @param spaceChangeEvent
+     */
+    private void fireSpaceChangedEvent(final SpaceChange spaceChangeEvent) {
+
+        Object[] listeners = listenerList.getListenerList();
+        for (int i = listeners.length - 2; i >= 0; i -= 2) {
+
+            ((SpaceChangeListener) listeners[i + 1]).spaceChanged(spaceChangeEvent);
+
+        }
+
+    }
+
+    /**
+     * A transaction of the space, made up of a transaction in each shard.
+     */
+    private static final class ShardedTransaction {
+        private final TransactionID[] ids;
+        private volatile TimingWheel.Timeout expiry;
+
+        private ShardedTransaction(final TransactionID[] ids) {
+            this.ids = ids;
+        }
+    }
+}
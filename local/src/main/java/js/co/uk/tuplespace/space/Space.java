@@ -26,6 +26,8 @@ import js.co.uk.tuplespace.store.Transactional;
 import js.co.uk.tuplespace.store.TransactionID;
 import js.co.uk.tuplespace.tuple.Tuple;
 
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 
 
@@ -225,6 +227,70 @@ public interface Space extends Transactional {
     public Tuple readIfExists(final Tuple template, final TransactionID txnId) throws TransactionException;
 
 
+    /**
+     * Puts all of the tuples into the space in one operation, optionally under a transaction. Listeners are told of
+     * the whole collection by one event with a hint of {@link js.co.uk.tuplespace.events.EventHint#TUPLES_ADDED},
+     * and of nothing if the collection is empty.
+     *
+     * @param tuples  the tuples
+     * @param timeOut the time out in milliseconds, Long.MAX_VALUE for no timeout
+     * @param txnId   the id of the transaction, may be null
+     * @throws TransactionException a TransactionException
+     */
+    public void putAll(final Collection<Tuple> tuples, final long timeOut, final TransactionID txnId) throws TransactionException;
+
+    /**
+     * Takes up to max tuples that match the supplied template in one operation, optionally under a transaction. The
+     * operation blocks for up to timeOut milliseconds for the first match and then takes whatever else matches
+     * without blocking. Listeners are told of the tuples taken by one event with a hint of
+     * {@link js.co.uk.tuplespace.events.EventHint#TUPLES_REMOVED}, and of nothing if none are taken.
+     *
+     * @param template the template
+     * @param max      the most tuples to take
+     * @param timeOut  how long to wait for the first match, zero to not wait at all
+     * @param txnId    the id of the transaction, may be null
+     * @return the tuples that match the template, empty if there were none
+     * @throws TransactionException a TransactionException
+     */
+    public List<Tuple> takeAll(final Tuple template, final int max, final long timeOut, final TransactionID txnId) throws TransactionException;
+
+    /**
+     * This is a non-blocking read of up to max tuples that match the supplied template.
+     *
+     * @param template the template
+     * @param max      the most tuples to read
+     * @return the tuples that match the template, empty if there were none
+     */
+    public List<Tuple> readAll(final Tuple template, final int max);
+
+    /**
+     * Counts the tuples that match the supplied template at the instant of invocation. The tuples are not copied,
+     * so this is much cheaper than listing them. As with {@link #size()} the result is best viewed as an approximation.
+     *
+     * @param template the template
+     * @return the number of tuples that match the template
+     */
+    public int count(final Tuple template);
+
+    /**
+     * This is a non-blocking check for a tuple that matches the supplied template. It is cheaper than a read as the
+     * tuple itself is not returned.
+     *
+     * @param template the template
+     * @return true if a tuple in the space matches the template
+     */
+    public boolean exists(final Tuple template);
+
+    /**
+     * Walks the tuples that match the supplied template without copying the space. The view is weakly consistent:
+     * each tuple is returned at most once, and tuples put or taken whilst the scan is in progress may or may not be
+     * seen. The iterator does not support remove, use a get to take a tuple that has been seen.
+     *
+     * @param template the template
+     * @return an iterator over the tuples that match the template
+     */
+    public Iterator<Tuple> scan(final Tuple template);
+
     /**
      * Sets the matcher that is used when reading or getting tuples. The matcher compares
      * a tuple in the space with the template.
@@ -234,6 +300,40 @@ public interface Space extends Transactional {
      */
     public void setMatcher(final Matcher<Tuple> matcher);
 
+    /**
+     * Creates a hash index on some fields of a class of tuples, kept up to date as tuples are put, taken and expire.
+     * A template of that class whose indexed fields are all concrete, ie neither null nor "*", is then matched
+     * against just the tuples with those field values rather than against every tuple of the class. For example
+     * createIndex(ChannelMessage.class, "channelName", "index") lets a get of a particular message of a channel
+     * find it directly. Indexing only has an effect with a {@link js.co.uk.tuplespace.matcher.TypeRespectingMatcher}
+     * such as the default one, and costs memory and a little time on each put and take.
+     * <p/>
+     * Only fields declared by the class itself can be indexed. SimpleTuples are not indexed by field.
+     *
+     * @param type   the class of the tuples to index
+     * @param fields the names of the fields to index on
+     * @throws IllegalArgumentException if the class or a field cannot be indexed
+     */
+    public void createIndex(final Class<? extends Tuple> type, final String... fields);
+
+    /**
+     * Creates a sorted index on a field of a class of tuples, kept up to date as tuples are put, taken and expire. A
+     * {@link js.co.uk.tuplespace.tuple.QueryTemplate} of that class with a range, prefix or set
+     * {@link js.co.uk.tuplespace.tuple.Condition} on the field is then matched against just the tuples whose field
+     * satisfies the condition, found in O(log n + k) time for k tuples, rather than against every tuple of the class.
+     * For example after createSortedIndex(Task.class, "priority") a get with
+     * new QueryTemplate(Task.class).where("priority", Condition.gt(5)) only looks at the Tasks with a priority above 5.
+     * Indexing only has an effect with a {@link js.co.uk.tuplespace.matcher.TypeRespectingMatcher} such as the
+     * default one.
+     * <p/>
+     * Only a field declared by the class itself can be indexed. SimpleTuples are not indexed by field.
+     *
+     * @param type  the class of the tuples to index
+     * @param field the name of the field to index on
+     * @throws IllegalArgumentException if the class or the field cannot be indexed
+     */
+    public void createSortedIndex(final Class<? extends Tuple> type, final String field);
+
     /**
      * Lists all the tuples at the intstant of invocation.
      *
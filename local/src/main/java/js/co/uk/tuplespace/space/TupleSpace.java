@@ -19,30 +19,98 @@
 
 package js.co.uk.tuplespace.space;
 
+import js.co.uk.tuplespace.codec.TupleCodecs;
 import js.co.uk.tuplespace.events.*;
-import js.co.uk.tuplespace.matcher.FieldBasedMatcher;
+import js.co.uk.tuplespace.matcher.CompiledFieldMatcher;
 import js.co.uk.tuplespace.matcher.Matcher;
 import js.co.uk.tuplespace.store.*;
 import js.co.uk.tuplespace.tuple.Tuple;
 
 import javax.swing.event.EventListenerList;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
- * The Class TupleSpace. The default implementation of the   {@link Space} interface.
+ * The Class TupleSpace. The default implementation of the   {@link Space} and {@link AsyncSpace} interfaces.
  */
-public class TupleSpace implements Space {
+public class TupleSpace implements AsyncSpace, Closeable {
 
     public static final String DEFAULT_NAME = "defaultSpaceName";
+    private static final Logger logger = Logger.getLogger(TupleSpace.class.getName());
+
+    /**
+     * The size counted for a tuple that can be neither encoded nor serialised, generous so that such tuples cannot
+     * fill a space unnoticed.
+     */
+    static final long UNKNOWN_SIZE = 4096;
+
+    /**
+     * Estimates the size of a tuple as the length of its encoding with the default codec. A tuple the codec cannot
+     * encode, one with a field of a class that is not registered, is counted as the length of its Java serialisation,
+     * which is never shorter, or as {@link #UNKNOWN_SIZE} if it cannot be serialised either.
+     */
+    static final SizeEstimator<Tuple> ENCODED_SIZE = new SizeEstimator<Tuple>() {
+        @Override
+        public long sizeOf(final Tuple tuple) {
+            try {
+                return TupleCodecs.getDefault().encode(tuple).length;
+            } catch (final IOException e) {
+                logger.log(Level.WARNING, "Unable to encode " + tuple + ", its serialised size is counted instead", e);
+            }
+            final long[] count = new long[1];
+            try {
+                final ObjectOutputStream out = new ObjectOutputStream(new OutputStream() {
+                    @Override
+                    public void write(final int b) {
+                        count[0]++;
+                    }
+
+                    @Override
+                    public void write(final byte[] b, final int off, final int len) {
+                        count[0] += len;
+                    }
+                });
+                out.writeObject(tuple);
+                out.close();
+                return count[0];
+            } catch (final IOException e) {
+                logger.log(Level.WARNING, "Unable to serialise " + tuple + ", it is counted as " + UNKNOWN_SIZE
+                        + " bytes", e);
+                return UNKNOWN_SIZE;
+            }
+        }
+    };
     /* Collection of tuples to time out */
     private transient final TimeoutCollection<Tuple> spaceCollection;
 
     private transient final String name;
     private transient final TransactionManager<Tuple> txnMgr;
+
+    /**
+     * Counted down when the space is closed, which ends the checkpoints.
+     */
+    private transient final CountDownLatch closed = new CountDownLatch(1);
+
+    /**
+     * The thread that checkpoints the log, null if there is none.
+     */
+    private transient volatile Thread checkpointer;
     /*
     Might be better to use Spring and AOP to intercept some of the methods in
     TimeoutCollection to get it to fire out events when values are added/removed/timedout
@@ -72,9 +140,16 @@ public class TupleSpace implements Space {
         spaceCollection = new TimeoutCollection<Tuple>(removalQueue);
 
 
-        spaceCollection.setMatcher(new FieldBasedMatcher());
+        spaceCollection.setMatcher(new CompiledFieldMatcher());
         txnMgr = new TransactionManager<Tuple>(spaceCollection);
         spaceCollection.setTransactionManager(txnMgr);
+        spaceCollection.setSizeEstimator(ENCODED_SIZE);
+        spaceCollection.setEvictionListener(new EvictionListener<Tuple>() {
+            @Override
+            public void evicted(final Tuple tuple) {
+                fireSpaceChangedEvent(new SpaceChangeEvent(name, null, tuple, EventHint.TUPLE_EVICTED));
+            }
+        });
         final Thread header = new Thread(new Runnable() {
             public void run() {
                 //noinspection InfiniteLoopStatement
@@ -94,6 +169,85 @@ public class TupleSpace implements Space {
 
     }
 
+    /**
+     * Creates a durable TupleSpace with the supplied name. Every change to the space is written to the supplied log,
+     * see {@link WriteAheadLog}, and a put or take outside a transaction, or a commit, only returns once its change is
+     * durable. If the log already exists it is replayed first so the space starts with the tuples it held, and with
+     * what was left of their timeouts, when it last stopped. Tuples are logged with the default codec, see
+     * {@link TupleCodecs#getDefault()}.
+     *
+     * @param name    the name of the space
+     * @param logFile the log, created if it does not exist
+     * @throws IOException if the log cannot be opened or read
+     */
+    public TupleSpace(final String name, final File logFile) throws IOException {
+
+        this(name, logFile, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a durable TupleSpace, as above, whose log is checkpointed every so often. A checkpoint writes the
+     * tuples in the space to a snapshot and deletes the log up to that point, see {@link WriteAheadLog#checkpoint()},
+     * so that neither the log nor the time taken to replay it grows without bound.
+     *
+     * @param name               the name of the space
+     * @param logFile            the log, created if it does not exist
+     * @param checkpointInterval the time between checkpoints, zero for none
+     * @param unit               the unit of the interval
+     * @throws IOException if the log cannot be opened or read
+     */
+    public TupleSpace(final String name, final File logFile, final long checkpointInterval, final TimeUnit unit)
+            throws IOException {
+
+        this(name);
+        final WriteAheadLog<Tuple> log = new WriteAheadLog<Tuple>(logFile, TupleCodecs.getDefault());
+        spaceCollection.recover(log);
+        if (checkpointInterval <= 0) {
+            return;
+        }
+        //stopped by close rather than by interrupting it, which would close the log's channel mid write
+        checkpointer = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        if (closed.await(checkpointInterval, unit)) {
+                            return;
+                        }
+                        log.checkpoint();
+                    } catch (final InterruptedException e) {
+                        return;
+                    } catch (final IOException e) {
+                        //the log is still whole, the next checkpoint may well succeed
+                        logger.log(Level.WARNING,
+                                "Unable to checkpoint the log of " + name, e);
+                    }
+                }
+            }
+        }, name + "-checkpoint");
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+    }
+
+    /**
+     * Closes the log of a durable space once every change logged so far is durable, and stops timing tuples out. A
+     * checkpoint under way is finished first and no more are started. The space must not be used afterwards.
+     *
+     * @throws IOException if the log cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        closed.countDown();
+        final Thread checkpointer = this.checkpointer;
+        if (checkpointer != null) {
+            try {
+                checkpointer.join();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        spaceCollection.close();
+    }
+
 
     /**
      * Adds the supplied listener for space change events
@@ -330,6 +484,168 @@ public class TupleSpace implements Space {
         return spaceCollection.readIfExists(template, txnId);
     }
 
+    /**
+     * Registers the listener for the tuples put into the space that match the template. Unlike a space change
+     * listener, which is told of every change and has to filter them itself, the listener is only called, with a
+     * {@link EventHint#TUPLE_ADDED} event, for the puts that match the template. Each put matches the template once,
+     * and only if it could match by its type and entries. A tuple put under a transaction is notified when the
+     * transaction commits. The listener is called on the thread of the put.
+     *
+     * @param template the template
+     * @param listener the listener
+     * @param lease    how long the registration lasts in milliseconds, {@link Lease#FOREVER} for ever
+     * @return the lease, which can be renewed or cancelled
+     */
+    public Lease notify(final Tuple template, final SpaceChangeListener listener, final long lease) {
+        return spaceCollection.notify(template, new NotifyListener<Tuple>() {
+            @Override
+            public void matched(final Tuple tuple) {
+                listener.spaceChanged(new SpaceChangeEvent(name, null, tuple, EventHint.TUPLE_ADDED));
+            }
+        }, lease, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the number of notify registrations whose leases have not ended
+     */
+    public int notifyCount() {
+        return spaceCollection.notifyCount();
+    }
+
+    /* (non-Javadoc)
+     * @see js.co.uk.tuplespace.space.AsyncSpace#getAsync(Tuple)
+     */
+    @Override
+    public CompletableFuture<Tuple> getAsync(final Tuple template) {
+        return fireWhenDone(spaceCollection.takeAsync(template, Long.MAX_VALUE, TimeUnit.DAYS), EventHint.TUPLE_REMOVED);
+    }
+
+    /* (non-Javadoc)
+     * @see js.co.uk.tuplespace.space.AsyncSpace#getAsync(Tuple, long)
+     */
+    @Override
+    public CompletableFuture<Tuple> getAsync(final Tuple template, final long timeOut) {
+        return fireWhenDone(spaceCollection.takeAsync(template, timeOut, TimeUnit.MILLISECONDS), EventHint.TUPLE_REMOVED);
+    }
+
+    /* (non-Javadoc)
+     * @see js.co.uk.tuplespace.space.AsyncSpace#readAsync(Tuple)
+     */
+    @Override
+    public CompletableFuture<Tuple> readAsync(final Tuple template) {
+        return spaceCollection.readAsync(template, Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+
+    /* (non-Javadoc)
+     * @see js.co.uk.tuplespace.space.AsyncSpace#readAsync(Tuple, long)
+     */
+    @Override
+    public CompletableFuture<Tuple> readAsync(final Tuple template, final long timeOut) {
+        return spaceCollection.readAsync(template, timeOut, TimeUnit.MILLISECONDS);
+    }
+
+    /* (non-Javadoc)
+     * @see js.co.uk.tuplespace.space.AsyncSpace#putAsync(Tuple)
+     */
+    @Override
+    public CompletableFuture<Tuple> putAsync(final Tuple tuple) {
+        return fireWhenDone(spaceCollection.putAsync(tuple, Long.MAX_VALUE, TimeUnit.DAYS), EventHint.TUPLE_ADDED);
+    }
+
+    /* (non-Javadoc)
+     * @see js.co.uk.tuplespace.space.AsyncSpace#putAsync(Tuple, int)
+     */
+    @Override
+    public CompletableFuture<Tuple> putAsync(final Tuple tuple, final int timeOut) {
+        return fireWhenDone(spaceCollection.putAsync(tuple, timeOut, TimeUnit.MILLISECONDS), EventHint.TUPLE_ADDED);
+    }
+
+    /**
+     * Fires an event for the tuple a future is completed with, if any.
+     *
+     * @param future the future of an asynchronous operation
+     * @param hint   the kind of event
+     * @return the future
+     */
+    private CompletableFuture<Tuple> fireWhenDone(final CompletableFuture<Tuple> future, final EventHint hint) {
+        future.whenComplete(new BiConsumer<Tuple, Throwable>() {
+            @Override
+            public void accept(final Tuple tuple, final Throwable failure) {
+                if (tuple != null) {
+                    fireSpaceChangedEvent(new SpaceChangeEvent(name, null, tuple, hint));
+                }
+            }
+        });
+        //the future itself is returned, so that cancelling it gives the attempt up
+        return future;
+    }
+
+    /* (non-Javadoc)
+     * @see js.co.uk.tuplespace.space.Space#putAll(Collection, long, TransactionID)
+     */
+    @Override
+    public void putAll(final Collection<Tuple> tuples, final long timeOut, final TransactionID txnId) throws TransactionException {
+
+        final List<Tuple> added = new ArrayList<Tuple>(tuples);
+        if (timeOut == Long.MAX_VALUE) {
+            spaceCollection.putAll(added, Long.MAX_VALUE, TimeUnit.DAYS, txnId);
+        } else {
+            spaceCollection.putAll(added, timeOut, TimeUnit.MILLISECONDS, txnId);
+        }
+        if (!added.isEmpty()) {
+            fireSpaceChangedEvent(new SpaceChangeEvent(name, txnId, added, EventHint.TUPLES_ADDED));
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see js.co.uk.tuplespace.space.Space#takeAll(Tuple, int, long, TransactionID)
+     */
+    @Override
+    public List<Tuple> takeAll(final Tuple template, final int max, final long timeOut, final TransactionID txnId) throws TransactionException {
+
+        final List<Tuple> taken = spaceCollection.takeAll(template, max, timeOut, TimeUnit.MILLISECONDS, txnId);
+        if (!taken.isEmpty()) {
+            fireSpaceChangedEvent(new SpaceChangeEvent(name, txnId, taken, EventHint.TUPLES_REMOVED));
+        }
+        return taken;
+    }
+
+    /* (non-Javadoc)
+     * @see js.co.uk.tuplespace.space.Space#readAll(Tuple, int)
+     */
+    @Override
+    public List<Tuple> readAll(final Tuple template, final int max) {
+
+        return spaceCollection.readAll(template, max);
+    }
+
+    /* (non-Javadoc)
+     * @see js.co.uk.tuplespace.space.Space#count(Tuple)
+     */
+    @Override
+    public int count(final Tuple template) {
+
+        return spaceCollection.count(template);
+    }
+
+    /* (non-Javadoc)
+     * @see js.co.uk.tuplespace.space.Space#exists(Tuple)
+     */
+    @Override
+    public boolean exists(final Tuple template) {
+
+        return spaceCollection.exists(template);
+    }
+
+    /* (non-Javadoc)
+     * @see js.co.uk.tuplespace.space.Space#scan(Tuple)
+     */
+    @Override
+    public Iterator<Tuple> scan(final Tuple template) {
+
+        return spaceCollection.scan(template);
+    }
+
     /* (non-Javadoc)
      * @see js.co.uk.tuplespace.space.Space#setMatcher(js.co.uk.tuplespace.matcher.Matcher)
      */
@@ -338,6 +654,97 @@ public class TupleSpace implements Space {
         spaceCollection.setMatcher(matcher);
     }
 
+    /**
+     * Switches hash indexing of SimpleTuple entries on or off. With it on, getting or reading with a SimpleTuple
+     * template such as new SimpleTuple("job", "*", 3) only looks at the tuples having "job" first or 3 last, and a
+     * template with no '*' entries is a single hash lookup. The index costs memory and a little time on each put and
+     * take. It is off by default.
+     *
+     * @param indexSimpleTuples true to index
+     */
+    public void setIndexSimpleTuples(final boolean indexSimpleTuples) {
+        spaceCollection.setIndexSimpleTuples(indexSimpleTuples);
+    }
+
+    /**
+     * Sets the order that tuples are handed out in. With {@link Ordering#FIFO} a get or read returns the matching
+     * tuple that was put first, and blocked gets are served in the order they arrived, so a get that has waited
+     * cannot be overtaken by a later one. The default, {@link Ordering#ANY}, is cheaper and returns any match.
+     *
+     * @param ordering the ordering
+     */
+    public void setOrdering(final Ordering ordering) {
+        spaceCollection.setOrdering(ordering);
+    }
+
+    /**
+     * Limits the number of tuples in the space and their total size, as estimated by the length of their encoding
+     * with the default codec, see {@link TupleCodecs#getDefault()}. When a put would go over either limit the policy
+     * decides whether the put waits for room, see {@link #setCapacityTimeout(long, TimeUnit)}, fails with a
+     * {@link CapacityExceededException}, or evicts tuples to make room, each eviction firing a
+     * {@link EventHint#TUPLE_EVICTED} event. Tuples put under a transaction only count once it commits. Estimating
+     * sizes costs an encoding of each tuple put, so is only done with a limit in bytes.
+     *
+     * @param maxTuples the most tuples, Integer.MAX_VALUE for no limit
+     * @param maxBytes  the most bytes, Long.MAX_VALUE for no limit
+     * @param policy    what to do when a put would go over the limits
+     */
+    public void setCapacity(final int maxTuples, final long maxBytes, final CapacityPolicy policy) {
+        spaceCollection.setCapacity(maxTuples, maxBytes, policy);
+    }
+
+    /**
+     * Sets how long a put waits for room when the capacity policy is {@link CapacityPolicy#BLOCK}, after which it
+     * fails with a {@link CapacityExceededException}. By default it waits for as long as it takes.
+     *
+     * @param timeOut the most time to wait
+     * @param unit    the unit of the timeout
+     */
+    public void setCapacityTimeout(final long timeOut, final TimeUnit unit) {
+        spaceCollection.setCapacityTimeout(timeOut, unit);
+    }
+
+    /**
+     * Gives the tuples of a class, and of the classes that extend it, an order of precedence for when the ordering is
+     * {@link Ordering#PRIORITY}. A get or read with a template of the class returns the matching tuple that is first
+     * in the comparator's order. Tuples that are {@link js.co.uk.tuplespace.tuple.Prioritized} need no comparator.
+     *
+     * @param type       the class
+     * @param precedence the order of precedence, null to remove the order given to the class
+     */
+    public void setPriority(final Class<? extends Tuple> type, final Comparator<? super Tuple> precedence) {
+        spaceCollection.setPriority(type, precedence);
+    }
+
+    /* (non-Javadoc)
+     * @see js.co.uk.tuplespace.space.Space#createIndex(java.lang.Class, java.lang.String[])
+     */
+    @Override
+    public void createIndex(final Class<? extends Tuple> type, final String... fields) {
+        spaceCollection.createIndex(type, fields);
+    }
+
+    /* (non-Javadoc)
+     * @see js.co.uk.tuplespace.space.Space#createSortedIndex(java.lang.Class, java.lang.String)
+     */
+    @Override
+    public void createSortedIndex(final Class<? extends Tuple> type, final String field) {
+        spaceCollection.createSortedIndex(type, field);
+    }
+
+    /**
+     * Gets the plan for finding the tuples that could match a template, for diagnostics. The plan shows whether the
+     * tuples of the template's class are scanned or looked up in one of the indexes created with
+     * {@link #createIndex(Class, String...)}, {@link #createSortedIndex(Class, String)} or
+     * {@link #setIndexSimpleTuples(boolean)}, and roughly how many tuples that is expected to find.
+     *
+     * @param template the template
+     * @return the plan that a get, read or count with the template would use
+     */
+    public QueryPlan explain(final Tuple template) {
+        return spaceCollection.explain(template);
+    }
+
     /* (non-Javadoc)
      * @see js.co.uk.tuplespace.space.Space#size()
      */
@@ -48,6 +48,24 @@ public class TupleSpaceManager implements SpaceManager {
         return space;
     }
 
+    /**
+     * Returns a Space of the given name, creating a {@link ShardedTupleSpace} with the given number of shards if there
+     * is not one already. The shard count is ignored if the space exists.
+     *
+     * @param name   the name of the space
+     * @param shards the number of shards, one or less for an unsharded space
+     * @return a Space
+     */
+    public synchronized Space getSpace(final String name, final int shards) {
+
+        if (spaceMap.containsKey(name)) {
+            return spaceMap.get(name);
+        }
+        final Space space = shards <= 1 ? new TupleSpace(name) : new ShardedTupleSpace(name, shards);
+        spaceMap.put(name, space);
+        return space;
+    }
+
     /**
      * Removes the space with the supplied name
      *
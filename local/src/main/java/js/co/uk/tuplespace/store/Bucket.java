@@ -0,0 +1,153 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.store;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Holds the values of one {@link BucketKey} in a {@link BucketedCollection}, in insertion order.
+ * Changes are made holding the lock on the owning collection, reads need no lock.
+ *
+ * @param <V>
+ */
+final class Bucket<V> implements Iterable<Slot<V>> {
+
+    final BucketKey key;
+
+    /**
+     * The slots keyed on their sequence number
+     */
+    final ConcurrentSkipListMap<Long, Slot<V>> slots = new ConcurrentSkipListMap<Long, Slot<V>>();
+
+    /**
+     * Index of the entries of SimpleTuples, null if not indexed.
+     */
+    volatile SimpleTupleIndex<V> index;
+
+    /**
+     * Indexes on the fields of the values, empty if none have been created.
+     */
+    final CopyOnWriteArrayList<FieldIndex<V>> fieldIndexes = new CopyOnWriteArrayList<FieldIndex<V>>();
+
+    /**
+     * Sorted indexes on single fields of the values, empty if none have been created.
+     */
+    final CopyOnWriteArrayList<SortedFieldIndex<V>> sortedIndexes = new CopyOnWriteArrayList<SortedFieldIndex<V>>();
+
+    /**
+     * The slots in order of precedence, null if the collection is not ordered by priority.
+     */
+    volatile PriorityIndex<V> priorities;
+
+    /**
+     * The plans made by the {@link QueryPlanner} for templates of this bucket, keyed on the template's shape. Cleared
+     * whenever an index is added or removed.
+     */
+    final ConcurrentHashMap<Object, QueryPlan> plans = new ConcurrentHashMap<Object, QueryPlan>();
+
+    /**
+     * Counts the changes to the indexes. A plan made whilst they were being changed may be cached after the plans
+     * are cleared, so a plan is only used if it was made with the current indexes.
+     */
+    volatile long indexVersion = 0;
+
+    /**
+     * The number of slots, as the size of slots is not a constant time operation.
+     */
+    private volatile int size = 0;
+
+    /**
+     * @param key the key of the values held
+     */
+    Bucket(final BucketKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Forgets the plans once an index has been added or removed. Must be called holding the lock on the collection.
+     */
+    void indexesChanged() {
+        indexVersion++;
+        plans.clear();
+    }
+
+    /**
+     * @param slot the slot to add
+     */
+    void add(final Slot<V> slot) {
+        slots.put(slot.seq, slot);
+        size++;
+        if (index != null) {
+            index.add(slot);
+        }
+        for (final FieldIndex<V> fieldIndex : fieldIndexes) {
+            fieldIndex.add(slot);
+        }
+        for (final SortedFieldIndex<V> sortedIndex : sortedIndexes) {
+            sortedIndex.add(slot);
+        }
+        if (priorities != null) {
+            priorities.add(slot);
+        }
+    }
+
+    /**
+     * @param slot the slot to remove
+     */
+    void remove(final Slot<V> slot) {
+        if (slots.remove(slot.seq) != null) {
+            size--;
+        }
+        if (index != null) {
+            index.remove(slot);
+        }
+        for (final FieldIndex<V> fieldIndex : fieldIndexes) {
+            fieldIndex.remove(slot);
+        }
+        for (final SortedFieldIndex<V> sortedIndex : sortedIndexes) {
+            sortedIndex.remove(slot);
+        }
+        if (priorities != null) {
+            priorities.remove(slot);
+        }
+    }
+
+    /**
+     * @return the number of values
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the slots in insertion order
+     */
+    @Override
+    public Iterator<Slot<V>> iterator() {
+        return slots.values().iterator();
+    }
+
+    @Override
+    public String toString() {
+        return "Bucket{" + "key=" + key + ", size=" + slots.size() + '}';
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.store;
+
+import js.co.uk.tuplespace.tuple.QueryTemplate;
+import js.co.uk.tuplespace.tuple.SimpleTuple;
+
+/**
+ * Identifies a bucket in a {@link BucketedCollection}. Values are bucketed by their concrete class, except for
+ * {@link SimpleTuple}s (and subclasses) which all share the SimpleTuple class and are bucketed by their arity, ie the
+ * number of entries in their data.
+ */
+public final class BucketKey {
+
+    /**
+     * Arity used for anything that is not a SimpleTuple
+     */
+    private static final int NO_ARITY = -1;
+
+    private final Class<?> type;
+    private final int arity;
+
+    /**
+     * @param type  the class of the values in the bucket
+     * @param arity the arity of the SimpleTuples in the bucket or -1
+     */
+    private BucketKey(final Class<?> type, final int arity) {
+        this.type = type;
+        this.arity = arity;
+    }
+
+    /**
+     * Gets the key of the bucket that the supplied value, or a template of the same shape, belongs to. The key of a
+     * {@link QueryTemplate} is that of the class it queries.
+     *
+     * @param value the value
+     * @return the BucketKey
+     */
+    public static BucketKey forValue(final Object value) {
+        if (value instanceof SimpleTuple) {
+            return new BucketKey(SimpleTuple.class, ((SimpleTuple) value).getData().size());
+        }
+        if (value instanceof QueryTemplate) {
+            return new BucketKey(((QueryTemplate) value).getType(), NO_ARITY);
+        }
+        return new BucketKey(value.getClass(), NO_ARITY);
+    }
+
+    /**
+     * Gets the key of the bucket that holds values of the supplied class.
+     *
+     * @param type the class
+     * @return the BucketKey or null if values of the class are bucketed by arity, ie they are SimpleTuples
+     */
+    static BucketKey forClass(final Class<?> type) {
+        if (SimpleTuple.class.isAssignableFrom(type)) {
+            return null;
+        }
+        return new BucketKey(type, NO_ARITY);
+    }
+
+    /**
+     * @return the class of the values in the bucket
+     */
+    public Class<?> getType() {
+        return type;
+    }
+
+    /**
+     * @return the arity of the SimpleTuples in the bucket, or -1 if the bucket does not hold SimpleTuples
+     */
+    public int getArity() {
+        return arity;
+    }
+
+    /**
+     * @return true if the bucket holds SimpleTuples
+     */
+    public boolean isSimpleTuple() {
+        return arity != NO_ARITY;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        final BucketKey that = (BucketKey) o;
+
+        return arity == that.arity && type == that.type;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * type.hashCode() + arity;
+    }
+
+    @Override
+    public String toString() {
+        return "BucketKey{" + "type=" + type.getName() + ", arity=" + arity + '}';
+    }
+}
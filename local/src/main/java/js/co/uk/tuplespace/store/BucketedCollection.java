@@ -0,0 +1,927 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.store;
+
+import js.co.uk.tuplespace.tuple.Condition;
+import js.co.uk.tuplespace.tuple.MatchAllTuplesTemplate;
+import js.co.uk.tuplespace.tuple.PrimitiveTuple;
+import js.co.uk.tuplespace.tuple.Prioritized;
+import js.co.uk.tuplespace.tuple.QueryTemplate;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The primary store of a {@link TimeoutCollection}. Values are partitioned into buckets, see {@link BucketKey}, so
+ * that a template only has to be compared with the values in its own bucket (and in the buckets of any direct
+ * subclasses of the template's class) rather than with every value in the collection.
+ * <p/>
+ * Within a bucket values are kept in insertion order. Optionally the SimpleTuples can also be hash indexed on their
+ * entries, see {@link #setIndexSimpleTuples(boolean)}, and other values on some of their fields, see
+ * {@link #createIndex(Class, String...)}, or kept in the order of one of their fields for {@link QueryTemplate}s with
+ * range conditions, see {@link #createSortedIndex(Class, String)}. The values can be kept in an order of precedence
+ * too, see {@link #setPriority(Class, Comparator)}.
+ * <p/>
+ * Changes are serialised on the collection itself but the buckets can be iterated at any time without locking,
+ * iteration is weakly consistent. A consistent snapshot, see {@link #values()}, is taken without locking by checking
+ * a version number that each change bumps before and after it makes the change.
+ *
+ * @param <V>
+ */
+public class BucketedCollection<V> {
+
+    /**
+     * The number of times a snapshot is attempted without locking.
+     */
+    private static final int SNAPSHOT_ATTEMPTS = 4;
+
+    /**
+     * The buckets.
+     */
+    private final ConcurrentHashMap<BucketKey, Bucket<V>> buckets = new ConcurrentHashMap<BucketKey, Bucket<V>>();
+
+    /**
+     * Maps a class to the buckets whose values have it as their direct superclass.
+     */
+    private final ConcurrentHashMap<Class<?>, CopyOnWriteArrayList<Bucket<V>>> subclassBuckets =
+            new ConcurrentHashMap<Class<?>, CopyOnWriteArrayList<Bucket<V>>>();
+
+    /**
+     * Locates the slot(s) holding a value, by identity. Guarded by this.
+     */
+    private final Map<V, Slot<V>> slots = new IdentityHashMap<V, Slot<V>>();
+
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    /**
+     * The total estimated size of the values in bytes, see {@link #add(Object, long, long, long)}.
+     */
+    private final AtomicLong bytes = new AtomicLong(0);
+
+    /**
+     * The slots in the order they are to be evicted in, null if the capacity policy does not evict. Changed holding
+     * the lock on this.
+     */
+    private volatile ConcurrentSkipListSet<Slot<V>> evictionOrder;
+
+    /**
+     * Guarded by this.
+     */
+    private CapacityPolicy evictionPolicy = CapacityPolicy.BLOCK;
+
+    /**
+     * Odd whilst a change is being made, written holding the lock on this.
+     */
+    private volatile long version = 0;
+
+    /**
+     * Orders values within a bucket. Guarded by this.
+     */
+    private long sequence = 0;
+
+    /**
+     * Guarded by this.
+     */
+    private boolean indexSimpleTuples = false;
+
+    /**
+     * True if the buckets keep their values in order of precedence as well as in insertion order.
+     */
+    private boolean prioritised = false;
+
+    /**
+     * The orders of precedence given to classes, see {@link #setPriority(Class, Comparator)}.
+     */
+    private final ConcurrentHashMap<Class<?>, SlotOrder<V>> priorityOrders = new ConcurrentHashMap<Class<?>, SlotOrder<V>>();
+
+    /**
+     * Orders {@link Prioritized} values, highest priority first.
+     */
+    private static final SlotOrder<Object> PRIORITIZED = new SlotOrder<Object>(new Comparator<Object>() {
+        @Override
+        public int compare(final Object a, final Object b) {
+            final int pa = ((Prioritized) a).getPriority();
+            final int pb = ((Prioritized) b).getPriority();
+            return pa > pb ? -1 : pa == pb ? 0 : 1;
+        }
+    });
+
+    /**
+     * The fields indexed for each class. Guarded by this.
+     */
+    private final Map<Class<?>, List<Field[]>> indexedFields = new HashMap<Class<?>, List<Field[]>>();
+
+    /**
+     * The fields kept in order for each class. Guarded by this.
+     */
+    private final Map<Class<?>, List<Field>> sortedFields = new HashMap<Class<?>, List<Field>>();
+
+    /**
+     * Adds the value to its bucket.
+     *
+     * @param value the value
+     */
+    public synchronized void add(final V value) {
+        add(value, 0);
+    }
+
+    /**
+     * Adds the value to its bucket at a place in the insertion order that it had before, eg when a take of the value
+     * is undone.
+     *
+     * @param value    the value
+     * @param sequence where the value was, see {@link #sequenceOf(Object)}, or 0 to add it after everything else
+     */
+    public synchronized void add(final V value, final long sequence) {
+        add(value, sequence, Long.MAX_VALUE, 0);
+    }
+
+    /**
+     * Adds the value to its bucket, noting what is needed to choose values to evict, see
+     * {@link #setEvictionPolicy(CapacityPolicy)}.
+     *
+     * @param value         the value
+     * @param sequence      where the value was, see {@link #sequenceOf(Object)}, or 0 to add it after everything else
+     * @param expiry        when the value times out, as System.nanoTime(), Long.MAX_VALUE if it does not
+     * @param estimatedSize the estimated size of the value in bytes
+     */
+    public synchronized void add(final V value, final long sequence, final long expiry, final long estimatedSize) {
+
+        version++;
+        final Bucket<V> bucket = bucketFor(BucketKey.forValue(value));
+        final Slot<V> slot = new Slot<V>(value, sequence > 0 ? sequence : ++this.sequence, bucket);
+        slot.expiry = expiry;
+        slot.size = estimatedSize;
+
+        final Slot<V> existing = slots.get(value);
+        if (existing == null) {
+            slots.put(value, slot);
+        } else {
+            //the same instance is in the collection more than once
+            Slot<V> last = existing;
+            while (last.next != null) {
+                last = last.next;
+            }
+            last.next = slot;
+        }
+        bucket.add(slot);
+        size.incrementAndGet();
+        bytes.addAndGet(estimatedSize);
+        if (evictionOrder != null) {
+            evictionOrder.add(slot);
+        }
+        version++;
+    }
+
+    /**
+     * Removes the value, the instance itself rather than one that is equal to it.
+     *
+     * @param value the value
+     * @return true if the value was removed
+     */
+    public synchronized boolean remove(final V value) {
+
+        final Slot<V> slot = slots.get(value);
+        if (slot == null) {
+            return false;
+        }
+        version++;
+        if (slot.next == null) {
+            slots.remove(value);
+        } else {
+            slots.put(value, slot.next);
+        }
+        slot.bucket.remove(slot);
+        size.decrementAndGet();
+        bytes.addAndGet(-slot.size);
+        if (evictionOrder != null) {
+            evictionOrder.remove(slot);
+        }
+        version++;
+        return true;
+    }
+
+    /**
+     * Removes everything.
+     */
+    public synchronized void clear() {
+        version++;
+        buckets.clear();
+        subclassBuckets.clear();
+        slots.clear();
+        size.set(0);
+        bytes.set(0);
+        if (evictionOrder != null) {
+            evictionOrder.clear();
+        }
+        version++;
+    }
+
+    /**
+     * @param value the value
+     * @return true if the instance itself, rather than one that is equal to it, is in the collection
+     */
+    public synchronized boolean contains(final V value) {
+        return slots.containsKey(value);
+    }
+
+    /**
+     * @param value the value
+     * @return the place of the instance in the insertion order, 0 if it is not in the collection
+     */
+    public synchronized long sequenceOf(final V value) {
+        final Slot<V> slot = slots.get(value);
+        return slot == null ? 0 : slot.seq;
+    }
+
+    /**
+     * @return the number of values
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return the total estimated size of the values in bytes
+     */
+    public long bytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Estimates the size of every value again, eg when a capacity in bytes is first set.
+     *
+     * @param estimator the estimator
+     */
+    public synchronized void estimateSizes(final SizeEstimator<? super V> estimator) {
+        for (final Bucket<V> bucket : buckets.values()) {
+            for (final Slot<V> slot : bucket) {
+                final long estimate = estimator.sizeOf(slot.value);
+                bytes.addAndGet(estimate - slot.size);
+                slot.size = estimate;
+            }
+        }
+    }
+
+    /**
+     * Sets the order that values are evicted in, see {@link #evictionCandidates()}. A policy that does not evict
+     * stops the order being kept.
+     *
+     * @param policy the policy
+     */
+    public synchronized void setEvictionPolicy(final CapacityPolicy policy) {
+        evictionPolicy = policy;
+        if (!policy.isEviction()) {
+            evictionOrder = null;
+            return;
+        }
+        final ConcurrentSkipListSet<Slot<V>> order = new ConcurrentSkipListSet<Slot<V>>(evictionComparator(policy));
+        for (final Bucket<V> bucket : buckets.values()) {
+            for (final Slot<V> slot : bucket) {
+                order.add(slot);
+            }
+        }
+        evictionOrder = order;
+    }
+
+    /**
+     * Notes that the value has been used, for {@link CapacityPolicy#EVICT_LEAST_RECENTLY_USED}.
+     *
+     * @param value the value
+     */
+    public synchronized void used(final V value) {
+        final Slot<V> slot = slots.get(value);
+        if (slot == null || evictionOrder == null || evictionPolicy != CapacityPolicy.EVICT_LEAST_RECENTLY_USED) {
+            return;
+        }
+        evictionOrder.remove(slot);
+        slot.used = ++sequence;
+        evictionOrder.add(slot);
+    }
+
+    /**
+     * Gets the values in the order they should be evicted in, see {@link #setEvictionPolicy(CapacityPolicy)}. The
+     * iteration is weakly consistent.
+     *
+     * @return the values, first to be evicted first, empty if the policy does not evict
+     */
+    public Iterable<V> evictionCandidates() {
+        final ConcurrentSkipListSet<Slot<V>> order = evictionOrder;
+        return order == null ? Collections.<V>emptyList() : new SlotValues<V>(order);
+    }
+
+    /**
+     * @return true if there are no values
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Switches the hash indexing of SimpleTuple entries on or off. When on, a SimpleTuple template that has any
+     * entries other than '*' is answered from the index rather than by scanning its bucket.
+     *
+     * @param indexSimpleTuples true to index
+     */
+    public synchronized void setIndexSimpleTuples(final boolean indexSimpleTuples) {
+        this.indexSimpleTuples = indexSimpleTuples;
+        for (final Bucket<V> bucket : buckets.values()) {
+            if (bucket.key.isSimpleTuple()) {
+                bucket.index = indexSimpleTuples ? buildIndex(bucket) : null;
+                bucket.indexesChanged();
+            }
+        }
+    }
+
+    /**
+     * Switches the keeping of each bucket's values in order of precedence on or off, see
+     * {@link #setPriority(Class, Comparator)}. When on, {@link #candidates(Object, boolean, Ordering)} finds the
+     * values of a bucket in order of precedence without sorting them.
+     *
+     * @param prioritised true to keep the values in order of precedence
+     */
+    public synchronized void setPrioritised(final boolean prioritised) {
+        this.prioritised = prioritised;
+        for (final Bucket<V> bucket : buckets.values()) {
+            bucket.priorities = prioritised ? buildPriorities(bucket) : null;
+        }
+    }
+
+    /**
+     * Gives the values of a class, and of the classes that extend it, an order of precedence for when the ordering is
+     * {@link Ordering#PRIORITY}. The value first in the comparator's order is the first candidate, values that the
+     * comparator says are equal are in insertion order. Values that are {@link Prioritized} are in order of their
+     * priority, highest first, unless their class is given an order here. The order of a value must not change whilst
+     * it is in the collection.
+     *
+     * @param type       the class
+     * @param precedence the order of precedence, null to remove the order given to the class
+     */
+    public synchronized void setPriority(final Class<?> type, final Comparator<? super V> precedence) {
+        if (precedence == null) {
+            priorityOrders.remove(type);
+        } else {
+            priorityOrders.put(type, new SlotOrder<V>(precedence));
+        }
+        if (prioritised) {
+            for (final Bucket<V> bucket : buckets.values()) {
+                bucket.priorities = buildPriorities(bucket);
+            }
+        }
+    }
+
+    /**
+     * @return true if SimpleTuple entries are hash indexed
+     */
+    public synchronized boolean isIndexSimpleTuples() {
+        return indexSimpleTuples;
+    }
+
+    /**
+     * Creates a hash index on some fields of the values of a class, kept up to date as values are added and removed.
+     * A template of the class whose indexed fields are all concrete, ie neither null nor '*', then only looks at the
+     * values having those field values rather than at every value of the class. Several indexes can be created on a
+     * class, the one finding fewest values is used. Creating an index that already exists does nothing.
+     * <p/>
+     * Only the fields declared by the class itself can be indexed, as only those are compared when matching. The
+     * SimpleTuples are indexed with {@link #setIndexSimpleTuples(boolean)} instead.
+     *
+     * @param type   the class of the values to index
+     * @param fields the names of the fields to index on
+     * @throws IllegalArgumentException if the class is a SimpleTuple or primitive tuple, or a field cannot be indexed
+     */
+    public synchronized void createIndex(final Class<?> type, final String... fields) {
+
+        final Field[] indexed = FieldIndex.fieldsOf(indexable(type), fields);
+        List<Field[]> existing = indexedFields.get(type);
+        if (existing == null) {
+            existing = new ArrayList<Field[]>();
+            indexedFields.put(type, existing);
+        }
+        for (final Field[] each : existing) {
+            if (Arrays.equals(each, indexed)) {
+                return;
+            }
+        }
+        existing.add(indexed);
+
+        final Bucket<V> bucket = buckets.get(BucketKey.forClass(type));
+        if (bucket != null) {
+            final FieldIndex<V> index = new FieldIndex<V>(indexed);
+            for (final Slot<V> slot : bucket.slots.values()) {
+                index.add(slot);
+            }
+            bucket.fieldIndexes.add(index);
+            bucket.indexesChanged();
+        }
+    }
+
+    /**
+     * Creates a sorted index on a field of the values of a class, kept up to date as values are added and removed. A
+     * {@link QueryTemplate} of the class with a range, prefix or set {@link Condition} on the field then only looks at
+     * the values whose field satisfies the condition, found in O(log n + k) time for k values. Creating an index that
+     * already exists does nothing.
+     * <p/>
+     * Only a field declared by the class itself can be indexed.
+     *
+     * @param type  the class of the values to index
+     * @param field the name of the field to index on
+     * @throws IllegalArgumentException if the class is a SimpleTuple or primitive tuple, or the field cannot be indexed
+     */
+    public synchronized void createSortedIndex(final Class<?> type, final String field) {
+
+        final Field indexed = FieldIndex.fieldsOf(indexable(type), field)[0];
+        List<Field> existing = sortedFields.get(type);
+        if (existing == null) {
+            existing = new ArrayList<Field>();
+            sortedFields.put(type, existing);
+        }
+        if (existing.contains(indexed)) {
+            return;
+        }
+        existing.add(indexed);
+
+        final Bucket<V> bucket = buckets.get(BucketKey.forClass(type));
+        if (bucket != null) {
+            final SortedFieldIndex<V> index = new SortedFieldIndex<V>(indexed);
+            for (final Slot<V> slot : bucket.slots.values()) {
+                index.add(slot);
+            }
+            bucket.sortedIndexes.add(index);
+            bucket.indexesChanged();
+        }
+    }
+
+    /**
+     * @param type a class
+     * @return the class
+     * @throws IllegalArgumentException if values of the class cannot be indexed by field
+     */
+    private static Class<?> indexable(final Class<?> type) {
+        if (BucketKey.forClass(type) == null || PrimitiveTuple.class.isAssignableFrom(type)) {
+            throw new IllegalArgumentException("Cannot index the fields of " + type.getName());
+        }
+        return type;
+    }
+
+    /**
+     * Gets the values that could match the supplied template. If the matcher in use respects types then these are the
+     * values in the template's bucket followed by those in the buckets of any direct subclasses of the template's
+     * class, or just those found by an index on the template's bucket if the {@link QueryPlanner} chooses to use one.
+     * Otherwise, or if the template is a {@link MatchAllTuplesTemplate}, every value is a candidate.
+     *
+     * @param template the template
+     * @param typed    true if the matcher respects types, see {@link js.co.uk.tuplespace.matcher.TypeRespectingMatcher}
+     * @return the candidates
+     */
+    public Iterable<V> candidates(final V template, final boolean typed) {
+        return candidates(template, typed, Ordering.ANY);
+    }
+
+    /**
+     * Gets the values that could match the supplied template, see {@link #candidates(Object, boolean)}, in the
+     * supplied order. With {@link Ordering#FIFO} they are in insertion order. With {@link Ordering#PRIORITY} they are
+     * in the order of precedence of the template's class, see {@link #setPriority(Class, Comparator)}, or in insertion
+     * order if it has none or the matcher does not respect types. Ordering costs a sort of whatever an index finds,
+     * and a merge when the candidates come from more than one bucket.
+     *
+     * @param template the template
+     * @param typed    true if the matcher respects types
+     * @param ordering the order to get the candidates in
+     * @return the candidates
+     */
+    public Iterable<V> candidates(final V template, final boolean typed, final Ordering ordering) {
+
+        if (!typed || template instanceof MatchAllTuplesTemplate) {
+            //values of different classes have no precedence over each other
+            return new SlotValues<V>(ordering == Ordering.ANY ? allSlots(buckets.values())
+                    : mergedSlots(buckets.values(), SlotOrder.<V>insertion()));
+        }
+
+        final BucketKey key = BucketKey.forValue(template);
+        final SlotOrder<V> order = ordering == Ordering.ANY ? null
+                : ordering == Ordering.PRIORITY ? orderOf(key.getType()) : SlotOrder.<V>insertion();
+        final Bucket<V> own = buckets.get(key);
+        if (key.isSimpleTuple()) {
+            if (own == null) {
+                return Collections.emptyList();
+            }
+            return new SlotValues<V>(inOrder(own, QueryPlanner.slots(own, template), order));
+        }
+
+        final Iterable<Slot<V>> ownSlots = own == null ? null : inOrder(own, QueryPlanner.slots(own, template), order);
+        final List<Bucket<V>> subclasses = subclassBuckets.get(key.getType());
+        if (subclasses == null || subclasses.isEmpty()) {
+            return ownSlots == null ? Collections.<V>emptyList() : new SlotValues<V>(ownSlots);
+        }
+        //the values of direct subclasses are in their own buckets, not covered by the indexes of this one
+        final List<Iterable<Slot<V>>> candidateSlots = new ArrayList<Iterable<Slot<V>>>(subclasses.size() + 1);
+        if (ownSlots != null) {
+            candidateSlots.add(ownSlots);
+        }
+        if (order == null) {
+            candidateSlots.addAll(subclasses);
+            return new SlotValues<V>(allSlots(candidateSlots));
+        }
+        for (final Bucket<V> subclass : subclasses) {
+            candidateSlots.add(inOrder(subclass, subclass, order));
+        }
+        return new SlotValues<V>(mergedSlots(candidateSlots, order));
+    }
+
+    /**
+     * Gets the plan for finding the candidates for a template, see {@link #candidates(Object, boolean)}, for
+     * diagnostics.
+     *
+     * @param template the template
+     * @param typed    true if the matcher respects types
+     * @return the plan
+     */
+    public QueryPlan explain(final V template, final boolean typed) {
+
+        if (!typed || template instanceof MatchAllTuplesTemplate) {
+            return new QueryPlan(QueryPlan.AccessPath.SCAN, null, null, size(), size(), null, -1, 0);
+        }
+        final BucketKey key = BucketKey.forValue(template);
+        final Bucket<V> own = buckets.get(key);
+        if (own == null) {
+            return new QueryPlan(QueryPlan.AccessPath.BUCKET, key, null, 0, 0, null, -1, 0);
+        }
+        return QueryPlanner.plan(own, template);
+    }
+
+    /**
+     * Gets a snapshot of the values. The values are copied without locking and the copy is kept if no change was made
+     * whilst copying, after a few failed attempts the copy is made holding the lock.
+     *
+     * @return a new list of all the values at the instant of invocation
+     */
+    public List<V> values() {
+        for (int attempt = 0; attempt < SNAPSHOT_ATTEMPTS; attempt++) {
+            final long before = version;
+            if ((before & 1) == 0) {
+                final List<V> values = copyValues();
+                if (version == before) {
+                    return values;
+                }
+            }
+        }
+        synchronized (this) {
+            return copyValues();
+        }
+    }
+
+    /**
+     * @return a weakly consistent copy of the values
+     */
+    private List<V> copyValues() {
+        final List<V> values = new ArrayList<V>(size());
+        for (final V value : new SlotValues<V>(allSlots(buckets.values()))) {
+            values.add(value);
+        }
+        return values;
+    }
+
+    /**
+     * Gets, creating if need be, the bucket with the supplied key. Must be called holding the lock on this.
+     *
+     * @param key the key
+     * @return the bucket
+     */
+    private Bucket<V> bucketFor(final BucketKey key) {
+
+        Bucket<V> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new Bucket<V>(key);
+            if (key.isSimpleTuple() && indexSimpleTuples) {
+                bucket.index = new SimpleTupleIndex<V>(key.getArity());
+            }
+            final List<Field[]> indexed = indexedFields.get(key.getType());
+            if (!key.isSimpleTuple() && indexed != null) {
+                for (final Field[] fields : indexed) {
+                    bucket.fieldIndexes.add(new FieldIndex<V>(fields));
+                }
+            }
+            final List<Field> sorted = sortedFields.get(key.getType());
+            if (!key.isSimpleTuple() && sorted != null) {
+                for (final Field field : sorted) {
+                    bucket.sortedIndexes.add(new SortedFieldIndex<V>(field));
+                }
+            }
+            if (prioritised) {
+                bucket.priorities = buildPriorities(bucket);
+            }
+            buckets.put(key, bucket);
+
+            final Class<?> superclass = key.getType().getSuperclass();
+            if (!key.isSimpleTuple() && superclass != null && superclass != Object.class) {
+                CopyOnWriteArrayList<Bucket<V>> siblings = subclassBuckets.get(superclass);
+                if (siblings == null) {
+                    siblings = new CopyOnWriteArrayList<Bucket<V>>();
+                    subclassBuckets.put(superclass, siblings);
+                }
+                siblings.add(bucket);
+            }
+        }
+        return bucket;
+    }
+
+    /**
+     * Must be called holding the lock on this.
+     *
+     * @param bucket a bucket of SimpleTuples
+     * @return an index of the bucket's current contents
+     */
+    private SimpleTupleIndex<V> buildIndex(final Bucket<V> bucket) {
+        final SimpleTupleIndex<V> index = new SimpleTupleIndex<V>(bucket.key.getArity());
+        for (final Slot<V> slot : bucket.slots.values()) {
+            index.add(slot);
+        }
+        return index;
+    }
+
+    /**
+     * @param candidateBuckets some buckets, or the slots found by an index
+     * @return the slots of all the buckets, bucket by bucket
+     */
+    private static <V> Iterable<Slot<V>> allSlots(final Collection<? extends Iterable<Slot<V>>> candidateBuckets) {
+        return new Iterable<Slot<V>>() {
+            @Override
+            public Iterator<Slot<V>> iterator() {
+                return new BucketsIterator<V>(candidateBuckets.iterator());
+            }
+        };
+    }
+
+    /**
+     * Must be called holding the lock on this.
+     *
+     * @param bucket a bucket
+     * @return the bucket's current contents in order of precedence, null if its values have none
+     */
+    private PriorityIndex<V> buildPriorities(final Bucket<V> bucket) {
+        final SlotOrder<V> order = orderOf(bucket.key.getType());
+        if (order.precedence == null) {
+            return null;
+        }
+        final PriorityIndex<V> priorities = new PriorityIndex<V>(order);
+        for (final Slot<V> slot : bucket.slots.values()) {
+            priorities.add(slot);
+        }
+        return priorities;
+    }
+
+    /**
+     * @param type a class
+     * @return the order of precedence of the values of the class, insertion order if they have none
+     */
+    @SuppressWarnings("unchecked")
+    private SlotOrder<V> orderOf(final Class<?> type) {
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            final SlotOrder<V> order = priorityOrders.get(c);
+            if (order != null) {
+                return order;
+            }
+        }
+        return Prioritized.class.isAssignableFrom(type) ? (SlotOrder<V>) (SlotOrder<?>) PRIORITIZED
+                : SlotOrder.<V>insertion();
+    }
+
+    /**
+     * @param policy a policy that evicts
+     * @return the order that the policy evicts slots in, ties broken by insertion order
+     */
+    private static <V> Comparator<Slot<V>> evictionComparator(final CapacityPolicy policy) {
+        return new Comparator<Slot<V>>() {
+            @Override
+            public int compare(final Slot<V> a, final Slot<V> b) {
+                final int c;
+                switch (policy) {
+                    case EVICT_LEAST_RECENTLY_USED:
+                        c = compareLongs(a.used, b.used);
+                        break;
+                    case EVICT_SOONEST_TO_EXPIRE:
+                        c = compareLongs(a.expiry, b.expiry);
+                        break;
+                    default:
+                        c = 0;
+                }
+                return c != 0 ? c : compareLongs(a.seq, b.seq);
+            }
+        };
+    }
+
+    private static int compareLongs(final long a, final long b) {
+        return a < b ? -1 : a == b ? 0 : 1;
+    }
+
+    /**
+     * @param candidateBuckets some buckets, or the slots found by an index, each in the supplied order
+     * @param order            the order
+     * @return the slots of all the buckets, merged into the order
+     */
+    private static <V> Iterable<Slot<V>> mergedSlots(final Collection<? extends Iterable<Slot<V>>> candidateBuckets,
+                                                     final SlotOrder<V> order) {
+        return new Iterable<Slot<V>>() {
+            @Override
+            public Iterator<Slot<V>> iterator() {
+                return new MergingIterator<V>(candidateBuckets.iterator(), order);
+            }
+        };
+    }
+
+    /**
+     * @param bucket a bucket
+     * @param slots  the slots of the bucket, or the slots found by an index on it
+     * @param order  the order the slots are wanted in, null for any order
+     * @return the slots, in the order if there is one
+     */
+    private static <V> Iterable<Slot<V>> inOrder(final Bucket<V> bucket, final Iterable<Slot<V>> slots,
+                                                 final SlotOrder<V> order) {
+        if (order == null) {
+            return slots;
+        }
+        if (slots == bucket) {
+            if (order.precedence == null) {
+                //a bucket is already in insertion order
+                return bucket;
+            }
+            final PriorityIndex<V> priorities = bucket.priorities;
+            if (priorities != null && priorities.order == order) {
+                return priorities;
+            }
+        }
+        final List<Slot<V>> sorted = new ArrayList<Slot<V>>();
+        for (final Slot<V> slot : slots) {
+            sorted.add(slot);
+        }
+        Collections.sort(sorted, order);
+        return sorted;
+    }
+
+    /**
+     * A view of the values held in some slots.
+     */
+    private static final class SlotValues<V> implements Iterable<V> {
+
+        private final Iterable<Slot<V>> slots;
+
+        private SlotValues(final Iterable<Slot<V>> slots) {
+            this.slots = slots;
+        }
+
+        @Override
+        public Iterator<V> iterator() {
+            final Iterator<Slot<V>> slotItr = slots.iterator();
+            return new Iterator<V>() {
+                @Override
+                public boolean hasNext() {
+                    return slotItr.hasNext();
+                }
+
+                @Override
+                public V next() {
+                    return slotItr.next().value;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
+    /**
+     * Iterates over the slots of a number of buckets in turn.
+     */
+    private static final class BucketsIterator<V> implements Iterator<Slot<V>> {
+
+        private final Iterator<? extends Iterable<Slot<V>>> bucketItr;
+        private Iterator<Slot<V>> slotItr = Collections.<Slot<V>>emptyList().iterator();
+
+        private BucketsIterator(final Iterator<? extends Iterable<Slot<V>>> bucketItr) {
+            this.bucketItr = bucketItr;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!slotItr.hasNext()) {
+                if (!bucketItr.hasNext()) {
+                    return false;
+                }
+                slotItr = bucketItr.next().iterator();
+            }
+            return true;
+        }
+
+        @Override
+        public Slot<V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return slotItr.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Merges the slots of a number of buckets, each in the same order, into that order.
+     */
+    private static final class MergingIterator<V> implements Iterator<Slot<V>> {
+
+        /**
+         * The next slot of each bucket that has not been used up, first in the order first.
+         */
+        private final PriorityQueue<Head<V>> heads;
+
+        private MergingIterator(final Iterator<? extends Iterable<Slot<V>>> bucketItr, final SlotOrder<V> order) {
+            heads = new PriorityQueue<Head<V>>(11, new Comparator<Head<V>>() {
+                @Override
+                public int compare(final Head<V> a, final Head<V> b) {
+                    return order.compare(a.slot, b.slot);
+                }
+            });
+            while (bucketItr.hasNext()) {
+                final Iterator<Slot<V>> slotItr = bucketItr.next().iterator();
+                if (slotItr.hasNext()) {
+                    heads.add(new Head<V>(slotItr.next(), slotItr));
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public Slot<V> next() {
+            final Head<V> head = heads.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+            final Slot<V> slot = head.slot;
+            if (head.rest.hasNext()) {
+                head.slot = head.rest.next();
+                heads.add(head);
+            }
+            return slot;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * The next slot of a bucket being merged, and the rest of the bucket.
+     */
+    private static final class Head<V> {
+
+        private Slot<V> slot;
+        private final Iterator<Slot<V>> rest;
+
+        private Head(final Slot<V> slot, final Iterator<Slot<V>> rest) {
+            this.slot = slot;
+            this.rest = rest;
+        }
+    }
+}
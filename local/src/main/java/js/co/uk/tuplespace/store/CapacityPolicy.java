@@ -0,0 +1,59 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.store;
+
+/**
+ * What a {@link TimeoutCollection} with a capacity does with a put that would take it over the capacity, see
+ * {@link TimeoutCollection#setCapacity(int, long, CapacityPolicy)}.
+ */
+public enum CapacityPolicy {
+
+    /**
+     * The put waits until takes or timeouts make room, for up to the capacity timeout, and then fails with a
+     * {@link CapacityExceededException}. The default.
+     */
+    BLOCK,
+
+    /**
+     * The put fails at once with a {@link CapacityExceededException}.
+     */
+    REJECT,
+
+    /**
+     * The values that have gone longest without being put or read are evicted to make room.
+     */
+    EVICT_LEAST_RECENTLY_USED,
+
+    /**
+     * The values that were put first, ie that have held their leases longest, are evicted to make room.
+     */
+    EVICT_OLDEST,
+
+    /**
+     * The values that would time out soonest are evicted to make room, values without a timeout last.
+     */
+    EVICT_SOONEST_TO_EXPIRE;
+
+    /**
+     * @return true if the policy makes room by evicting values
+     */
+    public boolean isEviction() {
+        return this != BLOCK && this != REJECT;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.store;
+
+/**
+ * Listener for the values evicted from a {@link TimeoutCollection} to make room for others, see
+ * {@link CapacityPolicy}. It is called on the thread of the put or commit that made the eviction, once that thread
+ * has let go of the collection's locks, so it may use the collection.
+ *
+ * @param <T> the type of the values
+ */
+public interface EvictionListener<T> {
+
+    /**
+     * Called once the value has been removed from the collection.
+     *
+     * @param value the value
+     */
+    void evicted(final T value);
+}
@@ -0,0 +1,35 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.store;
+
+/**
+ * Listener for the items of a {@link TimeoutQueue} as they time out. It is called on the thread of the
+ * {@link TimingWheel} so must not block.
+ *
+ * @param <T> the type of the items
+ */
+public interface ExpiryListener<T> {
+
+    /**
+     * Called once the item has timed out and been removed from the queue.
+     *
+     * @param item the item
+     */
+    void expired(final T item);
+}
@@ -0,0 +1,184 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.store;
+
+import js.co.uk.tuplespace.tuple.Condition;
+import js.co.uk.tuplespace.tuple.QueryTemplate;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hash index over some of the fields of the values in one bucket, see
+ * {@link BucketedCollection#createIndex(Class, String...)}. It maps the values of the indexed fields to the slots
+ * holding values with those field values.
+ * <p/>
+ * A template whose indexed fields are all concrete, ie neither null nor "*", is answered by a single lookup, leaving
+ * the matcher to check any other fields. A template with a wildcard in an indexed field cannot use the index. A
+ * {@link QueryTemplate} can use the index if it has a condition that each indexed field equals a single value.
+ * <p/>
+ * Values are indexed on their fields as they are when they are added so they must not be changed whilst in the space.
+ *
+ * @param <V>
+ */
+final class FieldIndex<V> {
+
+    /**
+     * Stands in for a null field as the map does not allow null keys.
+     */
+    private static final Object NULL_FIELD = new Object();
+
+    private final Field[] fields;
+
+    private final ConcurrentHashMap<Object, Set<Slot<V>>> entries = new ConcurrentHashMap<Object, Set<Slot<V>>>();
+
+    /**
+     * @param fields the indexed fields, see {@link #fieldsOf(Class, String...)}
+     */
+    FieldIndex(final Field[] fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * Looks up the fields to index. Only the fields declared by the class itself are compared when matching so only
+     * those can be indexed.
+     *
+     * @param type  the class of the values
+     * @param names the names of the fields
+     * @return the fields, made accessible
+     * @throws IllegalArgumentException if there are no names or a field is not an instance field declared by the
+     *                                  class or cannot be made accessible
+     */
+    static Field[] fieldsOf(final Class<?> type, final String... names) {
+
+        if (names == null || names.length == 0) {
+            throw new IllegalArgumentException("No fields to index on " + type.getName());
+        }
+        final Field[] fields = new Field[names.length];
+        for (int i = 0; i < names.length; i++) {
+            try {
+                fields[i] = type.getDeclaredField(names[i]);
+                fields[i].setAccessible(true);
+            } catch (NoSuchFieldException e) {
+                throw new IllegalArgumentException(type.getName() + " does not declare a field " + names[i]);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Cannot index " + type.getName() + "." + names[i] + ", " + e);
+            }
+            if (Modifier.isStatic(fields[i].getModifiers())) {
+                throw new IllegalArgumentException("Cannot index static field " + type.getName() + "." + names[i]);
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * @param slot the slot to index
+     */
+    void add(final Slot<V> slot) {
+        SimpleTupleIndex.addTo(entries, keyOf(slot.value, false), slot);
+    }
+
+    /**
+     * @param slot the slot to remove from the index
+     */
+    void remove(final Slot<V> slot) {
+        SimpleTupleIndex.removeFrom(entries, keyOf(slot.value, false), slot);
+    }
+
+    /**
+     * Gets the slots that could hold a match for the template.
+     *
+     * @param template the template, of the class indexed
+     * @return the candidate slots, or null if an indexed field of the template is a wildcard
+     */
+    Collection<Slot<V>> lookup(final Object template) {
+        final Object key = keyOf(template, true);
+        if (key == null) {
+            return null;
+        }
+        final Set<Slot<V>> slots = entries.get(key);
+        return slots == null ? Collections.<Slot<V>>emptySet() : slots;
+    }
+
+    /**
+     * @param template a template, of the class indexed
+     * @return true if the index can be used to find the template's matches, see {@link #lookup(Object)}
+     */
+    boolean canLookup(final Object template) {
+        return keyOf(template, true) != null;
+    }
+
+    /**
+     * @return the number of distinct keys in the index
+     */
+    int keys() {
+        return entries.size();
+    }
+
+    /**
+     * @return the names of the indexed fields
+     */
+    String getFieldNames() {
+        final StringBuilder names = new StringBuilder();
+        for (final Field field : fields) {
+            names.append(names.length() == 0 ? "" : ", ").append(field.getName());
+        }
+        return names.toString();
+    }
+
+    /**
+     * @param value    a value or template
+     * @param template true if the value is a template
+     * @return the key for the value's indexed fields, or null if the value is a template with a wildcard in them
+     */
+    private Object keyOf(final Object value, final boolean template) {
+
+        final Object[] key = new Object[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            final Object field;
+            if (value instanceof QueryTemplate) {
+                final Condition condition = ((QueryTemplate) value).getCondition(fields[i].getName());
+                if (condition == null || condition.getValues() == null || condition.getValues().size() != 1) {
+                    return null;
+                }
+                field = condition.getValues().iterator().next();
+            } else {
+                try {
+                    field = fields[i].get(value);
+                } catch (IllegalAccessException e) {
+                    //made accessible in fieldsOf
+                    throw new IllegalStateException(e);
+                }
+            }
+            if (template && (field == null || field.equals("*"))) {
+                return null;
+            }
+            key[i] = field;
+        }
+        if (key.length == 1) {
+            return key[0] == null ? NULL_FIELD : key[0];
+        }
+        return Arrays.asList(key);
+    }
+}
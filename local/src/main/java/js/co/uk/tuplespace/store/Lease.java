@@ -0,0 +1,53 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.store;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A grant of a registration for a limited time, see
+ * {@link TimeoutCollection#notify(Object, NotifyListener, long, TimeUnit)}. The registration ends by itself when the
+ * lease expires unless the lease is renewed first.
+ */
+public interface Lease {
+
+    /**
+     * Lease duration, in any unit, that never expires.
+     */
+    long FOREVER = Long.MAX_VALUE;
+
+    /**
+     * @return when the lease expires, in milliseconds since the epoch, Long.MAX_VALUE if it never does
+     */
+    long getExpiration();
+
+    /**
+     * Extends the lease to the supplied duration from now.
+     *
+     * @param duration the new duration of the lease, {@link #FOREVER} for no expiry
+     * @param unit     the time unit that the duration refers to
+     * @return false if the lease has already expired or been cancelled, so cannot be renewed
+     */
+    boolean renew(final long duration, final TimeUnit unit);
+
+    /**
+     * Ends the lease, and the registration, now.
+     */
+    void cancel();
+}
@@ -0,0 +1,37 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.store;
+
+/**
+ * Listener for the values put into a {@link TimeoutCollection} that match the template it was registered with, see
+ * {@link TimeoutCollection#notify(Object, NotifyListener, long, java.util.concurrent.TimeUnit)}. It is called on the
+ * thread of the put, or of the commit for a value put under a transaction, once the value is in the collection and
+ * without holding the collection's locks. It should be quick as the put waits for it.
+ *
+ * @param <T> the type of the values
+ */
+public interface NotifyListener<T> {
+
+    /**
+     * Called once for each matching value put.
+     *
+     * @param value the value
+     */
+    void matched(final T value);
+}
@@ -0,0 +1,459 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.store;
+
+import js.co.uk.tuplespace.matcher.Matcher;
+import js.co.uk.tuplespace.tuple.MatchAllTuplesTemplate;
+import js.co.uk.tuplespace.tuple.SimpleTuple;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The notify registrations of a {@link TimeoutCollection}. Like waiters, see {@link WaiterRegistry}, they are filed
+ * under the {@link BucketKey} of their template so that a put only looks at the registrations that could match its
+ * value. A SimpleTuple template is also filed under its first concrete entry, as the {@link SimpleTupleIndex} indexes
+ * values, so a put only looks at the SimpleTuple templates that have one of its value's entries at the same position.
+ * Each template looked at is matched once.
+ * <p/>
+ * Thread safe, puts look the registrations up under a read lock and they are added and removed under the write lock.
+ *
+ * @param <V>
+ */
+final class NotifyRegistry<V> {
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Map<BucketKey, Filing<V>> typedRegistrations = new HashMap<BucketKey, Filing<V>>();
+
+    /**
+     * The registrations whose templates can match any type, because the matcher does not respect types or the template
+     * is a {@link MatchAllTuplesTemplate}, are matched against every value.
+     */
+    private final Set<Registration<V>> untypedRegistrations = new LinkedHashSet<Registration<V>>();
+
+    /**
+     * Every registration, in the order they were made, for filing them again.
+     */
+    private final Set<Registration<V>> all = new LinkedHashSet<Registration<V>>();
+
+    /**
+     * True if the matcher respects types, guarded by the lock.
+     */
+    private boolean typed = false;
+
+    /**
+     * The number of registrations, so that puts need not lock when there are none.
+     */
+    private volatile int size = 0;
+
+    /**
+     * Ends the expired leases, so that the timing wheel's thread does not wait for the lock.
+     */
+    private final Executor expirer;
+
+    /**
+     * @param expirer ends the expired leases
+     */
+    NotifyRegistry(final Executor expirer) {
+        this.expirer = expirer;
+    }
+
+    /**
+     * Registers a listener for the values that match a template.
+     *
+     * @param template the template
+     * @param listener the listener
+     * @param lease    the duration of the lease
+     * @param unit     the time unit that the lease refers to
+     * @return the lease of the registration
+     */
+    Lease register(final V template, final NotifyListener<? super V> listener, final long lease, final TimeUnit unit) {
+        final Registration<V> registration = new Registration<V>(this, template, listener);
+        lock.writeLock().lock();
+        try {
+            file(registration);
+            all.add(registration);
+            size++;
+            registration.schedule(lease, unit);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        return registration;
+    }
+
+    /**
+     * Files all of the registrations again, for when the matcher changes.
+     *
+     * @param typed true if the new matcher respects types
+     */
+    void refile(final boolean typed) {
+        lock.writeLock().lock();
+        try {
+            this.typed = typed;
+            typedRegistrations.clear();
+            untypedRegistrations.clear();
+            for (final Registration<V> registration : all) {
+                file(registration);
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Calls the listeners of the registrations whose templates match a value that has been put. The listeners are
+     * called without holding the lock.
+     *
+     * @param value   the value
+     * @param matcher the matcher to use
+     */
+    void fire(final V value, final Matcher<V> matcher) {
+        if (size == 0) {
+            return;
+        }
+        final List<Registration<V>> matched = new ArrayList<Registration<V>>();
+        lock.readLock().lock();
+        try {
+            collect(value, matcher, typedRegistrations.get(BucketKey.forValue(value)), matched);
+
+            //a template can also match values whose class directly extends its own
+            final Class<?> superclass = value.getClass().getSuperclass();
+            if (!typedRegistrations.isEmpty() && superclass != null) {
+                final BucketKey superKey = BucketKey.forClass(superclass);
+                if (superKey != null) {
+                    collect(value, matcher, typedRegistrations.get(superKey), matched);
+                }
+            }
+
+            collect(value, matcher, untypedRegistrations, matched);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+        for (final Registration<V> registration : matched) {
+            registration.listener.matched(value);
+        }
+    }
+
+    /**
+     * @return the number of registrations
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Ends a registration.
+     *
+     * @param registration the registration
+     * @param generation   the generation of the lease that has expired, or -1 to end it whatever its generation
+     */
+    private void end(final Registration<V> registration, final long generation) {
+        lock.writeLock().lock();
+        try {
+            if (registration.ended || (generation != -1 && generation != registration.generation)) {
+                //already ended, or renewed since the lease expired
+                return;
+            }
+            registration.ended = true;
+            registration.unschedule();
+            unfile(registration);
+            all.remove(registration);
+            size--;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Renews a registration's lease.
+     *
+     * @param registration the registration
+     * @param lease        the duration of the lease
+     * @param unit         the time unit that the lease refers to
+     * @return false if the registration has ended
+     */
+    private boolean renew(final Registration<V> registration, final long lease, final TimeUnit unit) {
+        lock.writeLock().lock();
+        try {
+            if (registration.ended) {
+                return false;
+            }
+            registration.unschedule();
+            registration.schedule(lease, unit);
+            return true;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Files a registration, holding the write lock.
+     *
+     * @param registration the registration
+     */
+    private void file(final Registration<V> registration) {
+        final V template = registration.template;
+        if (!typed || template instanceof MatchAllTuplesTemplate) {
+            untypedRegistrations.add(registration);
+            return;
+        }
+        final BucketKey key = BucketKey.forValue(template);
+        Filing<V> filing = typedRegistrations.get(key);
+        if (filing == null) {
+            filing = new Filing<V>();
+            typedRegistrations.put(key, filing);
+        }
+        filing.add(registration);
+    }
+
+    /**
+     * Unfiles a registration, holding the write lock.
+     *
+     * @param registration the registration
+     */
+    private void unfile(final Registration<V> registration) {
+        final V template = registration.template;
+        if (!typed || template instanceof MatchAllTuplesTemplate) {
+            untypedRegistrations.remove(registration);
+            return;
+        }
+        final BucketKey key = BucketKey.forValue(template);
+        final Filing<V> filing = typedRegistrations.get(key);
+        if (filing != null) {
+            filing.remove(registration);
+            if (filing.isEmpty()) {
+                typedRegistrations.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Adds the registrations of a filing whose templates match the value.
+     *
+     * @param value   the value
+     * @param matcher the matcher to use
+     * @param filing  the filing, may be null
+     * @param matched the matching registrations found so far
+     */
+    private static <V> void collect(final V value, final Matcher<V> matcher, final Filing<V> filing,
+                                    final List<Registration<V>> matched) {
+        if (filing == null) {
+            return;
+        }
+        collect(value, matcher, filing.unkeyed, matched);
+        if (!filing.byEntry.isEmpty() && value instanceof SimpleTuple) {
+            final Object[] entries = ((SimpleTuple) value).getData().toArray();
+            for (final Map.Entry<Integer, Map<Object, Set<Registration<V>>>> position : filing.byEntry.entrySet()) {
+                final Object entry = entries[position.getKey()];
+                if (entry != null) {
+                    collect(value, matcher, position.getValue().get(entry), matched);
+                }
+            }
+        }
+    }
+
+    private static <V> void collect(final V value, final Matcher<V> matcher,
+                                    final Collection<Registration<V>> registrations,
+                                    final List<Registration<V>> matched) {
+        if (registrations == null) {
+            return;
+        }
+        for (final Registration<V> registration : registrations) {
+            if (registration.template instanceof MatchAllTuplesTemplate || matcher.match(value, registration.template)) {
+                matched.add(registration);
+            }
+        }
+    }
+
+    /**
+     * The registrations filed under one BucketKey.
+     *
+     * @param <V>
+     */
+    private static final class Filing<V> {
+
+        /**
+         * The registrations whose templates have no concrete entry to be filed under.
+         */
+        private final Set<Registration<V>> unkeyed = new LinkedHashSet<Registration<V>>();
+
+        /**
+         * SimpleTuple templates, by the position and then the value of their first concrete entry.
+         */
+        private final Map<Integer, Map<Object, Set<Registration<V>>>> byEntry =
+                new HashMap<Integer, Map<Object, Set<Registration<V>>>>();
+
+        private void add(final Registration<V> registration) {
+            final int position = registration.position;
+            if (position < 0) {
+                unkeyed.add(registration);
+                return;
+            }
+            Map<Object, Set<Registration<V>>> entries = byEntry.get(position);
+            if (entries == null) {
+                entries = new HashMap<Object, Set<Registration<V>>>();
+                byEntry.put(position, entries);
+            }
+            Set<Registration<V>> registrations = entries.get(registration.entry);
+            if (registrations == null) {
+                registrations = new LinkedHashSet<Registration<V>>();
+                entries.put(registration.entry, registrations);
+            }
+            registrations.add(registration);
+        }
+
+        private void remove(final Registration<V> registration) {
+            final int position = registration.position;
+            if (position < 0) {
+                unkeyed.remove(registration);
+                return;
+            }
+            final Map<Object, Set<Registration<V>>> entries = byEntry.get(position);
+            if (entries == null) {
+                return;
+            }
+            final Set<Registration<V>> registrations = entries.get(registration.entry);
+            if (registrations != null) {
+                registrations.remove(registration);
+                if (registrations.isEmpty()) {
+                    entries.remove(registration.entry);
+                    if (entries.isEmpty()) {
+                        byEntry.remove(position);
+                    }
+                }
+            }
+        }
+
+        private boolean isEmpty() {
+            return unkeyed.isEmpty() && byEntry.isEmpty();
+        }    }
+
+    /**
+     * A registration, which is its own lease. The lease fields are guarded by the registry's write lock.
+     *
+     * @param <V>
+     */
+    private static final class Registration<V> implements Lease {
+
+        private final NotifyRegistry<V> registry;
+        private final V template;
+        private final NotifyListener<? super V> listener;
+
+        /**
+         * The position of the first concrete entry of a SimpleTuple template, -1 if there is none or the template is
+         * not a SimpleTuple.
+         */
+        private final int position;
+        private final Object entry;
+
+        private volatile long expiration;
+        private TimingWheel.Timeout timeout;
+
+        /**
+         * Counts the renewals, so that a lease that expires as it is renewed is not ended.
+         */
+        private long generation = 0;
+        private boolean ended = false;
+
+        private Registration(final NotifyRegistry<V> registry, final V template, final NotifyListener<? super V> listener) {
+            this.registry = registry;
+            this.template = template;
+            this.listener = listener;
+            int position = -1;
+            Object entry = null;
+            if (template instanceof SimpleTuple) {
+                int i = 0;
+                for (final Object each : ((SimpleTuple) template).getData()) {
+                    if (!SimpleTupleIndex.isWildcard(each)) {
+                        position = i;
+                        entry = each;
+                        break;
+                    }
+                    i++;
+                }
+            }
+            this.position = position;
+            this.entry = entry;
+        }
+
+        @Override
+        public long getExpiration() {
+            return expiration;
+        }
+
+        @Override
+        public boolean renew(final long duration, final TimeUnit unit) {
+            return registry.renew(this, duration, unit);
+        }
+
+        @Override
+        public void cancel() {
+            registry.end(this, -1);
+        }
+
+        /**
+         * Starts the lease.
+         *
+         * @param duration the duration of the lease
+         * @param unit     the time unit that the duration refers to
+         */
+        private void schedule(final long duration, final TimeUnit unit) {
+            final long current = ++generation;
+            //an effectively eternal lease has no timeout
+            if (unit.toDays(duration) >= TimeUnit.NANOSECONDS.toDays(Long.MAX_VALUE)) {
+                expiration = Long.MAX_VALUE;
+                return;
+            }
+            expiration = System.currentTimeMillis() + unit.toMillis(duration);
+            timeout = TimingWheel.getDefault().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    registry.expirer.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            registry.end(Registration.this, current);
+                        }
+                    });
+                }
+            }, duration, unit);
+        }
+
+        private void unschedule() {
+            if (timeout != null) {
+                timeout.cancel();
+                timeout = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.store;
+
+/**
+ * The order in which a {@link TimeoutCollection} hands out the values that match a template, and serves the attempts
+ * that are blocked waiting for a match.
+ */
+public enum Ordering {
+
+    /**
+     * Any matching value may be returned and a blocked taker may be overtaken by a later one, or by a take that
+     * arrives just as a value is put. The default, and the cheapest.
+     */
+    ANY,
+
+    /**
+     * The value returned is the one that was put first, of those that match, and blocked takers are served in the
+     * order they arrived. A value put whilst takers are waiting is held for the one that has waited longest, so a
+     * later take cannot barge in ahead of it, and a value put back by an aborted transaction keeps its place.
+     */
+    FIFO,
+
+    /**
+     * The value returned is the one of highest priority, of those that match, and of those the one that was put first.
+     * Priorities come from {@link js.co.uk.tuplespace.tuple.Prioritized} values or from an order of precedence given
+     * to their class, and apply to the templates of that class. Values without a priority are in FIFO order, as are
+     * blocked takers.
+     */
+    PRIORITY
+}
@@ -0,0 +1,67 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.store;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * The slots of a {@link Bucket} in order of precedence, for a collection whose ordering is
+ * {@link Ordering#PRIORITY}. The first slot that matches a template is found without looking at any slot of higher
+ * precedence than it, and adding or removing a slot is O(log n). Changes are made holding the lock on the owning
+ * collection, iteration is weakly consistent and needs no lock.
+ *
+ * @param <V>
+ */
+final class PriorityIndex<V> implements Iterable<Slot<V>> {
+
+    final SlotOrder<V> order;
+
+    private final ConcurrentSkipListSet<Slot<V>> slots;
+
+    /**
+     * @param order the order to keep the slots in
+     */
+    PriorityIndex(final SlotOrder<V> order) {
+        this.order = order;
+        this.slots = new ConcurrentSkipListSet<Slot<V>>(order);
+    }
+
+    /**
+     * @param slot the slot to add
+     */
+    void add(final Slot<V> slot) {
+        slots.add(slot);
+    }
+
+    /**
+     * @param slot the slot to remove
+     */
+    void remove(final Slot<V> slot) {
+        slots.remove(slot);
+    }
+
+    /**
+     * @return the slots, highest precedence first
+     */
+    @Override
+    public Iterator<Slot<V>> iterator() {
+        return slots.iterator();
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.store;
+
+/**
+ * How the {@link QueryPlanner} has chosen to find the values that could match a template in the template's bucket of a
+ * {@link BucketedCollection}, see {@link BucketedCollection#explain(Object, boolean)}. The values in the buckets of any
+ * direct subclasses of the template's class are candidates too, whatever the plan.
+ * <p/>
+ * A plan is made for the first template of each shape, ie of each bucket and set of entries or fields that are
+ * wildcards, and reused for the templates of that shape until an index is created or the bucket has grown or shrunk
+ * a lot.
+ */
+public final class QueryPlan {
+
+    /**
+     * The ways of finding the candidates for a template.
+     */
+    public enum AccessPath {
+        /**
+         * Every value is a candidate, as the matcher does not respect types or the template matches anything.
+         */
+        SCAN,
+        /**
+         * The values in the template's bucket are the candidates.
+         */
+        BUCKET,
+        /**
+         * The SimpleTuples with exactly the template's data, found by a single lookup.
+         */
+        TUPLE_INDEX,
+        /**
+         * The SimpleTuples with the template's entry at one position.
+         */
+        POSITION_INDEX,
+        /**
+         * The values with the template's values for the fields of a hash index.
+         */
+        FIELD_INDEX,
+        /**
+         * The values whose field is in the range of a condition of a QueryTemplate, found by a sorted index.
+         */
+        SORTED_INDEX
+    }
+
+    private final AccessPath accessPath;
+    private final BucketKey bucket;
+    private final String index;
+    private final int estimate;
+
+    /**
+     * The size of the bucket when the plan was made.
+     */
+    final int plannedSize;
+
+    /**
+     * The index used, if any.
+     */
+    final Object access;
+
+    /**
+     * The position looked up by a POSITION_INDEX plan.
+     */
+    final int position;
+
+    /**
+     * The version of the bucket's indexes that the plan was made with.
+     */
+    final long indexVersion;
+
+    /**
+     * @param accessPath   how the candidates are found
+     * @param bucket       the template's bucket, null for a scan
+     * @param index        what is looked up in the index, null if none is used
+     * @param estimate     the estimated number of candidates
+     * @param plannedSize  the size of the bucket, or of the whole collection for a scan
+     * @param access       the index
+     * @param position     the position looked up, or -1
+     * @param indexVersion the version of the bucket's indexes, read before they were looked at
+     */
+    QueryPlan(final AccessPath accessPath, final BucketKey bucket, final String index, final int estimate,
+              final int plannedSize, final Object access, final int position, final long indexVersion) {
+        this.accessPath = accessPath;
+        this.bucket = bucket;
+        this.index = index;
+        this.estimate = estimate;
+        this.plannedSize = plannedSize;
+        this.access = access;
+        this.position = position;
+        this.indexVersion = indexVersion;
+    }
+
+    /**
+     * @return how the candidates are found
+     */
+    public AccessPath getAccessPath() {
+        return accessPath;
+    }
+
+    /**
+     * @return the template's bucket, or null if every value is a candidate
+     */
+    public BucketKey getBucket() {
+        return bucket;
+    }
+
+    /**
+     * @return the fields or position looked up in the index, or null if no index is used
+     */
+    public String getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the number of candidates estimated from the bucket's size and its indexes' numbers of distinct keys
+     *         when the plan was made
+     */
+    public int getEstimate() {
+        return estimate;
+    }
+
+    /**
+     * @param size         the current size of the bucket
+     * @param indexVersion the current version of the bucket's indexes
+     * @return true if the bucket's indexes have changed, so the index used may no longer be kept up to date, or the
+     *         bucket has changed size so much that the plan should be made again
+     */
+    boolean isStale(final int size, final long indexVersion) {
+        return indexVersion != this.indexVersion || size > 2 * plannedSize + 16 || 2 * size + 16 < plannedSize;
+    }
+
+    @Override
+    public String toString() {
+        return "QueryPlan{" + accessPath + (index == null ? "" : " on " + index)
+                + (bucket == null ? "" : " of " + bucket) + ", ~" + estimate + " of " + plannedSize + " candidates}";
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.store;
+
+import js.co.uk.tuplespace.store.QueryPlan.AccessPath;
+import js.co.uk.tuplespace.tuple.Condition;
+import js.co.uk.tuplespace.tuple.QueryTemplate;
+import js.co.uk.tuplespace.tuple.SimpleTuple;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Chooses how to find the candidates for a template in its bucket: by scanning the bucket or by looking the template
+ * up in one of the bucket's indexes. Each way is costed by the number of candidates it is estimated to find, the
+ * cheapest is chosen and the plan is cached on the bucket under the template's shape.
+ * <p/>
+ * The estimates come from the bucket's size and the number of distinct keys in each index, assuming the values are
+ * spread evenly over the keys. A hash lookup on a key is estimated to find size / keys values, a lookup on a set of
+ * keys that many times the set's size, and a range a third of the bucket if it is open at one end or a quarter if it
+ * is closed at both.
+ */
+final class QueryPlanner {
+
+    private static final Logger logger = Logger.getLogger(QueryPlanner.class.getName());
+
+    private QueryPlanner() {
+    }
+
+    /**
+     * @param bucket   the template's bucket
+     * @param template the template
+     * @return the slots that could hold a match for the template, found as planned
+     */
+    static <V> Iterable<Slot<V>> slots(final Bucket<V> bucket, final V template) {
+        return execute(plan(bucket, template), bucket, template);
+    }
+
+    /**
+     * Gets the plan for the template's shape, making it if there is none or it is stale. The plans are made without
+     * the lock on the collection, so one made whilst an index is added or removed is replaced the next time it is
+     * wanted rather than used.
+     *
+     * @param bucket   the template's bucket
+     * @param template the template
+     * @return the plan
+     */
+    static <V> QueryPlan plan(final Bucket<V> bucket, final V template) {
+        final BitSet shape = shapeOf(bucket, template);
+        QueryPlan plan = bucket.plans.get(shape);
+        if (plan == null || plan.isStale(bucket.size(), bucket.indexVersion)) {
+            plan = choose(bucket, template);
+            bucket.plans.put(shape, plan);
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("Planned " + template + " as " + plan);
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * @param plan     the plan for the template
+     * @param bucket   the template's bucket
+     * @param template the template
+     * @return the slots that could hold a match for the template
+     */
+    @SuppressWarnings("unchecked")
+    static <V> Iterable<Slot<V>> execute(final QueryPlan plan, final Bucket<V> bucket, final V template) {
+        Iterable<Slot<V>> slots = null;
+        switch (plan.getAccessPath()) {
+            case TUPLE_INDEX:
+                slots = ((SimpleTupleIndex<V>) plan.access).lookup((SimpleTuple) template);
+                break;
+            case POSITION_INDEX:
+                slots = ((SimpleTupleIndex<V>) plan.access).lookup((SimpleTuple) template, plan.position);
+                break;
+            case FIELD_INDEX:
+                slots = ((FieldIndex<V>) plan.access).lookup(template);
+                break;
+            case SORTED_INDEX:
+                final SortedFieldIndex<V> index = (SortedFieldIndex<V>) plan.access;
+                slots = index.lookup(((QueryTemplate) template).getCondition(index.getField().getName()));
+                break;
+            default:
+                break;
+        }
+        return slots == null ? bucket : slots;
+    }
+
+    /**
+     * The shape of a template is the set of the bucket's indexes that it could be looked up in. For a SimpleTuple this
+     * is the set of positions of its concrete entries. Otherwise there is a bit for each field index the template can
+     * be looked up in followed, for a QueryTemplate, by three bits for each sorted index: whether there is a condition
+     * that can be looked up, whether it is a set of values and whether it is a range closed at both ends.
+     */
+    private static <V> BitSet shapeOf(final Bucket<V> bucket, final V template) {
+        final BitSet shape = new BitSet();
+        if (template instanceof SimpleTuple) {
+            if (bucket.index != null) {
+                int position = 0;
+                for (final Object entry : ((SimpleTuple) template).getData()) {
+                    shape.set(position++, !SimpleTupleIndex.isWildcard(entry));
+                }
+            }
+            return shape;
+        }
+        final List<FieldIndex<V>> fieldIndexes = bucket.fieldIndexes;
+        int bit = 0;
+        for (final FieldIndex<V> index : fieldIndexes) {
+            shape.set(bit++, index.canLookup(template));
+        }
+        if (template instanceof QueryTemplate) {
+            for (final SortedFieldIndex<V> index : bucket.sortedIndexes) {
+                final Condition condition = ((QueryTemplate) template).getCondition(index.getField().getName());
+                if (condition != null && SortedFieldIndex.canLookup(condition)) {
+                    shape.set(bit);
+                    shape.set(bit + 1, condition.getValues() != null);
+                    shape.set(bit + 2, condition.getLower() != null && condition.getUpper() != null);
+                }
+                bit += 3;
+            }
+        }
+        return shape;
+    }
+
+    /**
+     * @return the cheapest plan for the template
+     */
+    private static <V> QueryPlan choose(final Bucket<V> bucket, final V template) {
+
+        //read first, so that a plan using an index replaced from here on is seen to be stale
+        final long version = bucket.indexVersion;
+        final int size = bucket.size();
+        QueryPlan best = new QueryPlan(AccessPath.BUCKET, bucket.key, null, size, size, null, -1, version);
+
+        if (template instanceof SimpleTuple) {
+            final SimpleTupleIndex<V> index = bucket.index;
+            if (index == null) {
+                return best;
+            }
+            boolean wildcards = false;
+            int position = 0;
+            for (final Object entry : ((SimpleTuple) template).getData()) {
+                if (SimpleTupleIndex.isWildcard(entry)) {
+                    wildcards = true;
+                } else {
+                    best = cheaper(best, new QueryPlan(AccessPath.POSITION_INDEX, bucket.key, "position " + position,
+                            perKey(size, index.keys(position)), size, index, position, version));
+                }
+                position++;
+            }
+            if (!wildcards) {
+                best = cheaper(best, new QueryPlan(AccessPath.TUPLE_INDEX, bucket.key, "all positions",
+                        perKey(size, index.keys()), size, index, -1, version));
+            }
+            return best;
+        }
+
+        for (final FieldIndex<V> index : bucket.fieldIndexes) {
+            if (index.canLookup(template)) {
+                best = cheaper(best, new QueryPlan(AccessPath.FIELD_INDEX, bucket.key, "[" + index.getFieldNames() + "]",
+                        perKey(size, index.keys()), size, index, -1, version));
+            }
+        }
+        if (template instanceof QueryTemplate) {
+            for (final SortedFieldIndex<V> index : bucket.sortedIndexes) {
+                final Condition condition = ((QueryTemplate) template).getCondition(index.getField().getName());
+                if (condition == null || !SortedFieldIndex.canLookup(condition)) {
+                    continue;
+                }
+                final Collection<Object> values = condition.getValues();
+                final int estimate;
+                if (values != null) {
+                    estimate = (int) Math.min(size, (long) values.size() * perKey(size, index.keys()));
+                } else if (condition.getLower() != null && condition.getUpper() != null) {
+                    estimate = size / 4;
+                } else {
+                    estimate = size / 3;
+                }
+                best = cheaper(best, new QueryPlan(AccessPath.SORTED_INDEX, bucket.key, index.getField().getName(),
+                        estimate, size, index, -1, version));
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the plan with the lower estimate, the first if they are the same
+     */
+    private static QueryPlan cheaper(final QueryPlan first, final QueryPlan second) {
+        return second.getEstimate() < first.getEstimate() ? second : first;
+    }
+
+    /**
+     * @param size the number of values
+     * @param keys the number of distinct keys
+     * @return the average number of values per key
+     */
+    private static int perKey(final int size, final int keys) {
+        return keys == 0 ? 0 : (size + keys - 1) / keys;
+    }
+}
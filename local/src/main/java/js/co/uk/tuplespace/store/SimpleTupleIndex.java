@@ -0,0 +1,158 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.store;
+
+import js.co.uk.tuplespace.tuple.Condition;
+import js.co.uk.tuplespace.tuple.SimpleTuple;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Hash index over the SimpleTuples of one arity. It maps the whole of a tuple's data to the tuples with that data and,
+ * for each position, the entry at that position to the tuples having it.
+ * <p/>
+ * A template with no '*' entries can be answered by a single lookup on its data, and a template with some concrete
+ * entries by the set for one of them, leaving the matcher to check the rest. The {@link QueryPlanner} chooses which.
+ * An entry that is a {@link Condition} is treated as a wildcard.
+ * <p/>
+ * Tuples are indexed on their data as it is when they are added so they must not be changed whilst in the space.
+ *
+ * @param <V>
+ */
+final class SimpleTupleIndex<V> {
+
+    /**
+     * Stands in for a null entry as the maps do not allow null keys.
+     */
+    private static final Object NULL_ENTRY = new Object();
+
+    private final ConcurrentHashMap<Collection<Object>, Set<Slot<V>>> exact =
+            new ConcurrentHashMap<Collection<Object>, Set<Slot<V>>>();
+
+    private final ConcurrentHashMap<Object, Set<Slot<V>>>[] positions;
+
+    /**
+     * @param arity the arity of the tuples indexed
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    SimpleTupleIndex(final int arity) {
+        positions = new ConcurrentHashMap[arity];
+        for (int i = 0; i < arity; i++) {
+            positions[i] = new ConcurrentHashMap<Object, Set<Slot<V>>>();
+        }
+    }
+
+    /**
+     * @param slot the slot to index
+     */
+    void add(final Slot<V> slot) {
+        final Collection<Object> data = ((SimpleTuple) slot.value).getData();
+        addTo(exact, data, slot);
+        int position = 0;
+        for (final Object entry : data) {
+            addTo(positions[position++], entry == null ? NULL_ENTRY : entry, slot);
+        }
+    }
+
+    /**
+     * @param slot the slot to remove from the index
+     */
+    void remove(final Slot<V> slot) {
+        final Collection<Object> data = ((SimpleTuple) slot.value).getData();
+        removeFrom(exact, data, slot);
+        int position = 0;
+        for (final Object entry : data) {
+            removeFrom(positions[position++], entry == null ? NULL_ENTRY : entry, slot);
+        }
+    }
+
+    /**
+     * @param entry an entry of a template
+     * @return true if the entry matches any entry, ie it is null, '*' or a Condition
+     */
+    static boolean isWildcard(final Object entry) {
+        return entry == null || entry.equals("*") || entry instanceof Condition;
+    }
+
+    /**
+     * Gets the slots holding tuples with exactly the template's data.
+     *
+     * @param template the template, of the same arity as the indexed tuples and with no wildcard entries
+     * @return the slots
+     */
+    Collection<Slot<V>> lookup(final SimpleTuple template) {
+        final Set<Slot<V>> slots = exact.get(template.getData());
+        return slots == null ? Collections.<Slot<V>>emptySet() : slots;
+    }
+
+    /**
+     * Gets the slots holding tuples with the template's entry at one position.
+     *
+     * @param template the template, of the same arity as the indexed tuples
+     * @param position a position at which the template's entry is not a wildcard
+     * @return the slots
+     */
+    Collection<Slot<V>> lookup(final SimpleTuple template, final int position) {
+        final Iterator<Object> entries = template.getData().iterator();
+        for (int i = 0; i < position; i++) {
+            entries.next();
+        }
+        final Set<Slot<V>> slots = positions[position].get(entries.next());
+        return slots == null ? Collections.<Slot<V>>emptySet() : slots;
+    }
+
+    /**
+     * @return the number of distinct tuple data indexed
+     */
+    int keys() {
+        return exact.size();
+    }
+
+    /**
+     * @param position a position
+     * @return the number of distinct entries indexed at the position
+     */
+    int keys(final int position) {
+        return positions[position].size();
+    }
+
+    static <K, V> void addTo(final ConcurrentMap<K, Set<Slot<V>>> map, final K key, final Slot<V> slot) {
+        Set<Slot<V>> slots = map.get(key);
+        if (slots == null) {
+            slots = Collections.newSetFromMap(new ConcurrentHashMap<Slot<V>, Boolean>());
+            map.put(key, slots);
+        }
+        slots.add(slot);
+    }
+
+    static <K, V> void removeFrom(final ConcurrentMap<K, Set<Slot<V>>> map, final K key, final Slot<V> slot) {
+        final Set<Slot<V>> slots = map.get(key);
+        if (slots != null) {
+            slots.remove(slot);
+            if (slots.isEmpty()) {
+                map.remove(key);
+            }
+        }
+    }
+}
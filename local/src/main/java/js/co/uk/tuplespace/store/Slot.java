@@ -0,0 +1,61 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.store;
+
+/**
+ * Where a value is stored in a {@link BucketedCollection}. Slots use identity for equality so they can be held in
+ * hash based indexes regardless of how the values they hold define equals.
+ * If the same instance is added more than once the slots are chained via next.
+ *
+ * @param <V>
+ */
+final class Slot<V> {
+
+    final V value;
+    final long seq;
+    final Bucket<V> bucket;
+    Slot<V> next;
+
+    /**
+     * When the value times out, as System.nanoTime(), Long.MAX_VALUE if it does not.
+     */
+    long expiry = Long.MAX_VALUE;
+
+    /**
+     * The estimated size of the value in bytes, 0 if not estimated.
+     */
+    long size;
+
+    /**
+     * When the value was last put or read, on the same clock as seq.
+     */
+    long used;
+
+    /**
+     * @param value  the value
+     * @param seq    the position of the value in the collection's insertion order
+     * @param bucket the bucket that holds the value
+     */
+    Slot(final V value, final long seq, final Bucket<V> bucket) {
+        this.value = value;
+        this.seq = seq;
+        this.bucket = bucket;
+        this.used = seq;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.store;
+
+import java.util.Comparator;
+
+/**
+ * Orders slots by the precedence of their values, if there is one, and then by insertion order. No two slots are the
+ * same in this order, so it can key a sorted set of slots.
+ *
+ * @param <V>
+ */
+final class SlotOrder<V> implements Comparator<Slot<V>> {
+
+    private static final SlotOrder<Object> INSERTION = new SlotOrder<Object>(null);
+
+    /**
+     * The precedence of the values, the first in its order is the first in this one. Null for insertion order only.
+     */
+    final Comparator<? super V> precedence;
+
+    /**
+     * @param precedence the precedence of the values, null for insertion order only
+     */
+    SlotOrder(final Comparator<? super V> precedence) {
+        this.precedence = precedence;
+    }
+
+    /**
+     * @return the insertion order
+     */
+    @SuppressWarnings("unchecked")
+    static <V> SlotOrder<V> insertion() {
+        return (SlotOrder<V>) INSERTION;
+    }
+
+    @Override
+    public int compare(final Slot<V> a, final Slot<V> b) {
+        if (precedence != null) {
+            final int c = precedence.compare(a.value, b.value);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return a.seq < b.seq ? -1 : a.seq == b.seq ? 0 : 1;
+    }
+}
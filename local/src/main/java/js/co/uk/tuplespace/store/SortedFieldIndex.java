@@ -0,0 +1,253 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.store;
+
+import js.co.uk.tuplespace.tuple.Condition;
+
+import java.lang.reflect.Field;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Sorted index over one field of the values in one bucket, see
+ * {@link BucketedCollection#createSortedIndex(Class, String)}. It maps each value of the field to the slots holding
+ * values with it, in the order of the field's values, so the slots whose field lies in a range are found in
+ * O(log n + k) time for k slots.
+ * <p/>
+ * Field values are ordered by their class's name and then by their natural order, so values of different classes
+ * are never compared with each other and a range only covers values of its bounds' class, as with
+ * {@link Condition#test(Object)}. Null field values and values that are not Comparable are not indexed, no condition
+ * can be satisfied by them.
+ * <p/>
+ * Values are indexed on their field as it is when they are added so they must not be changed whilst in the space.
+ *
+ * @param <V>
+ */
+final class SortedFieldIndex<V> {
+
+    /**
+     * Orders values of different classes by the name of the class.
+     */
+    private static final Comparator<Object> ORDER = new Comparator<Object>() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public int compare(final Object a, final Object b) {
+            if (a.getClass() != b.getClass()) {
+                return a.getClass().getName().compareTo(b.getClass().getName());
+            }
+            return ((Comparable<Object>) a).compareTo(b);
+        }
+    };
+
+    private final Field field;
+
+    private final ConcurrentSkipListMap<Object, Set<Slot<V>>> entries =
+            new ConcurrentSkipListMap<Object, Set<Slot<V>>>(ORDER);
+
+    /**
+     * The number of keys in entries, as its size is not a constant time operation. Written holding the lock on the
+     * owning collection.
+     */
+    private volatile int keys = 0;
+
+    /**
+     * @param field the indexed field, see {@link FieldIndex#fieldsOf(Class, String...)}
+     */
+    SortedFieldIndex(final Field field) {
+        this.field = field;
+    }
+
+    /**
+     * @return the indexed field
+     */
+    Field getField() {
+        return field;
+    }
+
+    /**
+     * @param slot the slot to index
+     */
+    void add(final Slot<V> slot) {
+        final Object key = keyOf(slot.value);
+        if (key != null) {
+            if (!entries.containsKey(key)) {
+                keys++;
+            }
+            SimpleTupleIndex.addTo(entries, key, slot);
+        }
+    }
+
+    /**
+     * @param slot the slot to remove from the index
+     */
+    void remove(final Slot<V> slot) {
+        final Object key = keyOf(slot.value);
+        if (key != null && entries.containsKey(key)) {
+            SimpleTupleIndex.removeFrom(entries, key, slot);
+            if (!entries.containsKey(key)) {
+                keys--;
+            }
+        }
+    }
+
+    /**
+     * @return the number of distinct field values indexed
+     */
+    int keys() {
+        return keys;
+    }
+
+    /**
+     * @param condition a condition on the indexed field
+     * @return true if the index can be used to find the values satisfying the condition, see {@link #lookup(Condition)}
+     */
+    static boolean canLookup(final Condition condition) {
+        if (condition.getValues() == null) {
+            return condition.getLower() != null || condition.getUpper() != null;
+        }
+        for (final Object value : condition.getValues()) {
+            if (!(value instanceof Comparable)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the slots whose field could satisfy the condition.
+     *
+     * @param condition a condition on the indexed field
+     * @return the candidate slots, or null if the condition cannot be answered from the index
+     */
+    Iterable<Slot<V>> lookup(final Condition condition) {
+
+        final Set<Object> values = condition.getValues();
+        if (values != null) {
+            final List<Map.Entry<Object, Set<Slot<V>>>> found = new ArrayList<Map.Entry<Object, Set<Slot<V>>>>();
+            for (final Object value : values) {
+                if (!(value instanceof Comparable)) {
+                    return null;
+                }
+                final Set<Slot<V>> slots = entries.get(value);
+                if (slots != null) {
+                    found.add(new AbstractMap.SimpleImmutableEntry<Object, Set<Slot<V>>>(value, slots));
+                }
+            }
+            return new Range<V>(found, null);
+        }
+
+        final Comparable<?> lower = condition.getLower();
+        final Comparable<?> upper = condition.getUpper();
+        final NavigableMap<Object, Set<Slot<V>>> range;
+        if (lower != null && upper != null) {
+            if (ORDER.compare(lower, upper) > 0) {
+                return Collections.emptyList();
+            }
+            range = entries.subMap(lower, condition.isLowerInclusive(), upper, condition.isUpperInclusive());
+        } else if (lower != null) {
+            range = entries.tailMap(lower, condition.isLowerInclusive());
+        } else if (upper != null) {
+            //walk down from the upper bound so that the walk stops at the first value of another class
+            range = entries.headMap(upper, condition.isUpperInclusive()).descendingMap();
+        } else {
+            return null;
+        }
+        return new Range<V>(range.entrySet(), (lower != null ? lower : upper).getClass());
+    }
+
+    /**
+     * @param value a value
+     * @return the value's field, or null if it cannot be indexed
+     */
+    private Object keyOf(final Object value) {
+        final Object key;
+        try {
+            key = field.get(value);
+        } catch (IllegalAccessException e) {
+            //made accessible in fieldsOf
+            throw new IllegalStateException(e);
+        }
+        return key instanceof Comparable ? key : null;
+    }
+
+    /**
+     * The slots of some entries of the index, up to the first entry whose field value is not of the class of the
+     * range's bounds.
+     */
+    private static final class Range<V> implements Iterable<Slot<V>> {
+
+        private final Iterable<Map.Entry<Object, Set<Slot<V>>>> entries;
+        private final Class<?> boundClass;
+
+        /**
+         * @param entries    the entries
+         * @param boundClass the class of the bounds or null if every entry is in range
+         */
+        private Range(final Iterable<Map.Entry<Object, Set<Slot<V>>>> entries, final Class<?> boundClass) {
+            this.entries = entries;
+            this.boundClass = boundClass;
+        }
+
+        @Override
+        public Iterator<Slot<V>> iterator() {
+            final Iterator<Map.Entry<Object, Set<Slot<V>>>> entryItr = entries.iterator();
+            return new Iterator<Slot<V>>() {
+
+                private Iterator<Slot<V>> slotItr = Collections.<Slot<V>>emptyList().iterator();
+
+                @Override
+                public boolean hasNext() {
+                    while (!slotItr.hasNext()) {
+                        if (!entryItr.hasNext()) {
+                            return false;
+                        }
+                        final Map.Entry<Object, Set<Slot<V>>> entry = entryItr.next();
+                        if (boundClass != null && entry.getKey().getClass() != boundClass) {
+                            return false;
+                        }
+                        slotItr = entry.getValue().iterator();
+                    }
+                    return true;
+                }
+
+                @Override
+                public Slot<V> next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return slotItr.next();
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+}
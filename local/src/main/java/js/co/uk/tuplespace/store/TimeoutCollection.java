@@ -20,16 +20,29 @@
 package js.co.uk.tuplespace.store;
 
 import js.co.uk.tuplespace.matcher.Matcher;
+import js.co.uk.tuplespace.matcher.TypeRespectingMatcher;
 import js.co.uk.tuplespace.tuple.MatchAllTuplesTemplate;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
 
 /**
  *
@@ -38,25 +51,56 @@ import java.util.concurrent.locks.ReentrantLock;
 public class TimeoutCollection<V> {
 
 
+    private static final ThreadFactory DISPATCHER_THREADS = new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable task) {
+            final Thread thread = new Thread(task, "TimeoutCollection-Dispatcher");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    /**
+     * Does the work handed off by puts and by the timing wheel's thread, neither of which may wait: waiting for the
+     * log before an asynchronous put or take completes, giving up asynchronous matches that time out and ending the
+     * notify registrations whose leases expire. Each collection has its own so that a slow log only holds up its own
+     * work, and its one thread is only kept whilst there is work to do. The futures themselves are completed on the
+     * default pool of CompletableFuture, see {@link #completeAsync(CompletableFuture, Object)}, so their callbacks
+     * never run here.
+     */
+    private final ExecutorService dispatcher = new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), DISPATCHER_THREADS);
+
     /**
-     * The locks for put and get.
+     * The locks for put and get. Locks rather than monitors are used throughout, as a thread blocked on a monitor, or
+     * waiting for the log whilst holding one, would pin a virtual thread to its carrier.
      */
     private final ReentrantLock lockForPut = new ReentrantLock();
     private final ReentrantLock lockForGet = new ReentrantLock();
 
+    /**
+     * Serialises clears.
+     */
+    private final ReentrantLock lockForClear = new ReentrantLock();
+
 
-    private BlockingQueue<Condition> conditionQueueTimeoutQueue = new LinkedBlockingQueue<Condition>();
-    private TimeoutQueue<Condition> conditionQueue = new TimeoutQueue<Condition>(conditionQueueTimeoutQueue);
+    /**
+     * The take and read attempts waiting for a match, guarded by lockForGet.
+     */
+    private final WaiterRegistry<V> waiters = new WaiterRegistry<V>();
 
+    /**
+     * Set whilst the pending asynchronous waiters are being serviced, guarded by lockForGet.
+     */
+    private boolean servicing = false;
 
-    //stores the templates
     /**
-     * The template list.
+     * The notify registrations, see {@link #notify(Object, NotifyListener, long, TimeUnit)}.
      */
-    private final CopyOnWriteArrayList<V> templateList = new CopyOnWriteArrayList<V>();
+    private final NotifyRegistry<V> notifications = new NotifyRegistry<V>(dispatcher);
 
-    //the primaryCollection itself
-    private final CopyOnWriteArrayList<V> primaryCollection = new CopyOnWriteArrayList<V>();
+    //the primaryCollection itself, bucketed by type so that a template need only be compared with values of its own type
+    private final BucketedCollection<V> primaryCollection = new BucketedCollection<V>();
 
     //values are put on the queue for timeout
     private final TimeoutQueue<V> valueTimeoutQueue;
@@ -65,22 +109,47 @@ public class TimeoutCollection<V> {
 
 
     /**
-     * The value timeout consumer queue.
+     * The matcher, volatile as reads outside a transaction do not lock.
      */
-    private final BlockingQueue<V> valueTimeoutQueueConsumer;
+    private volatile Matcher<V> matcher = null;
 
     /**
-     * The matcher.
+     * The order values are handed out in, volatile as reads outside a transaction do not lock.
      */
-    private Matcher<V> matcher = null;
+    private volatile Ordering ordering = Ordering.ANY;
 
+    /**
+     * The capacity, see {@link #setCapacity(int, long, CapacityPolicy)}, volatile as it is checked before locking.
+     */
+    private volatile int maxCount = Integer.MAX_VALUE;
+    private volatile long maxBytes = Long.MAX_VALUE;
+    private volatile CapacityPolicy capacityPolicy = CapacityPolicy.BLOCK;
+    private volatile long capacityTimeoutNanos = Long.MAX_VALUE;
 
-    private volatile boolean keepGoing = true;
-    private final BlockingQueue<V> valueConsumerQueue;
+    private volatile SizeEstimator<? super V> sizeEstimator;
+
+    private volatile EvictionListener<? super V> evictionListener;
 
-    private final Thread valueTimeoutReader;
+    /**
+     * The values evicted but not yet passed to the eviction listener. Values are evicted whilst the locks are held,
+     * the listener is only called once they are let go, see {@link #fireEvicted()}.
+     */
+    private final Queue<V> evicted = new ConcurrentLinkedQueue<V>();
+
+    /**
+     * Puts blocked waiting for room wait on roomMade, which is only signalled if there are any.
+     */
+    private final ReentrantLock lockForRoom = new ReentrantLock();
+    private final Condition roomMade = lockForRoom.newCondition();
+    private final AtomicInteger blockedPuts = new AtomicInteger(0);
+
+
+    private final BlockingQueue<V> valueConsumerQueue;
 
-    private final Thread conditionQueueReader;
+    /**
+     * The log the changes are written to, null if the collection is not durable.
+     */
+    private volatile WriteAheadLog<V> log;
 
 
     /**
@@ -89,8 +158,6 @@ public class TimeoutCollection<V> {
     public TimeoutCollection(final BlockingQueue<V> valueConsumerQueue) {
 
 
-        valueTimeoutQueueConsumer = new LinkedBlockingQueue<V>();
-        valueTimeoutQueue = new TimeoutQueue<V>(valueTimeoutQueueConsumer);
         this.valueConsumerQueue = valueConsumerQueue;
 
         /*
@@ -100,69 +167,24 @@ public class TimeoutCollection<V> {
          handled by that mechanism.
 
          */
-        valueTimeoutReader = new Thread(new Runnable() {
+        valueTimeoutQueue = new TimeoutQueue<V>(new ExpiryListener<V>() {
             @Override
-            public void run() {
-                //noinspection InfiniteLoopStatement
-                while (isKeepGoing()) {
-                    try {
-                        //wait for a value  to expire
-                        final V v = valueTimeoutQueueConsumer.poll(1, TimeUnit.NANOSECONDS);
-                        //...if have a value then it has expired so remove the value from the primaryCollection
-                        if (v != null) {
-
-                            primaryCollection.remove(v);
-                            //and into value queue - this exports the V being removed into an external Queue
-                            if (valueConsumerQueue != null) {
-                                valueConsumerQueue.add(v);
-                            }
-                        }
-
-
-                    } catch (final InterruptedException e) {
-                        Thread.currentThread().interrupt();
-
-                    }
+            public void expired(final V v) {
+                //the value has expired so remove the value from the primaryCollection
+                primaryCollection.remove(v);
+                roomMade();
+                final WriteAheadLog<V> log = TimeoutCollection.this.log;
+                if (log != null) {
+                    //no need to wait for this to be durable, an expired value is dropped when the log is replayed
+                    log.expire(v);
                 }
-
-            }
-        });
-
-        valueTimeoutReader.setDaemon(true);
-        valueTimeoutReader.start();
-
-        conditionQueueReader = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                //noinspection InfiniteLoopStatement
-                while (isKeepGoing()) {
-                    try {
-                        //wait for a value  to expire
-                        Condition condition = conditionQueueTimeoutQueue.poll(1, TimeUnit.NANOSECONDS);
-                        if (condition != null) {
-                            lockForGet.lock();
-                            try {
-
-                                condition.signalAll();
-
-                            }
-                            finally {
-                                lockForGet.unlock();
-                            }
-
-                        }
-
-
-                    } catch (final InterruptedException e) {
-                        Thread.currentThread().interrupt();
-
-                    }
+                //and into value queue - this exports the V being removed into an external Queue
+                if (valueConsumerQueue != null) {
+                    valueConsumerQueue.add(v);
                 }
-
             }
         });
-        conditionQueueReader.setDaemon(true);
-        conditionQueueReader.start();
+
 
 
     }
@@ -178,17 +200,23 @@ public class TimeoutCollection<V> {
         lockForPut.lock();//needs to be the put lock as we are adding to the collection and queue
         try {
             for (TimeoutEntry<V> timeout : timeouts) {
-                primaryCollection.add(timeout.getItem());
+                //a value put back by an aborted take goes back where it was
+                primaryCollection.add(timeout.getItem(), timeout.getSequence(), timeout.getExpireTime(),
+                        sizeOf(timeout.getItem()));
                 valueTimeoutQueue.add(timeout);
 
             }
 
             lockForGet.lock();
             try {
-                for (final Condition con : conditionQueue.toEntryList()) {
-                    con.signalAll();
-
+                if (ordering != Ordering.ANY) {
+                    //so that the takers that have waited longest get the values first
+                    for (TimeoutEntry<V> timeout : timeouts) {
+                        waiters.offer(timeout.getItem(), matcher);
+                    }
                 }
+                waiters.wakeAll();
+                serviceAsync();
             }
             finally {
                 lockForGet.unlock();
@@ -203,19 +231,90 @@ public class TimeoutCollection<V> {
 
     }
 
+    /**
+     * Commits the values put and taken under a transaction. The taken values have already been removed from the
+     * collection, the commit is logged if the collection is durable.
+     *
+     * @param puts  the values put under the transaction
+     * @param takes the values taken under the transaction
+     */
+    void commitTimeouts(final Collection<TimeoutEntry<V>> puts, final Collection<TimeoutEntry<V>> takes) {
+        final WriteAheadLog<V> log = this.log;
+        if (log == null) {
+            lockForPut.lock();
+            try {
+                addAllTimeouts(puts);
+                //a commit cannot wait or fail for want of room, it can only evict
+                evictToCapacity();
+            }
+            finally {
+                lockForPut.unlock();
+            }
+        } else {
+            final long sequence;
+            lockForPut.lock();
+            try {
+                sequence = log.commit(puts, takes);
+                addAllTimeouts(puts);
+                evictToCapacity();
+            }
+            finally {
+                lockForPut.unlock();
+            }
+            log.sync(sequence);
+        }
+        fireEvicted();
+        //the values put under the transaction are only now put as far as anyone else is concerned
+        for (final TimeoutEntry<V> put : puts) {
+            notifications.fire(put.getItem(), matcher);
+        }
+    }
+
+    /**
+     * Makes this collection durable. The log is replayed first and the values still in it are added to the collection
+     * with what is left of their timeouts, from then on every change is written to the log. This should be called
+     * before the collection is used.
+     *
+     * @param log the log
+     * @throws IOException if the log cannot be read
+     */
+    public void recover(final WriteAheadLog<V> log) throws IOException {
+        addAllTimeouts(log.replay());
+        this.log = log;
+    }
+
+    /**
+     * Waits for the changes logged so far to be durable, if the collection is durable.
+     */
+    private void syncLog() {
+        final WriteAheadLog<V> log = this.log;
+        if (log != null) {
+            log.sync();
+        }
+    }
+
     /**
      * Terminated this collection
      */
     void terminate() {
-        //need to stop the    keyTimeoutReader thread running
-        setKeepGoing(false);
-        valueTimeoutReader.interrupt();
-        conditionQueueReader.interrupt();
-        //and the header reader in the q
+        //stop timing out values
         valueTimeoutQueue.terminate();
 
     }
 
+    /**
+     * Terminates this collection and, if it is durable, closes the log once everything logged so far is durable.
+     *
+     * @throws IOException if the log cannot be written
+     */
+    public void close() throws IOException {
+        terminate();
+        final WriteAheadLog<V> log = this.log;
+        if (log != null) {
+            log.close();
+        }
+    }
+
     /**
      * Sets the transaction manager to use.
      *
@@ -236,14 +335,180 @@ public class TimeoutCollection<V> {
     }
 
 
+    /**
+     * Switches hash indexing of the entries of SimpleTuples on or off. This only has an effect when the matcher is a
+     * {@link TypeRespectingMatcher}.
+     *
+     * @param indexSimpleTuples true to index
+     */
+    public void setIndexSimpleTuples(final boolean indexSimpleTuples) {
+        primaryCollection.setIndexSimpleTuples(indexSimpleTuples);
+    }
+
+    /**
+     * Creates a hash index on some fields of the values of a class, see
+     * {@link BucketedCollection#createIndex(Class, String...)}. This only has an effect when the matcher is a
+     * {@link TypeRespectingMatcher}.
+     *
+     * @param type   the class of the values to index
+     * @param fields the names of the fields to index on
+     */
+    public void createIndex(final Class<?> type, final String... fields) {
+        primaryCollection.createIndex(type, fields);
+    }
+
+    /**
+     * Creates a sorted index on a field of the values of a class, see
+     * {@link BucketedCollection#createSortedIndex(Class, String)}. This only has an effect when the matcher is a
+     * {@link TypeRespectingMatcher}.
+     *
+     * @param type  the class of the values to index
+     * @param field the name of the field to index on
+     */
+    public void createSortedIndex(final Class<?> type, final String field) {
+        primaryCollection.createSortedIndex(type, field);
+    }
+
+    /**
+     * Gets the plan for finding the values that could match a template, for diagnostics. See
+     * {@link BucketedCollection#explain(Object, boolean)}.
+     *
+     * @param template the template
+     * @return the plan
+     */
+    public QueryPlan explain(final V template) {
+        return primaryCollection.explain(template, matcher instanceof TypeRespectingMatcher);
+    }
+
+    /**
+     * Sets the order that matching values are handed out in, and that blocked takers are served in. See
+     * {@link Ordering}.
+     *
+     * @param ordering the ordering
+     */
+    public void setOrdering(final Ordering ordering) {
+        if (ordering == null) {
+            throw new IllegalArgumentException("The ordering cannot be null");
+        }
+        lockForGet.lock();
+        try {
+            primaryCollection.setPrioritised(ordering == Ordering.PRIORITY);
+            this.ordering = ordering;
+            waiters.setFair(ordering != Ordering.ANY);
+        }
+        finally {
+            lockForGet.unlock();
+        }
+    }
+
+    /**
+     * @return the order that matching values are handed out in
+     */
+    public Ordering getOrdering() {
+        return ordering;
+    }
+
+    /**
+     * Gives the values of a class an order of precedence for when the ordering is {@link Ordering#PRIORITY}, see
+     * {@link BucketedCollection#setPriority(Class, Comparator)}.
+     *
+     * @param type       the class
+     * @param precedence the order of precedence, the first value in its order is handed out first, null to remove
+     */
+    public void setPriority(final Class<?> type, final Comparator<? super V> precedence) {
+        primaryCollection.setPriority(type, precedence);
+    }
+
+    /**
+     * Limits the number of values in the collection and their total estimated size, see
+     * {@link #setSizeEstimator(SizeEstimator)}. A put outside a transaction that would go over either limit is dealt
+     * with as the policy says. Values put under a transaction are only counted once it commits, and a commit never
+     * waits or fails for want of room, though it may cause evictions. Lowering the limits only evicts values if the
+     * policy evicts.
+     *
+     * @param maxCount the most values, Integer.MAX_VALUE for no limit
+     * @param maxBytes the most bytes, Long.MAX_VALUE for no limit
+     * @param policy   what to do when a put would go over the limits
+     * @throws IllegalArgumentException if a limit is not positive, or there is a limit in bytes but no size estimator
+     */
+    public void setCapacity(final int maxCount, final long maxBytes, final CapacityPolicy policy) {
+        if (maxCount <= 0 || maxBytes <= 0 || policy == null) {
+            throw new IllegalArgumentException("The limits must be positive and the policy must be given");
+        }
+        if (maxBytes < Long.MAX_VALUE && sizeEstimator == null) {
+            throw new IllegalArgumentException("A limit in bytes needs a size estimator");
+        }
+        lockForPut.lock();
+        try {
+            if (maxBytes < Long.MAX_VALUE && this.maxBytes == Long.MAX_VALUE) {
+                //sizes are not estimated without a limit in bytes
+                primaryCollection.estimateSizes(sizeEstimator);
+            }
+            primaryCollection.setEvictionPolicy(policy);
+            this.maxCount = maxCount;
+            this.maxBytes = maxBytes;
+            this.capacityPolicy = policy;
+            evictToCapacity();
+        }
+        finally {
+            lockForPut.unlock();
+        }
+        fireEvicted();
+        //the limits may have been raised
+        lockForRoom.lock();
+        try {
+            roomMade.signalAll();
+        }
+        finally {
+            lockForRoom.unlock();
+        }
+    }
+
+    /**
+     * Sets how long a put waits for room when the capacity policy is {@link CapacityPolicy#BLOCK}. By default it waits
+     * for as long as it takes.
+     *
+     * @param timeOut the most time to wait
+     * @param unit    the unit of the timeout
+     */
+    public void setCapacityTimeout(final long timeOut, final TimeUnit unit) {
+        capacityTimeoutNanos = unit.toNanos(timeOut);
+    }
+
+    /**
+     * Sets the estimator of the size of values, needed for a limit in bytes.
+     *
+     * @param sizeEstimator the estimator
+     */
+    public void setSizeEstimator(final SizeEstimator<? super V> sizeEstimator) {
+        this.sizeEstimator = sizeEstimator;
+    }
+
+    /**
+     * Sets the listener for values evicted to make room. It is called by the thread whose put or commit caused the
+     * evictions, once that thread holds no locks on the collection.
+     *
+     * @param evictionListener the listener, null for none
+     */
+    public void setEvictionListener(final EvictionListener<? super V> evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
     /**
      * Sets the matcher to use in this TimeoutMap
      *
      * @param matcher the Matcher to use
      */
-    public synchronized void setMatcher(final Matcher<V> matcher) {
-        this.matcher = matcher;
-
+    public void setMatcher(final Matcher<V> matcher) {
+        lockForGet.lock();
+        try {
+            this.matcher = matcher;
+            waiters.refile(matcher instanceof TypeRespectingMatcher);
+            notifications.refile(matcher instanceof TypeRespectingMatcher);
+        }
+        finally {
+            lockForGet.unlock();
+        }
 
     }
 
@@ -273,28 +538,152 @@ public class TimeoutCollection<V> {
      * @throws TransactionException possibel transaction exception
      */
     public void put(final V value, final long timeOut, final TimeUnit unit, final TransactionID txnId) throws TransactionException {
+        doPut(value, timeOut, unit, txnId);
+        if (txnId == null) {
+            syncLog();
+        }
+    }
+
+    /**
+     * Puts without waiting for the log.
+     *
+     * @param value   the value to be stored
+     * @param timeOut the time period after which the value  is removed
+     * @param unit    the time unit that the timeOut value refers to
+     * @param txnId   the transaction, may  be null
+     * @throws TransactionException possible transaction exception
+     */
+    private void doPut(final V value, final long timeOut, final TimeUnit unit, final TransactionID txnId) throws TransactionException {
+        final long size = txnId == null ? sizeOf(value) : 0;
         lockForPut.lock();
         try {
 
-            final TimeoutEntry<V> timeoutEntry = new TimeoutEntry<V>(value, timeOut, unit);
             if (txnId != null) {
 
                 final Transaction<V> txn = txnMgr.getTransaction(txnId);
-                txn.addValueToValues(timeoutEntry);
+                txn.addValueToValues(new TimeoutEntry<V>(value, timeOut, unit));
             } else {
-                primaryCollection.add(value);
+                makeRoom(1, size);
+                final TimeoutEntry<V> timeoutEntry = new TimeoutEntry<V>(value, timeOut, unit);
+                if (log != null) {
+                    log.put(timeoutEntry);
+                }
+                primaryCollection.add(value, 0, timeoutEntry.getExpireTime(), size);
                 valueTimeoutQueue.add(timeoutEntry);
             }
 
-            //check if any conditions are waiting for a match - if they are then release them with signal all
-            checkForMatch(value);
+            //wake the waiters whose templates match
+            checkForMatch(value, txnId != null);
 
 
         }
         finally {
             lockForPut.unlock();
+            fireEvicted();
+        }
+        if (txnId == null) {
+            notifications.fire(value, matcher);
+        }
+    }
+
+    /**
+     * Puts outside a transaction without the calling thread waiting for the log. The put itself is done by the calling
+     * thread, which may block if the collection is full and its capacity policy is {@link CapacityPolicy#BLOCK}.
+     *
+     * @param value   the value to be stored
+     * @param timeOut the time period after which the value  is removed
+     * @param unit    the time unit that the timeOut value refers to
+     * @return a future completed with the value once it is durable, or with a {@link CapacityExceededException}
+     */
+    public CompletableFuture<V> putAsync(final V value, final long timeOut, final TimeUnit unit) {
+        final CompletableFuture<V> future = new CompletableFuture<V>();
+        try {
+            doPut(value, timeOut, unit, null);
+        } catch (final CapacityExceededException e) {
+            future.completeExceptionally(e);
+            return future;
+        } catch (final TransactionException e) {
+            //a null txnId will not cause an exception
         }
+        if (log == null) {
+            future.complete(value);
+        } else {
+            complete(future, value, true);
+        }
+        return future;
+    }
+
+    /**
+     * Puts all of the supplied values into the map in one operation. The put lock is taken once and the waiters are
+     * woken once for the whole collection.
+     *
+     * @param values  the values to be stored
+     * @param timeOut the time period after which each value is removed
+     * @param unit    the time unit that the timeOut value refers to
+     * @param txnId   the transaction, may  be null
+     * @throws TransactionException possible transaction exception
+     */
+    public void putAll(final Collection<V> values, final long timeOut, final TimeUnit unit, final TransactionID txnId) throws TransactionException {
+        final long[] sizes = new long[values.size()];
+        long total = 0;
+        if (txnId == null) {
+            int i = 0;
+            for (final V value : values) {
+                sizes[i] = sizeOf(value);
+                total += sizes[i++];
+            }
+        }
+        lockForPut.lock();
+        try {
+
+            final Transaction<V> txn = txnId == null ? null : txnMgr.getTransaction(txnId);
+            final List<TimeoutEntry<V>> entries = new ArrayList<TimeoutEntry<V>>(values.size());
+            for (final V value : values) {
+                entries.add(new TimeoutEntry<V>(value, timeOut, unit));
+            }
+            if (txn == null) {
+                makeRoom(values.size(), total);
+                //logged as one record before any is added, so a value that cannot be logged leaves the rest out too
+                if (log != null) {
+                    log.putAll(entries);
+                }
+            }
+            int i = 0;
+            for (final TimeoutEntry<V> timeoutEntry : entries) {
+                if (txn != null) {
+                    txn.addValueToValues(timeoutEntry);
+                } else {
+                    primaryCollection.add(timeoutEntry.getItem(), 0, timeoutEntry.getExpireTime(), sizes[i++]);
+                    valueTimeoutQueue.add(timeoutEntry);
+                }
+            }
 
+            //wake the waiters whose templates match
+            lockForGet.lock();
+            try {
+                if (txn != null) {
+                    waiters.wakeAll();
+                } else {
+                    for (final V value : values) {
+                        waiters.offer(value, matcher);
+                    }
+                }
+                serviceAsync();
+            }
+            finally {
+                lockForGet.unlock();
+            }
+        }
+        finally {
+            lockForPut.unlock();
+            fireEvicted();
+        }
+        if (txnId == null) {
+            for (final V value : values) {
+                notifications.fire(value, matcher);
+            }
+            syncLog();
+        }
     }
 
     /**
@@ -330,7 +719,31 @@ public class TimeoutCollection<V> {
 
     public V take(final V template, final long timeOut, final TimeUnit unit, final TransactionID txnId) throws TransactionException {
 
-        return waitForMatch(template, timeOut, unit, true, txnId);
+        return take(template, timeOut, unit, txnId, null);
+    }
+
+    /**
+     * As {@link #take(Object, long, TimeUnit, TransactionID)}, but the attempt is given up, and null returned, once
+     * the supplied condition holds. The condition is checked before each try and so whenever the waiter is woken,
+     * see {@link #wakeWaiters()}.
+     *
+     * @param template the template to try and match against
+     * @param timeOut  the time period after which the match attempt is aborted
+     * @param unit     the time unit that the timeOut value refers to
+     * @param txnId    the transaction, may be null
+     * @param giveUp   the condition, null for none
+     * @return an entry that matches the template or null
+     * @throws TransactionException possible transaction exception
+     */
+    public V take(final V template, final long timeOut, final TimeUnit unit, final TransactionID txnId,
+                  final BooleanSupplier giveUp) throws TransactionException {
+
+        checkTimeout(timeOut);
+        final V matchedValue = waitForMatch(template, timeOut, unit, true, txnId, giveUp);
+        if (matchedValue != null && txnId == null) {
+            syncLog();
+        }
+        return matchedValue;
 
 
     }
@@ -349,47 +762,305 @@ public class TimeoutCollection<V> {
      */
     public V read(final V template, final long timeOut, final TimeUnit unit, final TransactionID txn) throws TransactionException {
 
-        return waitForMatch(template, timeOut, unit, false, txn);
+        return read(template, timeOut, unit, txn, null);
     }
 
     /**
-     * A non-blocking read that attempts to match immediately using the supplied template.
+     * As {@link #read(Object, long, TimeUnit, TransactionID)}, but the attempt is given up, and null returned, once
+     * the supplied condition holds, see {@link #take(Object, long, TimeUnit, TransactionID, BooleanSupplier)}.
      *
      * @param template the template to try and match against
-     * @param txnId    the transaction, may be null
+     * @param timeOut  the time period after which the match attempt is aborted
+     * @param unit     the time unit that the timeOut value refers to
+     * @param txn      the transaction, may be null
+     * @param giveUp   the condition, null for none
      * @return an entry that matches the template or null
      * @throws TransactionException possible transaction exception
      */
-    public V readIfExists(final V template, final TransactionID txnId) throws TransactionException {
+    public V read(final V template, final long timeOut, final TimeUnit unit, final TransactionID txn,
+                  final BooleanSupplier giveUp) throws TransactionException {
+
+        checkTimeout(timeOut);
+        if (txn == null) {
+            //try without locking before waiting
+            final V matchedValue = getMatch(template);
+            if (matchedValue != null) {
+                used(matchedValue);
+                return matchedValue;
+            }
+        }
+        return waitForMatch(template, timeOut, unit, false, txn, giveUp);
+    }
+
+    /**
+     * Wakes every blocked take and read, so that they check again whether to give up. Those that do not give up try
+     * once more to match and then carry on waiting.
+     */
+    public void wakeWaiters() {
         lockForGet.lock();
-        V matchedValue;
         try {
-            if (txnId == null) {  //read outside txn
-                //its a read  with no txn - its not being removed so txnMgr permission is not reqd.
-
-                return getMatch(template, primaryCollection);
-
-            } else {
-                //its a read in a transaction
-                /*
-                    The search space is the primary collection and the values in the txn.
-                    If its matched in the primary space then it must be marked as read.
-                */
-                final Transaction<V> txn = txnMgr.getTransaction(txnId);
-                matchedValue = getMatch(template, primaryCollection);
-                if (matchedValue != null) {
+            waiters.wakeAll();
+            serviceAsync();
+        }
+        finally {
+            lockForGet.unlock();
+        }
+    }
 
-                    txn.addValueToRead(matchedValue);
+    /**
+     * Takes a value that matches the template, outside a transaction, without blocking the calling thread. If there is
+     * no match now the attempt is registered, like a blocked take, and the future is completed on the default pool of
+     * CompletableFuture once a put brings a match or the attempt times out. Cancelling the future, before it has been
+     * completed, gives the attempt up.
+     *
+     * @param template the template to try and match against
+     * @param timeOut  the time period after which the match attempt is aborted
+     * @param unit     the time unit that the timeOut value refers to
+     * @return a future completed with the matching value, or with null if the attempt times out
+     */
+    public CompletableFuture<V> takeAsync(final V template, final long timeOut, final TimeUnit unit) {
+        return matchAsync(template, timeOut, unit, true);
+    }
 
-                } else {
+    /**
+     * Reads a value that matches the template, outside a transaction, without blocking the calling thread. See
+     * {@link #takeAsync(Object, long, TimeUnit)}.
+     *
+     * @param template the template to try and match against
+     * @param timeOut  the time period after which the match attempt is aborted
+     * @param unit     the time unit that the timeOut value refers to
+     * @return a future completed with the matching value, or with null if the attempt times out
+     */
+    public CompletableFuture<V> readAsync(final V template, final long timeOut, final TimeUnit unit) {
+        return matchAsync(template, timeOut, unit, false);
+    }
 
-                    //failed to match in main so look in txn values
-                    matchedValue = getMatch(template, txn.getValues());
+    /**
+     * Registers a listener for the values put into the collection that match the template. The template is matched
+     * once per put, and only against the values that could match it, see {@link NotifyRegistry}, so a put does not
+     * call the listeners of the templates that do not match. Values put under a transaction are matched when it
+     * commits. The registration ends when its lease expires or is cancelled.
+     *
+     * @param template the template to match against
+     * @param listener the listener
+     * @param lease    the duration of the lease, {@link Lease#FOREVER} for no expiry
+     * @param unit     the time unit that the lease refers to
+     * @return the lease
+     */
+    public Lease notify(final V template, final NotifyListener<? super V> listener, final long lease, final TimeUnit unit) {
+        if (lease <= 0) {
+            throw new IllegalArgumentException("The lease must be positive");
+        }
+        return notifications.register(template, listener, lease, unit);
+    }
+
+    /**
+     * @return the number of notify registrations whose leases have not ended
+     */
+    public int notifyCount() {
+        return notifications.size();
+    }
+
+    /**
+     * Takes up to max values that match the template, holding the get lock throughout. The take waits, for up to the
+     * timeout, for the first match and then takes whatever else matches without waiting.
+     *
+     * @param template the template to try and match against
+     * @param max      the most values to take
+     * @param timeOut  the time period after which the attempt to match the first value is aborted, zero to not wait
+     * @param unit     the time unit that the timeOut value refers to
+     * @param txnId    the transaction, may be null
+     * @return the matching values, empty if there were none
+     * @throws TransactionException possible transaction exception
+     */
+    public List<V> takeAll(final V template, final int max, final long timeOut, final TimeUnit unit, final TransactionID txnId) throws TransactionException {
+
+        final List<V> taken = new ArrayList<V>();
+        if (max <= 0) {
+            return taken;
+        }
+        lockForGet.lock();
+        try {
+            V matchedValue = waitForMatch(template, timeOut, unit, true, txnId, null);
+            while (matchedValue != null) {
+                taken.add(matchedValue);
+                if (taken.size() == max) {
+                    break;
                 }
-                return matchedValue;
+                matchedValue = waitForMatch(template, 0, TimeUnit.NANOSECONDS, true, txnId, null);
+            }
+        }
+        finally {
+            lockForGet.unlock();
+        }
+        if (!taken.isEmpty() && txnId == null) {
+            syncLog();
+        }
+        return taken;
+    }
+
+    /**
+     * A non-blocking read of up to max values that match the template. Like {@link #readIfExists} outside a
+     * transaction, it does not lock.
+     *
+     * @param template the template to try and match against
+     * @param max      the most values to read
+     * @return the matching values, empty if there were none
+     */
+    public List<V> readAll(final V template, final int max) {
 
+        final List<V> read = new ArrayList<V>();
+        final Matcher<V> matcher = this.matcher;
+        for (final V value : candidates(template, matcher)) {
+            if (read.size() >= max) {
+                break;
+            }
+            if (template instanceof MatchAllTuplesTemplate || matcher.match(value, template)) {
+                read.add(value);
+                used(value);
             }
         }
+        return read;
+    }
+
+    /**
+     * Counts the values that match the template, without locking and without copying them. Like {@link #size()} the
+     * result may be stale as soon as it is returned.
+     *
+     * @param template the template to match against
+     * @return the number of matching values
+     */
+    public int count(final V template) {
+
+        if (template instanceof MatchAllTuplesTemplate) {
+            return primaryCollection.size();
+        }
+        int count = 0;
+        final Matcher<V> matcher = this.matcher;
+        for (final V value : primaryCollection.candidates(template, matcher instanceof TypeRespectingMatcher)) {
+            if (matcher.match(value, template)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Whether there is a value that matches the template, without locking. The search stops at the first match.
+     *
+     * @param template the template to match against
+     * @return true if a value matches
+     */
+    public boolean exists(final V template) {
+
+        return getMatch(template) != null;
+    }
+
+    /**
+     * Iterates over the values that match the template without locking and without copying them. The iteration is
+     * weakly consistent: each value is returned at most once, values added or removed after the iterator was created
+     * may or may not be returned, and it never throws a ConcurrentModificationException.
+     *
+     * @param template the template to match against
+     * @return an iterator over the matching values, it does not support remove
+     */
+    public Iterator<V> scan(final V template) {
+
+        final Matcher<V> matcher = this.matcher;
+        final Iterator<V> candidates = primaryCollection.candidates(template, matcher instanceof TypeRespectingMatcher).iterator();
+        return new Iterator<V>() {
+
+            private V next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && candidates.hasNext()) {
+                    final V value = candidates.next();
+                    if (template instanceof MatchAllTuplesTemplate || matcher.match(value, template)) {
+                        next = value;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public V next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final V value = next;
+                next = null;
+                return value;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * A non-blocking take that attempts to match immediately using the supplied template. If a match does occur the
+     * matching entry is removed from the map prior to being returned.
+     *
+     * @param template the template to try and match against
+     * @param txnId    the transaction, may be null
+     * @return an entry that matches the template or null
+     * @throws TransactionException possible transaction exception
+     */
+    public V takeIfExists(final V template, final TransactionID txnId) throws TransactionException {
+
+        final V matchedValue = waitForMatch(template, 0, TimeUnit.NANOSECONDS, true, txnId, null);
+        if (matchedValue != null && txnId == null) {
+            syncLog();
+        }
+        return matchedValue;
+    }
+
+    /**
+     * A non-blocking read that attempts to match immediately using the supplied template. Outside a transaction the
+     * read does not lock, so it does not contend with puts and takes, and sees the collection as it was at some
+     * instant during the call.
+     *
+     * @param template the template to try and match against
+     * @param txnId    the transaction, may be null
+     * @return an entry that matches the template or null
+     * @throws TransactionException possible transaction exception
+     */
+    public V readIfExists(final V template, final TransactionID txnId) throws TransactionException {
+        if (txnId == null) {  //read outside txn
+            //its a read  with no txn - its not being removed so txnMgr permission is not reqd, nor is the lock.
+
+            final V matchedValue = getMatch(template);
+            if (matchedValue != null) {
+                used(matchedValue);
+            }
+            return matchedValue;
+
+        }
+        lockForGet.lock();
+        V matchedValue;
+        try {
+            //its a read in a transaction
+            /*
+                The search space is the primary collection and the values in the txn.
+                If its matched in the primary space then it must be marked as read.
+            */
+            final Transaction<V> txn = txnMgr.getTransaction(txnId);
+            matchedValue = getMatch(template);
+            if (matchedValue != null) {
+
+                txn.addValueToRead(matchedValue);
+                used(matchedValue);
+
+            } else {
+
+                //failed to match in main so look in txn values
+                matchedValue = getMatch(template, txn.getValues());
+            }
+            return matchedValue;
+        }
         finally {
             lockForGet.unlock();
         }
@@ -400,7 +1071,7 @@ public class TimeoutCollection<V> {
      *
      * @return the size of the collection at the instant that this method is called
      */
-    public synchronized int size() {
+    public int size() {
 
         return primaryCollection.size();
 
@@ -412,97 +1083,125 @@ public class TimeoutCollection<V> {
      *
      * @return the size of the template queue at the instant that this method is called
      */
-    public synchronized int templateQueueSize() {
-
-        return templateList.size();
+    public int templateQueueSize() {
+        lockForGet.lock();
+        try {
+            return waiters.size();
+        }
+        finally {
+            lockForGet.unlock();
+        }
     }
 
     /**
+     * Takes a snapshot without locking, see {@link BucketedCollection#values()}.
      *
-     * @return   a list of all tuples at the instance of invocation
+     * @return   a new list of all tuples at the instance of invocation
      */
-    public synchronized List<V> listAllValues() {
+    public List<V> listAllValues() {
 
-        return primaryCollection;
+        return primaryCollection.values();
     }
 
     /**
      * Clear.
      */
-    public synchronized void clear() {
+    public void clear() {
+
+        lockForClear.lock();
+        try {
+            clearAll();
+        }
+        finally {
+            lockForClear.unlock();
+        }
+    }
+
+    /**
+     * Clears, holding lockForClear.
+     */
+    private void clearAll() {
 
-        valueTimeoutQueueConsumer.clear();
         valueTimeoutQueue.clear();
 
         //there may be match attempts still hanging  so release them.
         lockForGet.lock();
         try {
 
-            for (final Condition con : conditionQueue.toEntryList()) {
-                con.signalAll();
-
+            for (final Waiter<V> waiter : waiters.all()) {
+                waiter.cancelled = true;
+                if (waiter.isAsync()) {
+                    waiter.finished = true;
+                    if (waiter.timeout != null) {
+                        waiter.timeout.cancel();
+                    }
+                    complete(waiter.future, null, false);
+                } else {
+                    waiter.condition.signal();
+                }
             }
-            conditionQueue.clear();
+            waiters.clear();
         }
         finally {
             lockForGet.unlock();
         }
 
-        templateList.clear();
         primaryCollection.clear();
+        roomMade();
 
         if (valueConsumerQueue != null) {
             valueConsumerQueue.clear();
         }
 
+        if (log != null) {
+            log.purge();
+            syncLog();
+        }
+
 
     }
 
     /**
      * @param template the template
-     * @param timeOut  the timeout
+     * @param timeOut  the timeout, zero to try just once
      * @param timeUnit the timeUnit
      * @param isTake   read or write flag
      * @param txnId    transaction id - may be null
+     * @param giveUp   ends the attempt once it holds, may be null
      * @return a matched value - note that it may never return
      * @throws TransactionException possible  transaction exception
      */
-    private V waitForMatch(final V template, final long timeOut, final TimeUnit timeUnit, final boolean isTake, final TransactionID txnId) throws TransactionException {
+    private V waitForMatch(final V template, final long timeOut, final TimeUnit timeUnit, final boolean isTake,
+                           final TransactionID txnId, final BooleanSupplier giveUp) throws TransactionException {
 
         lockForGet.lock();
         try {
 
+            //register the attempt so that puts of matching values wake it. The waiter is 'global' ie its for a match here or in a txn
+            final Waiter<V> waiter = new Waiter<V>(template, isTake, lockForGet.newCondition());
+            waiters.add(waiter, matcher instanceof TypeRespectingMatcher);
 
-            templateList.add(template);
-
-            //make a condition for this attempt at matching. The condition is 'global' ie its for a match here or in a txn
-            final Condition condition = lockForGet.newCondition();
-            conditionQueue.add(condition, timeOut, timeUnit);
+            //an effectively eternal timeout is waited for without a deadline
+            final boolean eternal = timeUnit.toDays(timeOut) >= TimeUnit.NANOSECONDS.toDays(Long.MAX_VALUE);
+            long nanosLeft = eternal ? Long.MAX_VALUE : timeUnit.toNanos(timeOut);
 
-            //while the condition exists
+            //the last value offered to this waiter
+            V offered = null;
             V matchedValue = null;
-            while (conditionQueue.contains(condition)) {
+            while (!waiter.cancelled && (giveUp == null || !giveUp.getAsBoolean())) {
 
+                if (waiter.offered != null) {
+                    offered = waiter.offered;
+                    waiter.offered = null;
+                }
                 try {
                     if (txnId == null) {
 
-                        if (isTake) {   //its a get without a txn - but do need txnMgr permission to get it
-                            matchedValue = getMatch(template, primaryCollection);
-                            if (matchedValue != null && txnMgr.isAvailable(matchedValue)) { //want to remove it - has it been read under any  txn?
-                                primaryCollection.remove(matchedValue);
-                                valueTimeoutQueue.remove(matchedValue);
-                                break;
-                            }
-                            matchedValue = null;
-                        } else {    //its a read  with no txn - its not being removed so txnMgr permission is not reqd.
-
-                            matchedValue = getMatch(template, primaryCollection);
-                            if (matchedValue != null) {
-                                break;
-                            }
+                        matchedValue = matchNow(waiter);
+                        if (matchedValue != null) {
+                            break;
                         }
 
-
                     } else {  //in a transaction
                         final Transaction<V> txn = txnMgr.getTransaction(txnId);
                         if (isTake) {   //a get in a transaction
@@ -515,13 +1214,15 @@ public class TimeoutCollection<V> {
                             matchedValue = getMatch(template, txn.getValues());
                             if (matchedValue != null) {
                                 //ok, remove it from the txn
-                                txn.getValues().remove(matchedValue);
+                                txn.removeValue(matchedValue);
                                 break;
                             } else {  //failed to match in the txn so look in the primary collection
 
-                                matchedValue = getMatch(template, primaryCollection);
-                                if (matchedValue != null && txnMgr.isAvailable(matchedValue, txn)) {
-                                    primaryCollection.remove(matchedValue);
+                                matchedValue = getMatch(template, waiter);
+                                if (matchedValue != null && !txnMgr.isAvailable(matchedValue, txn)) {
+                                    //it cannot be had for now so do not hold it for this taker
+                                    waiters.release(waiter);
+                                } else if (matchedValue != null) {
 
                                     /*
                                      How to handle timeouts when a get is done under a txn. If we do not call
@@ -539,9 +1240,16 @@ public class TimeoutCollection<V> {
                                      check if a TimeoutEntry is allowed to go back into the queue and only then will the value be committed
 
                                      */
-                                    //*** This smells!. Soemtimes - but very rarely -  this timeoutEntry is null, the remove(...) method
-                                    //is hacked to cover the error. But need to get to the root of why this happens.
+                                    //there is no entry if the value is timing out, or is still being put, so look again
                                     final TimeoutEntry<V> timeoutEntry = valueTimeoutQueue.remove(matchedValue);
+                                    if (timeoutEntry == null) {
+                                        matchedValue = null;
+                                        continue;
+                                    }
+                                    //remember where it was in case the txn is aborted
+                                    timeoutEntry.setSequence(primaryCollection.sequenceOf(matchedValue));
+                                    primaryCollection.remove(matchedValue);
+                                    roomMade();
 
                                     txn.addValueToTaken(timeoutEntry);
                                     txn.getValuesRead().remove(matchedValue);//not sure if need to do this
@@ -554,9 +1262,10 @@ public class TimeoutCollection<V> {
                            The search space is the primary collection and the values in the txn.
                            If its matched in the primary space then it must be marked as read
                             */
-                            matchedValue = getMatch(template, primaryCollection);
+                            matchedValue = getMatch(template);
                             if (matchedValue != null) {
                                 txn.addValueToRead(matchedValue);
+                                used(matchedValue);
                                 break;
                             } else {
 
@@ -572,17 +1281,38 @@ public class TimeoutCollection<V> {
 
                     }
                     //keep waiting
-                    condition.await();
+                    matchedValue = null;
+                    if (eternal) {
+                        waiter.condition.await();
+                    } else if (nanosLeft > 0) {
+                        nanosLeft = waiter.condition.awaitNanos(nanosLeft);
+                    } else {
+                        break;  //timed out
+                    }
 
 
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
+                    break;
                 }
             }
 
-            //if we get here then we've matched or timedout, either way the template must be removed.
-            templateList.remove(template);
+            //if we get here then we've matched, timed out or been cancelled, either way the waiter must be removed.
+            waiters.remove(waiter);
 
+            /*
+            A taker that was offered a value but did not take it, because it took something else or gave up, passes the
+            value on as other takers may be waiting for it.
+             */
+            if (isTake) {
+                if (waiter.offered != null) {
+                    offered = waiter.offered;
+                }
+                if (offered != null && offered != matchedValue && primaryCollection.contains(offered)) {
+                    waiters.offer(offered, matcher);
+                    serviceAsync();
+                }
+            }
 
             return matchedValue;
         }
@@ -594,45 +1324,460 @@ public class TimeoutCollection<V> {
 
 
     /**
-     * Thread termination flag
+     * Tries once to match for a waiter outside a transaction, taking the match if the waiter is a taker. Must be called
+     * holding lockForGet.
      *
-     * @param state the new value
+     * @param waiter the waiter
+     * @return the match, null if none
      */
-    private synchronized void setKeepGoing(boolean state) {
-        keepGoing = state;
+    private V matchNow(final Waiter<V> waiter) {
+
+        if (!waiter.isTake) {
+            //its a read  with no txn - its not being removed so txnMgr permission is not reqd.
+            final V matchedValue = getMatch(waiter.template);
+            if (matchedValue != null) {
+                used(matchedValue);
+            }
+            return matchedValue;
+        }
+        //its a get without a txn - but do need txnMgr permission to get it
+        while (true) {
+            final V matchedValue = getMatch(waiter.template, waiter);
+            if (matchedValue == null) {
+                return null;
+            }
+            if (!txnMgr.isAvailable(matchedValue)) { //want to remove it - has it been read under any  txn?
+                //it cannot be had for now so do not hold it for this taker
+                waiters.release(waiter);
+                return null;
+            }
+            //whoever takes the value off the timeout queue owns it
+            if (valueTimeoutQueue.remove(matchedValue) != null) {
+                primaryCollection.remove(matchedValue);
+                roomMade();
+                if (log != null) {
+                    log.take(matchedValue);
+                }
+                return matchedValue;
+            }
+            //it is timing out, or is still being put, so look again
+        }
     }
 
     /**
-     * @return true if the    keyTimeoutReader is to continue reading
+     * Registers an asynchronous take or read, unless it can be matched straight away.
+     *
+     * @param template the template to try and match against
+     * @param timeOut  the time period after which the match attempt is aborted
+     * @param unit     the time unit that the timeOut value refers to
+     * @param isTake   true for a take, false for a read
+     * @return the future of the attempt
      */
-    private synchronized boolean isKeepGoing() {
-        return keepGoing;
+    private CompletableFuture<V> matchAsync(final V template, final long timeOut, final TimeUnit unit, final boolean isTake) {
+
+        checkTimeout(timeOut);
+        final PendingMatch future = new PendingMatch();
+        final V matchedValue;
+        lockForGet.lock();
+        try {
+            final Waiter<V> waiter = new Waiter<V>(template, isTake, future);
+            future.waiter = waiter;
+            matchedValue = matchNow(waiter);
+            if (matchedValue == null) {
+                waiters.add(waiter, matcher instanceof TypeRespectingMatcher);
+                //an effectively eternal timeout is waited for without a deadline
+                if (unit.toDays(timeOut) < TimeUnit.NANOSECONDS.toDays(Long.MAX_VALUE)) {
+                    waiter.timeout = TimingWheel.getDefault().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            //the wheel's thread must not wait for the lock
+                            dispatcher.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (giveUp(waiter)) {
+                                        completeAsync(waiter.future, null);
+                                    }
+                                }
+                            });
+                        }
+                    }, timeOut, unit);
+                }
+                return future;
+            }
+            waiter.finished = true;
+        }
+        finally {
+            lockForGet.unlock();
+        }
+        if (isTake) {
+            syncLog();
+        }
+        future.complete(matchedValue);
+        return future;
     }
 
+    /**
+     * Tries to match the asynchronous waiters that have been offered a value, or woken, since they were last tried.
+     * Must be called holding lockForGet, after offering values to the waiters.
+     */
+    private void serviceAsync() {
+
+        if (servicing) {
+            //the waiters pending now will be seen by the call further up
+            return;
+        }
+        servicing = true;
+        try {
+            Waiter<V> waiter;
+            while ((waiter = waiters.nextPending()) != null) {
+                final V offered = waiter.offered;
+                waiter.offered = null;
+                final V matchedValue = matchNow(waiter);
+                if (matchedValue == null) {
+                    //it stays registered
+                    continue;
+                }
+                waiter.finished = true;
+                waiters.remove(waiter);
+                if (waiter.timeout != null) {
+                    waiter.timeout.cancel();
+                }
+                complete(waiter.future, matchedValue, waiter.isTake);
+
+                //as for a blocked taker, an offered value that was not taken is passed on
+                if (waiter.isTake && offered != null && offered != matchedValue && primaryCollection.contains(offered)) {
+                    waiters.offer(offered, matcher);
+                }
+            }
+        }
+        finally {
+            servicing = false;
+        }
+    }
 
     /**
-     * Checks to see if any templates match the supplied value.
+     * Gives up an asynchronous attempt that has timed out or been cancelled, passing on the value reserved for it.
      *
-     * @param value the value to try and match against
+     * @param waiter the waiter
+     * @return true if the attempt had not already finished
      */
-    private void checkForMatch(final V value) {
+    private boolean giveUp(final Waiter<V> waiter) {
+        lockForGet.lock();
+        try {
+            if (waiter.finished) {
+                return false;
+            }
+            waiter.finished = true;
+            final V offered = waiter.offered != null ? waiter.offered : waiter.reserved;
+            waiters.remove(waiter);
+            if (waiter.timeout != null) {
+                waiter.timeout.cancel();
+            }
+            if (waiter.isTake && offered != null && primaryCollection.contains(offered)) {
+                waiters.offer(offered, matcher);
+                serviceAsync();
+            }
+            return true;
+        }
+        finally {
+            lockForGet.unlock();
+        }
+    }
 
-        for (final V template : templateList) {
-            if (matcher.match(value, template)) {
+    /**
+     * Completes a future without the calling thread running its callbacks, once what has been logged is durable if
+     * the value has been taken or put. The wait for the log is done by the dispatcher.
+     *
+     * @param future  the future
+     * @param value   the value to complete it with
+     * @param changed true if the value has been taken or put
+     */
+    private void complete(final CompletableFuture<V> future, final V value, final boolean changed) {
+        if (!changed || log == null) {
+            completeAsync(future, value);
+            return;
+        }
+        dispatcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                syncLog();
+                completeAsync(future, value);
+            }
+        });
+    }
 
-                lockForGet.lock();
-                try {
+    /**
+     * Completes a future on the default pool of CompletableFuture, as its callbacks may block or wait for other
+     * futures.
+     *
+     * @param future the future
+     * @param value  the value to complete it with
+     */
+    private static <V> void completeAsync(final CompletableFuture<V> future, final V value) {
+        CompletableFuture.runAsync(new Runnable() {
+            @Override
+            public void run() {
+                future.complete(value);
+            }
+        });
+    }
 
-                    for (final Condition con : conditionQueue.toEntryList()) {
-                        con.signalAll();
-                    }
+    /**
+     * The future of an asynchronous take or read. Cancelling it gives the attempt up, but only if it has not already
+     * matched, so that a taken value is never lost.
+     */
+    private final class PendingMatch extends CompletableFuture<V> {
+
+        private Waiter<V> waiter;
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            return giveUp(waiter) && super.cancel(mayInterruptIfRunning);
+        }
+    }
+
+    /**
+     * Makes room for values about to be put outside a transaction, as the capacity policy says. Must be called holding
+     * lockForPut just once, it is let go whilst waiting for room.
+     *
+     * @param count the number of values
+     * @param bytes their total estimated size
+     * @throws CapacityExceededException if room cannot be made
+     */
+    private void makeRoom(final int count, final long bytes) {
+
+        if (maxCount == Integer.MAX_VALUE && maxBytes == Long.MAX_VALUE) {
+            return;
+        }
+        if (count > maxCount || bytes > maxBytes) {
+            throw new CapacityExceededException("The values are too big for the capacity of the collection");
+        }
+        long nanosLeft = capacityTimeoutNanos;
+        while (!hasRoom(count, bytes)) {
+            final CapacityPolicy policy = capacityPolicy;
+            if (policy == CapacityPolicy.REJECT) {
+                throw new CapacityExceededException("The collection is full");
+            }
+            if (policy.isEviction()) {
+                if (!evict()) {
+                    throw new CapacityExceededException("The collection is full and nothing in it can be evicted");
+                }
+                continue;
+            }
+            if (nanosLeft <= 0) {
+                throw new CapacityExceededException("Timed out waiting for room in the collection");
+            }
+            lockForPut.unlock();
+            try {
+                nanosLeft = awaitRoom(count, bytes, nanosLeft);
+            }
+            finally {
+                lockForPut.lock();
+            }
+        }
+    }
+
+    /**
+     * @param count the number of values
+     * @param bytes their total estimated size
+     * @return true if the values fit without going over the capacity
+     */
+    private boolean hasRoom(final int count, final long bytes) {
+        return primaryCollection.size() <= maxCount - count && primaryCollection.bytes() <= maxBytes - bytes;
+    }
+
+    /**
+     * Waits for takes or timeouts to make room, without holding lockForPut.
+     *
+     * @param count     the number of values
+     * @param bytes     their total estimated size
+     * @param nanosLeft the most time to wait, Long.MAX_VALUE for no limit
+     * @return the time left
+     */
+    private long awaitRoom(final int count, final long bytes, long nanosLeft) {
+        lockForRoom.lock();
+        blockedPuts.incrementAndGet();
+        try {
+            while (!hasRoom(count, bytes) && nanosLeft > 0) {
+                if (nanosLeft == Long.MAX_VALUE) {
+                    roomMade.await();
+                } else {
+                    nanosLeft = roomMade.awaitNanos(nanosLeft);
                 }
-                finally {
-                    lockForGet.unlock();
+            }
+            return nanosLeft;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CapacityExceededException("Interrupted waiting for room in the collection");
+        }
+        finally {
+            blockedPuts.decrementAndGet();
+            lockForRoom.unlock();
+        }
+    }
+
+    /**
+     * Wakes the puts waiting for room, if there are any. Called after values are removed.
+     */
+    private void roomMade() {
+        if (blockedPuts.get() > 0) {
+            lockForRoom.lock();
+            try {
+                roomMade.signalAll();
+            }
+            finally {
+                lockForRoom.unlock();
+            }
+        }
+    }
+
+    /**
+     * Evicts values until the collection is within its capacity, if the policy evicts. Must be called holding
+     * lockForPut.
+     */
+    private void evictToCapacity() {
+        if (capacityPolicy.isEviction()) {
+            while (!hasRoom(0, 0) && evict()) {
+                //keep going
+            }
+        }
+    }
+
+    /**
+     * Evicts the first value, in the order given by the capacity policy, that is not held by a transaction. Must be
+     * called holding lockForPut.
+     *
+     * @return true if a value was evicted
+     */
+    private boolean evict() {
+        lockForGet.lock();
+        try {
+            for (final V value : primaryCollection.evictionCandidates()) {
+                //whoever takes the value off the timeout queue owns it
+                if (txnMgr.isAvailable(value) && valueTimeoutQueue.remove(value) != null) {
+                    primaryCollection.remove(value);
+                    if (log != null) {
+                        log.take(value);
+                    }
+                    evicted.add(value);
+                    return true;
                 }
-                return;
             }
+            return false;
+        }
+        finally {
+            lockForGet.unlock();
+        }
+    }
+
+    /**
+     * Passes the values evicted so far to the eviction listener. Called without holding lockForPut or lockForGet, so
+     * that the listener may use the collection.
+     */
+    private void fireEvicted() {
+        V value;
+        while ((value = evicted.poll()) != null) {
+            final EvictionListener<? super V> listener = evictionListener;
+            if (listener != null) {
+                listener.evicted(value);
+            }
+        }
+    }
+
+    /**
+     * @param value a value
+     * @return its estimated size, 0 if there is no limit in bytes
+     */
+    private long sizeOf(final V value) {
+        final SizeEstimator<? super V> estimator = sizeEstimator;
+        return maxBytes == Long.MAX_VALUE || estimator == null ? 0 : estimator.sizeOf(value);
+    }
+
+    /**
+     * Notes that a value has been read, if values are evicted least recently used first.
+     *
+     * @param value the value
+     */
+    private void used(final V value) {
+        if (capacityPolicy == CapacityPolicy.EVICT_LEAST_RECENTLY_USED) {
+            primaryCollection.used(value);
+        }
+    }
+
+    /**
+     * @param timeOut a timeout for take or read
+     */
+    private static void checkTimeout(final long timeOut) {
+        if (timeOut == 0) {
+            throw new IllegalArgumentException("Timeout of zero is not allowed");
+        }
+    }
+
+    /**
+     * Wakes the waiters whose templates match the supplied value. A value put under a transaction is only visible to
+     * the waiters in that transaction, which are not known here, so all waiters are woken.
+     *
+     * @param value        the value to try and match against
+     * @param inTransaction true if the value was put under a transaction
+     */
+    private void checkForMatch(final V value, final boolean inTransaction) {
+
+        lockForGet.lock();
+        try {
+            if (inTransaction) {
+                waiters.wakeAll();
+            } else {
+                waiters.offer(value, matcher);
+            }
+            serviceAsync();
+        }
+        finally {
+            lockForGet.unlock();
+        }
+    }
+
+    /**
+     * Gets a match from the primary collection. Only the values that could possibly match, as determined by the
+     * template's type, are compared with the template.
+     *
+     * @param template the template to try and match against
+     * @return an entry that matches the template or null
+     */
+    private V getMatch(final V template) {
+
+        final Matcher<V> matcher = this.matcher;
+        return getMatch(template, candidates(template, matcher), matcher, null);
+    }
+
+    /**
+     * Gets a match for a taker from the primary collection. The value reserved for the taker, if any, is the match,
+     * and values reserved for other takers are passed over. Must be called holding lockForGet.
+     *
+     * @param template the template to try and match against
+     * @param taker    the taker
+     * @return an entry that matches the template or null
+     */
+    private V getMatch(final V template, final Waiter<V> taker) {
+
+        final V reserved = taker.reserved;
+        if (reserved != null) {
+            if (primaryCollection.contains(reserved)) {
+                return reserved;
+            }
+            //it has timed out
+            waiters.release(taker);
         }
+        final Matcher<V> matcher = this.matcher;
+        return getMatch(template, candidates(template, matcher), matcher, taker);
+    }
+
+    /**
+     * @param template the template
+     * @param matcher  the matcher
+     * @return the values that could match the template, in the order given by the ordering
+     */
+    private Iterable<V> candidates(final V template, final Matcher<V> matcher) {
+        return primaryCollection.candidates(template, matcher instanceof TypeRespectingMatcher, ordering);
     }
 
     /**
@@ -643,9 +1788,24 @@ public class TimeoutCollection<V> {
      * @return an entry that matches the template or null
      */
 
-    private V getMatch(final V template, final Collection<V> values) {
+    private V getMatch(final V template, final Iterable<V> values) {
+
+        return getMatch(template, values, matcher, null);
+    }
+
+    /**
+     * @param template the template to try and match against
+     * @param values   the collection of values to use as a matching space
+     * @param matcher  the matcher
+     * @param taker    the taker the match is for, whose values reserved for other takers are passed over, or null
+     * @return an entry that matches the template or null
+     */
+    private V getMatch(final V template, final Iterable<V> values, final Matcher<V> matcher, final Waiter<V> taker) {
 
         for (V value : values) {
+            if (taker != null && waiters.isReservedForAnother(value, taker)) {
+                continue;
+            }
             //the MatchAllTuplesTemplate guarantees a match so return the first
             if (template instanceof MatchAllTuplesTemplate) {
 
@@ -46,6 +46,11 @@ public class TimeoutEntry<T> implements Delayed, Serializable {
      */
     private boolean eternal = false;
 
+    /**
+     * Where the item was in its collection's insertion order when it was taken under a transaction, 0 if it was not.
+     */
+    private transient long sequence = 0;
+
     /**
      * Instantiates a new timeout entry.
      *
@@ -73,6 +78,27 @@ public class TimeoutEntry<T> implements Delayed, Serializable {
         return item;
     }
 
+    /**
+     * @return when the item times out, as System.nanoTime(), Long.MAX_VALUE if it does not
+     */
+    long getExpireTime() {
+        return expireTime;
+    }
+
+    /**
+     * @return where the item was in its collection's insertion order when it was taken, 0 if not known
+     */
+    long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @param sequence where the item was in its collection's insertion order when it was taken
+     */
+    void setSequence(final long sequence) {
+        this.sequence = sequence;
+    }
+
     /**
      * Gets the delay expressed in the supplied {@link TimeUnit}
      *
@@ -26,7 +26,8 @@ import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
- * A queue that times out its entries.
+ * A queue that times out its entries. The timing is done by the shared {@link TimingWheel} so a queue has no thread
+ * of its own.
  *
  * @param <T> the generic type
  */
@@ -38,18 +39,27 @@ public class TimeoutQueue<T>  {
     private transient final ReentrantLock lock = new ReentrantLock();
 
     /**
-     * The internal q that provide the functionality.
+     * Maps each entry, by identity, to its TimeoutEntry and place on the wheel. An entry that has been added more than
+     * once maps to the first of a chain, in the order they were added. Guarded by lock.
      */
-    private final DelayQueue<TimeoutEntry<T>> expireQueue = new DelayQueue<TimeoutEntry<T>>();
+    private final Map<T, Expiry> expiries = new IdentityHashMap<T, Expiry>();
 
+    /**
+     * Guarded by lock.
+     */
+    private int size = 0;
+
+    /**
+     * Told of each entry as it times out, may be null.
+     */
+    private final ExpiryListener<T> listener;
+
+    private final TimingWheel wheel = TimingWheel.getDefault();
 
     /**
-     * provides mapping from entries to entries in the q.
+     * Guarded by lock.
      */
-    //  private final ConcurrentHashMap<T, TimeoutEntry<T>> entryMap = new ConcurrentHashMap<T, TimeoutEntry<T>>();
-    private final CopyOnWriteArrayList<T> entries = new CopyOnWriteArrayList<T>();
-    private volatile boolean keepGoing = true;
-    private final Thread headerReader;
+    private boolean terminated = false;
 
     /**
      * Create a TimeoutQueue that uses the supplied  BlockingQueue as a consumer of
@@ -60,10 +70,25 @@ public class TimeoutQueue<T>  {
      */
     public TimeoutQueue(final BlockingQueue<T> consumerQueue) {
 
+        this(consumerQueue == null ? null : new ExpiryListener<T>() {
+            @Override
+            public void expired(final T item) {
+                try {
+                    consumerQueue.put(item);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
 
-        headerReader = new Thread(new HeadReader(consumerQueue));
-        headerReader.setDaemon(true);
-        headerReader.start();
+    /**
+     * Create a TimeoutQueue that tells the supplied listener of each entry as it times out.
+     *
+     * @param listener the listener, may be null
+     */
+    public TimeoutQueue(final ExpiryListener<T> listener) {
+        this.listener = listener;
     }
 
 
@@ -71,14 +96,14 @@ public class TimeoutQueue<T>  {
      * Determines if the supplied entry is on the TimeoutQueue.
      *
      * @param entry the entry to check
-     * @return true if the supplied entry is on the queue and has not yet timed out
+     * @return true if the supplied entry itself, rather than one equal to it, is on the queue and has not yet timed out
      */
     public boolean contains(final T entry) {
 
         lock.lock();
 
         try {
-            return entries.contains(entry);
+            return expiries.containsKey(entry);
         }
         finally {
             lock.unlock();
@@ -93,8 +118,13 @@ public class TimeoutQueue<T>  {
      * @return the int
      */
     public int size() {
-
-        return expireQueue.size();
+        lock.lock();
+        try {
+            return size;
+        }
+        finally {
+            lock.unlock();
+        }
     }
 
 
@@ -111,23 +141,13 @@ public class TimeoutQueue<T>  {
      */
     public TimeoutEntry<T> add(final T entry, final long timeOut, final TimeUnit unit) {
 
-
-        lock.lock();
-        try {
-            if (timeOut == 0) {
-                throw new IllegalArgumentException("Timeout of zero is not allowed");
-            }
-            //wrap it and  map it
-            final TimeoutEntry<T> timeoutEntry = new TimeoutEntry<T>(entry, timeOut, unit);
-            entries.add(entry);
-            expireQueue.add(timeoutEntry);
-
-            return timeoutEntry;
+        if (timeOut == 0) {
+            throw new IllegalArgumentException("Timeout of zero is not allowed");
         }
-        finally {
-            lock.unlock();
-        }
-
+        //wrap it and  map it
+        final TimeoutEntry<T> timeoutEntry = new TimeoutEntry<T>(entry, timeOut, unit);
+        add(timeoutEntry);
+        return timeoutEntry;
     }
 
     /**
@@ -138,8 +158,24 @@ public class TimeoutQueue<T>  {
     public void add(final TimeoutEntry<T> timeoutEntry) {
         lock.lock();
         try {
-            entries.add(timeoutEntry.getItem());
-            expireQueue.add(timeoutEntry);
+            final Expiry expiry = new Expiry(timeoutEntry);
+            final Expiry first = expiries.get(timeoutEntry.getItem());
+            if (first == null) {
+                expiries.put(timeoutEntry.getItem(), expiry);
+            } else {
+                Expiry last = first;
+                while (last.next != null) {
+                    last = last.next;
+                }
+                last.next = expiry;
+            }
+            size++;
+
+            //eternal entries never need to be on the wheel
+            final long delay = timeoutEntry.getDelay(TimeUnit.NANOSECONDS);
+            if (!terminated && delay != Long.MAX_VALUE) {
+                expiry.timeout = wheel.schedule(expiry, delay, TimeUnit.NANOSECONDS);
+            }
         }
         finally {
             lock.unlock();
@@ -151,8 +187,18 @@ public class TimeoutQueue<T>  {
      * Terminates this queue. Items are no longer timedout but any existing entries are still in the queue
      */
     public void terminate() {
-        setKeepGoing(false);
-        headerReader.interrupt();
+        lock.lock();
+        try {
+            terminated = true;
+            for (Expiry expiry : expiries.values()) {
+                for (; expiry != null; expiry = expiry.next) {
+                    expiry.cancel();
+                }
+            }
+        }
+        finally {
+            lock.unlock();
+        }
 
     }
 
@@ -162,8 +208,13 @@ public class TimeoutQueue<T>  {
     public void clear() {
         lock.lock();
         try {
-            expireQueue.clear();
-            entries.clear();
+            for (Expiry expiry : expiries.values()) {
+                for (; expiry != null; expiry = expiry.next) {
+                    expiry.cancel();
+                }
+            }
+            expiries.clear();
+            size = 0;
         }
         finally {
             lock.unlock();
@@ -173,38 +224,22 @@ public class TimeoutQueue<T>  {
 
 
     /**
-     * Removes the item of type T
+     * Removes the item of type T. If the item has been added more than once then the entry that was added first is
+     * removed.
      *
      * @param item item to remove
-     * @return the  TimeoutEntry that wraps this item
+     * @return the  TimeoutEntry that wraps this item, or null if the item is not on the queue, eg it has just timed out
      */
     public TimeoutEntry<T> remove(final T item) {
         lock.lock();
         try {
-
-            /*
-            //*** This smells! - see comments in waitForMatch that start with  comment  *** This smells!
-
-           
-             */
-            final TimeoutEntry<T>[] timeouts = new TimeoutEntry[entries.size()];
-            expireQueue.toArray(timeouts);
-
-            for (final TimeoutEntry<T> timeout : timeouts) {
-                if (timeout.getItem() == item) {
-                    entries.remove(item);
-                    expireQueue.remove(timeout);
-                    return timeout;
-                }
+            final Expiry expiry = expiries.get(item);
+            if (expiry == null) {
+                return null;
             }
-
-            //TODO why does this sometimes happen? Has the entry timed out before it was removed?
-            /*
-            This is a hack-fix, the caller is expecting a  TimeoutEntry wrapping item, so make one!!
-             */
-            return new TimeoutEntry<T>(item,Long.MAX_VALUE, TimeUnit.DAYS);
-
-
+            unlink(expiry);
+            expiry.cancel();
+            return expiry.entry;
         }
         finally {
             lock.unlock();
@@ -220,11 +255,12 @@ public class TimeoutQueue<T>  {
     public Collection<TimeoutEntry<T>> toTimeoutCollection() {
         lock.lock();
         try {
-            final TimeoutEntry<T>[] timeouts = new TimeoutEntry[expireQueue.size()];
-            expireQueue.toArray(timeouts);
-
-            final List<TimeoutEntry<T>> list = new ArrayList<TimeoutEntry<T>>();
-            list.addAll(Arrays.asList(timeouts));
+            final List<TimeoutEntry<T>> list = new ArrayList<TimeoutEntry<T>>(size);
+            for (Expiry expiry : expiries.values()) {
+                for (; expiry != null; expiry = expiry.next) {
+                    list.add(expiry.entry);
+                }
+            }
 
             return list;
         } finally {
@@ -243,55 +279,73 @@ public class TimeoutQueue<T>  {
         lock.lock();
 
         try {
-            return entries;
+            final List<T> list = new ArrayList<T>(size);
+            for (Expiry expiry : expiries.values()) {
+                for (; expiry != null; expiry = expiry.next) {
+                    list.add(expiry.entry.getItem());
+                }
+            }
+            return list;
         } finally {
             lock.unlock();
         }
 
     }
 
-
     /**
-     * Take.
+     * Takes the expiry out of the map. Must be called holding the lock.
      *
-     * @return the t
-     * @throws InterruptedException the interrupted exception
+     * @param expiry the expiry
+     * @return false if it was not in the map
      */
-    private T take() throws InterruptedException {
-
-        final TimeoutEntry<T> entry = expireQueue.poll(1, TimeUnit.NANOSECONDS);
-        if (entry != null) {
-            entries.remove(entry.getItem());
-            return entry.getItem();
+    private boolean unlink(final Expiry expiry) {
+        final T item = expiry.entry.getItem();
+        final Expiry first = expiries.get(item);
+        if (first == expiry) {
+            if (expiry.next == null) {
+                expiries.remove(item);
+            } else {
+                expiries.put(item, expiry.next);
+            }
+        } else {
+            Expiry previous = first;
+            while (previous != null && previous.next != expiry) {
+                previous = previous.next;
+            }
+            if (previous == null) {
+                return false;
+            }
+            previous.next = expiry.next;
         }
-
-        return null;
-
-
+        expiry.next = null;
+        size--;
+        return true;
     }
 
     /**
-     * @param state the new state
+     * An entry on the wheel, run when the entry times out.
      */
-    private synchronized void setKeepGoing(boolean state) {
-        keepGoing = state;
-    }
+    private class Expiry implements Runnable {
+        private final TimeoutEntry<T> entry;
+        private TimingWheel.Timeout timeout;
 
-    /**
-     * @return the state
-     */
-    private synchronized boolean isKeepGoing() {
-        return keepGoing;
-    }
+        /**
+         * The next expiry for the same item.
+         */
+        private Expiry next;
 
-    /**
-     * The Class HeadReader.
-     */
-    private class HeadReader implements Runnable {
-        private final BlockingQueue<T> consumerQueue;
+        Expiry(final TimeoutEntry<T> entry) {
+            this.entry = entry;
+        }
 
-        public HeadReader(final BlockingQueue<T> consumerQueue) {
-            this.consumerQueue = consumerQueue;
+        /**
+         * Takes the entry off the wheel. Must be called holding the lock.
+         */
+        void cancel() {
+            if (timeout != null) {
+                timeout.cancel();
+                timeout = null;
+            }
         }
 
         /**
@@ -301,22 +355,21 @@ public class TimeoutQueue<T>  {
          */
         @Override
         public void run() {
-            //noinspection InfiniteLoopStatement
-            while (isKeepGoing()) {
-                try {
-                    final T item = take();
-
-
-                    if ((item != null) && (consumerQueue != null)) {
-                        consumerQueue.put(item);
-                    }
-
-                } catch (final InterruptedException e) {
-                    Thread.currentThread().interrupt();
+            lock.lock();
+            try {
+                //it may have been removed whilst becoming due
+                if (timeout == null || !unlink(this)) {
+                    return;
                 }
-
+                timeout = null;
+            }
+            finally {
+                lock.unlock();
             }
 
+            if (listener != null) {
+                listener.expired(entry.getItem());
+            }
         }
     }
 }
@@ -0,0 +1,419 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A hierarchical timing wheel that runs tasks after a delay. A single wheel, see {@link #getDefault()}, drives the
+ * expiry of tuples and transactions for every space in the JVM.
+ * <p/>
+ * Time is measured in ticks of one millisecond. The wheel has {@value #LEVELS} levels of {@value #SLOTS} slots, a
+ * task is filed at the level of the most significant 6 bit digit in which its deadline differs from the current tick
+ * and is cascaded down a level each time the current tick reaches its slot. Scheduling and cancelling are O(1) and
+ * the wheel's thread sleeps until the next occupied slot is due, or indefinitely when the wheel is empty. Deadlines
+ * more than 2<sup>36</sup> ticks (about two years) ahead wait in an overflow list until the top level wraps.
+ * <p/>
+ * Tasks are run on the wheel's thread, one after another, so they must be short and must not block.
+ */
+public final class TimingWheel {
+
+    private static final Logger logger = Logger.getLogger(TimingWheel.class.getName());
+
+    /**
+     * Bits per level.
+     */
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 6;
+
+    private static final long NANOS_PER_TICK = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final TimingWheel DEFAULT = new TimingWheel("TupleSpace-TimingWheel");
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition wakeUp = lock.newCondition();
+
+    /**
+     * The slots of each level, each slot the sentinel of a circular list. Guarded by lock.
+     */
+    private final Timeout[][] wheel = new Timeout[LEVELS][SLOTS];
+
+    /**
+     * For each level a bit per occupied slot. Guarded by lock.
+     */
+    private final long[] occupied = new long[LEVELS];
+
+    /**
+     * Deadlines beyond the top level. Guarded by lock.
+     */
+    private final Timeout overflow = Timeout.sentinel();
+
+    /**
+     * Zero tick, in nanos.
+     */
+    private final long origin = System.nanoTime();
+
+    /**
+     * The tick the wheel has advanced to. Guarded by lock.
+     */
+    private long now = 0;
+
+    /**
+     * The tick that the wheel's thread will next wake at, Long.MAX_VALUE if it is waiting to be signalled. Guarded by
+     * lock.
+     */
+    private long wakeAt = Long.MAX_VALUE;
+
+    private int size = 0;
+
+    /**
+     * Creates a wheel with its own daemon thread.
+     *
+     * @param name the name of the wheel's thread
+     */
+    public TimingWheel(final String name) {
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                wheel[level][slot] = Timeout.sentinel();
+            }
+        }
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                //noinspection InfiniteLoopStatement
+                while (true) {
+                    try {
+                        runDue();
+                    } catch (final InterruptedException e) {
+                        //the wheel is shared so carry on
+                        Thread.interrupted();
+                    }
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the wheel shared by every space in the JVM
+     */
+    public static TimingWheel getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Schedules the task to run once after the delay.
+     *
+     * @param task  the task
+     * @param delay the delay, zero or less to run as soon as possible
+     * @param unit  the time unit of the delay
+     * @return a handle that can cancel the task
+     */
+    public Timeout schedule(final Runnable task, final long delay, final TimeUnit unit) {
+
+        final long delayNanos = unit.toNanos(delay);
+        lock.lock();
+        try {
+            final long elapsed = System.nanoTime() - origin;
+            //round up so that a task never runs early
+            final long deadline = delayNanos >= Long.MAX_VALUE - elapsed - NANOS_PER_TICK
+                    ? Long.MAX_VALUE
+                    : (elapsed + Math.max(delayNanos, 0) + NANOS_PER_TICK - 1) / NANOS_PER_TICK;
+
+            if (size == 0) {
+                //nothing is filed so the wheel can jump straight to the present
+                now = Math.max(now, elapsed / NANOS_PER_TICK);
+                for (int level = 0; level < LEVELS; level++) {
+                    occupied[level] = 0;
+                }
+            }
+            final Timeout timeout = new Timeout(this, task, deadline);
+            file(timeout);
+            size++;
+            if (timeout.deadline < wakeAt) {
+                wakeUp.signal();
+            }
+            return timeout;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of tasks waiting to run
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cancels the timeout if it has not already run.
+     *
+     * @param timeout the timeout
+     * @return true if the timeout was cancelled
+     */
+    private boolean cancel(final Timeout timeout) {
+        lock.lock();
+        try {
+            if (timeout.prev == null) {
+                return false;
+            }
+            unlink(timeout);
+            size--;
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until something is due, then runs everything that is due.
+     *
+     * @throws InterruptedException if interrupted whilst waiting
+     */
+    private void runDue() throws InterruptedException {
+
+        final List<Timeout> due;
+        lock.lock();
+        try {
+            final long tick = currentTick();
+            final long next = nextEvent();
+            if (next > tick) {
+                wakeAt = next;
+                try {
+                    if (next == Long.MAX_VALUE) {
+                        wakeUp.await();
+                    } else {
+                        wakeUp.awaitNanos((next - tick) * NANOS_PER_TICK - (System.nanoTime() - origin) % NANOS_PER_TICK);
+                    }
+                }
+                finally {
+                    wakeAt = Long.MAX_VALUE;
+                }
+                return;
+            }
+            due = advance(tick);
+        }
+        finally {
+            lock.unlock();
+        }
+
+        for (final Timeout timeout : due) {
+            try {
+                timeout.task.run();
+            } catch (final RuntimeException e) {
+                //a failing task must not stop the others
+                logger.log(Level.WARNING, "A timed task failed", e);
+            }
+        }
+    }
+
+    /**
+     * Advances the wheel, one event at a time, to the supplied tick. Must be called holding the lock.
+     *
+     * @param tick the tick to advance to
+     * @return the timeouts that are now due, in the order they fell due
+     */
+    private List<Timeout> advance(final long tick) {
+
+        final List<Timeout> due = new ArrayList<Timeout>();
+        long next;
+        while ((next = nextEvent()) <= tick) {
+            now = Math.max(now, next);
+
+            //cascade the slots that the current tick has just reached, top level first
+            if ((now & ((1L << (BITS * LEVELS)) - 1)) == 0) {
+                refile(overflow, due);
+            }
+            for (int level = LEVELS - 1; level >= 0; level--) {
+                final int slot = (int) (now >>> (BITS * level)) & MASK;
+                if ((occupied[level] & (1L << slot)) != 0) {
+                    occupied[level] &= ~(1L << slot);
+                    refile(wheel[level][slot], due);
+                }
+            }
+        }
+        return due;
+    }
+
+    /**
+     * Files every timeout in the list again, relative to the current tick. Must be called holding the lock.
+     *
+     * @param list the sentinel of a list
+     * @param due  the timeouts due so far, to which those now due are added
+     */
+    private void refile(final Timeout list, final List<Timeout> due) {
+        Timeout timeout = list.next;
+        list.next = list;
+        list.prev = list;
+        while (timeout != list) {
+            final Timeout following = timeout.next;
+            timeout.prev = null;
+            timeout.next = null;
+            if (timeout.deadline <= now) {
+                size--;
+                due.add(timeout);
+            } else {
+                file(timeout);
+            }
+            timeout = following;
+        }
+    }
+
+    /**
+     * Links the timeout into the slot for its deadline. Must be called holding the lock.
+     *
+     * @param timeout the timeout
+     */
+    private void file(final Timeout timeout) {
+
+        final long deadline = Math.max(timeout.deadline, now);
+        final long difference = deadline ^ now;
+        final Timeout list;
+        if (difference == 0) {
+            //due now, the current level 0 slot is looked at again when the thread next wakes
+            list = slot(0, (int) now & MASK);
+        } else {
+            final int level = (63 - Long.numberOfLeadingZeros(difference)) / BITS;
+            if (level >= LEVELS) {
+                list = overflow;
+            } else {
+                list = slot(level, (int) (deadline >>> (BITS * level)) & MASK);
+            }
+        }
+        timeout.prev = list.prev;
+        timeout.next = list;
+        list.prev.next = timeout;
+        list.prev = timeout;
+    }
+
+    /**
+     * Must be called holding the lock.
+     *
+     * @param level the level
+     * @param slot  the slot
+     * @return the sentinel of the slot, marked as occupied
+     */
+    private Timeout slot(final int level, final int slot) {
+        occupied[level] |= 1L << slot;
+        return wheel[level][slot];
+    }
+
+    /**
+     * Unlinks the timeout. Must be called holding the lock.
+     *
+     * @param timeout the timeout
+     */
+    private void unlink(final Timeout timeout) {
+        timeout.prev.next = timeout.next;
+        timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+        //leave the occupied bit set, an empty slot is simply skipped when reached
+    }
+
+    /**
+     * Gets the tick at which the next slot is reached. Must be called holding the lock.
+     *
+     * @return the tick, or Long.MAX_VALUE if the wheel is empty
+     */
+    private long nextEvent() {
+
+        if (size == 0) {
+            return Long.MAX_VALUE;
+        }
+        long next = Long.MAX_VALUE;
+        for (int level = 0; level < LEVELS; level++) {
+            final int shift = BITS * level;
+            final int current = (int) (now >>> shift) & MASK;
+            //level 0 includes the current slot, higher levels only the slots still to come in this rotation
+            final long ahead = level == 0 ? occupied[0] >>> current << current : occupied[level] >>> current >>> 1 << current << 1;
+            if (ahead != 0) {
+                final long span = 1L << (shift + BITS);
+                final long start = (now & ~(span - 1)) + ((long) Long.numberOfTrailingZeros(ahead) << shift);
+                next = Math.min(next, start);
+            }
+        }
+        if (overflow.next != overflow) {
+            final long span = 1L << (BITS * LEVELS);
+            next = Math.min(next, (now & ~(span - 1)) + span);
+        }
+        return next;
+    }
+
+    /**
+     * @return the current tick
+     */
+    private long currentTick() {
+        return (System.nanoTime() - origin) / NANOS_PER_TICK;
+    }
+
+    /**
+     * A task scheduled on a {@link TimingWheel}.
+     */
+    public static final class Timeout {
+
+        private final TimingWheel owner;
+        private final Runnable task;
+        private final long deadline;
+
+        //guarded by the owner's lock, prev is null when not in a list
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(final TimingWheel owner, final Runnable task, final long deadline) {
+            this.owner = owner;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        private static Timeout sentinel() {
+            final Timeout sentinel = new Timeout(null, null, 0);
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+            return sentinel;
+        }
+
+        /**
+         * Cancels the task if it has not already run.
+         *
+         * @return true if the task was cancelled
+         */
+        public boolean cancel() {
+            return owner.cancel(this);
+        }
+    }
+}
@@ -81,6 +81,15 @@ public class Transaction<V>  {
         return valuesQueue.toEntryList();
     }
 
+    /**
+     * Removes a value from the values that have been written under this transaction, eg because it has been taken
+     * under the transaction
+     * @param value the value
+     */
+    protected void removeValue(final V value) {
+        valuesQueue.remove(value);
+    }
+
     /**
      *   Adds a value to the values  that have been read under this transaction
      * @param value the value
@@ -172,7 +181,7 @@ public class Transaction<V>  {
     protected Collection<TimeoutEntry<V>> commit() throws TransactionException {
 
         final Collection<TimeoutEntry<V>> items = valuesQueue.toTimeoutCollection();
-        parentCollection.addAllTimeouts(items);
+        parentCollection.commitTimeouts(items, takenQue.toTimeoutCollection());
         tidyUp();
         return items;
     }
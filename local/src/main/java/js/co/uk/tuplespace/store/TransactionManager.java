@@ -22,10 +22,14 @@ package js.co.uk.tuplespace.store;
 
 import java.util.Collection;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 
 /**
@@ -34,14 +38,25 @@ import java.util.concurrent.TimeUnit;
  */
 public class TransactionManager<V> implements Transactional {
 
+    private static final Logger logger = Logger.getLogger(TransactionManager.class.getName());
+
+    /**
+     * Aborts the transactions that time out, as an abort waits for the collection's locks and the timing wheel's
+     * thread must not. Its one thread is only kept whilst there are aborts to do.
+     */
+    private final ExecutorService reaper = new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable task) {
+            final Thread thread = new Thread(task, "TransactionManager-Reaper");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     private TimeoutQueue<Transaction<V>> txnTimeoutQueue;
 
     private Map<TransactionID, Transaction<V>> idToTxnMap = new ConcurrentHashMap<TransactionID, Transaction<V>>();
-    /**
-     * The txn removal queue.
-     */
-    private final BlockingQueue<Transaction<V>> txnRemovalQueue;
     /**
      * The transaction id.
      */
@@ -63,33 +78,23 @@ public class TransactionManager<V> implements Transactional {
     public TransactionManager(final TimeoutCollection<V> parentCollection) {
         this.parentCollection = parentCollection;
 
-        txnRemovalQueue = new LinkedBlockingQueue<Transaction<V>>();
-        txnTimeoutQueue = new TimeoutQueue<Transaction<V>>(txnRemovalQueue);
-        final Thread txnHeadReader = new Thread(new Runnable() {
-            public void run() {
-                //noinspection InfiniteLoopStatement
-                while (true) {
-                    try {
-
-                        final Transaction<V> txn = txnRemovalQueue.take();
-
+        //a transaction that times out is aborted
+        txnTimeoutQueue = new TimeoutQueue<Transaction<V>>(new ExpiryListener<Transaction<V>>() {
+            @Override
+            public void expired(final Transaction<V> txn) {
+                reaper.execute(new Runnable() {
+                    @Override
+                    public void run() {
                         try {
-                             abortTxn(txn.getTxnId());
-
+                            abortTxn(txn.getTxnId());
                         } catch (final TransactionException e) {
-                            //TODO need to get this exception out??
-                            e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
+                            //it has been committed or aborted since it timed out
+                            logger.log(Level.FINE, "Timed out transaction " + txn.getTxnId() + " has already ended", e);
                         }
-
                     }
-                    catch (final InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                }
+                });
             }
         });
-        txnHeadReader.setDaemon(true);
-        txnHeadReader.start();
 
     }
 
@@ -163,8 +168,11 @@ public class TransactionManager<V> implements Transactional {
      * @throws js.co.uk.tuplespace.store.TransactionException
      *          the transaction exception
      */
-    public synchronized Collection<TimeoutEntry<V>> abortTxn(final TransactionID txnId) throws TransactionException {
+    public Collection<TimeoutEntry<V>> abortTxn(final TransactionID txnId) throws TransactionException {
         final Transaction<V> txn = idToTxnMap.remove(txnId);
+        if (txn == null) {
+            throw new TransactionException("Transaction id " + txnId + " does not reference a valid transaction");
+        }
         final Collection<TimeoutEntry<V>> items = txn.abort();
         txnTimeoutQueue.remove(txn);
         return items;
@@ -178,7 +186,8 @@ public class TransactionManager<V> implements Transactional {
      * @throws js.co.uk.tuplespace.store.TransactionException
      *          the transaction exception
      */
-    public synchronized Collection<TimeoutEntry<V>> commitTxn(final TransactionID txnId) throws TransactionException {
+    public Collection<TimeoutEntry<V>> commitTxn(final TransactionID txnId) throws TransactionException {
+        //whoever removes the txn from the map owns it, so no monitor is held whilst the commit waits for the log
         final Transaction<V> txn = idToTxnMap.remove(txnId);
         if (txn == null) {
             throw new TransactionException("Transaction id " + txnId + " does not reference a valid transaction");
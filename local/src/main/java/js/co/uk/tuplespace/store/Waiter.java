@@ -0,0 +1,117 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.store;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+
+/**
+ * A blocked attempt to take or read a value that matches a template. All fields are guarded by the lock that the
+ * condition belongs to.
+ * <p/>
+ * An asynchronous waiter has a future to complete rather than a condition, no thread waits for it. Its offers are
+ * collected by the {@link WaiterRegistry} for the collection to try once the offering is done.
+ *
+ * @param <V>
+ */
+final class Waiter<V> {
+
+    final V template;
+    final boolean isTake;
+    final Condition condition;
+    final CompletableFuture<V> future;
+
+    /**
+     * The key the waiter is registered under, null if it has to see every value.
+     */
+    BucketKey key;
+
+    /**
+     * The value that caused the last signal, if any.
+     */
+    V offered;
+
+    /**
+     * When the waiter was registered, for serving takers in the order they arrived.
+     */
+    long arrival;
+
+    /**
+     * The value held for this taker by a fair registry, see {@link WaiterRegistry#setFair(boolean)}, null if none.
+     */
+    V reserved;
+
+    /**
+     * Set when the wait must end without a match, eg the collection has been cleared.
+     */
+    boolean cancelled;
+
+    /**
+     * The timeout of an asynchronous waiter, null if it waits forever.
+     */
+    TimingWheel.Timeout timeout;
+
+    /**
+     * Set once an asynchronous waiter has matched, timed out or been cancelled.
+     */
+    boolean finished;
+
+    /**
+     * @param template  the template
+     * @param isTake    true for a take, false for a read
+     * @param condition the condition to wait on
+     */
+    Waiter(final V template, final boolean isTake, final Condition condition) {
+        this.template = template;
+        this.isTake = isTake;
+        this.condition = condition;
+        this.future = null;
+    }
+
+    /**
+     * @param template the template
+     * @param isTake   true for a take, false for a read
+     * @param future   the future to complete with the match
+     */
+    Waiter(final V template, final boolean isTake, final CompletableFuture<V> future) {
+        this.template = template;
+        this.isTake = isTake;
+        this.condition = null;
+        this.future = future;
+    }
+
+    /**
+     * @return true if no thread waits for this waiter
+     */
+    boolean isAsync() {
+        return condition == null;
+    }
+
+    /**
+     * Wakes the waiter because the supplied value may match its template.
+     *
+     * @param value the value
+     */
+    void offer(final V value) {
+        offered = value;
+        if (condition != null) {
+            condition.signal();
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.store;
+
+import js.co.uk.tuplespace.matcher.Matcher;
+import js.co.uk.tuplespace.tuple.MatchAllTuplesTemplate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The waiters of a {@link TimeoutCollection}, filed under the {@link BucketKey} of their template so that a new value
+ * is only offered to the waiters that could match it. Waiters whose templates can match any type, because the matcher
+ * does not respect types or the template is a {@link MatchAllTuplesTemplate}, are offered every value.
+ * <p/>
+ * A value is offered to the matching taker that has waited longest. A fair registry also reserves the value for that
+ * taker until it has taken it or given up, so that no other take can get it first.
+ * <p/>
+ * Asynchronous waiters cannot be woken, so those that are offered a value are kept in order until the collection
+ * polls them with {@link #nextPending()}.
+ * <p/>
+ * Not thread safe, it is guarded by the lock that the waiters' conditions belong to.
+ *
+ * @param <V>
+ */
+final class WaiterRegistry<V> {
+
+    private final Map<BucketKey, Set<Waiter<V>>> typedWaiters = new HashMap<BucketKey, Set<Waiter<V>>>();
+
+    private final Set<Waiter<V>> untypedWaiters = new LinkedHashSet<Waiter<V>>();
+
+    /**
+     * The values reserved for takers by a fair registry.
+     */
+    private final Map<V, Waiter<V>> reservations = new IdentityHashMap<V, Waiter<V>>();
+
+    /**
+     * The asynchronous waiters that have been offered a value or woken since they were last polled.
+     */
+    private final Set<Waiter<V>> pending = new LinkedHashSet<Waiter<V>>();
+
+    private boolean fair = false;
+
+    private long arrivals = 0;
+
+    private int size = 0;
+
+    /**
+     * Switches the reservation of offered values for the takers they are offered to on or off.
+     *
+     * @param fair true to reserve
+     */
+    void setFair(final boolean fair) {
+        this.fair = fair;
+        if (!fair) {
+            for (final Waiter<V> waiter : reservations.values()) {
+                waiter.reserved = null;
+            }
+            reservations.clear();
+        }
+    }
+
+    /**
+     * @param waiter the waiter to add
+     * @param typed  true if the matcher respects types
+     */
+    void add(final Waiter<V> waiter, final boolean typed) {
+
+        if (waiter.arrival == 0) {
+            waiter.arrival = ++arrivals;
+        }
+        if (typed && !(waiter.template instanceof MatchAllTuplesTemplate)) {
+            waiter.key = BucketKey.forValue(waiter.template);
+            Set<Waiter<V>> waiters = typedWaiters.get(waiter.key);
+            if (waiters == null) {
+                waiters = new LinkedHashSet<Waiter<V>>();
+                typedWaiters.put(waiter.key, waiters);
+            }
+            waiters.add(waiter);
+        } else {
+            waiter.key = null;
+            untypedWaiters.add(waiter);
+        }
+        size++;
+    }
+
+    /**
+     * @param waiter the waiter to remove
+     */
+    void remove(final Waiter<V> waiter) {
+
+        release(waiter);
+        pending.remove(waiter);
+        final boolean removed;
+        if (waiter.key == null) {
+            removed = untypedWaiters.remove(waiter);
+        } else {
+            final Set<Waiter<V>> waiters = typedWaiters.get(waiter.key);
+            removed = waiters != null && waiters.remove(waiter);
+            if (waiters != null && waiters.isEmpty()) {
+                typedWaiters.remove(waiter.key);
+            }
+        }
+        if (removed) {
+            size--;
+        }
+    }
+
+    /**
+     * Offers a new value to the waiters whose templates match it. Every matching reader is woken, but only the
+     * matching taker that has waited longest, of those that have not already been offered or reserved a value, is
+     * woken as only one taker can have the value.
+     *
+     * @param value   the value
+     * @param matcher the matcher to use
+     */
+    void offer(final V value, final Matcher<V> matcher) {
+
+        Waiter<V> taker = offer(value, matcher, typedWaiters.get(BucketKey.forValue(value)), null);
+
+        //a template can also match values whose class directly extends its own
+        final Class<?> superclass = value.getClass().getSuperclass();
+        if (!typedWaiters.isEmpty() && superclass != null) {
+            final BucketKey superKey = BucketKey.forClass(superclass);
+            if (superKey != null) {
+                taker = offer(value, matcher, typedWaiters.get(superKey), taker);
+            }
+        }
+
+        taker = offer(value, matcher, untypedWaiters, taker);
+        if (taker != null) {
+            if (fair && !reservations.containsKey(value)) {
+                taker.reserved = value;
+                reservations.put(value, taker);
+            }
+            signal(taker, value);
+        }
+    }
+
+    /**
+     * @return the asynchronous waiter that has been offered a value or woken for longest, null if none. It is no
+     *         longer pending.
+     */
+    Waiter<V> nextPending() {
+        if (pending.isEmpty()) {
+            return null;
+        }
+        final Iterator<Waiter<V>> waiters = pending.iterator();
+        final Waiter<V> waiter = waiters.next();
+        waiters.remove();
+        return waiter;
+    }
+
+    /**
+     * @param value  a value
+     * @param waiter the taker that wants it
+     * @return true if the value is reserved for some other taker
+     */
+    boolean isReservedForAnother(final V value, final Waiter<V> waiter) {
+        if (reservations.isEmpty()) {
+            return false;
+        }
+        final Waiter<V> holder = reservations.get(value);
+        return holder != null && holder != waiter;
+    }
+
+    /**
+     * Releases the value reserved for the taker, if any.
+     *
+     * @param waiter the taker
+     */
+    void release(final Waiter<V> waiter) {
+        if (waiter.reserved != null) {
+            reservations.remove(waiter.reserved);
+            waiter.reserved = null;
+        }
+    }
+
+    /**
+     * Wakes every waiter, whether or not it could match anything.
+     */
+    void wakeAll() {
+        for (final Waiter<V> waiter : all()) {
+            if (waiter.isAsync()) {
+                pending.add(waiter);
+            } else {
+                waiter.condition.signal();
+            }
+        }
+    }
+
+    /**
+     * Files all of the waiters again, for when the matcher changes.
+     *
+     * @param typed true if the new matcher respects types
+     */
+    void refile(final boolean typed) {
+        final List<Waiter<V>> waiters = all();
+        //the waiters keep their reservations
+        typedWaiters.clear();
+        untypedWaiters.clear();
+        size = 0;
+        for (final Waiter<V> waiter : waiters) {
+            add(waiter, typed);
+        }
+    }
+
+    /**
+     * @return all of the waiters
+     */
+    List<Waiter<V>> all() {
+        final List<Waiter<V>> all = new ArrayList<Waiter<V>>(size);
+        for (final Set<Waiter<V>> waiters : typedWaiters.values()) {
+            all.addAll(waiters);
+        }
+        all.addAll(untypedWaiters);
+        return all;
+    }
+
+    /**
+     * Removes all of the waiters
+     */
+    void clear() {
+        for (final Waiter<V> waiter : reservations.values()) {
+            waiter.reserved = null;
+        }
+        reservations.clear();
+        pending.clear();
+        typedWaiters.clear();
+        untypedWaiters.clear();
+        size = 0;
+    }
+
+    /**
+     * @return the number of waiters
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Wakes the matching readers among some waiters and finds the earliest matching taker.
+     *
+     * @param value   the value
+     * @param matcher the matcher to use
+     * @param waiters the waiters, in the order they arrived
+     * @param taker   the earliest matching taker found so far, null if none
+     * @return the earliest matching taker found so far, null if none
+     */
+    private Waiter<V> offer(final V value, final Matcher<V> matcher, final Collection<Waiter<V>> waiters,
+                            Waiter<V> taker) {
+
+        if (waiters == null) {
+            return taker;
+        }
+        for (final Waiter<V> waiter : waiters) {
+            if (waiter.isTake && (waiter.offered != null || waiter.reserved != null
+                    || (taker != null && taker.arrival < waiter.arrival))) {
+                continue;
+            }
+            if (waiter.template instanceof MatchAllTuplesTemplate || matcher.match(value, waiter.template)) {
+                if (waiter.isTake) {
+                    taker = waiter;
+                } else {
+                    signal(waiter, value);
+                }
+            }
+        }
+        return taker;
+    }
+
+    /**
+     * Offers a value to a waiter, keeping it for polling if it is asynchronous.
+     *
+     * @param waiter the waiter
+     * @param value  the value
+     */
+    private void signal(final Waiter<V> waiter, final V value) {
+        waiter.offer(value);
+        if (waiter.isAsync()) {
+            pending.add(waiter);
+        }
+    }
+}
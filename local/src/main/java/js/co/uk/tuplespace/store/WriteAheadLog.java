@@ -0,0 +1,915 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.store;
+
+import js.co.uk.tuplespace.codec.TupleCodec;
+import js.co.uk.tuplespace.codec.TupleCodecs;
+import js.co.uk.tuplespace.tuple.Tuple;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the changes made to a {@link TimeoutCollection}, from which the collection's contents can be
+ * recovered when the process restarts. Tuples are written with a {@link TupleCodec} if the log is given one, any
+ * other value, or every value if it is not, must be Serializable.
+ * <p/>
+ * Every value put is given an id and logged with the wall clock time at which it expires. A take or an expiry is
+ * logged by id, as is a purge. The puts and takes made under a transaction are only logged when it commits, as a single
+ * record, so an uncommitted transaction leaves no trace and the tuples it had taken are recovered.
+ * <p/>
+ * Appending a record only buffers it. {@link #sync(long)} makes the record durable and uses group commit: whichever
+ * caller finds no write in progress writes and forces everything buffered so far, the callers that arrive meanwhile
+ * wait and are then covered by the next single write and force rather than one each.
+ * <p/>
+ * Each record is framed by its length and a CRC32 so that a record torn by a crash is recognised, and discarded along
+ * with anything after it, when the log is replayed.
+ * <p/>
+ * So that the log does not grow without bound, and replay with it, a {@link #checkpoint()} writes the values that
+ * are live to a snapshot and truncates the log. The log is kept as numbered segments, the supplied file then
+ * &lt;file&gt;.1, &lt;file&gt;.2 and so on. A checkpoint starts a new segment and then copies the live values, which
+ * takes the lock only for as long as it takes to copy the references, and serialises them into a memory mapped
+ * &lt;file&gt;.snapshot without holding it. The snapshot is written to a temporary file that is renamed over the last
+ * one once it has been forced, and only then are the segments before the new one deleted. Records are applied by
+ * id, so replaying the segments from the one the snapshot was started on over the snapshot gives the values that
+ * were live, even though the snapshot may already include some of the records in those segments.
+ *
+ * @param <V>
+ */
+public class WriteAheadLog<V> implements Closeable {
+
+    private static final byte PUT = 1;
+    private static final byte TAKE = 2;
+    private static final byte EXPIRE = 3;
+    private static final byte COMMIT = 4;
+    private static final byte PURGE = 5;
+
+    /**
+     * The expiry time logged for a value that never expires.
+     */
+    private static final long ETERNAL = Long.MAX_VALUE;
+
+    /**
+     * The length and the checksum that precede each record.
+     */
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * Identifies a snapshot file.
+     */
+    private static final int SNAPSHOT_MAGIC = 0x54534E50;
+
+    /**
+     * The size of the regions of a snapshot that are mapped at a time whilst it is written.
+     */
+    private static final int SNAPSHOT_REGION = 8 * 1024 * 1024;
+
+    private final File file;
+    private final File snapshotFile;
+    private final TupleCodec codec;
+
+    /**
+     * The segment being appended to. Only changed, and only written to, by the caller that is syncing.
+     */
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private long segment;
+
+    /**
+     * One checkpoint at a time.
+     */
+    private final Object checkpointLock = new Object();
+
+    /**
+     * The ids of the values logged and not yet taken, by identity. A value put more than once at the same time has a
+     * deque of ids. Guarded by this.
+     */
+    private final Map<V, Object> ids = new IdentityHashMap<V, Object>();
+    private long nextId = 0;
+
+    /**
+     * The values logged and not yet taken, by id, as needed for a snapshot. Guarded by this.
+     */
+    private final Map<Long, Logged<V>> live = new LinkedHashMap<Long, Logged<V>>();
+
+    /**
+     * The records appended but not yet written, and the count of records ever appended. Guarded by this.
+     */
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appended = 0;
+
+    /**
+     * Group commit state, guarded by syncLock.
+     */
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final Condition synced = syncLock.newCondition();
+    private long durable = 0;
+    private boolean syncing = false;
+    private boolean closed = false;
+    private IOException failure;
+
+    /**
+     * Opens the log, creating the file if there is not one. The log should be replayed, see {@link #replay()}, before
+     * anything else is logged as the ids of the values already in it are not known until then.
+     *
+     * @param file the log file
+     * @throws IOException if the file cannot be opened
+     */
+    public WriteAheadLog(final File file) throws IOException {
+        this(file, null);
+    }
+
+    /**
+     * Opens the log, as above, writing tuples with the supplied codec rather than with Java serialisation.
+     *
+     * @param file  the log file
+     * @param codec the codec for tuples, null to serialise them
+     * @throws IOException if the file cannot be opened
+     */
+    public WriteAheadLog(final File file, final TupleCodec codec) throws IOException {
+        this.file = file;
+        this.codec = codec;
+        snapshotFile = new File(file.getPath() + ".snapshot");
+        segment = lastSegment();
+        raf = new RandomAccessFile(segmentFile(segment), "rw");
+        channel = raf.getChannel();
+        channel.position(channel.size());
+    }
+
+    /**
+     * @return the log file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Reads the log and works out which values are still in the collection. Values whose expiry time has passed are
+     * dropped. The log is truncated after the last whole record and positioned for appending.
+     *
+     * @return the values, in the order they were put, each with what is left of its timeout
+     * @throws IOException if the log cannot be read
+     */
+    public synchronized List<TimeoutEntry<V>> replay() throws IOException {
+
+        live.clear();
+        ids.clear();
+        final long first = snapshotFile.exists() ? readSnapshot() : firstSegment();
+        for (long each = first; each < segment; each++) {
+            final File segmentFile = segmentFile(each);
+            if (segmentFile.exists()) {
+                final RandomAccessFile older = new RandomAccessFile(segmentFile, "r");
+                try {
+                    replaySegment(older.getChannel());
+                } finally {
+                    older.close();
+                }
+            }
+        }
+        final long goodLength = replaySegment(channel);
+        channel.truncate(goodLength);
+        channel.position(goodLength);
+        deleteSegmentsBefore(first);
+
+        final long now = System.currentTimeMillis();
+        final List<TimeoutEntry<V>> entries = new ArrayList<TimeoutEntry<V>>(live.size());
+        for (final Iterator<Map.Entry<Long, Logged<V>>> itr = live.entrySet().iterator(); itr.hasNext(); ) {
+            final Map.Entry<Long, Logged<V>> each = itr.next();
+            final Logged<V> logged = each.getValue();
+            if (logged.expiresAt == ETERNAL) {
+                entries.add(new TimeoutEntry<V>(logged.value, Long.MAX_VALUE, TimeUnit.DAYS));
+            } else if (logged.expiresAt > now) {
+                entries.add(new TimeoutEntry<V>(logged.value, logged.expiresAt - now, TimeUnit.MILLISECONDS));
+            } else {
+                itr.remove();
+                continue;
+            }
+            addId(logged.value, each.getKey());
+        }
+        return entries;
+    }
+
+    /**
+     * Writes a snapshot of the values that are live and then deletes the log segments that it replaces. Puts and takes
+     * carry on whilst the snapshot is written. Values whose expiry time has passed are left out.
+     *
+     * @throws IOException if the snapshot cannot be written
+     */
+    public void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            final long first = roll();
+
+            final List<Map.Entry<Long, Logged<V>>> values;
+            synchronized (this) {
+                values = new ArrayList<Map.Entry<Long, Logged<V>>>(live.entrySet().size());
+                for (final Map.Entry<Long, Logged<V>> each : live.entrySet()) {
+                    values.add(new java.util.AbstractMap.SimpleImmutableEntry<Long, Logged<V>>(each));
+                }
+            }
+
+            final File temp = new File(snapshotFile.getPath() + ".tmp");
+            writeSnapshot(temp, first, values);
+            if (!temp.renameTo(snapshotFile)) {
+                //not every platform will rename over an existing file
+                if (!snapshotFile.delete() || !temp.renameTo(snapshotFile)) {
+                    throw new IOException("Unable to rename " + temp + " to " + snapshotFile);
+                }
+            }
+            deleteSegmentsBefore(first);
+        }
+    }
+
+    /**
+     * Logs a put.
+     *
+     * @param entry the value and its timeout
+     * @return the sequence number of the record, see {@link #sync(long)}
+     */
+    public synchronized long put(final TimeoutEntry<V> entry) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(PUT);
+            writePut(out, entry, toBytes(entry.getItem()));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to log " + entry.getItem(), e);
+        }
+        return append(bytes.toByteArray());
+    }
+
+    /**
+     * Logs several puts as a single record, so that either all of them are logged or, if one cannot be encoded,
+     * none are.
+     *
+     * @param entries the values and their timeouts
+     * @return the sequence number of the record, see {@link #sync(long)}
+     */
+    public synchronized long putAll(final Collection<TimeoutEntry<V>> entries) {
+        return commit(entries, java.util.Collections.<TimeoutEntry<V>>emptyList());
+    }
+
+    /**
+     * Logs a take. Nothing is logged for a value that was not logged when it was put.
+     *
+     * @param value the value taken
+     * @return the sequence number of the record, see {@link #sync(long)}
+     */
+    public synchronized long take(final V value) {
+        return logRemoval(TAKE, value);
+    }
+
+    /**
+     * Logs an expiry.
+     *
+     * @param value the value that has expired
+     * @return the sequence number of the record, see {@link #sync(long)}
+     */
+    public synchronized long expire(final V value) {
+        return logRemoval(EXPIRE, value);
+    }
+
+    /**
+     * Logs the commit of a transaction as a single record.
+     *
+     * @param puts  the values put under the transaction
+     * @param takes the values taken under the transaction
+     * @return the sequence number of the record, see {@link #sync(long)}
+     */
+    public synchronized long commit(final Collection<TimeoutEntry<V>> puts, final Collection<TimeoutEntry<V>> takes) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            //every value is encoded before any is given an id
+            final List<byte[]> encoded = new ArrayList<byte[]>(puts.size());
+            for (final TimeoutEntry<V> entry : puts) {
+                encoded.add(toBytes(entry.getItem()));
+            }
+            out.writeByte(COMMIT);
+            out.writeInt(puts.size());
+            int i = 0;
+            for (final TimeoutEntry<V> entry : puts) {
+                writePut(out, entry, encoded.get(i++));
+            }
+            final List<Long> taken = new ArrayList<Long>(takes.size());
+            for (final TimeoutEntry<V> entry : takes) {
+                final Long id = removeId(entry.getItem());
+                if (id != null) {
+                    taken.add(id);
+                }
+            }
+            out.writeInt(taken.size());
+            for (final Long id : taken) {
+                out.writeLong(id);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to log the commit", e);
+        }
+        return append(bytes.toByteArray());
+    }
+
+    /**
+     * Logs the removal of every value.
+     *
+     * @return the sequence number of the record, see {@link #sync(long)}
+     */
+    public synchronized long purge() {
+        ids.clear();
+        live.clear();
+        return append(new byte[]{PURGE});
+    }
+
+    /**
+     * Waits until every record appended so far is durable.
+     */
+    public void sync() {
+        final long upTo;
+        synchronized (this) {
+            upTo = appended;
+        }
+        sync(upTo);
+    }
+
+    /**
+     * Waits until the record with the supplied sequence number, and every record before it, is durable.
+     *
+     * @param sequence the sequence number of a record
+     * @throws IllegalStateException if the log cannot be written
+     */
+    public void sync(final long sequence) {
+        syncLock.lock();
+        try {
+            while (durable < sequence) {
+                if (failure != null) {
+                    throw new IllegalStateException("Unable to write the log " + file, failure);
+                }
+                if (syncing) {
+                    //another caller is writing, the next write will cover this record too
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+                syncing = true;
+                long upTo = durable;
+                syncLock.unlock();
+                try {
+                    final byte[] bytes;
+                    synchronized (this) {
+                        upTo = appended;
+                        bytes = pending.toByteArray();
+                        pending = new ByteArrayOutputStream();
+                    }
+                    write(bytes);
+                } catch (IOException e) {
+                    failure = e;
+                } finally {
+                    syncLock.lock();
+                    syncing = false;
+                    if (failure == null) {
+                        durable = upTo;
+                    }
+                    synced.signalAll();
+                }
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Makes everything appended durable and closes the file. Nothing can be written afterwards, closing again does
+     * nothing.
+     *
+     * @throws IOException if the log cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        syncLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+        } finally {
+            syncLock.unlock();
+        }
+        try {
+            sync();
+        } finally {
+            syncLock.lock();
+            try {
+                while (syncing) {
+                    synced.awaitUninterruptibly();
+                }
+                closed = true;
+                raf.close();
+            } finally {
+                syncLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Starts a new segment. The records buffered so far are written to the current segment, and forced, before the
+     * records that follow are written to the new one. The caller becomes the writer for the duration, as if syncing.
+     *
+     * @return the number of the new segment
+     * @throws IOException if the log cannot be written
+     */
+    private long roll() throws IOException {
+        syncLock.lock();
+        try {
+            while (syncing) {
+                synced.awaitUninterruptibly();
+            }
+            if (failure != null) {
+                throw new IOException("Unable to write the log " + file, failure);
+            }
+            syncing = true;
+        } finally {
+            syncLock.unlock();
+        }
+        long upTo = -1;
+        try {
+            final byte[] bytes;
+            synchronized (this) {
+                upTo = appended;
+                bytes = pending.toByteArray();
+                pending = new ByteArrayOutputStream();
+            }
+            write(bytes);
+            final RandomAccessFile next = new RandomAccessFile(segmentFile(segment + 1), "rw");
+            raf.close();
+            raf = next;
+            channel = next.getChannel();
+            return ++segment;
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        } finally {
+            syncLock.lock();
+            try {
+                syncing = false;
+                if (failure == null) {
+                    durable = upTo;
+                }
+                synced.signalAll();
+            } finally {
+                syncLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @param number a segment number
+     * @return the file of the segment
+     */
+    private File segmentFile(final long number) {
+        return number == 0 ? file : new File(file.getPath() + "." + number);
+    }
+
+    /**
+     * @return the numbers of the segments that exist, in order
+     */
+    private List<Long> segments() {
+        final List<Long> numbers = new ArrayList<Long>();
+        if (file.exists()) {
+            numbers.add(0L);
+        }
+        final File dir = file.getAbsoluteFile().getParentFile();
+        final String prefix = file.getName() + ".";
+        final String[] names = dir == null ? null : dir.list();
+        if (names != null) {
+            for (final String name : names) {
+                if (name.startsWith(prefix)) {
+                    try {
+                        numbers.add(Long.parseLong(name.substring(prefix.length())));
+                    } catch (NumberFormatException e) {
+                        //the snapshot or some other file
+                    }
+                }
+            }
+        }
+        java.util.Collections.sort(numbers);
+        return numbers;
+    }
+
+    /**
+     * @return the number of the first segment, zero if there are none
+     */
+    private long firstSegment() {
+        final List<Long> numbers = segments();
+        return numbers.isEmpty() ? 0 : numbers.get(0);
+    }
+
+    /**
+     * @return the number of the last segment, zero if there are none
+     */
+    private long lastSegment() {
+        final List<Long> numbers = segments();
+        return numbers.isEmpty() ? 0 : numbers.get(numbers.size() - 1);
+    }
+
+    /**
+     * @param first the first segment to keep
+     */
+    private void deleteSegmentsBefore(final long first) {
+        for (final Long number : segments()) {
+            if (number < first) {
+                segmentFile(number).delete();
+            }
+        }
+    }
+
+    /**
+     * Applies the whole records in a segment to the live values. Must be called holding the lock on this.
+     *
+     * @param segmentChannel the segment
+     * @return the length of the whole records, anything after is torn
+     * @throws IOException if the segment cannot be read
+     */
+    private long replaySegment(final FileChannel segmentChannel) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(segmentChannel.position(0))));
+        final long size = segmentChannel.size();
+        long goodLength = 0;
+        final CRC32 crc = new CRC32();
+        while (true) {
+            final byte[] record;
+            try {
+                final int length = in.readInt();
+                final int checksum = in.readInt();
+                if (length <= 0 || length > size) {
+                    break;
+                }
+                record = new byte[length];
+                in.readFully(record);
+                crc.reset();
+                crc.update(record, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                goodLength += HEADER_SIZE + length;
+            } catch (EOFException e) {
+                break;
+            }
+            apply(new DataInputStream(new ByteArrayInputStream(record)), live);
+        }
+        return goodLength;
+    }
+
+    /**
+     * Writes a snapshot. The file is mapped a region at a time as it is written and is forced before it is closed.
+     * <p/>
+     * The layout is the magic number, the number of the first segment to replay over the snapshot, the count of
+     * values, then the id, expiry time, length and serialised form of each value, then a CRC32 of all that precedes it.
+     *
+     * @param target the file to write
+     * @param first  the number of the first segment to replay over the snapshot
+     * @param values the values by id
+     * @throws IOException if the snapshot cannot be written
+     */
+    private void writeSnapshot(final File target, final long first, final List<Map.Entry<Long, Logged<V>>> values)
+            throws IOException {
+        final long now = System.currentTimeMillis();
+        final RandomAccessFile out = new RandomAccessFile(target, "rw");
+        try {
+            out.setLength(0);
+            final FileChannel snapshotChannel = out.getChannel();
+            final CRC32 crc = new CRC32();
+            long position = 0;
+            MappedByteBuffer region = snapshotChannel.map(FileChannel.MapMode.READ_WRITE, position, SNAPSHOT_REGION);
+
+            final ByteBuffer header = ByteBuffer.allocate(20);
+            header.putInt(SNAPSHOT_MAGIC).putLong(first).putInt(values.size());
+            //the count is patched once the expired values have been left out
+            final int countOffset = 12;
+            region.put(header.array(), 0, 16);
+            int count = 0;
+            for (final Map.Entry<Long, Logged<V>> each : values) {
+                final Logged<V> logged = each.getValue();
+                if (logged.expiresAt != ETERNAL && logged.expiresAt <= now) {
+                    continue;
+                }
+                final byte[] valueBytes = toBytes(logged.value);
+                final ByteBuffer entry = ByteBuffer.allocate(20 + valueBytes.length);
+                entry.putLong(each.getKey()).putLong(logged.expiresAt).putInt(valueBytes.length).put(valueBytes);
+                if (region.remaining() < entry.capacity()) {
+                    position += region.position();
+                    region.force();
+                    region = snapshotChannel.map(FileChannel.MapMode.READ_WRITE, position,
+                            Math.max(SNAPSHOT_REGION, entry.capacity() + 4));
+                }
+                region.put(entry.array());
+                count++;
+            }
+            position += region.position();
+            region.force();
+
+            //patch the count and append the checksum
+            snapshotChannel.write(ByteBuffer.wrap(ByteBuffer.allocate(4).putInt(count).array()), countOffset);
+            final InputStream check = new BufferedInputStream(Channels.newInputStream(snapshotChannel.position(0)));
+            final byte[] buffer = new byte[64 * 1024];
+            for (long left = position; left > 0; ) {
+                final int read = check.read(buffer, 0, (int) Math.min(buffer.length, left));
+                crc.update(buffer, 0, read);
+                left -= read;
+            }
+            snapshotChannel.write(ByteBuffer.wrap(ByteBuffer.allocate(4).putInt((int) crc.getValue()).array()), position);
+            snapshotChannel.truncate(position + 4);
+            snapshotChannel.force(true);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Loads the snapshot into the live values. The snapshot is mapped rather than read. Must be called holding the
+     * lock on this.
+     *
+     * @return the number of the first segment to replay over the snapshot
+     * @throws IOException if the snapshot cannot be read or is corrupt
+     */
+    private long readSnapshot() throws IOException {
+        final RandomAccessFile in = new RandomAccessFile(snapshotFile, "r");
+        try {
+            final long size = in.length();
+            if (size < 20 || size > Integer.MAX_VALUE) {
+                throw new IOException("The snapshot " + snapshotFile + " is corrupt or too large to map");
+            }
+            final MappedByteBuffer mapped = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            final byte[] buffer = new byte[64 * 1024];
+            final CRC32 crc = new CRC32();
+            for (int done = 0, bodySize = (int) size - 4; done < bodySize; ) {
+                final int chunk = Math.min(buffer.length, bodySize - done);
+                mapped.get(buffer, 0, chunk);
+                crc.update(buffer, 0, chunk);
+                done += chunk;
+            }
+            if ((int) crc.getValue() != mapped.getInt()) {
+                throw new IOException("The snapshot " + snapshotFile + " is corrupt");
+            }
+
+            mapped.position(0);
+            if (mapped.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException(snapshotFile + " is not a snapshot");
+            }
+            final long first = mapped.getLong();
+            for (int count = mapped.getInt(); count > 0; count--) {
+                final long id = mapped.getLong();
+                final long expiresAt = mapped.getLong();
+                final byte[] valueBytes = new byte[mapped.getInt()];
+                mapped.get(valueBytes);
+                live.put(id, new Logged<V>(fromBytes(valueBytes), expiresAt));
+                nextId = Math.max(nextId, id);
+            }
+            return first;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Must be called holding the lock on this.
+     *
+     * @param type  TAKE or EXPIRE
+     * @param value the value removed
+     * @return the sequence number of the record, or of the last record if nothing was logged
+     */
+    private long logRemoval(final byte type, final V value) {
+        final Long id = removeId(value);
+        if (id == null) {
+            return appended;
+        }
+        final ByteBuffer bytes = ByteBuffer.allocate(9);
+        bytes.put(type).putLong(id);
+        return append(bytes.array());
+    }
+
+    /**
+     * Tuples are written with the codec, if there is one, anything else with Java serialisation.
+     */
+    private byte[] toBytes(final V value) throws IOException {
+        if (codec != null && value instanceof Tuple) {
+            return codec.encode((Tuple) value);
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream objects = new ObjectOutputStream(bytes);
+        objects.writeObject(value);
+        objects.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * A value is read with Java serialisation if it starts with the serialisation stream's magic number, otherwise
+     * with the codec, or the default codec if this log was opened without one. So a log written before a codec was
+     * used can still be read, as can one written with a codec by a log opened without one.
+     */
+    @SuppressWarnings("unchecked")
+    private V fromBytes(final byte[] bytes) throws IOException {
+        final boolean serialised = bytes.length > 1
+                && (bytes[0] & 0xFF) == (ObjectStreamConstants.STREAM_MAGIC >>> 8 & 0xFF)
+                && (bytes[1] & 0xFF) == (ObjectStreamConstants.STREAM_MAGIC & 0xFF);
+        if (!serialised) {
+            return (V) (codec == null ? TupleCodecs.getDefault() : codec).decode(bytes);
+        }
+        final ObjectInputStream objects = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return (V) objects.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unable to read a value from " + file, e);
+        }
+    }
+
+    /**
+     * Must be called holding the lock on this.
+     *
+     * @param out        where to write
+     * @param entry      the value and its timeout
+     * @param valueBytes the encoded value
+     * @throws IOException if the record cannot be written
+     */
+    private void writePut(final DataOutputStream out, final TimeoutEntry<V> entry, final byte[] valueBytes)
+            throws IOException {
+        final long delay = entry.getDelay(TimeUnit.MILLISECONDS);
+        final long expiresAt = delay == Long.MAX_VALUE ? ETERNAL : System.currentTimeMillis() + delay;
+
+        final long id = ++nextId;
+        out.writeLong(id);
+        out.writeLong(expiresAt);
+        out.writeInt(valueBytes.length);
+        out.write(valueBytes);
+        addId(entry.getItem(), id);
+        live.put(id, new Logged<V>(entry.getItem(), expiresAt));
+    }
+
+    /**
+     * Frames and buffers a record. Must be called holding the lock on this.
+     *
+     * @param record the record
+     * @return the sequence number of the record
+     */
+    private long append(final byte[] record) {
+        final CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(record.length).putInt((int) crc.getValue());
+        pending.write(header.array(), 0, HEADER_SIZE);
+        pending.write(record, 0, record.length);
+        return ++appended;
+    }
+
+    /**
+     * @param bytes some whole records
+     * @throws IOException if they cannot be written
+     */
+    private void write(final byte[] bytes) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Applies a record read from the log to the values that are live.
+     *
+     * @param in   the record
+     * @param live the live values by id
+     * @throws IOException if the record cannot be read
+     */
+    private void apply(final DataInputStream in, final Map<Long, Logged<V>> live) throws IOException {
+        final byte type = in.readByte();
+        switch (type) {
+            case PUT:
+                readPut(in, live);
+                break;
+            case TAKE:
+            case EXPIRE:
+                live.remove(in.readLong());
+                break;
+            case COMMIT:
+                for (int puts = in.readInt(); puts > 0; puts--) {
+                    readPut(in, live);
+                }
+                for (int takes = in.readInt(); takes > 0; takes--) {
+                    live.remove(in.readLong());
+                }
+                break;
+            case PURGE:
+                live.clear();
+                break;
+            default:
+                throw new IOException("Unknown record type " + type + " in " + file);
+        }
+    }
+
+    /**
+     * @param in   the body of a put
+     * @param live the live values by id
+     * @throws IOException if the value cannot be read
+     */
+    private void readPut(final DataInputStream in, final Map<Long, Logged<V>> live) throws IOException {
+        final long id = in.readLong();
+        final long expiresAt = in.readLong();
+        final byte[] valueBytes = new byte[in.readInt()];
+        in.readFully(valueBytes);
+        live.put(id, new Logged<V>(fromBytes(valueBytes), expiresAt));
+        nextId = Math.max(nextId, id);
+    }
+
+    /**
+     * Must be called holding the lock on this.
+     */
+    @SuppressWarnings("unchecked")
+    private void addId(final V value, final Long id) {
+        final Object existing = ids.get(value);
+        if (existing == null) {
+            ids.put(value, id);
+        } else if (existing instanceof ArrayDeque) {
+            ((ArrayDeque<Long>) existing).add(id);
+        } else {
+            final ArrayDeque<Long> several = new ArrayDeque<Long>(2);
+            several.add((Long) existing);
+            several.add(id);
+            ids.put(value, several);
+        }
+    }
+
+    /**
+     * Must be called holding the lock on this.
+     *
+     * @return the id the value was logged with, or null if it was not logged
+     */
+    @SuppressWarnings("unchecked")
+    private Long removeId(final V value) {
+        final Object existing = ids.get(value);
+        if (existing instanceof ArrayDeque) {
+            final ArrayDeque<Long> several = (ArrayDeque<Long>) existing;
+            final Long id = several.poll();
+            if (several.isEmpty()) {
+                ids.remove(value);
+            }
+            live.remove(id);
+            return id;
+        }
+        if (existing != null) {
+            ids.remove(value);
+            live.remove(existing);
+        }
+        return (Long) existing;
+    }
+
+    /**
+     * A value read from the log.
+     */
+    private static final class Logged<V> {
+        private final V value;
+        private final long expiresAt;
+
+        private Logged(final V value, final long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
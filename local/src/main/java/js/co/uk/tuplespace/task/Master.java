@@ -21,11 +21,13 @@ package js.co.uk.tuplespace.task;
 
 import js.co.uk.tuplespace.space.Space;
 import js.co.uk.tuplespace.store.TransactionException;
+import js.co.uk.tuplespace.util.ThreadMode;
 
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
@@ -39,7 +41,7 @@ public abstract class Master {
     private Future<?> generatorFuture;
     private Future<?> collectorFuture;
 
-    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ExecutorService executor;
     /**
      * 
      */
@@ -49,6 +51,10 @@ public abstract class Master {
     private AtomicInteger maxAllowedLevel = new AtomicInteger(0);
     private int currentLevel = 0;
 
+    //a lock rather than a monitor, so that waiting for the low water mark does not pin a virtual thread
+    private final ReentrantLock levelLock = new ReentrantLock();
+    private final Condition levelChanged = levelLock.newCondition();
+
 
 
     /**
@@ -77,8 +83,20 @@ public abstract class Master {
      * @param maxAllowedLevel
      */
     public Master(final Space space, final int maxAllowedLevel) {
+        this(space, maxAllowedLevel, ThreadMode.configured());
+
+    }
+
+    /**
+     * 
+     * @param space
+     * @param maxAllowedLevel
+     * @param threadMode the kind of threads that generateTasks() and collectResults() run on
+     */
+    public Master(final Space space, final int maxAllowedLevel, final ThreadMode threadMode) {
         this.space = space;
         this.maxAllowedLevel = new AtomicInteger(maxAllowedLevel);
+        this.executor = threadMode.newExecutor();
 
     }
     
@@ -179,27 +197,36 @@ public abstract class Master {
         });
     }
 
-    private synchronized void waitForLowWaterMark() {
+    private void waitForLowWaterMark() {
 
-        //rewrite this using condition
-        while (currentLevel > maxAllowedLevel.intValue()) {
+        levelLock.lock();
+        try {
+            while (currentLevel > maxAllowedLevel.intValue()) {
 
-            try {
-                wait();
-            } catch (final InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
+                try {
+                    levelChanged.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
 
-            /*
-            ...and carry on
-             */
+                /*
+                ...and carry on
+                 */
+            }
+        } finally {
+            levelLock.unlock();
         }
     }
 
-    private synchronized void changeCurrentLevel(final int amount) {
+    private void changeCurrentLevel(final int amount) {
 
-        currentLevel += amount;
-        notifyAll();
+        levelLock.lock();
+        try {
+            currentLevel += amount;
+            levelChanged.signalAll();
+        } finally {
+            levelLock.unlock();
+        }
     }
 
 
@@ -20,12 +20,13 @@
 package js.co.uk.tuplespace.task;
 
 import js.co.uk.tuplespace.space.Space;
+import js.co.uk.tuplespace.tuple.Prioritized;
 
 /**
  * 
  * @author mike
  */
-public class TaskTuple implements Command {
+public class TaskTuple implements Command, Prioritized {
 
     /*
     This class is is not abstract because it's used as  a template for matching in Worker
@@ -36,4 +37,14 @@ public class TaskTuple implements Command {
         throw new UnsupportedOperationException("Not implemented- TaskTuple must be extended");
 
     }
+
+    /**
+     * The priority of the task. When the space's ordering is PRIORITY a Worker takes the task of highest priority
+     * first, so urgent tasks need not queue behind background ones. Override to raise or lower it.
+     *
+     * @return 0
+     */
+    public int getPriority() {
+        return 0;
+    }
 }
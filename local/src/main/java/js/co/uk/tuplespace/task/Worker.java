@@ -23,9 +23,9 @@ import js.co.uk.tuplespace.space.Space;
 import js.co.uk.tuplespace.store.TransactionException;
 import js.co.uk.tuplespace.store.TransactionID;
 import js.co.uk.tuplespace.tuple.Tuple;
+import js.co.uk.tuplespace.util.ThreadMode;
 
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 
@@ -42,7 +42,7 @@ public class Worker {
     private final Tuple template = new TaskTuple();
 
     private final Space space;
-    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ExecutorService executor;
     private Future<?> task;
     private volatile boolean keepRunning = true;
 
@@ -59,11 +59,23 @@ public class Worker {
     private boolean simulateFailures = false;
 
     /**
-     * 
+     * Creates a worker whose threads are of the configured kind, see {@link ThreadMode#configured()}.
+     *
      * @param space
      */
     public Worker(final Space space) {
+        this(space, ThreadMode.configured());
+    }
+
+    /**
+     * Creates a worker whose task loop, and wait for the poison pill, run on threads of the given kind.
+     *
+     * @param space
+     * @param threadMode the kind of threads
+     */
+    public Worker(final Space space, final ThreadMode threadMode) {
         this.space = space;
+        this.executor = threadMode.newExecutor();
         final Thread pillThread = makePillThread();
         executor.submit(pillThread);
         workThread = makeWorkThread();
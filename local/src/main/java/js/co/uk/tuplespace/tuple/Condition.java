@@ -0,0 +1,243 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.tuple;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * A test of a single value that can be used in a template where an exact value would otherwise be given, either as
+ * an entry of a {@link SimpleTuple} template or for a field of a {@link QueryTemplate}. For example
+ * <p/>
+ * new SimpleTuple("task", Condition.gt(5))
+ * <p/>
+ * matches the tuples ("task", 6), ("task", 7) and so on. A condition is either a range, possibly open at one end, a
+ * prefix of a String, or a set of values. The conditions are evaluated in the space, and can be answered from a sorted
+ * index, see {@link js.co.uk.tuplespace.space.Space#createSortedIndex(Class, String)}.
+ * <p/>
+ * The bounds of a range are compared with values of their own class only, so for example Condition.gt(5) never
+ * matches the Long 6L, use Condition.gt(5L) for that. A null value never satisfies a condition.
+ */
+@SuppressWarnings("serial")
+public final class Condition implements Serializable {
+
+    private final Comparable<?> lower;
+    private final boolean lowerInclusive;
+    private final Comparable<?> upper;
+    private final boolean upperInclusive;
+    private final String prefix;
+    private final Set<Object> values;
+
+    private Condition(final Comparable<?> lower, final boolean lowerInclusive,
+                      final Comparable<?> upper, final boolean upperInclusive,
+                      final String prefix, final Set<Object> values) {
+        if (lower != null && upper != null && lower.getClass() != upper.getClass()) {
+            throw new IllegalArgumentException("The bounds " + lower + " and " + upper + " are of different classes");
+        }
+        this.lower = lower;
+        this.lowerInclusive = lowerInclusive;
+        this.upper = upper;
+        this.upperInclusive = upperInclusive;
+        this.prefix = prefix;
+        this.values = values;
+    }
+
+    /**
+     * @param value the value
+     * @return a condition satisfied by values equal to the supplied value
+     */
+    public static Condition eq(final Object value) {
+        return in(value);
+    }
+
+    /**
+     * @param values the values
+     * @return a condition satisfied by values equal to any of the supplied values
+     */
+    public static Condition in(final Object... values) {
+        return new Condition(null, false, null, false, null, new LinkedHashSet<Object>(Arrays.asList(values)));
+    }
+
+    /**
+     * @param bound the bound
+     * @return a condition satisfied by values greater than the bound
+     */
+    public static Condition gt(final Comparable<?> bound) {
+        return new Condition(notNull(bound), false, null, false, null, null);
+    }
+
+    /**
+     * @param bound the bound
+     * @return a condition satisfied by values greater than or equal to the bound
+     */
+    public static Condition ge(final Comparable<?> bound) {
+        return new Condition(notNull(bound), true, null, false, null, null);
+    }
+
+    /**
+     * @param bound the bound
+     * @return a condition satisfied by values less than the bound
+     */
+    public static Condition lt(final Comparable<?> bound) {
+        return new Condition(null, false, notNull(bound), false, null, null);
+    }
+
+    /**
+     * @param bound the bound
+     * @return a condition satisfied by values less than or equal to the bound
+     */
+    public static Condition le(final Comparable<?> bound) {
+        return new Condition(null, false, notNull(bound), true, null, null);
+    }
+
+    /**
+     * @param from the lower bound, inclusive
+     * @param to   the upper bound, inclusive
+     * @return a condition satisfied by values from one bound to the other
+     */
+    public static Condition between(final Comparable<?> from, final Comparable<?> to) {
+        return new Condition(notNull(from), true, notNull(to), true, null, null);
+    }
+
+    /**
+     * @param prefix the prefix
+     * @return a condition satisfied by Strings that start with the prefix
+     */
+    public static Condition prefix(final String prefix) {
+        //the Strings with the prefix lie between it and the prefix with its last character incremented
+        String next = null;
+        final int last = notNull(prefix).length() - 1;
+        if (last >= 0 && prefix.charAt(last) != Character.MAX_VALUE) {
+            next = prefix.substring(0, last) + (char) (prefix.charAt(last) + 1);
+        }
+        return new Condition(prefix, true, next, false, prefix, null);
+    }
+
+    /**
+     * @param value the value to test
+     * @return true if the value satisfies this condition
+     */
+    @SuppressWarnings("unchecked")
+    public boolean test(final Object value) {
+        if (value == null) {
+            return false;
+        }
+        if (values != null) {
+            return values.contains(value);
+        }
+        if (prefix != null) {
+            return value instanceof String && ((String) value).startsWith(prefix);
+        }
+        if (lower != null) {
+            if (lower.getClass() != value.getClass()) {
+                return false;
+            }
+            final int comparison = ((Comparable<Object>) value).compareTo(lower);
+            if (comparison < 0 || comparison == 0 && !lowerInclusive) {
+                return false;
+            }
+        }
+        if (upper != null) {
+            if (upper.getClass() != value.getClass()) {
+                return false;
+            }
+            final int comparison = ((Comparable<Object>) value).compareTo(upper);
+            if (comparison > 0 || comparison == 0 && !upperInclusive) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the values that satisfy this condition, or null if it is a range or prefix
+     */
+    public Set<Object> getValues() {
+        return values == null ? null : Collections.unmodifiableSet(values);
+    }
+
+    /**
+     * @return the lower bound of the values that can satisfy this condition, or null if there is none
+     */
+    public Comparable<?> getLower() {
+        return lower;
+    }
+
+    /**
+     * @return true if the lower bound itself can satisfy this condition
+     */
+    public boolean isLowerInclusive() {
+        return lowerInclusive;
+    }
+
+    /**
+     * @return the upper bound of the values that can satisfy this condition, or null if there is none
+     */
+    public Comparable<?> getUpper() {
+        return upper;
+    }
+
+    /**
+     * @return true if the upper bound itself can satisfy this condition
+     */
+    public boolean isUpperInclusive() {
+        return upperInclusive;
+    }
+
+    private static <T> T notNull(final T bound) {
+        if (bound == null) {
+            throw new IllegalArgumentException("A bound cannot be null");
+        }
+        return bound;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        final Condition that = (Condition) o;
+
+        return lowerInclusive == that.lowerInclusive && upperInclusive == that.upperInclusive
+                && (lower == null ? that.lower == null : lower.equals(that.lower))
+                && (upper == null ? that.upper == null : upper.equals(that.upper))
+                && (prefix == null ? that.prefix == null : prefix.equals(that.prefix))
+                && (values == null ? that.values == null : values.equals(that.values));
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(new Object[]{lower, lowerInclusive, upper, upperInclusive, prefix, values});
+    }
+
+    @Override
+    public String toString() {
+        if (values != null) {
+            return "in" + values;
+        }
+        if (prefix != null) {
+            return "prefix(" + prefix + ")";
+        }
+        return (lower == null ? "(" : (lowerInclusive ? "[" : "(") + lower) + ".."
+                + (upper == null ? ")" : upper + (upperInclusive ? "]" : ")"));
+    }
+}
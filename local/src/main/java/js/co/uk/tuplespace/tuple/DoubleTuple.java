@@ -0,0 +1,131 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.tuple;
+
+import java.util.Arrays;
+
+/**
+ * A tuple of doubles, see {@link PrimitiveTuple}. Values are compared as Double.equals compares them, so NaN matches
+ * NaN and 0.0 does not match -0.0.
+ * <p/>
+ * <i>space.put(new DoubleTuple(3, 4));</i><br>
+ * <i>space.get(DoubleTuple.template(3, null));</i>
+ */
+@SuppressWarnings("serial")
+public final class DoubleTuple extends PrimitiveTuple {
+
+    private final double[] values;
+
+    /**
+     * Creates a tuple with no wildcards.
+     *
+     * @param values the values
+     */
+    public DoubleTuple(final double... values) {
+        this(0L, values);
+    }
+
+    private DoubleTuple(final long wildcards, final double[] values) {
+        super(values.length, wildcards);
+        this.values = values.clone();
+        for (int i = 0; i < this.values.length; i++) {
+            if (isWildcard(i)) {
+                this.values[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * Creates a tuple with wildcards.
+     *
+     * @param wildcards the wildcard positions, bit n set for position n
+     * @param values    the values, those at the wildcard positions are ignored
+     * @return the tuple
+     */
+    public static DoubleTuple withWildcards(final long wildcards, final double... values) {
+        return new DoubleTuple(wildcards, values);
+    }
+
+    /**
+     * Creates a template.
+     *
+     * @param values the values, null for a wildcard
+     * @return the template
+     */
+    public static DoubleTuple template(final Double... values) {
+        final double[] primitives = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            primitives[i] = values[i] == null ? 0 : values[i];
+        }
+        return new DoubleTuple(wildcardsOf(values), primitives);
+    }
+
+    @Override
+    public int arity() {
+        return values.length;
+    }
+
+    /**
+     * @param position a position
+     * @return the value at the position, 0 for a wildcard
+     */
+    public double get(final int position) {
+        return values[position];
+    }
+
+    @Override
+    public boolean matches(final PrimitiveTuple tuple) {
+        if (!(tuple instanceof DoubleTuple)) {
+            return false;
+        }
+        final double[] other = ((DoubleTuple) tuple).values;
+        if (other.length != values.length) {
+            return false;
+        }
+        for (int i = 0; i < values.length; i++) {
+            if (Double.doubleToLongBits(values[i]) != Double.doubleToLongBits(other[i]) && (wildcards & (1L << i)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) return true;
+        if (obj == null || getClass() != obj.getClass()) return false;
+
+        final DoubleTuple other = (DoubleTuple) obj;
+        return wildcards == other.wildcards && Arrays.equals(values, other.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(values) + (int) (wildcards ^ (wildcards >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        final String[] strings = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            strings[i] = String.valueOf(values[i]);
+        }
+        return toString(strings);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.tuple;
+
+import java.util.Arrays;
+
+/**
+ * A tuple of longs, see {@link PrimitiveTuple}.
+ * <p/>
+ * <i>space.put(new LongTuple(3, 4));</i><br>
+ * <i>space.get(LongTuple.template(3, null));</i>
+ */
+@SuppressWarnings("serial")
+public final class LongTuple extends PrimitiveTuple {
+
+    private final long[] values;
+
+    /**
+     * Creates a tuple with no wildcards.
+     *
+     * @param values the values
+     */
+    public LongTuple(final long... values) {
+        this(0L, values);
+    }
+
+    private LongTuple(final long wildcards, final long[] values) {
+        super(values.length, wildcards);
+        this.values = values.clone();
+        for (int i = 0; i < this.values.length; i++) {
+            if (isWildcard(i)) {
+                this.values[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * Creates a tuple with wildcards.
+     *
+     * @param wildcards the wildcard positions, bit n set for position n
+     * @param values    the values, those at the wildcard positions are ignored
+     * @return the tuple
+     */
+    public static LongTuple withWildcards(final long wildcards, final long... values) {
+        return new LongTuple(wildcards, values);
+    }
+
+    /**
+     * Creates a template.
+     *
+     * @param values the values, null for a wildcard
+     * @return the template
+     */
+    public static LongTuple template(final Long... values) {
+        final long[] primitives = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            primitives[i] = values[i] == null ? 0 : values[i];
+        }
+        return new LongTuple(wildcardsOf(values), primitives);
+    }
+
+    @Override
+    public int arity() {
+        return values.length;
+    }
+
+    /**
+     * @param position a position
+     * @return the value at the position, 0 for a wildcard
+     */
+    public long get(final int position) {
+        return values[position];
+    }
+
+    @Override
+    public boolean matches(final PrimitiveTuple tuple) {
+        if (!(tuple instanceof LongTuple)) {
+            return false;
+        }
+        final long[] other = ((LongTuple) tuple).values;
+        if (other.length != values.length) {
+            return false;
+        }
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != other[i] && (wildcards & (1L << i)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) return true;
+        if (obj == null || getClass() != obj.getClass()) return false;
+
+        final LongTuple other = (LongTuple) obj;
+        return wildcards == other.wildcards && Arrays.equals(values, other.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(values) + (int) (wildcards ^ (wildcards >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        final String[] strings = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            strings[i] = String.valueOf(values[i]);
+        }
+        return toString(strings);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.tuple;
+
+/**
+ * A tuple of a fixed number of primitives, held in a packed array rather than boxed in a collection as a
+ * {@link SimpleTuple} is. Any position can be a wildcard, the wildcards are a bit mask with bit n set for position
+ * n, so a tuple has at most 64 positions.
+ * <p/>
+ * A tuple matches a template of the same class and arity if each position that is not a wildcard in the template
+ * holds the same value in both. The comparison is made on the primitives, see
+ * {@link js.co.uk.tuplespace.matcher.PrimitiveTupleMatcher}, so nothing is boxed when matching.
+ * <p/>
+ * Primitive tuples must not be changed whilst in a space.
+ */
+@SuppressWarnings("serial")
+public abstract class PrimitiveTuple implements Tuple {
+
+    /**
+     * The most positions a tuple can have.
+     */
+    public static final int MAX_ARITY = 64;
+
+    /**
+     * Bit n is set if position n is a wildcard.
+     */
+    protected final long wildcards;
+
+    /**
+     * @param arity     the number of positions
+     * @param wildcards the positions that are wildcards
+     */
+    protected PrimitiveTuple(final int arity, final long wildcards) {
+        if (arity > MAX_ARITY) {
+            throw new IllegalArgumentException("A primitive tuple can have at most " + MAX_ARITY + " positions, not " + arity);
+        }
+        if (arity < MAX_ARITY && (wildcards >>> arity) != 0) {
+            throw new IllegalArgumentException("The wildcards " + Long.toBinaryString(wildcards) + " go beyond the "
+                    + arity + " positions");
+        }
+        this.wildcards = wildcards;
+    }
+
+    /**
+     * @return the number of positions
+     */
+    public abstract int arity();
+
+    /**
+     * @param tuple a tuple
+     * @return true if the tuple matches this, taken as a template
+     */
+    public abstract boolean matches(final PrimitiveTuple tuple);
+
+    /**
+     * @return the wildcard positions, bit n set for position n
+     */
+    public final long getWildcards() {
+        return wildcards;
+    }
+
+    /**
+     * @param position a position
+     * @return true if the position is a wildcard
+     */
+    public final boolean isWildcard(final int position) {
+        return (wildcards & (1L << position)) != 0;
+    }
+
+    /**
+     * @param values the values of a template, null for a wildcard
+     * @return the wildcard positions
+     */
+    static long wildcardsOf(final Object[] values) {
+        long wildcards = 0;
+        for (int i = 0; i < values.length && i < MAX_ARITY; i++) {
+            if (values[i] == null) {
+                wildcards |= 1L << i;
+            }
+        }
+        return wildcards;
+    }
+
+    /**
+     * @param values the values, as strings
+     * @return the values with '*' at the wildcard positions
+     */
+    final String toString(final String[] values) {
+        final StringBuilder builder = new StringBuilder(getClass().getSimpleName()).append('{');
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(isWildcard(i) ? "*" : values[i]);
+        }
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.tuple;
+
+/**
+ * A tuple with a priority. In a space whose ordering is {@link js.co.uk.tuplespace.store.Ordering#PRIORITY} a take
+ * or read returns the matching tuple with the highest priority, and of those the one that was put first. The priority
+ * must not change whilst the tuple is in a space.
+ */
+public interface Prioritized extends Tuple {
+
+    /**
+     * @return the priority, higher is more urgent
+     */
+    int getPriority();
+}
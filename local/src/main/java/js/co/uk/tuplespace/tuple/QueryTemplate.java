@@ -0,0 +1,170 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.tuple;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A template that matches the tuples of a class whose fields satisfy some {@link Condition}s, for use where an
+ * ordinary template of the class cannot express the match as it can only give an exact value or a wildcard for each
+ * field. For example
+ * <p/>
+ * new QueryTemplate(Task.class).where("priority", Condition.gt(5))
+ * <p/>
+ * matches any Task with a priority above 5, whatever its other fields. As with an ordinary template a tuple whose class
+ * directly extends the template's class can also match.
+ * <p/>
+ * The conditions are evaluated in the space by a {@link js.co.uk.tuplespace.matcher.FieldBasedMatcher}, and a
+ * condition on a field with a sorted index, see {@link js.co.uk.tuplespace.space.Space#createSortedIndex(Class, String)},
+ * only looks at the tuples in the range it covers. SimpleTuples are queried by using conditions as entries of an
+ * ordinary SimpleTuple template instead.
+ */
+@SuppressWarnings("serial")
+public final class QueryTemplate implements Tuple {
+
+    private final Class<? extends Tuple> type;
+
+    private final LinkedHashMap<String, Condition> conditions = new LinkedHashMap<String, Condition>();
+
+    /**
+     * The fields the conditions apply to, looked up when first matching.
+     */
+    private transient volatile Field[] fields;
+
+    /**
+     * @param type the class of the tuples to match
+     * @throws IllegalArgumentException if the class is a SimpleTuple or primitive tuple, which have no named fields
+     */
+    public QueryTemplate(final Class<? extends Tuple> type) {
+        if (SimpleTuple.class.isAssignableFrom(type) || PrimitiveTuple.class.isAssignableFrom(type)
+                || type == QueryTemplate.class) {
+            throw new IllegalArgumentException("Cannot query the fields of " + type.getName());
+        }
+        this.type = type;
+    }
+
+    /**
+     * Adds a condition on a field, replacing any already given for it.
+     *
+     * @param field     the name of the field, declared by the class or one of its superclasses
+     * @param condition the condition the field's value must satisfy
+     * @return this
+     * @throws IllegalArgumentException if the class has no such field
+     */
+    public QueryTemplate where(final String field, final Condition condition) {
+        fieldOf(type, field);
+        conditions.put(field, condition);
+        fields = null;
+        return this;
+    }
+
+    /**
+     * Adds a condition that a field is equal to a value, see {@link #where(String, Condition)}.
+     *
+     * @param field the name of the field
+     * @param value the value
+     * @return this
+     */
+    public QueryTemplate where(final String field, final Object value) {
+        return where(field, Condition.eq(value));
+    }
+
+    /**
+     * @return the class of the tuples matched
+     */
+    public Class<? extends Tuple> getType() {
+        return type;
+    }
+
+    /**
+     * @return the conditions keyed on the names of their fields
+     */
+    public Map<String, Condition> getConditions() {
+        return Collections.unmodifiableMap(conditions);
+    }
+
+    /**
+     * @param field the name of a field
+     * @return the condition on the field, or null if there is none
+     */
+    public Condition getCondition(final String field) {
+        return conditions.get(field);
+    }
+
+    /**
+     * @param tuple the tuple to match
+     * @return true if the tuple is of the class queried, or directly extends it, and its fields satisfy the conditions
+     */
+    public boolean matches(final Tuple tuple) {
+
+        if (tuple.getClass() != type && tuple.getClass().getSuperclass() != type) {
+            return false;
+        }
+        Field[] queried = fields;
+        if (queried == null) {
+            queried = new Field[conditions.size()];
+            int i = 0;
+            for (final String name : conditions.keySet()) {
+                queried[i++] = fieldOf(type, name);
+            }
+            fields = queried;
+        }
+        int i = 0;
+        for (final Condition condition : conditions.values()) {
+            try {
+                if (!condition.test(queried[i++].get(tuple))) {
+                    return false;
+                }
+            } catch (IllegalAccessException e) {
+                //made accessible in fieldOf
+                throw new IllegalStateException(e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param type the class
+     * @param name the name of a field
+     * @return the instance field, declared by the class or a superclass, made accessible
+     */
+    private static Field fieldOf(final Class<?> type, final String name) {
+        for (Class<?> declaring = type; declaring != null; declaring = declaring.getSuperclass()) {
+            try {
+                final Field field = declaring.getDeclaredField(name);
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    field.setAccessible(true);
+                    return field;
+                }
+            } catch (NoSuchFieldException e) {
+                //try the superclass
+            }
+        }
+        throw new IllegalArgumentException(type.getName() + " has no field " + name);
+    }
+
+    @Override
+    public String toString() {
+        return "QueryTemplate{" + type.getSimpleName() + " where " + conditions + '}';
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.tuple;
+
+/**
+ * A tuple that chooses which shard of a {@link js.co.uk.tuplespace.space.ShardedTupleSpace} it is stored in, rather
+ * than being stored with the other tuples of its class. The routing key must be derived from the tuple's fields so that
+ * every tuple matching a template with a non-null key has that same key. A template whose key is null, ie a field the
+ * key is derived from is a wildcard, is matched against every shard.
+ */
+public interface Routable extends Tuple {
+
+    /**
+     * @return the routing key, or null if the key is not known
+     */
+    Object getRoutingKey();
+}
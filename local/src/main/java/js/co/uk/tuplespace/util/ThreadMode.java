@@ -0,0 +1,143 @@
+/*
+ * ******************************************************************************
+ *  * Copyright (c) 2012. Mike Houghton.
+ *  *
+ *  *
+ *  * This file is part of 'TupleSpace'.
+ *  *
+ *  * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ *  * License as published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ *  * any later version.
+ *  *
+ *  * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *  * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License along with 'TupleSpace'.
+ *  * If not, see http://www.gnu.org/licenses/.
+ *  *****************************************************************************
+ */
+package js.co.uk.tuplespace.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The kind of threads that the workers, masters and the remote server run their tasks on. Virtual threads make a task
+ * blocked on a get cost a few KB rather than a platform thread, but they need Java 21, so they are looked up
+ * reflectively and platform threads are used in their place on an earlier JVM.
+ * <p/>
+ * The mode used when none is given is {@link #configured()}.
+ */
+public enum ThreadMode {
+
+    /**
+     * A cached pool of platform threads.
+     */
+    PLATFORM,
+
+    /**
+     * A new virtual thread per task.
+     */
+    VIRTUAL;
+
+    /**
+     * The name of the system property, and of the property in spaces.properties, that selects the configured mode.
+     */
+    public static final String PROPERTY = "space.threads";
+
+    private static final Logger LOG = Logger.getLogger(ThreadMode.class.getName());
+
+    /**
+     * @return a new executor that runs each task on a thread of this kind
+     */
+    public ExecutorService newExecutor() {
+        if (this == VIRTUAL) {
+            final ExecutorService executor = newVirtualThreadPerTaskExecutor();
+            if (executor != null) {
+                return executor;
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * @return true if this JVM has virtual threads
+     */
+    public static boolean isVirtualSupported() {
+        final ExecutorService executor = newVirtualThreadPerTaskExecutor();
+        if (executor == null) {
+            return false;
+        }
+        executor.shutdown();
+        return true;
+    }
+
+    /**
+     * The mode given by the system property {@value #PROPERTY}, or else by the same property in a spaces.properties on
+     * the classpath, or else PLATFORM.
+     *
+     * @return the configured mode
+     */
+    public static ThreadMode configured() {
+        String mode = System.getProperty(PROPERTY);
+        if (mode == null) {
+            final InputStream in = ThreadMode.class.getClassLoader().getResourceAsStream("spaces.properties");
+            if (in != null) {
+                try {
+                    final Properties props = new Properties();
+                    props.load(in);
+                    mode = props.getProperty(PROPERTY);
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Unable to read spaces.properties", e);
+                } finally {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        //nothing more to do
+                    }
+                }
+            }
+        }
+        return parse(mode, PLATFORM);
+    }
+
+    /**
+     * @param mode         the name of a mode, in any case, may be null
+     * @param defaultValue the mode to use if the name is null or not a mode
+     * @return the mode
+     */
+    public static ThreadMode parse(final String mode, final ThreadMode defaultValue) {
+        if (mode == null) {
+            return defaultValue;
+        }
+        try {
+            return valueOf(mode.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            LOG.log(Level.WARNING, "Problem with ''{0}'', it must be PLATFORM or VIRTUAL.", PROPERTY);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return Executors.newVirtualThreadPerTaskExecutor(), null if the JVM does not have it
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            LOG.log(Level.FINE, "Virtual threads need Java 21, using platform threads");
+        } catch (IllegalAccessException e) {
+            LOG.log(Level.WARNING, "Unable to use virtual threads, using platform threads", e);
+        } catch (InvocationTargetException e) {
+            //eg a preview of virtual threads that has not been enabled
+            LOG.log(Level.WARNING, "Unable to use virtual threads, using platform threads", e.getCause());
+        }
+        return null;
+    }
+}
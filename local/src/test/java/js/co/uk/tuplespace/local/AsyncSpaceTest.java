@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * Copyright (c) 2012. Mike Houghton.
+ *
+ *
+ * This file is part of 'TupleSpace'.
+ *
+ * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with 'TupleSpace'. If not, see http://www.gnu.org/licenses/.
+ ******************************************************************************/
+
+package js.co.uk.tuplespace.local;
+
+import js.co.uk.tuplespace.space.TupleSpace;
+import js.co.uk.tuplespace.store.CapacityExceededException;
+import js.co.uk.tuplespace.store.CapacityPolicy;
+import js.co.uk.tuplespace.store.Ordering;
+import js.co.uk.tuplespace.tuple.SimpleTuple;
+import js.co.uk.tuplespace.tuple.Tuple;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class AsyncSpaceTest {
+
+    private TupleSpace space;
+
+    @Before
+    public void setUp() {
+        space = new TupleSpace("AsyncSpaceTest");
+    }
+
+    @Test
+    public void aTakeThatCanMatchIsCompletedStraightAway() throws Exception {
+
+        final Tuple job = new SimpleTuple("job", 1);
+        space.put(job);
+        final CompletableFuture<Tuple> taken = space.getAsync(new SimpleTuple("job", "*"));
+        assertTrue(taken.isDone());
+        assertSame(job, taken.get());
+        assertEquals(0, space.size());
+        assertEquals(0, space.pendingMatchesCount());
+    }
+
+    @Test
+    public void aPendingTakeIsCompletedByALaterPut() throws Exception {
+
+        final CompletableFuture<Tuple> taken = space.getAsync(new SimpleTuple("job", "*"));
+        assertFalse(taken.isDone());
+        assertEquals(1, space.pendingMatchesCount());
+
+        space.put(new SimpleTuple("other", 1));
+        assertEquals(1, space.pendingMatchesCount());
+
+        final Tuple job = new SimpleTuple("job", 1);
+        space.put(job);
+        assertSame(job, taken.get(1, TimeUnit.SECONDS));
+        assertEquals(1, space.size());
+        assertEquals(0, space.pendingMatchesCount());
+    }
+
+    @Test
+    public void aCallbackCanWaitForAnotherPendingTake() throws Exception {
+
+        final CompletableFuture<Tuple> second = space.getAsync(new SimpleTuple("second", "*"));
+        final CompletableFuture<Tuple> both = space.getAsync(new SimpleTuple("first", "*")).thenApply(
+                new Function<Tuple, Tuple>() {
+                    @Override
+                    public Tuple apply(final Tuple first) {
+                        return second.join();
+                    }
+                });
+        space.put(new SimpleTuple("first", 1));
+        final Tuple job = new SimpleTuple("second", 1);
+        space.put(job);
+        assertSame(job, both.get(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void aTimedOutTakeIsCompletedWithNullAndUnregistered() throws Exception {
+
+        final CompletableFuture<Tuple> taken = space.getAsync(new SimpleTuple("job", "*"), 50);
+        assertNull(taken.get(1, TimeUnit.SECONDS));
+        assertEquals(0, space.pendingMatchesCount());
+
+        space.put(new SimpleTuple("job", 1));
+        assertEquals(1, space.size());
+    }
+
+    @Test
+    public void cancellingATakeGivesItUp() throws Exception {
+
+        final CompletableFuture<Tuple> taken = space.getAsync(new SimpleTuple("job", "*"), 60000);
+        assertTrue(taken.cancel(false));
+        assertTrue(taken.isCancelled());
+        assertEquals(0, space.pendingMatchesCount());
+
+        space.put(new SimpleTuple("job", 1));
+        assertEquals(1, space.size());
+
+        //a take that has already matched cannot be cancelled
+        final CompletableFuture<Tuple> matched = space.getAsync(new SimpleTuple("job", "*"));
+        assertFalse(matched.cancel(false));
+        assertEquals(0, space.size());
+    }
+
+    @Test
+    public void everyReaderButOnlyOneTakerGetsAPut() throws Exception {
+
+        final CompletableFuture<Tuple> read1 = space.readAsync(new SimpleTuple("job", "*"));
+        final CompletableFuture<Tuple> read2 = space.readAsync(new SimpleTuple("*", 1));
+        final CompletableFuture<Tuple> take1 = space.getAsync(new SimpleTuple("job", "*"));
+        final CompletableFuture<Tuple> take2 = space.getAsync(new SimpleTuple("job", "*"));
+
+        final Tuple first = new SimpleTuple("job", 1);
+        space.put(first);
+        assertSame(first, read1.get(1, TimeUnit.SECONDS));
+        assertSame(first, read2.get(1, TimeUnit.SECONDS));
+        final CompletableFuture<Tuple> winner = anyOf(take1, take2);
+        assertSame(first, winner.get());
+        final CompletableFuture<Tuple> loser = winner == take1 ? take2 : take1;
+        assertFalse(loser.isDone());
+        assertEquals(1, space.pendingMatchesCount());
+
+        final Tuple second = new SimpleTuple("job", 2);
+        space.put(second);
+        assertSame(second, loser.get(1, TimeUnit.SECONDS));
+        assertEquals(0, space.size());
+    }
+
+    @Test
+    public void fifoTakersAreServedInTheOrderTheyArrived() throws Exception {
+
+        space.setOrdering(Ordering.FIFO);
+        final CompletableFuture<Tuple> first = space.getAsync(new SimpleTuple("job", "*"));
+        final CompletableFuture<Tuple> second = space.getAsync(new SimpleTuple("job", "*"));
+
+        space.put(new SimpleTuple("job", 1));
+        assertEquals(new SimpleTuple("job", 1), first.get(1, TimeUnit.SECONDS));
+        space.put(new SimpleTuple("job", 2));
+        assertEquals(new SimpleTuple("job", 2), second.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void aBlockedTakeAndAPendingTakeShareThePuts() throws Exception {
+
+        final CompletableFuture<Tuple> pending = space.getAsync(new SimpleTuple("job", "*"));
+        final CompletableFuture<Tuple> blocked = new CompletableFuture<Tuple>();
+        new Thread() {
+            public void run() {
+                blocked.complete(space.get(new SimpleTuple("job", "*"), 5000));
+            }
+        }.start();
+        while (space.pendingMatchesCount() < 2) {
+            Thread.sleep(1);
+        }
+        space.put(new SimpleTuple("job", 1));
+        space.put(new SimpleTuple("job", 2));
+        final Tuple one = pending.get(1, TimeUnit.SECONDS);
+        final Tuple other = blocked.get(5, TimeUnit.SECONDS);
+        assertTrue(one != null && other != null && !one.equals(other));
+        assertEquals(0, space.size());
+    }
+
+    @Test
+    public void aPutIntoAFullSpaceFailsItsFuture() throws Exception {
+
+        space.setCapacity(1, Long.MAX_VALUE, CapacityPolicy.REJECT);
+        final Tuple job = new SimpleTuple("job", 1);
+        assertSame(job, space.putAsync(job).get(1, TimeUnit.SECONDS));
+        final CompletableFuture<Tuple> rejected = space.putAsync(new SimpleTuple("job", 2), 60000);
+        try {
+            rejected.get(1, TimeUnit.SECONDS);
+            fail("the space is full");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof CapacityExceededException);
+        }
+        assertEquals(1, space.size());
+    }
+
+    /**
+     * @return the first of the futures to be completed
+     */
+    private static CompletableFuture<Tuple> anyOf(final CompletableFuture<Tuple> a, final CompletableFuture<Tuple> b)
+            throws InterruptedException, TimeoutException {
+        final long deadline = System.currentTimeMillis() + 1000;
+        while (System.currentTimeMillis() < deadline) {
+            if (a.isDone()) {
+                return a;
+            }
+            if (b.isDone()) {
+                return b;
+            }
+            Thread.sleep(1);
+        }
+        throw new TimeoutException();
+    }
+}
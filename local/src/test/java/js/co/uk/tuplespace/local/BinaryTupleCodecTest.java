@@ -0,0 +1,219 @@
+/*******************************************************************************
+ * Copyright (c) 2012. Mike Houghton.
+ *
+ *
+ * This file is part of 'TupleSpace'.
+ *
+ * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with 'TupleSpace'. If not, see http://www.gnu.org/licenses/.
+ ******************************************************************************/
+
+package js.co.uk.tuplespace.local;
+
+import js.co.uk.tuplespace.codec.BinaryTupleCodec;
+import js.co.uk.tuplespace.codec.SerializingTupleCodec;
+import js.co.uk.tuplespace.codec.TupleCodecs;
+import js.co.uk.tuplespace.comms.channel.ChannelMessage;
+import js.co.uk.tuplespace.events.EventHint;
+import js.co.uk.tuplespace.tuple.SimpleTuple;
+import js.co.uk.tuplespace.tuple.Tuple;
+import js.co.uk.tuplespace.util.SharedVar;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class BinaryTupleCodecTest {
+
+    private final BinaryTupleCodec codec = new BinaryTupleCodec();
+
+    @Test
+    public void simpleTuplesRoundTrip() throws IOException {
+
+        final Map<String, Object> map = new HashMap<String, Object>();
+        map.put("key", 42L);
+        final List<Object> list = new ArrayList<Object>(Arrays.asList("a", 1, null));
+        final SimpleTuple tuple = new SimpleTuple("name", 1, -1L, Long.MIN_VALUE, 2.5d, 1.5f, (short) -3, (byte) 7, 'c',
+                true, null, new byte[]{1, 2}, list, map, EventHint.TUPLE_ADDED, new Date(1000),
+                new SimpleTuple("nested", "name"));
+
+        final SimpleTuple decoded = (SimpleTuple) codec.decode(codec.encode(tuple));
+        final Object[] items = decoded.getData().toArray();
+        assertEquals(17, items.length);
+        assertEquals(Arrays.asList("name", 1, -1L, Long.MIN_VALUE, 2.5d, 1.5f, (short) -3, (byte) 7, 'c', true, null),
+                Arrays.asList(items).subList(0, 11));
+        assertTrue(Arrays.equals(new byte[]{1, 2}, (byte[]) items[11]));
+        assertEquals(list, items[12]);
+        assertEquals(map, items[13]);
+        assertSame(EventHint.TUPLE_ADDED, items[14]);
+        assertEquals(new Date(1000), items[15]);
+        assertEquals(new SimpleTuple("nested", "name"), items[16]);
+
+        //a repeated string is only written once and decodes to one instance
+        assertSame(items[0], ((SimpleTuple) items[16]).getData().toArray()[1]);
+    }
+
+    @Test
+    public void tuplesWithoutANoArgumentConstructorRoundTrip() throws IOException {
+
+        final ChannelMessage message = new ChannelMessage("channel", 3, new SimpleTuple("payload"));
+        final ChannelMessage decoded = (ChannelMessage) codec.decode(codec.encode(message));
+        assertEquals(message.toString(), decoded.toString());
+        assertEquals(new SimpleTuple("payload"), decoded.getTuple());
+
+        final SharedVar var = new SharedVar("counter", 10);
+        assertEquals(var, codec.decode(codec.encode(var)));
+    }
+
+    @Test
+    public void unregisteredClassesAreWrittenByNameOnce() throws IOException {
+
+        final Point point = new Point(3, -4, "label");
+        final Point decoded = (Point) codec.decode(codec.encode(point));
+        assertEquals(3, decoded.x);
+        assertEquals(-4L, decoded.y);
+        assertEquals("label", decoded.label);
+
+        final byte[] one = codec.encode(new SimpleTuple(point));
+        final byte[] two = codec.encode(new SimpleTuple(point, point));
+        assertTrue(two.length - one.length < Point.class.getName().length());
+        assertNull(codec.decode(new BinaryTupleCodec().encode(null)));
+    }
+
+    @Test
+    public void isSmallerThanSerialisation() throws IOException {
+
+        final Tuple tuple = new SimpleTuple("task", 12, "worker", 3L);
+        assertTrue(codec.encode(tuple).length * 4 < new SerializingTupleCodec().encode(tuple).length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void anIdCanOnlyBeRegisteredOnce() {
+        codec.register(Point.class, 1);
+    }
+
+    @Test
+    public void aSerialisedValueOfAnotherClassIsRejected() throws IOException {
+
+        final ByteArrayOutputStream serialised = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(serialised);
+        out.writeObject(new Gadget());
+        out.close();
+        assertTrue(serialised.size() < 128);
+
+        //the format, the SERIALIZED tag and a one byte length
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(new byte[]{1, 21, (byte) serialised.size()});
+        serialised.writeTo(bytes);
+        try {
+            codec.decode(bytes.toByteArray());
+            fail("decoded a " + Gadget.class.getName());
+        } catch (IOException e) {
+            assertFalse(Gadget.read);
+        }
+    }
+
+    @Test
+    public void anUnregisteredClassIsNeitherWrittenNorRead() throws IOException {
+
+        final Tuple tuple = new SimpleTuple("label", new Label("text"));
+        try {
+            codec.encode(tuple);
+            fail("encoded a " + Label.class.getName());
+        } catch (IOException e) {
+            //expected
+        }
+
+        //the format, the OBJECT tag and the class by name, as an unregistered tuple would be written
+        final byte[] name = Label.class.getName().getBytes("UTF-8");
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(new byte[]{1, 20, 1, 10, (byte) name.length});
+        bytes.write(name);
+        bytes.write(new byte[]{10, 1, 'x'});
+        try {
+            codec.decode(bytes.toByteArray());
+            fail("decoded a " + Label.class.getName());
+        } catch (IOException e) {
+            //expected
+        }
+
+        final BinaryTupleCodec registered = new BinaryTupleCodec();
+        registered.register(Label.class, 64);
+        final SimpleTuple decoded = (SimpleTuple) registered.decode(registered.encode(tuple));
+        assertEquals("text", ((Label) decoded.getData().toArray()[1]).text);
+    }
+
+    @Test
+    public void classesCanBeRegisteredFromAList() throws IOException {
+
+        final BinaryTupleCodec registered = new BinaryTupleCodec();
+        TupleCodecs.register(registered, " " + Label.class.getName() + " : 64, ");
+        final SimpleTuple decoded = (SimpleTuple) registered.decode(
+                registered.encode(new SimpleTuple("label", new Label("text"))));
+        assertEquals("text", ((Label) decoded.getData().toArray()[1]).text);
+
+        for (final String malformed : new String[]{Label.class.getName(), Label.class.getName() + ":x",
+                "no.such.Class:65"}) {
+            try {
+                TupleCodecs.register(new BinaryTupleCodec(), malformed);
+                fail("registered " + malformed);
+            } catch (IllegalArgumentException e) {
+                //expected
+            }
+        }
+    }
+
+    @SuppressWarnings("serial")
+    static class Gadget implements Serializable {
+        static volatile boolean read = false;
+
+        private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+            read = true;
+            in.defaultReadObject();
+        }
+    }
+
+    @SuppressWarnings("serial")
+    static class Label implements Serializable {
+        private String text;
+
+        Label() {
+        }
+
+        Label(final String text) {
+            this.text = text;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    static class Point implements Tuple {
+        private final int x;
+        private final long y;
+        private final String label;
+
+        Point(final int x, final long y, final String label) {
+            this.x = x;
+            this.y = y;
+            this.label = label;
+        }
+    }
+}
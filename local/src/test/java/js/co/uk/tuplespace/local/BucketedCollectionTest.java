@@ -0,0 +1,362 @@
+/*******************************************************************************
+ * Copyright (c) 2012. Mike Houghton.
+ *
+ *
+ * This file is part of 'TupleSpace'.
+ *
+ * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with 'TupleSpace'. If not, see http://www.gnu.org/licenses/.
+ ******************************************************************************/
+
+package js.co.uk.tuplespace.local;
+
+import js.co.uk.tuplespace.store.BucketedCollection;
+import js.co.uk.tuplespace.store.QueryPlan;
+import js.co.uk.tuplespace.tuple.Condition;
+import js.co.uk.tuplespace.tuple.MatchAllTuplesTemplate;
+import js.co.uk.tuplespace.tuple.QueryTemplate;
+import js.co.uk.tuplespace.tuple.SimpleTuple;
+import js.co.uk.tuplespace.tuple.Tuple;
+import js.co.uk.tuplespace.util.SharedVar;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class BucketedCollectionTest {
+
+    private BucketedCollection<Tuple> collection;
+
+    @Before
+    public void setUp() {
+        collection = new BucketedCollection<Tuple>();
+    }
+
+    @Test
+    public void simpleTuplesAreBucketedByArity() {
+
+        collection.add(new SimpleTuple(1));
+        collection.add(new SimpleTuple(1, 2));
+        collection.add(new SimpleTuple(3, 4));
+        collection.add(new SharedVar("x", 1));
+
+        final List<Tuple> candidates = toList(collection.candidates(new SimpleTuple("*", "*"), true));
+        assertEquals(2, candidates.size());
+        assertEquals(new SimpleTuple(1, 2), candidates.get(0));
+        assertEquals(new SimpleTuple(3, 4), candidates.get(1));
+    }
+
+    @Test
+    public void subclassesAreCandidatesForTheirSuperclass() {
+
+        collection.add(new Base(1));
+        collection.add(new Derived(2));
+        collection.add(new SharedVar("x", 1));
+
+        assertEquals(2, toList(collection.candidates(new Base(null), true)).size());
+        assertEquals(1, toList(collection.candidates(new Derived(null), true)).size());
+    }
+
+    @Test
+    public void everythingIsACandidateWhenUntyped() {
+
+        collection.add(new SimpleTuple(1));
+        collection.add(new SharedVar("x", 1));
+
+        assertEquals(2, toList(collection.candidates(new SimpleTuple(1), false)).size());
+        assertEquals(2, toList(collection.candidates(new MatchAllTuplesTemplate(), true)).size());
+    }
+
+    @Test
+    public void removeIsByIdentity() {
+
+        final SimpleTuple first = new SimpleTuple(1);
+        final SimpleTuple second = new SimpleTuple(1);
+        collection.add(first);
+        collection.add(second);
+
+        assertFalse(collection.remove(new SimpleTuple(1)));
+        assertTrue(collection.remove(second));
+        assertEquals(1, collection.size());
+        assertTrue(toList(collection.candidates(new SimpleTuple(1), true)).get(0) == first);
+
+        //the same instance twice
+        collection.add(first);
+        assertEquals(2, collection.size());
+        assertTrue(collection.remove(first));
+        assertTrue(collection.remove(first));
+        assertTrue(collection.isEmpty());
+    }
+
+    @Test
+    public void indexedSimpleTuplesOnlyYieldCandidatesForConcreteEntries() {
+
+        collection.setIndexSimpleTuples(true);
+        for (int i = 0; i < 100; i++) {
+            collection.add(new SimpleTuple("job", i, i % 10));
+        }
+        collection.add(new SimpleTuple("other", 1, 3));
+
+        assertEquals(1, toList(collection.candidates(new SimpleTuple("job", 42, 2), true)).size());
+        assertEquals(1, toList(collection.candidates(new SimpleTuple("other", "*", "*"), true)).size());
+        assertEquals(11, toList(collection.candidates(new SimpleTuple("*", "*", 3), true)).size());
+        assertEquals(0, toList(collection.candidates(new SimpleTuple("job", 42, 3), true)).size());
+        assertEquals(0, toList(collection.candidates(new SimpleTuple("none", "*", "*"), true)).size());
+        //all wildcards is a scan of the bucket
+        assertEquals(101, toList(collection.candidates(new SimpleTuple("*", "*", "*"), true)).size());
+
+        final SimpleTuple other = (SimpleTuple) toList(collection.candidates(new SimpleTuple("other", 1, 3), true)).get(0);
+        assertTrue(collection.remove(other));
+        assertEquals(0, toList(collection.candidates(new SimpleTuple("other", 1, 3), true)).size());
+        assertEquals(10, toList(collection.candidates(new SimpleTuple("*", "*", 3), true)).size());
+
+        //switching off falls back to scanning
+        collection.setIndexSimpleTuples(false);
+        assertEquals(100, toList(collection.candidates(new SimpleTuple("job", 42, 2), true)).size());
+    }
+
+    @Test
+    public void fieldIndexesOnlyYieldCandidatesForConcreteFields() {
+
+        for (int i = 0; i < 100; i++) {
+            collection.add(new Pair("p" + (i % 10), i));
+        }
+        collection.createIndex(Pair.class, "name");
+        collection.createIndex(Pair.class, "name", "number");
+        collection.add(new Pair("q", 1));
+        collection.createIndex(Base.class, "value");
+        collection.add(new Base(1));
+        collection.add(new Base(2));
+        collection.add(new Derived(3));
+
+        assertEquals(10, toList(collection.candidates(new Pair("p3", null), true)).size());
+        assertEquals(1, toList(collection.candidates(new Pair("p3", 43), true)).size());
+        assertEquals(0, toList(collection.candidates(new Pair("p3", 44), true)).size());
+        assertEquals(1, toList(collection.candidates(new Pair("q", "*"), true)).size());
+        //a wildcard in every index is a scan of the bucket
+        assertEquals(101, toList(collection.candidates(new Pair(null, 1), true)).size());
+        //the subclasses of an indexed class are always candidates
+        assertEquals(2, toList(collection.candidates(new Base(1), true)).size());
+
+        final Tuple q = toList(collection.candidates(new Pair("q", 1), true)).get(0);
+        assertTrue(collection.remove(q));
+        assertEquals(0, toList(collection.candidates(new Pair("q", null), true)).size());
+
+        //an index is recreated when its bucket is
+        collection.clear();
+        collection.add(new Pair("r", 1));
+        collection.add(new Pair("s", 1));
+        assertEquals(1, toList(collection.candidates(new Pair("r", null), true)).size());
+    }
+
+    @Test
+    public void sortedIndexesOnlyYieldCandidatesInRange() {
+
+        collection.createSortedIndex(Pair.class, "number");
+        for (int i = 0; i < 100; i++) {
+            collection.add(new Pair("p" + i, i));
+        }
+        collection.add(new Pair("long", 50L));
+        collection.add(new Pair("none", null));
+
+        assertEquals(4, toList(collection.candidates(query(Condition.gt(95)), true)).size());
+        assertEquals(3, toList(collection.candidates(query(Condition.lt(3)), true)).size());
+        assertEquals(11, toList(collection.candidates(query(Condition.between(10, 20)), true)).size());
+        assertEquals(0, toList(collection.candidates(query(Condition.between(20, 10)), true)).size());
+        assertEquals(2, toList(collection.candidates(query(Condition.in(7, 50L, 1000)), true)).size());
+        assertEquals(1, toList(collection.candidates(query(Condition.ge(50L)), true)).size());
+
+        final Tuple removed = toList(collection.candidates(query(Condition.eq(99)), true)).get(0);
+        assertTrue(collection.remove(removed));
+        assertEquals(3, toList(collection.candidates(query(Condition.gt(95)), true)).size());
+        //a condition on an unindexed field is a scan of the bucket
+        assertEquals(101, toList(collection.candidates(
+                new QueryTemplate(Pair.class).where("name", Condition.prefix("p1")), true)).size());
+    }
+
+    @Test
+    public void plansUseTheMostSelectiveIndexAndAreCached() {
+
+        for (int i = 0; i < 100; i++) {
+            collection.add(new Pair("p" + (i % 2), i));
+        }
+        final Pair template = new Pair("p1", 7);
+        assertEquals(QueryPlan.AccessPath.BUCKET, collection.explain(template, true).getAccessPath());
+        assertEquals(QueryPlan.AccessPath.SCAN, collection.explain(template, false).getAccessPath());
+
+        collection.createIndex(Pair.class, "name");
+        QueryPlan plan = collection.explain(template, true);
+        assertEquals(QueryPlan.AccessPath.FIELD_INDEX, plan.getAccessPath());
+        assertEquals("[name]", plan.getIndex());
+        assertEquals(50, plan.getEstimate());
+
+        //a more selective index is chosen once it exists
+        collection.createSortedIndex(Pair.class, "number");
+        collection.createIndex(Pair.class, "number");
+        plan = collection.explain(template, true);
+        assertEquals("[number]", plan.getIndex());
+        assertEquals(1, plan.getEstimate());
+        assertEquals(1, toList(collection.candidates(template, true)).size());
+        //the plan is reused for templates of the same shape
+        assertTrue(plan == collection.explain(new Pair("p0", 8), true));
+        assertEquals("[name]", collection.explain(new Pair("p0", null), true).getIndex());
+
+        final QueryPlan range = collection.explain(query(Condition.ge(90)), true);
+        assertEquals(QueryPlan.AccessPath.SORTED_INDEX, range.getAccessPath());
+        assertEquals(10, toList(collection.candidates(query(Condition.ge(90)), true)).size());
+        assertEquals(QueryPlan.AccessPath.FIELD_INDEX, collection.explain(query(Condition.eq(90)), true).getAccessPath());
+
+        //the plan is made again once the bucket has grown
+        for (int i = 100; i < 400; i++) {
+            collection.add(new Pair("p" + (i % 2), i));
+        }
+        assertTrue(plan != collection.explain(template, true));
+        assertEquals(0, collection.explain(new Base(1), true).getEstimate());
+    }
+
+    @Test
+    public void plansMadeWhilstIndexingIsSwitchedAreNotKept() throws InterruptedException {
+
+        collection.setIndexSimpleTuples(true);
+        for (int i = 0; i < 10; i++) {
+            collection.add(new SimpleTuple(i));
+        }
+
+        //the reader is held whilst planning, after it has seen the index that is about to be replaced
+        final Gate gate = new Gate();
+        final Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                toList(collection.candidates(new SimpleTuple(gate), true));
+            }
+        });
+        reader.start();
+        gate.planning.await();
+        collection.setIndexSimpleTuples(true);
+        gate.release.countDown();
+        reader.join();
+
+        //a plan using the index it replaced would miss new tuples
+        collection.add(new SimpleTuple(10));
+        assertEquals(1, toList(collection.candidates(new SimpleTuple(10), true)).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void onlyDeclaredFieldsCanBeIndexed() {
+        collection.createIndex(Derived.class, "value");
+    }
+
+    @Test
+    public void valuesIsASnapshotAtAnInstant() throws InterruptedException {
+
+        //a token moves from bucket to bucket, added to the next before being removed from the last
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final Tuple first = new SimpleTuple(0);
+        collection.add(first);
+        final Thread mover = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Tuple token = first;
+                for (int i = 1; running.get(); i++) {
+                    final Object[] entries = new Object[1 + i % 16];
+                    final Tuple next = new SimpleTuple(entries);
+                    collection.add(next);
+                    collection.remove(token);
+                    token = next;
+                }
+            }
+        });
+        mover.start();
+
+        final long end = System.currentTimeMillis() + 300;
+        try {
+            while (System.currentTimeMillis() < end) {
+                final int tokens = collection.values().size();
+                assertTrue("saw " + tokens + " tokens", tokens == 1 || tokens == 2);
+            }
+        }
+        finally {
+            running.set(false);
+            mover.join();
+        }
+
+        final List<Tuple> snapshot = collection.values();
+        collection.add(new SimpleTuple("later"));
+        assertEquals(1, snapshot.size());
+    }
+
+    /**
+     * A SimpleTuple entry that holds the thread on its second comparison with a wildcard, the first being made when
+     * the template's shape is worked out and the second when its plan is made.
+     */
+    private static class Gate {
+        private final CountDownLatch planning = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final AtomicInteger comparisons = new AtomicInteger();
+
+        @Override
+        public boolean equals(final Object other) {
+            if (comparisons.incrementAndGet() == 2) {
+                planning.countDown();
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return other == this;
+        }
+
+        @Override
+        public int hashCode() {
+            return 0;
+        }
+    }
+
+    private static QueryTemplate query(final Condition number) {
+        return new QueryTemplate(Pair.class).where("number", number);
+    }
+
+    private static List<Tuple> toList(final Iterable<Tuple> tuples) {
+        final List<Tuple> list = new ArrayList<Tuple>();
+        for (Tuple tuple : tuples) {
+            list.add(tuple);
+        }
+        return list;
+    }
+
+    private static class Base implements Tuple {
+        private final Integer value;
+
+        Base(final Integer value) {
+            this.value = value;
+        }
+    }
+
+    private static class Derived extends Base {
+        Derived(final Integer value) {
+            super(value);
+        }
+    }
+
+    private static class Pair implements Tuple {
+        private final String name;
+        private final Object number;
+
+        Pair(final String name, final Object number) {
+            this.name = name;
+            this.number = number;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*******************************************************************************
+ * Copyright (c) 2012. Mike Houghton.
+ *
+ *
+ * This file is part of 'TupleSpace'.
+ *
+ * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with 'TupleSpace'. If not, see http://www.gnu.org/licenses/.
+ ******************************************************************************/
+
+package js.co.uk.tuplespace.local;
+
+import js.co.uk.tuplespace.codec.TupleCodecs;
+import js.co.uk.tuplespace.events.EventHint;
+import js.co.uk.tuplespace.events.SpaceChange;
+import js.co.uk.tuplespace.events.SpaceChangeListener;
+import js.co.uk.tuplespace.space.TupleSpace;
+import js.co.uk.tuplespace.store.CapacityExceededException;
+import js.co.uk.tuplespace.store.CapacityPolicy;
+import js.co.uk.tuplespace.store.TransactionException;
+import js.co.uk.tuplespace.store.TransactionID;
+import js.co.uk.tuplespace.tuple.SimpleTuple;
+import js.co.uk.tuplespace.tuple.Tuple;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class CapacityTest {
+
+    private TupleSpace space;
+
+    private final List<Tuple> evicted = new CopyOnWriteArrayList<Tuple>();
+
+    @Before
+    public void setUp() {
+        space = new TupleSpace("CapacityTest");
+        space.addSpaceChangeListener(new SpaceChangeListener() {
+            @Override
+            public void spaceChanged(final SpaceChange evt) {
+                if (evt.getEventHint() == EventHint.TUPLE_EVICTED) {
+                    evicted.add(evt.getTuple());
+                }
+            }
+        });
+    }
+
+    @Test
+    public void aFullSpaceRejectsPuts() {
+
+        space.setCapacity(3, Long.MAX_VALUE, CapacityPolicy.REJECT);
+        for (int i = 0; i < 3; i++) {
+            space.put(new SimpleTuple("job", i));
+        }
+        try {
+            space.put(new SimpleTuple("job", 3));
+            fail("the space is full");
+        } catch (CapacityExceededException e) {
+            //expected
+        }
+        assertNotNull(space.get(new SimpleTuple("job", 0), 100));
+        space.put(new SimpleTuple("job", 3));
+        assertEquals(3, space.size());
+    }
+
+    @Test
+    public void aFullSpaceBlocksPutsUntilThereIsRoom() throws InterruptedException {
+
+        space.setCapacity(2, Long.MAX_VALUE, CapacityPolicy.BLOCK);
+        space.setCapacityTimeout(50, TimeUnit.MILLISECONDS);
+        space.put(new SimpleTuple("job", 0));
+        space.put(new SimpleTuple("job", 1));
+        try {
+            space.put(new SimpleTuple("job", 2));
+            fail("the space is full");
+        } catch (CapacityExceededException e) {
+            //expected
+        }
+
+        space.setCapacityTimeout(5, TimeUnit.SECONDS);
+        final CountDownLatch put = new CountDownLatch(1);
+        new Thread() {
+            public void run() {
+                space.put(new SimpleTuple("job", 2));
+                put.countDown();
+            }
+        }.start();
+        assertFalse(put.await(100, TimeUnit.MILLISECONDS));
+        assertNotNull(space.get(new SimpleTuple("job", 0), 100));
+        assertTrue(put.await(5, TimeUnit.SECONDS));
+        assertTrue(space.exists(new SimpleTuple("job", 2)));
+    }
+
+    @Test
+    public void theOldestTuplesAreEvicted() {
+
+        space.setCapacity(3, Long.MAX_VALUE, CapacityPolicy.EVICT_OLDEST);
+        for (int i = 0; i < 5; i++) {
+            space.put(new SimpleTuple("job", i));
+        }
+        assertEquals(3, space.size());
+        assertEquals(2, evicted.size());
+        assertEquals(new SimpleTuple("job", 0), evicted.get(0));
+        assertEquals(new SimpleTuple("job", 1), evicted.get(1));
+    }
+
+    @Test
+    public void theLeastRecentlyUsedTuplesAreEvicted() {
+
+        space.setCapacity(3, Long.MAX_VALUE, CapacityPolicy.EVICT_LEAST_RECENTLY_USED);
+        for (int i = 0; i < 3; i++) {
+            space.put(new SimpleTuple("job", i));
+        }
+        assertNotNull(space.read(new SimpleTuple("job", 0), 100));
+        space.put(new SimpleTuple("job", 3));
+        assertEquals(1, evicted.size());
+        assertEquals(new SimpleTuple("job", 1), evicted.get(0));
+        assertTrue(space.exists(new SimpleTuple("job", 0)));
+    }
+
+    @Test
+    public void theTuplesSoonestToExpireAreEvicted() {
+
+        space.setCapacity(3, Long.MAX_VALUE, CapacityPolicy.EVICT_SOONEST_TO_EXPIRE);
+        space.put(new SimpleTuple("job", 0));
+        space.put(new SimpleTuple("job", 1), 20000);
+        space.put(new SimpleTuple("job", 2), 10000);
+        space.put(new SimpleTuple("job", 3));
+        assertEquals(1, evicted.size());
+        assertEquals(new SimpleTuple("job", 2), evicted.get(0));
+    }
+
+    @Test
+    public void theCapacityCanBeInBytes() throws IOException {
+
+        final SimpleTuple big = new SimpleTuple("blob", new byte[1000]);
+        final int size = TupleCodecs.getDefault().encode(big).length;
+        space.put(new SimpleTuple("blob", new byte[1000]));
+        space.setCapacity(Integer.MAX_VALUE, size * 2 + size / 2, CapacityPolicy.REJECT);
+        space.put(big);
+        try {
+            space.put(new SimpleTuple("blob", new byte[1000]));
+            fail("the space is full");
+        } catch (CapacityExceededException e) {
+            //expected
+        }
+        space.put(new SimpleTuple("small"));
+        assertEquals(3, space.size());
+    }
+
+    @Test
+    public void aCommitEvictsRatherThanFails() throws TransactionException {
+
+        space.setCapacity(2, Long.MAX_VALUE, CapacityPolicy.EVICT_OLDEST);
+        space.put(new SimpleTuple("job", 0));
+        final TransactionID txn = space.beginTxn(5000L);
+        space.put(new SimpleTuple("job", 1), txn);
+        space.put(new SimpleTuple("job", 2), txn);
+        space.commitTxn(txn);
+        assertEquals(2, space.size());
+        assertEquals(new SimpleTuple("job", 0), evicted.get(0));
+    }
+
+    @Test
+    public void anEvictionIsReportedOnceTheSpaceIsUnlocked() throws Exception {
+
+        final ExecutorService other = Executors.newSingleThreadExecutor();
+        final List<Tuple> taken = new CopyOnWriteArrayList<Tuple>();
+        space.addSpaceChangeListener(new SpaceChangeListener() {
+            @Override
+            public void spaceChanged(final SpaceChange evt) {
+                if (evt.getEventHint() == EventHint.TUPLE_EVICTED) {
+                    //another thread can use the space whilst the listener is told
+                    try {
+                        taken.add(other.submit(new Callable<Tuple>() {
+                            @Override
+                            public Tuple call() {
+                                return space.get(new SimpleTuple("job", 2), 100);
+                            }
+                        }).get(2, TimeUnit.SECONDS));
+                    } catch (Exception e) {
+                        //not taken
+                    }
+                }
+            }
+        });
+        try {
+            space.setCapacity(2, Long.MAX_VALUE, CapacityPolicy.EVICT_OLDEST);
+            space.put(new SimpleTuple("job", 0));
+            space.put(new SimpleTuple("job", 1));
+            space.put(new SimpleTuple("job", 2));
+            assertEquals(new SimpleTuple("job", 0), evicted.get(0));
+            assertEquals(1, taken.size());
+            assertEquals(new SimpleTuple("job", 2), taken.get(0));
+        } finally {
+            other.shutdownNow();
+        }
+    }
+
+    @Test
+    public void aTupleTheCodecCannotEncodeStillCounts() {
+
+        space.setCapacity(Integer.MAX_VALUE, 1000, CapacityPolicy.REJECT);
+        try {
+            space.put(new SimpleTuple("blob", new Unregistered(new byte[2000])));
+            fail("its serialised size is over the limit");
+        } catch (CapacityExceededException e) {
+            //expected
+        }
+        try {
+            space.put(new SimpleTuple("thing", new Object()));
+            fail("it cannot be serialised, so is counted as too big");
+        } catch (CapacityExceededException e) {
+            //expected
+        }
+        assertEquals(0, space.size());
+    }
+
+    /**
+     * Serializable, but not registered with the codec.
+     */
+    @SuppressWarnings("serial")
+    private static class Unregistered implements Serializable {
+
+        private final byte[] bytes;
+
+        Unregistered(final byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+}
@@ -13,6 +13,7 @@
 
 package js.co.uk.tuplespace.local;
 
+import js.co.uk.tuplespace.store.TimeoutEntry;
 import js.co.uk.tuplespace.store.TimeoutQueue;
 import js.co.uk.tuplespace.tuple.SimpleTuple;
 import js.co.uk.tuplespace.tuple.Tuple;
@@ -214,6 +215,27 @@ public class DelayQueueTest {
 
     }
 
+    @Test
+    public void testRemoveIsByIdentity() {
+
+        final SimpleTuple t = new SimpleTuple("Fred");
+        final TimeoutEntry<Tuple> first = q.add(t, 60, TimeUnit.SECONDS);
+        final TimeoutEntry<Tuple> second = q.add(t, 200, TimeUnit.MILLISECONDS);
+        q.add(new SimpleTuple("Fred"), 60, TimeUnit.SECONDS);
+        assertTrue(q.size() == 3);
+
+        //the first added is removed first
+        assertTrue(q.remove(t) == first);
+        assertTrue(q.contains(t));
+        sleep(1);
+
+        //the second has timed out
+        assertTrue(expiredList.size() == 1 && expiredList.get(0) == second.getItem());
+        assertTrue(!q.contains(t));
+        assertTrue(q.remove(t) == null);
+        assertTrue(q.size() == 1);
+    }
+
     private void sleep(int seconds) {
 
         try {
@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * Copyright (c) 2012. Mike Houghton.
+ *
+ *
+ * This file is part of 'TupleSpace'.
+ *
+ * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with 'TupleSpace'. If not, see http://www.gnu.org/licenses/.
+ ******************************************************************************/
+
+package js.co.uk.tuplespace.local;
+
+import js.co.uk.tuplespace.events.EventHint;
+import js.co.uk.tuplespace.events.SpaceChange;
+import js.co.uk.tuplespace.events.SpaceChangeListener;
+import js.co.uk.tuplespace.matcher.FieldBasedMatcher;
+import js.co.uk.tuplespace.space.ShardedTupleSpace;
+import js.co.uk.tuplespace.space.TupleSpace;
+import js.co.uk.tuplespace.store.Lease;
+import js.co.uk.tuplespace.store.TransactionException;
+import js.co.uk.tuplespace.store.TransactionID;
+import js.co.uk.tuplespace.tuple.MatchAllTuplesTemplate;
+import js.co.uk.tuplespace.tuple.SimpleTuple;
+import js.co.uk.tuplespace.tuple.Tuple;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class NotifyTest {
+
+    private TupleSpace space;
+
+    @Before
+    public void setUp() {
+        space = new TupleSpace("NotifyTest");
+    }
+
+    @Test
+    public void onlyTheListenersOfMatchingTemplatesAreCalled() {
+
+        final Recorder ibm = new Recorder();
+        final Recorder prices = new Recorder();
+        final Recorder anyIbm = new Recorder();
+        final Recorder volumes = new Recorder();
+        final Recorder everything = new Recorder();
+        space.notify(new SimpleTuple("price", "IBM", "*"), ibm, Lease.FOREVER);
+        space.notify(new SimpleTuple("price", "*", "*"), prices, Lease.FOREVER);
+        space.notify(new SimpleTuple("*", "IBM", "*"), anyIbm, Lease.FOREVER);
+        space.notify(new SimpleTuple("volume", "*"), volumes, Lease.FOREVER);
+        space.notify(new MatchAllTuplesTemplate(), everything, Lease.FOREVER);
+
+        space.put(new SimpleTuple("price", "IBM", 100));
+        space.put(new SimpleTuple("price", "MSFT", 50));
+        space.put(new SimpleTuple("trade", "IBM", 10));
+        space.put(new SimpleTuple("volume", 1));
+        space.put(new SimpleTuple("price", "IBM"));
+
+        assertEquals(1, ibm.tuples.size());
+        assertEquals(new SimpleTuple("price", "IBM", 100), ibm.tuples.get(0));
+        assertEquals(2, prices.tuples.size());
+        assertEquals(2, anyIbm.tuples.size());
+        assertEquals(1, volumes.tuples.size());
+        assertEquals(5, everything.tuples.size());
+        assertEquals(EventHint.TUPLE_ADDED, ibm.hints.get(0));
+    }
+
+    @Test
+    public void registrationsAreRefiledWhenTheMatcherChanges() {
+
+        final Recorder ibm = new Recorder();
+        space.notify(new SimpleTuple("price", "IBM", "*"), ibm, Lease.FOREVER);
+        space.setMatcher(new FieldBasedMatcher());
+        space.put(new SimpleTuple("price", "IBM", 100));
+        space.put(new SimpleTuple("price", "MSFT", 100));
+        assertEquals(1, ibm.tuples.size());
+    }
+
+    @Test
+    public void aLeaseExpiresByItself() throws InterruptedException {
+
+        final Recorder recorder = new Recorder();
+        final Lease lease = space.notify(new SimpleTuple("job", "*"), recorder, 50);
+        assertEquals(1, space.notifyCount());
+        assertTrue(lease.getExpiration() <= System.currentTimeMillis() + 50);
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (space.notifyCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, space.notifyCount());
+        space.put(new SimpleTuple("job", 1));
+        assertEquals(0, recorder.tuples.size());
+        assertFalse(lease.renew(1000, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void aLeaseCanBeRenewedOrCancelled() throws InterruptedException {
+
+        final Recorder recorder = new Recorder();
+        final Lease lease = space.notify(new SimpleTuple("job", "*"), recorder, 100);
+        assertTrue(lease.renew(Lease.FOREVER, TimeUnit.MILLISECONDS));
+        assertEquals(Long.MAX_VALUE, lease.getExpiration());
+        Thread.sleep(250);
+        space.put(new SimpleTuple("job", 1));
+        assertEquals(1, recorder.tuples.size());
+
+        lease.cancel();
+        assertEquals(0, space.notifyCount());
+        space.put(new SimpleTuple("job", 2));
+        assertEquals(1, recorder.tuples.size());
+        assertFalse(lease.renew(1000, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void aPutUnderATransactionIsNotifiedWhenItCommits() throws TransactionException {
+
+        final Recorder recorder = new Recorder();
+        space.notify(new SimpleTuple("job", "*"), recorder, Lease.FOREVER);
+
+        final TransactionID aborted = space.beginTxn(5000L);
+        space.put(new SimpleTuple("job", 1), aborted);
+        space.abortTxn(aborted);
+        assertEquals(0, recorder.tuples.size());
+
+        final TransactionID committed = space.beginTxn(5000L);
+        space.put(new SimpleTuple("job", 2), committed);
+        assertEquals(0, recorder.tuples.size());
+        space.commitTxn(committed);
+        assertEquals(1, recorder.tuples.size());
+        assertEquals(new SimpleTuple("job", 2), recorder.tuples.get(0));
+    }
+
+    @Test
+    public void aShardedSpaceNotifiesEachPutOnce() {
+
+        final ShardedTupleSpace sharded = new ShardedTupleSpace("NotifyTest", 4);
+        final Recorder recorder = new Recorder();
+        final Lease lease = sharded.notify(new SimpleTuple("job", "*"), recorder, Lease.FOREVER);
+        for (int i = 0; i < 10; i++) {
+            sharded.put(new SimpleTuple("job", i));
+            sharded.put(new SimpleTuple("other", i));
+        }
+        assertEquals(10, recorder.tuples.size());
+        assertEquals(1, sharded.notifyCount());
+        lease.cancel();
+        assertEquals(0, sharded.notifyCount());
+    }
+
+    private static final class Recorder implements SpaceChangeListener {
+
+        private final List<Tuple> tuples = new CopyOnWriteArrayList<Tuple>();
+        private final List<EventHint> hints = new CopyOnWriteArrayList<EventHint>();
+
+        @Override
+        public void spaceChanged(final SpaceChange evt) {
+            tuples.add(evt.getTuple());
+            hints.add(evt.getEventHint());
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*******************************************************************************
+ * Copyright (c) 2012. Mike Houghton.
+ *
+ *
+ * This file is part of 'TupleSpace'.
+ *
+ * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with 'TupleSpace'. If not, see http://www.gnu.org/licenses/.
+ ******************************************************************************/
+
+package js.co.uk.tuplespace.local;
+
+import js.co.uk.tuplespace.space.TupleSpace;
+import js.co.uk.tuplespace.store.Ordering;
+import js.co.uk.tuplespace.store.TransactionException;
+import js.co.uk.tuplespace.store.TransactionID;
+import js.co.uk.tuplespace.tuple.Condition;
+import js.co.uk.tuplespace.tuple.Prioritized;
+import js.co.uk.tuplespace.tuple.QueryTemplate;
+import js.co.uk.tuplespace.tuple.SimpleTuple;
+import js.co.uk.tuplespace.tuple.Tuple;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+public class OrderingTest {
+
+    private TupleSpace space;
+
+    @Before
+    public void setUp() {
+        space = new TupleSpace("OrderingTest");
+        space.setOrdering(Ordering.FIFO);
+    }
+
+    @Test
+    public void tuplesAreTakenInTheOrderTheyWerePut() {
+
+        space.setIndexSimpleTuples(true);
+        for (int i = 0; i < 50; i++) {
+            space.put(new SimpleTuple("job", i));
+            space.put(new SimpleTuple("other", i));
+        }
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i, number(space.get(new SimpleTuple("job", "*"), 100)));
+        }
+    }
+
+    @Test
+    public void subclassesAndIndexedTuplesAreTakenInTheOrderTheyWerePut() {
+
+        space.createSortedIndex(Task.class, "priority");
+        for (int i = 0; i < 20; i++) {
+            space.put(i % 3 == 0 ? new UrgentTask("task" + i, 100 - i) : new Task("task" + i, 100 - i));
+        }
+        final QueryTemplate any = new QueryTemplate(Task.class).where("priority", Condition.ge(0));
+        for (int i = 0; i < 20; i++) {
+            assertEquals("task" + i, ((Task) space.get(any, 100)).name);
+        }
+    }
+
+    @Test
+    public void anAbortedTakeKeepsItsPlace() throws TransactionException {
+
+        for (int i = 0; i < 5; i++) {
+            space.put(new SimpleTuple("job", i));
+        }
+        final TransactionID txn = space.beginTxn(5000L);
+        assertEquals(0, number(space.get(new SimpleTuple("job", "*"), 100, txn)));
+        assertEquals(1, number(space.get(new SimpleTuple("job", "*"), 100, txn)));
+        space.abortTxn(txn);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, number(space.get(new SimpleTuple("job", "*"), 100)));
+        }
+    }
+
+    @Test
+    public void blockedTakersAreServedInTheOrderTheyArrived() throws InterruptedException {
+
+        final int takers = 8;
+        final Object[] taken = new Object[takers];
+        final CountDownLatch done = new CountDownLatch(takers);
+        for (int t = 0; t < takers; t++) {
+            final int taker = t;
+            new Thread() {
+                public void run() {
+                    taken[taker] = number(space.get(new SimpleTuple("job", "*"), 5000));
+                    done.countDown();
+                }
+            }.start();
+            //wait for it to block before starting the next
+            while (space.pendingMatchesCount() <= t) {
+                Thread.sleep(1);
+            }
+        }
+
+        for (int i = 0; i < takers; i++) {
+            space.put(new SimpleTuple("job", i));
+            //a later take cannot get in ahead of the takers already waiting
+            assertNull(space.get(new SimpleTuple("job", "*"), 1));
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int t = 0; t < takers; t++) {
+            assertEquals(t, taken[t]);
+        }
+        assertEquals(0, space.size());
+    }
+
+    @Test
+    public void prioritizedTuplesAreTakenHighestPriorityFirst() {
+
+        space.setOrdering(Ordering.PRIORITY);
+        for (int i = 0; i < 30; i++) {
+            space.put(i % 2 == 0 ? new Job("job" + i, i % 3) : new UrgentJob("job" + i, i % 3));
+        }
+        int last = Integer.MAX_VALUE;
+        int lastNumber = -1;
+        for (int i = 0; i < 30; i++) {
+            final Job job = (Job) space.get(new Job(null, null), 100);
+            final int number = Integer.parseInt(job.name.substring(3));
+            assertTrue(job.getPriority() <= last);
+            assertTrue(job.getPriority() < last || number > lastNumber);
+            last = job.getPriority();
+            lastNumber = number;
+        }
+    }
+
+    @Test
+    public void aComparatorGivesAClassAPriority() {
+
+        for (int i = 0; i < 20; i++) {
+            space.put(new Task("task" + i, (i * 7) % 20));
+        }
+        space.setOrdering(Ordering.PRIORITY);
+        space.setPriority(Task.class, new Comparator<Tuple>() {
+            @Override
+            public int compare(final Tuple a, final Tuple b) {
+                return ((Task) a).priority.compareTo(((Task) b).priority);
+            }
+        });
+        for (int i = 0; i < 20; i++) {
+            assertEquals(Integer.valueOf(i), ((Task) space.get(new QueryTemplate(Task.class), 100)).priority);
+        }
+    }
+
+    private static Object number(final Tuple job) {
+        return new ArrayList<Object>(((SimpleTuple) job).getData()).get(1);
+    }
+
+    private static class Job implements Prioritized {
+
+        private final String name;
+        private final Integer priority;
+
+        Job(final String name, final Integer priority) {
+            this.name = name;
+            this.priority = priority;
+        }
+
+        @Override
+        public int getPriority() {
+            return priority;
+        }
+    }
+
+    private static class UrgentJob extends Job {
+
+        UrgentJob(final String name, final Integer priority) {
+            super(name, priority);
+        }
+    }
+
+    private static class Task implements Tuple {
+
+        private final String name;
+        private final Integer priority;
+
+        Task(final String name, final Integer priority) {
+            this.name = name;
+            this.priority = priority;
+        }
+    }
+
+    private static class UrgentTask extends Task {
+
+        UrgentTask(final String name, final Integer priority) {
+            super(name, priority);
+        }
+    }
+}
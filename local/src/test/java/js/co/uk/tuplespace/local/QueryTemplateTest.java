@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright (c) 2012. Mike Houghton.
+ *
+ *
+ * This file is part of 'TupleSpace'.
+ *
+ * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with 'TupleSpace'. If not, see http://www.gnu.org/licenses/.
+ ******************************************************************************/
+
+package js.co.uk.tuplespace.local;
+
+import js.co.uk.tuplespace.codec.BinaryTupleCodec;
+import js.co.uk.tuplespace.space.Space;
+import js.co.uk.tuplespace.space.TupleSpace;
+import js.co.uk.tuplespace.store.QueryPlan;
+import js.co.uk.tuplespace.tuple.Condition;
+import js.co.uk.tuplespace.tuple.QueryTemplate;
+import js.co.uk.tuplespace.tuple.SimpleTuple;
+import js.co.uk.tuplespace.tuple.Tuple;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+public class QueryTemplateTest {
+
+    private Space space;
+
+    @Before
+    public void setUp() {
+        space = new TupleSpace("QueryTemplateTest");
+        space.createSortedIndex(Task.class, "priority");
+    }
+
+    @Test
+    public void tasksAreTakenByRange() {
+
+        for (int i = 0; i < 10; i++) {
+            space.put(new Task("task" + i, i));
+        }
+        final QueryTemplate urgent = new QueryTemplate(Task.class).where("priority", Condition.gt(5));
+        assertEquals(4, space.count(urgent));
+        for (int i = 0; i < 4; i++) {
+            final Task task = (Task) space.get(urgent, 100);
+            assertTrue(task.priority > 5);
+        }
+        assertNull(space.readIfExists(urgent));
+        assertEquals(6, space.size());
+
+        assertEquals(2, space.readAll(new QueryTemplate(Task.class)
+                .where("priority", Condition.between(2, 4))
+                .where("name", Condition.in("task2", "task4")), 10).size());
+        assertEquals(1, space.count(new QueryTemplate(Task.class).where("name", Condition.prefix("task5"))));
+        assertEquals(1, space.count(new QueryTemplate(Task.class).where("name", "task0")));
+    }
+
+    @Test
+    public void rangeQueriesArePlannedOnTheSortedIndex() {
+
+        for (int i = 0; i < 100; i++) {
+            space.put(new Task("task" + i, i));
+        }
+        final QueryPlan plan =
+                ((TupleSpace) space).explain(new QueryTemplate(Task.class).where("priority", Condition.lt(10)));
+        assertEquals(QueryPlan.AccessPath.SORTED_INDEX, plan.getAccessPath());
+        assertEquals("priority", plan.getIndex());
+        assertEquals(QueryPlan.AccessPath.BUCKET,
+                ((TupleSpace) space).explain(new QueryTemplate(Task.class).where("name", "task1")).getAccessPath());
+    }
+
+    @Test
+    public void aWaitingQueryIsGivenALaterTuple() throws InterruptedException {
+
+        space.put(new Task("low", 1));
+        final Tuple[] taken = new Tuple[1];
+        final Thread taker = new Thread() {
+            public void run() {
+                taken[0] = space.get(new QueryTemplate(Task.class).where("priority", Condition.ge(5)), 5000);
+            }
+        };
+        taker.start();
+        Thread.sleep(100);
+        space.put(new Task("high", 7));
+        taker.join(5000);
+        assertNotNull(taken[0]);
+        assertEquals("high", ((Task) taken[0]).name);
+        assertEquals(1, space.size());
+    }
+
+    @Test
+    public void simpleTupleEntriesCanBeConditions() {
+
+        for (int i = 0; i < 10; i++) {
+            space.put(new SimpleTuple("reading", (long) i * 100));
+        }
+        final List<Tuple> readings = space.readAll(new SimpleTuple("reading", Condition.between(200L, 500L)), 10);
+        assertEquals(4, readings.size());
+        assertEquals(0, space.count(new SimpleTuple("reading", Condition.between(200, 500))));
+    }
+
+    @Test
+    public void queriesSurviveTheCodec() throws IOException {
+
+        final QueryTemplate query = new QueryTemplate(Task.class)
+                .where("priority", Condition.lt(3))
+                .where("name", Condition.prefix("t"));
+        final QueryTemplate decoded = (QueryTemplate) new BinaryTupleCodec().decode(new BinaryTupleCodec().encode(query));
+        assertEquals(query.getConditions(), decoded.getConditions());
+        assertTrue(decoded.matches(new Task("t", 2)));
+        assertTrue(!decoded.matches(new Task("t", 3)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void queriedFieldsMustExist() {
+        new QueryTemplate(Task.class).where("missing", Condition.gt(1));
+    }
+
+    private static class Task implements Tuple {
+
+        private final String name;
+        private final Integer priority;
+
+        Task(final String name, final Integer priority) {
+            this.name = name;
+            this.priority = priority;
+        }
+    }
+}
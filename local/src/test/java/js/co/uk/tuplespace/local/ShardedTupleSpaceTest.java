@@ -0,0 +1,267 @@
+/*******************************************************************************
+ * Copyright (c) 2012. Mike Houghton.
+ *
+ *
+ * This file is part of 'TupleSpace'.
+ *
+ * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with 'TupleSpace'. If not, see http://www.gnu.org/licenses/.
+ ******************************************************************************/
+
+package js.co.uk.tuplespace.local;
+
+import js.co.uk.tuplespace.events.EventHint;
+import js.co.uk.tuplespace.events.SpaceChange;
+import js.co.uk.tuplespace.events.SpaceChangeListener;
+import js.co.uk.tuplespace.space.ShardedTupleSpace;
+import js.co.uk.tuplespace.space.Space;
+import js.co.uk.tuplespace.space.TupleSpace;
+import js.co.uk.tuplespace.space.TupleSpaceManager;
+import js.co.uk.tuplespace.store.TransactionException;
+import js.co.uk.tuplespace.store.TransactionID;
+import js.co.uk.tuplespace.tuple.MatchAllTuplesTemplate;
+import js.co.uk.tuplespace.tuple.Routable;
+import js.co.uk.tuplespace.tuple.SimpleTuple;
+import js.co.uk.tuplespace.tuple.Tuple;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+public class ShardedTupleSpaceTest {
+
+    private ShardedTupleSpace space;
+
+    @Before
+    public void setUp() {
+        space = new ShardedTupleSpace("ShardedTupleSpaceTest", 8);
+    }
+
+    @Test
+    public void routedTuplesAreTakenFromTheirShard() {
+
+        for (int i = 0; i < 20; i++) {
+            space.put(new Order("customer" + i, i));
+        }
+        assertEquals(20, space.size());
+        for (int i = 19; i >= 0; i--) {
+            final Order order = (Order) space.get(new Order("customer" + i, null), 100);
+            assertNotNull(order);
+            assertEquals(i, order.quantity.intValue());
+        }
+        assertEquals(0, space.size());
+    }
+
+    @Test
+    public void unroutedTemplatesAreTriedAgainstEveryShard() {
+
+        for (int i = 0; i < 20; i++) {
+            space.put(new Order("customer" + i, i));
+            space.put(new SimpleTuple("job", i));
+        }
+        assertNotNull(space.readIfExists(new Order(null, 7)));
+        for (int i = 0; i < 20; i++) {
+            assertNotNull(space.get(new Order(null, null), 100));
+        }
+        assertNull(space.readIfExists(new Order(null, null)));
+        for (int i = 0; i < 20; i++) {
+            assertNotNull(space.get(new MatchAllTuplesTemplate(), 100));
+        }
+        assertEquals(0, space.size());
+    }
+
+    @Test
+    public void unroutedTakeWaitsForAPutToAnyShard() throws InterruptedException {
+
+        final AtomicReference<Tuple> taken = new AtomicReference<Tuple>();
+        final Thread taker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                taken.set(space.get(new Order(null, null), 5000));
+            }
+        });
+        taker.start();
+        while (space.pendingMatchesCount() == 0) {
+            Thread.sleep(10);
+        }
+        space.put(new SimpleTuple("job", 1));
+        space.put(new Order("late", 1));
+        taker.join(5000);
+
+        assertEquals("late", ((Order) taken.get()).customer);
+        assertEquals(0, space.pendingMatchesCount());
+        assertEquals(1, space.size());
+    }
+
+    @Test
+    public void unroutedTakeTimesOutAndIsReleasedByPurge() throws InterruptedException {
+
+        assertNull(space.get(new MatchAllTuplesTemplate(), 50));
+
+        final AtomicReference<Tuple> taken = new AtomicReference<Tuple>(new SimpleTuple());
+        final Thread taker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                taken.set(space.get(new MatchAllTuplesTemplate()));
+            }
+        });
+        taker.start();
+        while (space.pendingMatchesCount() == 0) {
+            Thread.sleep(10);
+        }
+        space.purgeAllEntries();
+        taker.join(5000);
+        assertNull(taken.get());
+    }
+
+    @Test
+    public void blockedTakeSeesASubclassRoutedToAnotherShard() throws InterruptedException {
+
+        for (int i = 0; i < 20; i++) {
+            //each space has yet to route a Job away from the shard of its class
+            final ShardedTupleSpace fresh = new ShardedTupleSpace("fresh" + i, 8);
+            final AtomicReference<Tuple> taken = new AtomicReference<Tuple>();
+            final Thread taker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    taken.set(fresh.get(new Job(), 5000));
+                }
+            });
+            taker.start();
+            while (fresh.pendingMatchesCount() == 0) {
+                Thread.sleep(1);
+            }
+            fresh.put(new UrgentJob("key" + i));
+            taker.join(5000);
+
+            assertNotNull("key" + i, taken.get());
+            assertEquals("key" + i, ((UrgentJob) taken.get()).key);
+            assertEquals(0, fresh.pendingMatchesCount());
+            assertEquals(0, fresh.size());
+        }
+    }
+
+    @Test
+    public void transactionsSpanEveryShard() throws TransactionException {
+
+        final TransactionID txn = space.beginTxn(5000L);
+        for (int i = 0; i < 10; i++) {
+            space.put(new Order("customer" + i, i), txn);
+        }
+        assertEquals(0, space.size());
+        assertEquals(10, space.commitTxn(txn).size());
+        assertEquals(10, space.size());
+
+        final TransactionID abort = space.beginTxn(5000L);
+        for (int i = 0; i < 10; i++) {
+            assertNotNull(space.get(new Order(null, null), 100, abort));
+        }
+        assertEquals(0, space.size());
+        space.abortTxn(abort);
+        assertEquals(10, space.size());
+
+        try {
+            space.commitTxn(abort);
+            assertTrue("commit of an aborted transaction", false);
+        } catch (TransactionException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void bulkOperationsSpanEveryShard() throws TransactionException {
+
+        final List<EventHint> hints = Collections.synchronizedList(new ArrayList<EventHint>());
+        space.addSpaceChangeListener(new SpaceChangeListener() {
+            @Override
+            public void spaceChanged(final SpaceChange evt) {
+                hints.add(evt.getEventHint());
+            }
+        });
+        final List<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 20; i++) {
+            tuples.add(new Order("customer" + i, i));
+        }
+        space.putAll(tuples, Long.MAX_VALUE, null);
+        space.putAll(new ArrayList<Tuple>(), Long.MAX_VALUE, null);
+        assertEquals(20, space.size());
+
+        assertEquals(1, space.readAll(new Order("customer3", null), 10).size());
+        assertEquals(20, space.readAll(new Order(null, null), 100).size());
+        assertEquals(15, space.takeAll(new Order(null, null), 15, 0, null).size());
+        assertEquals(5, space.takeAll(new Order(null, null), 15, 100, null).size());
+        assertEquals(0, space.takeAll(new Order(null, null), 15, 0, null).size());
+        assertEquals(0, space.size());
+        assertEquals(Arrays.asList(EventHint.TUPLES_ADDED, EventHint.TUPLES_REMOVED, EventHint.TUPLES_REMOVED), hints);
+    }
+
+    @Test
+    public void scanWalksEveryShard() {
+
+        for (int i = 0; i < 20; i++) {
+            space.put(new Order("customer" + i, i));
+        }
+        int count = 0;
+        for (final Iterator<Tuple> scan = space.scan(new Order(null, null)); scan.hasNext(); scan.next()) {
+            count++;
+        }
+        assertEquals(20, count);
+        assertEquals(new Integer(3), ((Order) space.scan(new Order("customer3", null)).next()).quantity);
+    }
+
+    @Test
+    public void managerCreatesShardedSpaces() {
+
+        final TupleSpaceManager manager = new TupleSpaceManager();
+        final Space sharded = manager.getSpace("sharded", 4);
+        assertEquals(4, ((ShardedTupleSpace) sharded).getShardCount());
+        assertTrue(manager.getSpace("plain", 1) instanceof TupleSpace);
+        assertTrue(manager.getSpace("sharded") == sharded);
+    }
+
+    public static class Order implements Routable {
+
+        private final String customer;
+        private final Integer quantity;
+
+        public Order(final String customer, final Integer quantity) {
+            this.customer = customer;
+            this.quantity = quantity;
+        }
+
+        @Override
+        public Object getRoutingKey() {
+            return customer;
+        }
+    }
+
+    public static class Job implements Tuple {
+    }
+
+    public static class UrgentJob extends Job implements Routable {
+
+        private final String key;
+
+        public UrgentJob(final String key) {
+            this.key = key;
+        }
+
+        @Override
+        public Object getRoutingKey() {
+            return key;
+        }
+    }
+}
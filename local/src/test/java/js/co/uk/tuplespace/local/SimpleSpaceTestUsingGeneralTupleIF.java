@@ -29,8 +29,17 @@ import js.co.uk.tuplespace.util.SharedVar;
 import org.junit.*;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicLong;
+import js.co.uk.tuplespace.events.EventHint;
 import js.co.uk.tuplespace.events.SpaceChange;
 import js.co.uk.tuplespace.events.SpaceChangeListener;
 import js.co.uk.tuplespace.space.Space;
@@ -347,6 +356,158 @@ public class SimpleSpaceTestUsingGeneralTupleIF implements SpaceChangeListener {
 
     }
 
+    @Test
+    public void eachPutWakesOneTaker() throws InterruptedException {
+
+        purgeSpace();
+        final Tuple template = new SimpleTuple("job", "*");
+        final AtomicLong taken = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(3);
+
+        for (int i = 0; i < 3; i++) {
+            new Thread() {
+                public void run() {
+                    if (space.get(template, 3000) != null) {
+                        taken.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        sleep(1);
+        assertEquals(3, space.pendingMatchesCount());
+
+        //none of these match so none of the takers are woken
+        for (int i = 0; i < 100; i++) {
+            space.put(new SimpleTuple("other", i));
+        }
+        space.put(new SimpleTuple("job", 1));
+        space.put(new SimpleTuple("job", 2));
+
+        done.await();
+        assertEquals(2, taken.get());
+        assertEquals(0, space.pendingMatchesCount());
+        assertEquals(100, space.size());
+    }
+
+    @Test
+    public void bulkOperationsFireOneEvent() throws TransactionException, InterruptedException {
+
+        purgeSpace();
+        final List<EventHint> hints = Collections.synchronizedList(new ArrayList<EventHint>());
+        final CountDownLatch events = new CountDownLatch(2);
+        final SpaceChangeListener listener = new SpaceChangeListener() {
+            @Override
+            public void spaceChanged(final SpaceChange evt) {
+                hints.add(evt.getEventHint());
+                events.countDown();
+            }
+        };
+        space.addSpaceChangeListener(listener);
+        try {
+            final List<Tuple> jobs = new ArrayList<Tuple>();
+            for (int i = 0; i < 10; i++) {
+                jobs.add(new SimpleTuple("job", i));
+            }
+            jobs.add(new SimpleTuple("other", 1));
+            space.putAll(jobs, Long.MAX_VALUE, null);
+            space.putAll(new ArrayList<Tuple>(), Long.MAX_VALUE, null);
+            assertEquals(11, space.size());
+
+            final Tuple template = new SimpleTuple("job", "*");
+            assertEquals(10, space.readAll(template, 100).size());
+            assertEquals(4, space.readAll(template, 4).size());
+            assertEquals(6, space.takeAll(template, 6, 0, null).size());
+            assertEquals(4, space.takeAll(template, 6, 0, null).size());
+            assertEquals(0, space.takeAll(template, 6, 0, null).size());
+            assertEquals(1, space.size());
+
+            events.await(5, TimeUnit.SECONDS);
+            assertEquals(EventHint.TUPLES_ADDED, hints.get(0));
+            assertEquals(EventHint.TUPLES_REMOVED, hints.get(1));
+            //nothing is fired for an empty putAll or a takeAll that takes nothing
+            assertEquals(Arrays.asList(EventHint.TUPLES_ADDED, EventHint.TUPLES_REMOVED, EventHint.TUPLES_REMOVED),
+                    hints);
+        }
+        finally {
+            space.removeSpaceChangeListener(listener);
+        }
+    }
+
+    @Test
+    public void takeAllWaitsForAPutAll() throws TransactionException, InterruptedException {
+
+        purgeSpace();
+        final Tuple template = new SimpleTuple("job", "*");
+        final AtomicLong taken = new AtomicLong();
+        final Thread taker = new Thread() {
+            public void run() {
+                try {
+                    taken.set(space.takeAll(template, 100, 5000, null).size());
+                } catch (TransactionException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        taker.start();
+        while (space.pendingMatchesCount() == 0) {
+            Thread.sleep(10);
+        }
+
+        final List<Tuple> jobs = new ArrayList<Tuple>();
+        for (int i = 0; i < 5; i++) {
+            jobs.add(new SimpleTuple("job", i));
+        }
+        final TransactionID txn = space.beginTxn(5000L);
+        space.putAll(jobs, 60000, txn);
+        assertEquals(0, space.size());
+        space.commitTxn(txn);
+
+        taker.join(5000);
+        assertEquals(5, taken.get());
+        assertEquals(0, space.size());
+    }
+
+    @Test
+    public void countAndExists() {
+
+        purgeSpace();
+        for (int i = 0; i < 10; i++) {
+            space.put(new SimpleTuple("result", i));
+        }
+        space.put(new SharedVar("x", 1));
+
+        assertEquals(10, space.count(new SimpleTuple("result", "*")));
+        assertEquals(1, space.count(new SimpleTuple("result", 3)));
+        assertEquals(0, space.count(new SimpleTuple("poison", "*")));
+        assertEquals(11, space.count(new MatchAllTuplesTemplate()));
+        assertTrue(space.exists(new SharedVar("x")));
+        assertTrue(!space.exists(new SimpleTuple("poison", "*")));
+        assertEquals(11, space.size());
+    }
+
+    @Test
+    public void scanSeesEachMatchOnce() {
+
+        purgeSpace();
+        for (int i = 0; i < 100; i++) {
+            space.put(new SimpleTuple("audit", i));
+        }
+        space.put(new SharedVar("x", 1));
+
+        final Set<Tuple> seen = Collections.newSetFromMap(new IdentityHashMap<Tuple, Boolean>());
+        final Iterator<Tuple> scan = space.scan(new SimpleTuple("audit", "*"));
+        while (scan.hasNext()) {
+            final Tuple tuple = scan.next();
+            assertTrue(seen.add(tuple));
+            //taking as we go does not upset the scan
+            assertTrue(space.get(tuple, 100) != null);
+        }
+        assertEquals(100, seen.size());
+        assertEquals(1, space.size());
+        assertTrue(!space.scan(new SimpleTuple("audit", "*")).hasNext());
+    }
+
     @Test
     public void testPurgeSpace() throws TransactionException {
         int N = 1000;
@@ -892,6 +1053,29 @@ public class SimpleSpaceTestUsingGeneralTupleIF implements SpaceChangeListener {
 
     }
 
+    @Test
+    public void indexedTuplesAreTakenAndExpired() throws InterruptedException {
+
+        space.createIndex(SharedVar.class, "name");
+        for (int i = 0; i < 100; i++) {
+            space.put(new SharedVar("var" + i, i));
+        }
+        space.put(new SharedVar("short", 1), 50);
+
+        final SharedVar var = (SharedVar) space.get(new SharedVar("var42"), 100);
+        assertTrue(var.getValue() == 42);
+        assertTrue(space.readIfExists(new SharedVar("var42")) == null);
+        assertTrue(space.exists(new SharedVar("short")));
+        assertEquals(1, space.count(new SharedVar("var7", 7)));
+        assertEquals(0, space.count(new SharedVar("var7", 8)));
+
+        Thread.sleep(100);
+        assertTrue(!space.exists(new SharedVar("short")));
+        assertEquals(99, space.count(new SharedVar(null)));
+        space.put(new SharedVar("short", 2));
+        assertTrue(((SharedVar) space.get(new SharedVar("short"), 100)).getValue() == 2);
+    }
+
     /**
      * clear space
      */
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (c) 2012. Mike Houghton.
+ *
+ *
+ * This file is part of 'TupleSpace'.
+ *
+ * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with 'TupleSpace'. If not, see http://www.gnu.org/licenses/.
+ ******************************************************************************/
+
+package js.co.uk.tuplespace.local;
+
+import js.co.uk.tuplespace.examples.SquareTask;
+import js.co.uk.tuplespace.space.Space;
+import js.co.uk.tuplespace.space.TupleSpace;
+import js.co.uk.tuplespace.task.Master;
+import js.co.uk.tuplespace.task.PoisonPill;
+import js.co.uk.tuplespace.task.Worker;
+import js.co.uk.tuplespace.util.ThreadMode;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class ThreadModeTest {
+
+    @Test
+    public void modesAreParsedInAnyCase() {
+
+        assertEquals(ThreadMode.VIRTUAL, ThreadMode.parse(" virtual ", ThreadMode.PLATFORM));
+        assertEquals(ThreadMode.PLATFORM, ThreadMode.parse("Platform", ThreadMode.VIRTUAL));
+        assertEquals(ThreadMode.PLATFORM, ThreadMode.parse("green", ThreadMode.PLATFORM));
+        assertEquals(ThreadMode.PLATFORM, ThreadMode.parse(null, ThreadMode.PLATFORM));
+    }
+
+    @Test
+    public void theSystemPropertySelectsTheConfiguredMode() {
+
+        System.setProperty(ThreadMode.PROPERTY, "VIRTUAL");
+        try {
+            assertEquals(ThreadMode.VIRTUAL, ThreadMode.configured());
+        } finally {
+            System.clearProperty(ThreadMode.PROPERTY);
+        }
+    }
+
+    @Test
+    public void everyModeRunsTasksWhetherOrNotTheJvmHasVirtualThreads() throws InterruptedException {
+
+        for (final ThreadMode mode : ThreadMode.values()) {
+            final ExecutorService executor = mode.newExecutor();
+            final CountDownLatch ran = new CountDownLatch(100);
+            for (int i = 0; i < 100; i++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        ran.countDown();
+                    }
+                });
+            }
+            assertTrue(ran.await(5, TimeUnit.SECONDS));
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void aMasterAndWorkersCanRunOnVirtualThreads() throws InterruptedException {
+
+        final Space space = new TupleSpace("ThreadModeTest");
+        final int tasks = 50;
+        final AtomicInteger results = new AtomicInteger();
+        final CountDownLatch collected = new CountDownLatch(1);
+        final Master master = new Master(space, 5, ThreadMode.VIRTUAL) {
+            @Override
+            protected void generateTasks() {
+                for (long i = 1; i <= tasks; i++) {
+                    putTaskTuple(new SquareTask(i));
+                }
+            }
+
+            @Override
+            protected void collectResults() {
+                for (int i = 0; i < tasks; i++) {
+                    if (getResultTuple() != null) {
+                        results.incrementAndGet();
+                    }
+                }
+                space.put(new PoisonPill());
+                collected.countDown();
+            }
+        };
+        for (int i = 0; i < 3; i++) {
+            new Worker(space, ThreadMode.VIRTUAL).startWork();
+        }
+        master.startGenerationAndCollection();
+
+        assertTrue(collected.await(30, TimeUnit.SECONDS));
+        assertEquals(tasks, results.get());
+    }
+}
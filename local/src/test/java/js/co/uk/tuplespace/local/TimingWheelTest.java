@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2012. Mike Houghton.
+ *
+ *
+ * This file is part of 'TupleSpace'.
+ *
+ * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with 'TupleSpace'. If not, see http://www.gnu.org/licenses/.
+ ******************************************************************************/
+
+package js.co.uk.tuplespace.local;
+
+import js.co.uk.tuplespace.store.TimingWheel;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class TimingWheelTest {
+
+    private TimingWheel wheel;
+
+    @Before
+    public void setUp() {
+        wheel = new TimingWheel("TimingWheelTest");
+    }
+
+    @Test
+    public void tasksRunInDeadlineOrderAndNeverEarly() throws InterruptedException {
+
+        final int n = 200;
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch latch = new CountDownLatch(n);
+        final long start = System.nanoTime();
+        final List<Long> early = Collections.synchronizedList(new ArrayList<Long>());
+
+        //scheduled in reverse, spread over several levels of the wheel, each due 5ms after the one before
+        for (int i = n - 1; i >= 0; i--) {
+            final int id = i;
+            final long delay = 100 + 5L * i;
+            wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(delay)) {
+                        early.add(delay);
+                    }
+                    order.add(id);
+                    latch.countDown();
+                }
+            }, TimeUnit.MILLISECONDS.toNanos(delay) - (System.nanoTime() - start), TimeUnit.NANOSECONDS);
+        }
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertTrue("ran early " + early, early.isEmpty());
+        for (int i = 0; i < n; i++) {
+            assertEquals(i, order.get(i).intValue());
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void tasksDueWhilstTheWheelIsBusyRunInDeadlineOrder() throws InterruptedException {
+
+        final CountDownLatch blocking = new CountDownLatch(1);
+        wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                blocking.countDown();
+                try {
+                    Thread.sleep(300);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, 1, TimeUnit.MILLISECONDS);
+        assertTrue(blocking.await(1, TimeUnit.SECONDS));
+
+        //all due, a tick or two apart, before the wheel can look at them
+        final int n = 50;
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch latch = new CountDownLatch(n);
+        final long start = System.nanoTime();
+        for (int i = n - 1; i >= 0; i--) {
+            final int id = i;
+            wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(id);
+                    latch.countDown();
+                }
+            }, TimeUnit.MILLISECONDS.toNanos(20 + 2L * i) - (System.nanoTime() - start), TimeUnit.NANOSECONDS);
+        }
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < n; i++) {
+            assertEquals(i, order.get(i).intValue());
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void cancelledTasksDoNotRun() throws InterruptedException {
+
+        final CountDownLatch ran = new CountDownLatch(1);
+        final TimingWheel.Timeout cancelled = wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+        final TimingWheel.Timeout distant = wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        }, 1000, TimeUnit.DAYS);
+        assertEquals(2, wheel.size());
+
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+        assertTrue(distant.cancel());
+        assertEquals(0, wheel.size());
+        assertFalse(ran.await(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void aLaterShorterDelayWakesTheWheel() throws InterruptedException {
+
+        wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, 1, TimeUnit.HOURS);
+
+        final CountDownLatch ran = new CountDownLatch(1);
+        wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        }, 20, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(1, TimeUnit.SECONDS));
+        assertEquals(1, wheel.size());
+    }
+}
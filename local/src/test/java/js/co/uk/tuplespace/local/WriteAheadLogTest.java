@@ -0,0 +1,340 @@
+/*******************************************************************************
+ * Copyright (c) 2012. Mike Houghton.
+ *
+ *
+ * This file is part of 'TupleSpace'.
+ *
+ * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with 'TupleSpace'. If not, see http://www.gnu.org/licenses/.
+ ******************************************************************************/
+
+package js.co.uk.tuplespace.local;
+
+import js.co.uk.tuplespace.codec.BinaryTupleCodec;
+import js.co.uk.tuplespace.matcher.FieldBasedMatcher;
+import js.co.uk.tuplespace.space.TupleSpace;
+import js.co.uk.tuplespace.store.TimeoutCollection;
+import js.co.uk.tuplespace.store.TimeoutEntry;
+import js.co.uk.tuplespace.store.TransactionException;
+import js.co.uk.tuplespace.store.TransactionID;
+import js.co.uk.tuplespace.store.TransactionManager;
+import js.co.uk.tuplespace.store.WriteAheadLog;
+import js.co.uk.tuplespace.tuple.SimpleTuple;
+import js.co.uk.tuplespace.tuple.Tuple;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+public class WriteAheadLogTest {
+
+    private File file;
+
+    /**
+     * The spaces opened on the file, closed before it is deleted.
+     */
+    private final List<TupleSpace> spaces = new ArrayList<TupleSpace>();
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("WriteAheadLogTest", ".wal");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (final TupleSpace space : spaces) {
+            space.close();
+        }
+        final File[] files = file.getParentFile().listFiles();
+        if (files != null) {
+            for (final File each : files) {
+                if (each.getName().startsWith(file.getName())) {
+                    each.delete();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void spaceIsRecoveredFromItsLog() throws IOException, TransactionException {
+
+        final TupleSpace space = open();
+        for (int i = 0; i < 10; i++) {
+            space.put(new SimpleTuple("task", i));
+        }
+        space.put(new SimpleTuple("lease", 1), 60000);
+        space.put(new SimpleTuple("short", 1), 50);
+        assertNotNull(space.get(new SimpleTuple("task", 3), 100));
+
+        final TransactionID committed = space.beginTxn(5000L);
+        space.put(new SimpleTuple("txn", 1), committed);
+        assertNotNull(space.get(new SimpleTuple("task", 4), 100, committed));
+        space.commitTxn(committed);
+
+        //an uncommitted take is not lost
+        final TransactionID open = space.beginTxn(5000L);
+        space.put(new SimpleTuple("txn", 2), open);
+        assertNotNull(space.get(new SimpleTuple("task", 5), 100, open));
+
+        sleep(100);
+        space.close();
+        final TupleSpace recovered = open();
+        assertEquals(10, recovered.size());
+        assertEquals(8, recovered.count(new SimpleTuple("task", "*")));
+        assertTrue(recovered.exists(new SimpleTuple("task", 5)));
+        assertTrue(!recovered.exists(new SimpleTuple("task", 3)));
+        assertTrue(!recovered.exists(new SimpleTuple("task", 4)));
+        assertTrue(recovered.exists(new SimpleTuple("txn", 1)));
+        assertTrue(!recovered.exists(new SimpleTuple("txn", 2)));
+        assertTrue(recovered.exists(new SimpleTuple("lease", 1)));
+        assertTrue(!recovered.exists(new SimpleTuple("short", 1)));
+    }
+
+    @Test
+    public void leasesCarryOnFromWhereTheyWere() throws IOException {
+
+        final TupleSpace space = open();
+        space.put(new SimpleTuple("lease", 1), 400);
+        sleep(200);
+        space.close();
+
+        final TupleSpace recovered = open();
+        assertTrue(recovered.exists(new SimpleTuple("lease", 1)));
+        sleep(400);
+        assertEquals(0, recovered.size());
+    }
+
+    @Test
+    public void aTornRecordIsDiscarded() throws IOException {
+
+        final WriteAheadLog<Tuple> log = new WriteAheadLog<Tuple>(file);
+        log.replay();
+        log.sync(log.put(eternal(new SimpleTuple("whole", 1))));
+        log.sync(log.put(eternal(new SimpleTuple("torn", 1))));
+        log.close();
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        final WriteAheadLog<Tuple> reopened = new WriteAheadLog<Tuple>(file);
+        final List<?> entries = reopened.replay();
+        assertEquals(1, entries.size());
+        reopened.sync(reopened.put(eternal(new SimpleTuple("after", 1))));
+        reopened.close();
+
+        final WriteAheadLog<Tuple> again = new WriteAheadLog<Tuple>(file);
+        assertEquals(2, again.replay().size());
+        again.close();
+    }
+
+    @Test
+    public void aLogWrittenWithACodecIsReadWithoutOne() throws IOException {
+
+        final WriteAheadLog<Tuple> log = new WriteAheadLog<Tuple>(file, new BinaryTupleCodec());
+        log.replay();
+        log.sync(log.put(eternal(new SimpleTuple("coded", 1))));
+        log.close();
+
+        final WriteAheadLog<Tuple> reopened = new WriteAheadLog<Tuple>(file);
+        final List<TimeoutEntry<Tuple>> entries = reopened.replay();
+        assertEquals(1, entries.size());
+        assertEquals(new SimpleTuple("coded", 1), entries.get(0).getItem());
+        reopened.close();
+    }
+
+    @Test
+    public void concurrentPutsAreAllDurable() throws IOException, InterruptedException {
+
+        final TupleSpace space = open();
+        final int threads = 8;
+        final int puts = 200;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread() {
+                public void run() {
+                    for (int i = 0; i < puts; i++) {
+                        space.put(new SimpleTuple(thread, i));
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        space.close();
+
+        final TupleSpace recovered = open();
+        assertEquals(threads * puts, recovered.size());
+    }
+
+    @Test
+    public void aCheckpointTruncatesTheLog() throws IOException {
+
+        final TupleSpace space = open();
+        for (int i = 0; i < 100; i++) {
+            space.put(new SimpleTuple("task", i));
+        }
+        for (int i = 0; i < 50; i++) {
+            assertNotNull(space.get(new SimpleTuple("task", i), 100));
+        }
+        //one writer at a time
+        space.close();
+
+        final WriteAheadLog<Tuple> checkpointed = new WriteAheadLog<Tuple>(file);
+        assertEquals(50, checkpointed.replay().size());
+        final long before = file.length();
+        checkpointed.checkpoint();
+        assertTrue(new File(file.getPath() + ".snapshot").exists());
+        assertTrue(!file.exists() || file.length() < before);
+
+        //records after the checkpoint are replayed over the snapshot
+        checkpointed.sync(checkpointed.put(eternal(new SimpleTuple("after", 1))));
+        checkpointed.close();
+
+        final TupleSpace recovered = open();
+        assertEquals(51, recovered.size());
+        assertTrue(recovered.exists(new SimpleTuple("task", 50)));
+        assertTrue(!recovered.exists(new SimpleTuple("task", 49)));
+        assertTrue(recovered.exists(new SimpleTuple("after", 1)));
+    }
+
+    @Test
+    public void putsAndTakesCarryOnDuringACheckpoint() throws IOException, InterruptedException {
+
+        final WriteAheadLog<Tuple> log = new WriteAheadLog<Tuple>(file);
+        final TimeoutCollection<Tuple> collection = new TimeoutCollection<Tuple>(new LinkedBlockingQueue<Tuple>());
+        collection.setMatcher(new FieldBasedMatcher());
+        collection.setTransactionManager(new TransactionManager<Tuple>(collection));
+        collection.recover(log);
+
+        final int threads = 4;
+        final int puts = 300;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread() {
+                public void run() {
+                    for (int i = 0; i < puts; i++) {
+                        collection.put(new SimpleTuple(thread, i));
+                        if (i % 3 == 0) {
+                            collection.take(new SimpleTuple(thread, i));
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        int checkpoints = 0;
+        while (!done.await(1, TimeUnit.MILLISECONDS)) {
+            log.checkpoint();
+            checkpoints++;
+        }
+        assertTrue(checkpoints > 0);
+        assertEquals(threads * (puts - puts / 3), collection.size());
+        log.close();
+
+        final TupleSpace recovered = open();
+        assertEquals(threads * (puts - puts / 3), recovered.size());
+        assertTrue(!recovered.exists(new SimpleTuple(0, 0)));
+        assertTrue(recovered.exists(new SimpleTuple(0, 1)));
+    }
+
+    @Test
+    public void aClosedSpaceHasWrittenEverythingAndWritesNoMore() throws IOException {
+
+        final TupleSpace space = open();
+        space.put(new SimpleTuple("before", 1));
+        space.close();
+        final long length = file.length();
+        try {
+            space.put(new SimpleTuple("after", 1));
+        } catch (IllegalStateException e) {
+            //the log is closed
+        }
+        assertEquals(length, file.length());
+
+        final TupleSpace recovered = open();
+        assertEquals(1, recovered.size());
+        assertTrue(recovered.exists(new SimpleTuple("before", 1)));
+    }
+
+    @Test
+    public void aBulkPutThatCannotBeLoggedChangesNothing() throws IOException, TransactionException {
+
+        final TupleSpace space = open();
+        final List<Tuple> tuples = new ArrayList<Tuple>();
+        tuples.add(new SimpleTuple("good", 1));
+        tuples.add(new SimpleTuple("bad", new Object()));
+        tuples.add(new SimpleTuple("good", 2));
+        try {
+            space.putAll(tuples, Long.MAX_VALUE, null);
+            assertTrue("a tuple that cannot be encoded was logged", false);
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+        assertEquals(0, space.size());
+
+        space.put(new SimpleTuple("good", 3));
+        space.close();
+        final TupleSpace recovered = open();
+        assertEquals(1, recovered.size());
+        assertTrue(recovered.exists(new SimpleTuple("good", 3)));
+    }
+
+    @Test
+    public void closingASpaceEndsItsCheckpoints() throws IOException {
+
+        final TupleSpace space = new TupleSpace("checkpointed", file, 10, TimeUnit.MILLISECONDS);
+        spaces.add(space);
+        space.put(new SimpleTuple("task", 1));
+        final File snapshot = new File(file.getPath() + ".snapshot");
+        for (int i = 0; i < 500 && !snapshot.exists(); i++) {
+            sleep(10);
+        }
+        assertTrue(snapshot.exists());
+
+        space.close();
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            assertTrue(!thread.getName().equals("checkpointed-checkpoint"));
+        }
+        final TupleSpace recovered = open();
+        assertTrue(recovered.exists(new SimpleTuple("task", 1)));
+    }
+
+    /**
+     * @return a durable space on the file, closed when the test ends
+     */
+    private TupleSpace open() throws IOException {
+        final TupleSpace space = new TupleSpace("durable", file);
+        spaces.add(space);
+        return space;
+    }
+
+    private static void sleep(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static TimeoutEntry<Tuple> eternal(final Tuple tuple) {
+        return new TimeoutEntry<Tuple>(tuple, Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+}
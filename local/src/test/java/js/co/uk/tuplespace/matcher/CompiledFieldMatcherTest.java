@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright (c) 2012. Mike Houghton.
+ *
+ *
+ * This file is part of 'TupleSpace'.
+ *
+ * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with 'TupleSpace'. If not, see http://www.gnu.org/licenses/.
+ ******************************************************************************/
+
+package js.co.uk.tuplespace.matcher;
+
+import js.co.uk.tuplespace.space.Space;
+import js.co.uk.tuplespace.space.TupleSpace;
+import js.co.uk.tuplespace.tuple.SimpleTuple;
+import js.co.uk.tuplespace.tuple.Tuple;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class CompiledFieldMatcherTest {
+
+    private final Matcher<Tuple> compiled = new CompiledFieldMatcher();
+    private final Matcher<Tuple> reflective = new FieldBasedMatcher();
+
+    @Test
+    public void matchesAsFieldBasedMatcherDoes() {
+
+        final Reading reading = new Reading("kitchen", 21.5, 3, true);
+        final Tuple[] templates = {
+                new Reading("kitchen", 21.5, 3, true),
+                new Reading(null, 21.5, 3, true),
+                new Reading("*", 21.5, 3, true),
+                new Reading("hall", 21.5, 3, true),
+                new Reading("kitchen", 21.0, 3, true),
+                new Reading("kitchen", 21.5, 4, true),
+                new Reading("kitchen", 21.5, 3, false),
+                new Other("kitchen")
+        };
+        for (final Tuple template : templates) {
+            assertEquals(template.toString(), reflective.match(reading, template), compiled.match(reading, template));
+        }
+        assertTrue(compiled.match(new SimpleTuple(1, 2), new SimpleTuple(1, "*")));
+        assertTrue(compiled.match(new Hot("kitchen", 30.0, 1, true), new Reading("hall", 0, 0, false)));
+    }
+
+    @Test
+    public void aNullFieldOnlyMatchesAWildcard() {
+
+        final Reading unnamed = new Reading(null, 1.0, 1, true);
+        assertFalse(compiled.match(unnamed, new Reading("kitchen", 1.0, 1, true)));
+        assertTrue(compiled.match(unnamed, new Reading(null, 1.0, 1, true)));
+    }
+
+    @Test
+    public void stillMatchesOnceDeserialised() throws Exception {
+
+        assertTrue(compiled.match(new Reading("a", 1, 1, true), new Reading("a", 1, 1, true)));
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(compiled);
+        out.close();
+        @SuppressWarnings("unchecked")
+        final Matcher<Tuple> copy = (Matcher<Tuple>) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertTrue(copy.match(new Reading("a", 1, 1, true), new Reading(null, 1, 1, true)));
+    }
+
+    @Test
+    public void aSpaceUsesIt() {
+
+        final Space space = new TupleSpace("compiled");
+        for (int i = 0; i < 50; i++) {
+            space.put(new Reading("room" + (i % 5), i, i, i % 2 == 0));
+        }
+        assertEquals(1, space.count(new Reading("*", 13, 13, false)));
+        assertEquals(0, space.count(new Reading("room2", 13, 13, false)));
+        assertEquals(new Reading("room3", 13, 13, false), space.get(new Reading("room3", 13, 13, false), 100));
+    }
+
+    @SuppressWarnings("serial")
+    static class Reading implements Tuple {
+        private final String room;
+        private final double celsius;
+        private final int sensor;
+        private final boolean valid;
+
+        Reading(final String room, final double celsius, final int sensor, final boolean valid) {
+            this.room = room;
+            this.celsius = celsius;
+            this.sensor = sensor;
+            this.valid = valid;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Reading)) return false;
+            final Reading other = (Reading) o;
+            return String.valueOf(room).equals(String.valueOf(other.room)) && celsius == other.celsius
+                    && sensor == other.sensor && valid == other.valid;
+        }
+
+        @Override
+        public int hashCode() {
+            return sensor;
+        }
+
+        @Override
+        public String toString() {
+            return room + " " + celsius + " " + sensor + " " + valid;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    static class Hot extends Reading {
+        Hot(final String room, final double celsius, final int sensor, final boolean valid) {
+            super(room, celsius, sensor, valid);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    static class Other implements Tuple {
+        private final String room;
+
+        Other(final String room) {
+            this.room = room;
+        }
+    }
+}
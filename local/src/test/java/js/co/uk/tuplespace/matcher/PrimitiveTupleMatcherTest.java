@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (c) 2012. Mike Houghton.
+ *
+ *
+ * This file is part of 'TupleSpace'.
+ *
+ * 'TupleSpace' is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * 'TupleSpace' is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with 'TupleSpace'. If not, see http://www.gnu.org/licenses/.
+ ******************************************************************************/
+
+package js.co.uk.tuplespace.matcher;
+
+import js.co.uk.tuplespace.codec.BinaryTupleCodec;
+import js.co.uk.tuplespace.space.Space;
+import js.co.uk.tuplespace.space.TupleSpace;
+import js.co.uk.tuplespace.tuple.DoubleTuple;
+import js.co.uk.tuplespace.tuple.IntTuple;
+import js.co.uk.tuplespace.tuple.LongTuple;
+import js.co.uk.tuplespace.tuple.MatchAllTuplesTemplate;
+import js.co.uk.tuplespace.tuple.SimpleTuple;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+public class PrimitiveTupleMatcherTest {
+
+    private final Matcher<js.co.uk.tuplespace.tuple.Tuple> matcher = new PrimitiveTupleMatcher();
+
+    @Test
+    public void wildcardsMatchAnything() {
+
+        final IntTuple tuple = new IntTuple(1, 2, 3);
+        assertTrue(matcher.match(tuple, new IntTuple(1, 2, 3)));
+        assertTrue(matcher.match(tuple, IntTuple.template(1, null, 3)));
+        assertTrue(matcher.match(tuple, IntTuple.template(null, null, null)));
+        assertTrue(matcher.match(tuple, new MatchAllTuplesTemplate()));
+        assertFalse(matcher.match(tuple, IntTuple.template(1, null, 4)));
+        assertFalse(matcher.match(tuple, IntTuple.template(1, null)));
+        assertEquals(IntTuple.template(1, null, 3), IntTuple.withWildcards(2L, 1, 99, 3));
+        assertEquals("IntTuple{1, *, 3}", IntTuple.template(1, null, 3).toString());
+    }
+
+    @Test
+    public void familiesDoNotMatchEachOther() {
+
+        assertFalse(matcher.match(new LongTuple(1L, 2L), new IntTuple(1, 2)));
+        assertFalse(matcher.match(new IntTuple(1, 2), new SimpleTuple(1, 2)));
+        assertTrue(matcher.match(new LongTuple(Long.MAX_VALUE, 2L), LongTuple.template(Long.MAX_VALUE, null)));
+        assertTrue(matcher.match(new DoubleTuple(Double.NaN, 0.5), DoubleTuple.template(Double.NaN, 0.5)));
+        assertFalse(matcher.match(new DoubleTuple(0.0), new DoubleTuple(-0.0)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wildcardsMustBeWithinTheArity() {
+        IntTuple.withWildcards(4L, 1, 2);
+    }
+
+    @Test
+    public void aSpaceMatchesPrimitiveTuples() {
+
+        final Space space = new TupleSpace("primitives");
+        for (int i = 0; i < 100; i++) {
+            space.put(new IntTuple(i, i * i));
+        }
+        space.put(new LongTuple(7L, 49L));
+        assertEquals(new IntTuple(7, 49), space.get(IntTuple.template(7, null), 100));
+        assertNull(space.get(IntTuple.template(7, null), 10));
+        assertEquals(99, space.count(IntTuple.template(null, null)));
+        assertEquals(new LongTuple(7L, 49L), space.get(LongTuple.template(null, 49L), 100));
+    }
+
+    @Test
+    public void primitiveTuplesRoundTripThroughTheCodec() throws IOException {
+
+        final BinaryTupleCodec codec = new BinaryTupleCodec();
+        final DoubleTuple doubles = DoubleTuple.template(1.5, null, -2.25);
+        final LongTuple longs = new LongTuple(Long.MIN_VALUE, 0L, 1L);
+        assertEquals(doubles, codec.decode(codec.encode(doubles)));
+        assertEquals(longs, codec.decode(codec.encode(longs)));
+        assertEquals(new IntTuple(-1, 300), codec.decode(codec.encode(new IntTuple(-1, 300))));
+    }
+}
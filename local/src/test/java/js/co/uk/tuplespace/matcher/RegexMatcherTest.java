@@ -77,6 +77,73 @@ public class RegexMatcherTest {
         System.out.println(space.get(RegexMatcher.NULL_TEMPLATE, 1000));
     }
 
+    @Test
+    public void literal_hints_are_taken_from_the_pattern() {
+
+        assertHints("^Fred", "Fred", "Fred");
+        assertHints("Fa.*", "Fa", "Fa");
+        assertHints("\\d2", "", "2");
+        assertHints("ab?cde", "a", "cde");
+        assertHints("ab+cd", "ab", "ab");
+        assertHints("x[abc]yz\\.com", "x", "yz.com");
+        assertHints("(Mr|Mrs) Smith", "", " Smith");
+        assertHints("Smith|Jones", "", "");
+        assertHints("(?i)smith", "", "");
+        assertHints("a{0,2}bc", "", "bc");
+        //an escape written with several characters is no part of the literal text
+        assertHints("\\x41BC", "", "BC");
+        assertHints("\\p{Lu}x", "", "x");
+        assertHints("(a)\\1b", "", "");
+    }
+
+    @Test
+    public void hints_never_turn_away_a_match() {
+
+        final String[] patterns = {"^F", "Fa.*", "\\d2", "ab?c", "ab+c", "[ab]c", "(a|b)c", "a|c", "a{2}c", "a*b",
+                "\\.x", "(?i)A", "Br.ck", "8 B", "\\x41BC", "\\x{41}BC", "\\u0041BC", "\\0101BC", "\\cAz",
+                "\\pLBC", "\\p{Lu}BC", "[\\x41-\\x5D]BC", "(?<n>a)\\k<n>b", "(a)\\1b"};
+        final String[] values = {"F", "Fa", "Fred", "32", "ac", "abc", "abbc", "bc", "cc", "aac", "b", "aab", ".x",
+                "a", "Brock", "8 Brockhampton Lane", "", "ABC", "\u0001z", "]BC"};
+        for (final String pattern : patterns) {
+            final RegexMatcher.LiteralHints hints = RegexMatcher.LiteralHints.of(pattern);
+            for (final String value : values) {
+                if (java.util.regex.Pattern.compile(pattern).matcher(value).lookingAt()) {
+                    assertTrue(pattern + " " + value, hints.admits(value));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void escapes_of_several_characters_match() {
+        matcher.clearMatchers();
+        matcher.addRegexEntry("cName", "\\x41BC");
+        assertTrue(matcher.match(new Person("ABC", "S", "A", 1), null));
+        matcher.clearMatchers();
+        matcher.addRegexEntry("cName", "\\cAz");
+        assertTrue(matcher.match(new Person("\u0001z", "S", "A", 1), null));
+    }
+
+    @Test
+    public void match_many_in_space() {
+        matcher.clearMatchers();
+        matcher.addRegexEntry("address", "8 Brock");
+        Space space = new TupleSpace("manyMatchers");
+        space.setMatcher(matcher);
+        for (int i = 0; i < 1000; i++) {
+            space.put(new Person("P" + i, "S", i + " Brockhampton Lane Havant", i));
+        }
+        assertEquals(1, space.count(RegexMatcher.NULL_TEMPLATE));
+        assertEquals("P8", ((Person) space.get(RegexMatcher.NULL_TEMPLATE, 100)).cName);
+        assertNull(space.get(RegexMatcher.NULL_TEMPLATE, 10));
+    }
+
+    private static void assertHints(final String pattern, final String prefix, final String required) {
+        final RegexMatcher.LiteralHints hints = RegexMatcher.LiteralHints.of(pattern);
+        assertEquals(pattern, prefix, hints.prefix);
+        assertEquals(pattern, required, hints.required);
+    }
+
     //--------------------------------------------------------------------------
     private class Person implements Tuple {
 
@@ -1,9 +1,12 @@
 package js.co.uk.tuplespace.dist.hess.local;
 
 import com.caucho.hessian.client.HessianProxyFactory;
+import js.co.uk.tuplespace.codec.TupleCodec;
+import js.co.uk.tuplespace.codec.TupleCodecs;
 import js.co.uk.tuplespace.events.SpaceChangeListener;
 import js.co.uk.tuplespace.matcher.Matcher;
 import js.co.uk.tuplespace.dist.hess.remote.HessianRemoteSpace;
+import js.co.uk.tuplespace.dist.hess.remote.TupleSerializerFactory;
 import js.co.uk.tuplespace.space.Space;
 import js.co.uk.tuplespace.store.TimeoutEntry;
 import js.co.uk.tuplespace.store.TransactionException;
@@ -25,6 +28,11 @@ public class HessianLocalSpaceCreator implements SpaceCreator<Space> {
 
     private static SpaceCreator<Space> creator;
     private static HessianProxyFactory factory = new HessianProxyFactory();
+
+    static {
+        //tuples go over the wire encoded by the codec
+        factory.getSerializerFactory().addFactory(new TupleSerializerFactory(TupleCodecs.getDefault()));
+    }
     private static String url;
     private static final Map<String, Space> spaces = new HashMap<String, Space>();
 
@@ -38,6 +46,20 @@ public class HessianLocalSpaceCreator implements SpaceCreator<Space> {
      * @param urlForSpaces url of the HessianRemoteSpaceCreator
      */
     public HessianLocalSpaceCreator(final String urlForSpaces) {
+        this(urlForSpaces, TupleCodecs.getDefault());
+    }
+
+    /**
+     * As {@link #HessianLocalSpaceCreator(String)}, with tuples sent and received encoded by the given codec. The
+     * server must use a codec with the same classes registered, see {@link TupleCodecs#REGISTER_PROPERTY}.
+     *
+     * @param urlForSpaces url of the HessianRemoteSpaceCreator
+     * @param codec        the codec
+     */
+    public HessianLocalSpaceCreator(final String urlForSpaces, final TupleCodec codec) {
+        final HessianProxyFactory spaceFactory = new HessianProxyFactory();
+        spaceFactory.getSerializerFactory().addFactory(new TupleSerializerFactory(codec));
+        HessianLocalSpaceCreator.factory = spaceFactory;
         url = urlForSpaces;
         HessianProxyFactory factory = new HessianProxyFactory();
 
@@ -163,11 +185,51 @@ public class HessianLocalSpaceCreator implements SpaceCreator<Space> {
                 return remote.readIfExistsWithTxn(tuple, transactionID);
             }
 
+            @Override
+            public void putAll(final Collection<Tuple> tuples, final long timeOut, final TransactionID transactionID) throws TransactionException {
+                remote.putAll(tuples, timeOut, transactionID);
+            }
+
+            @Override
+            public List<Tuple> takeAll(final Tuple template, final int max, final long timeOut, final TransactionID transactionID) throws TransactionException {
+                return remote.takeAll(template, max, timeOut, transactionID);
+            }
+
+            @Override
+            public List<Tuple> readAll(final Tuple template, final int max) {
+                return remote.readAll(template, max);
+            }
+
+            @Override
+            public int count(final Tuple template) {
+                return remote.count(template);
+            }
+
+            @Override
+            public boolean exists(final Tuple template) {
+                return remote.exists(template);
+            }
+
+            @Override
+            public Iterator<Tuple> scan(final Tuple template) {
+                return new RemoteScan(remote, template);
+            }
+
             @Override
             public void setMatcher(final Matcher<Tuple> tupleMatcher) {
                 remote.setMatcher(tupleMatcher);
             }
 
+            @Override
+            public void createIndex(final Class<? extends Tuple> type, final String... fields) {
+                remote.createIndex(type, fields);
+            }
+
+            @Override
+            public void createSortedIndex(final Class<? extends Tuple> type, final String field) {
+                remote.createSortedIndex(type, field);
+            }
+
             @Override
             public List<Tuple> listAllTuples() {
                 return remote.listAllTuples();
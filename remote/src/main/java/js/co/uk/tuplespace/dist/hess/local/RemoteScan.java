@@ -0,0 +1,63 @@
+package js.co.uk.tuplespace.dist.hess.local;
+
+import js.co.uk.tuplespace.dist.hess.remote.HessianRemoteSpace;
+import js.co.uk.tuplespace.tuple.Tuple;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The client side of a scan of a remote space. The tuples are fetched from the servlet a page at a time so only one
+ * page is ever held locally. The scan is opened on the first call to hasNext and is closed by the servlet once the last
+ * page has been sent, an abandoned scan is closed by the servlet after it has been idle for a while.
+ */
+class RemoteScan implements Iterator<Tuple> {
+
+    /**
+     * The number of tuples fetched at a time.
+     */
+    static final int PAGE_SIZE = 256;
+
+    private final HessianRemoteSpace remote;
+    private final Tuple template;
+    private Long scanId;
+    private List<Tuple> page;
+    private int index;
+    private boolean last;
+
+    RemoteScan(final HessianRemoteSpace remote, final Tuple template) {
+        this.remote = remote;
+        this.template = template;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (page == null || index == page.size()) {
+            if (last) {
+                return false;
+            }
+            if (scanId == null) {
+                scanId = remote.openScan(template);
+            }
+            page = remote.nextPage(scanId, PAGE_SIZE);
+            index = 0;
+            //a short page is the last one
+            last = page.size() < PAGE_SIZE;
+        }
+        return true;
+    }
+
+    @Override
+    public Tuple next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.get(index++);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -7,6 +7,7 @@ import js.co.uk.tuplespace.store.TransactionID;
 import js.co.uk.tuplespace.store.Transactional;
 import js.co.uk.tuplespace.tuple.Tuple;
 
+import java.util.Collection;
 import java.util.List;
 import js.co.uk.tuplespace.space.Space;
 
@@ -207,6 +208,90 @@ public interface HessianRemoteSpace extends Transactional {
             TransactionException;
 
 
+    /**
+     * Puts all of the tuples into the space in one operation, optionally under a transaction.
+     *
+     * @param tuples  the tuples
+     * @param timeOut the time out in milliseconds, Long.MAX_VALUE for no timeout
+     * @param txnId   the id of the transaction, may be null
+     * @throws TransactionException a TransactionException
+     */
+    public void putAll(final Collection<Tuple> tuples, final long timeOut, final TransactionID txnId) throws
+            TransactionException;
+
+
+    /**
+     * Takes up to max tuples that match the supplied template in one operation. The operation will block for up to
+     * timeOut milliseconds for the first match.
+     *
+     * @param template the template
+     * @param max      the most tuples to take
+     * @param timeOut  how long to wait for the first match, zero to not wait at all
+     * @param txnId    the id of the transaction, may be null
+     * @return the tuples that match the template
+     * @throws TransactionException a TransactionException
+     */
+    public List<Tuple> takeAll(final Tuple template, final int max, final long timeOut, final TransactionID txnId)
+            throws TransactionException;
+
+
+    /**
+     * This is a non-blocking read of up to max tuples that match the supplied template.
+     *
+     * @param template the template
+     * @param max      the most tuples to read
+     * @return the tuples that match the template
+     */
+    public List<Tuple> readAll(final Tuple template, final int max);
+
+
+    /**
+     * Counts the tuples that match the supplied template. Only the count is returned to the client.
+     *
+     * @param template the template
+     * @return the number of tuples that match the template
+     */
+    public int count(final Tuple template);
+
+
+    /**
+     * This is a non-blocking check for a tuple that matches the supplied template. Only the answer is returned to
+     * the client.
+     *
+     * @param template the template
+     * @return true if a tuple in the space matches the template
+     */
+    public boolean exists(final Tuple template);
+
+
+    /**
+     * Starts a scan of the tuples that match the supplied template, see {@link Space#scan(Tuple)}. The tuples are
+     * then fetched a page at a time by {@link #nextPage(long, int)}.
+     *
+     * @param template the template
+     * @return the id of the scan
+     */
+    public long openScan(final Tuple template);
+
+
+    /**
+     * Gets the next page of a scan. A page shorter than max is the last and the scan is then closed.
+     *
+     * @param scanId the id of the scan
+     * @param max    the most tuples to return
+     * @return the next tuples of the scan
+     */
+    public List<Tuple> nextPage(final long scanId, final int max);
+
+
+    /**
+     * Closes a scan before its last page has been fetched.
+     *
+     * @param scanId the id of the scan
+     */
+    public void closeScan(final long scanId);
+
+
     /**
      * Sets the matcher that is used when reading or getting tuples. The matcher compares
      * a tuple in the space with the template.
@@ -216,6 +301,22 @@ public interface HessianRemoteSpace extends Transactional {
      */
     public void setMatcher(final Matcher<Tuple> matcher);
 
+    /**
+     * Creates a hash index on some fields of a class of tuples, see {@link Space#createIndex(Class, String...)}.
+     *
+     * @param type   the class of the tuples to index
+     * @param fields the names of the fields to index on
+     */
+    public void createIndex(final Class<? extends Tuple> type, final String... fields);
+
+    /**
+     * Creates a sorted index on a field of a class of tuples, see {@link Space#createSortedIndex(Class, String)}.
+     *
+     * @param type  the class of the tuples to index
+     * @param field the name of the field to index on
+     */
+    public void createSortedIndex(final Class<? extends Tuple> type, final String field);
+
     /**
      * Lists all the tuples at the instant of invocation.
      *
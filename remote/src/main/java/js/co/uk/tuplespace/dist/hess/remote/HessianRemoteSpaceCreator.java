@@ -2,23 +2,32 @@ package js.co.uk.tuplespace.dist.hess.remote;
 
 import js.co.uk.tuplespace.space.SpaceCreator;
 import com.caucho.hessian.server.HessianServlet;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import js.co.uk.tuplespace.renderers.ConsoleSpaceRenderer;
 import js.co.uk.tuplespace.events.EventHint;
 import js.co.uk.tuplespace.events.SpaceChangeEvent;
 import js.co.uk.tuplespace.events.SpaceRenderer;
+import js.co.uk.tuplespace.space.TupleSpace;
+import js.co.uk.tuplespace.store.CapacityPolicy;
+import js.co.uk.tuplespace.store.Ordering;
+import js.co.uk.tuplespace.tuple.Tuple;
+import js.co.uk.tuplespace.util.ThreadMode;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.PropertiesConfiguration;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
 
 /**
  * Run this 'remotely', it is the server-side code for a tuplespace. This is
@@ -42,6 +51,14 @@ public class HessianRemoteSpaceCreator extends HessianServlet implements SpaceCr
     private SpaceRenderer spaceRenderer;
     private Map<String, HessianRemoteSpace> spaceMap;
     private int port = DEFAULT_PORT;
+    private File logDir;
+    private long checkpointSeconds = 0;
+    private Ordering ordering = Ordering.ANY;
+    private int maxTuples = Integer.MAX_VALUE;
+    private long maxBytes = Long.MAX_VALUE;
+    private CapacityPolicy capacityPolicy = CapacityPolicy.BLOCK;
+    private long capacityTimeoutMillis = 0;
+    private ThreadMode threadMode = ThreadMode.PLATFORM;
 
     /**
      * Starts the Jetty server and places itself as a servlet on /spaceManager.
@@ -51,13 +68,37 @@ public class HessianRemoteSpaceCreator extends HessianServlet implements SpaceCr
      * @throws Exception
      */
     public HessianRemoteSpaceCreator(final SpaceRenderer spaceRenderer) throws Exception {
+        this(spaceRenderer, null);
+
+    }
+
+    /**
+     * Starts the Jetty server and places itself as a servlet on /spaceManager, with Jetty's requests handled on
+     * threads of the given kind. Virtual threads let many clients block in a get without using up a bounded pool of
+     * platform threads.
+     *
+     * @param spaceRenderer
+     * @param threadMode the kind of threads, null for the 'space.threads' property
+     * @throws Exception
+     */
+    public HessianRemoteSpaceCreator(final SpaceRenderer spaceRenderer, final ThreadMode threadMode) throws Exception {
 
 
         final PropertiesConfiguration props = loadProperties();
         setupUsingProperties(props);
+        if (threadMode != null) {
+            this.threadMode = threadMode;
+        }
 
         spaceMap = new HashMap<String, HessianRemoteSpace>();
-        server = new Server(port);
+        if (this.threadMode == ThreadMode.VIRTUAL) {
+            server = new Server(new ExecutorThreadPool(this.threadMode.newExecutor()));
+            final ServerConnector connector = new ServerConnector(server);
+            connector.setPort(port);
+            server.addConnector(connector);
+        } else {
+            server = new Server(port);
+        }
 
         context = new ServletContextHandler(ServletContextHandler.SESSIONS);
         context.setContextPath("/");
@@ -96,12 +137,28 @@ public class HessianRemoteSpaceCreator extends HessianServlet implements SpaceCr
             return null;
         }
 
-        final HessianSpaceServlet spServlet = new HessianSpaceServlet(spaceName);
+        final TupleSpace space;
+        if (logDir == null) {
+            space = new TupleSpace(spaceName);
+        } else {
+            try {
+                space = new TupleSpace(spaceName, new File(logDir, spaceName + ".wal"), checkpointSeconds,
+                        TimeUnit.SECONDS);
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to recover space " + spaceName + " from " + logDir, e);
+            }
+        }
+        space.setOrdering(ordering);
+        space.setCapacity(maxTuples, maxBytes, capacityPolicy);
+        if (capacityTimeoutMillis > 0) {
+            space.setCapacityTimeout(capacityTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        final HessianSpaceServlet spServlet = new HessianSpaceServlet(space);
 
         //space changes go into the renderer
         if (spaceRenderer != null) {
             spServlet.addSpaceChangeListener(spaceRenderer);
-            spaceRenderer.spaceChanged(new SpaceChangeEvent(spaceName, null, null, EventHint.SPACE_CREATED));
+            spaceRenderer.spaceChanged(new SpaceChangeEvent(spaceName, null, (Tuple) null, EventHint.SPACE_CREATED));
         }
 
 
@@ -164,6 +221,38 @@ public class HessianRemoteSpaceCreator extends HessianServlet implements SpaceCr
 
             LOG.log(Level.SEVERE, "Problem with 'jetty.port'. Check the properties file.", nfe);
         }
+        final String suppliedLogDir = props.getString("space.log.dir");
+        if (suppliedLogDir != null) {
+            logDir = new File(suppliedLogDir);
+            if (!logDir.isDirectory() && !logDir.mkdirs()) {
+                LOG.log(Level.SEVERE, "Problem with ''space.log.dir'', {0} is not a directory. Check the properties file.", logDir);
+                logDir = null;
+            }
+        }
+        try {
+            checkpointSeconds = Long.parseLong(props.getString("space.log.checkpoint.seconds", "0"));
+        } catch (NumberFormatException nfe) {
+
+            LOG.log(Level.SEVERE, "Problem with 'space.log.checkpoint.seconds'. Check the properties file.", nfe);
+        }
+        try {
+            ordering = Ordering.valueOf(props.getString("space.ordering", Ordering.ANY.name()).trim().toUpperCase());
+        } catch (IllegalArgumentException iae) {
+
+            LOG.log(Level.SEVERE, "Problem with 'space.ordering', it must be ANY, FIFO or PRIORITY. Check the properties file.", iae);
+        }
+        try {
+            maxTuples = Integer.parseInt(props.getString("space.capacity.tuples", "" + Integer.MAX_VALUE));
+            maxBytes = Long.parseLong(props.getString("space.capacity.bytes", "" + Long.MAX_VALUE));
+            capacityTimeoutMillis = Long.parseLong(props.getString("space.capacity.timeout.millis", "0"));
+            capacityPolicy = CapacityPolicy.valueOf(props.getString("space.capacity.policy", CapacityPolicy.BLOCK.name()).trim().toUpperCase());
+        } catch (IllegalArgumentException iae) {
+
+            LOG.log(Level.SEVERE, "Problem with the 'space.capacity' properties. Check the properties file.", iae);
+            maxTuples = Integer.MAX_VALUE;
+            maxBytes = Long.MAX_VALUE;
+        }
+        threadMode = ThreadMode.parse(props.getString(ThreadMode.PROPERTY), ThreadMode.PLATFORM);
 
     }
 
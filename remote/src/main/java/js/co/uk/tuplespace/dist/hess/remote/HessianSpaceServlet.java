@@ -1,17 +1,26 @@
 package js.co.uk.tuplespace.dist.hess.remote;
 
 import com.caucho.hessian.server.HessianServlet;
+import js.co.uk.tuplespace.codec.TupleCodec;
+import js.co.uk.tuplespace.codec.TupleCodecs;
 import js.co.uk.tuplespace.events.SpaceChangeListener;
 import js.co.uk.tuplespace.matcher.Matcher;
 import js.co.uk.tuplespace.space.Space;
 import js.co.uk.tuplespace.space.TupleSpace;
 import js.co.uk.tuplespace.store.TimeoutEntry;
+import js.co.uk.tuplespace.store.TimingWheel;
 import js.co.uk.tuplespace.store.TransactionException;
 import js.co.uk.tuplespace.store.TransactionID;
 import js.co.uk.tuplespace.tuple.Tuple;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This servlet is the web tier way in to a space. It is backed by a Space to which it
@@ -28,16 +37,47 @@ import java.util.List;
  */
 public class HessianSpaceServlet extends HessianServlet implements HessianRemoteSpace {
 
+    /**
+     * How long a scan may be left without a page being fetched before it is closed.
+     */
+    private static final long SCAN_IDLE_TIMEOUT = 5 * 60 * 1000;
+
     private Space space;
+    private final Map<Long, Scan> scans = new ConcurrentHashMap<Long, Scan>();
+    private final AtomicLong scanIds = new AtomicLong(0);
     /**
      * A named HessianSpaceServlet that delegates to a private Space.
      * 
      * @param name
      */
     public HessianSpaceServlet(final String name)
+    {
+        this(new TupleSpace(name));
+    }
+
+    /**
+     * A HessianSpaceServlet that delegates to the supplied Space.
+     *
+     * @param space the space
+     */
+    public HessianSpaceServlet(final Space space)
+    {
+        this(space, TupleCodecs.getDefault());
+    }
+
+    /**
+     * A HessianSpaceServlet that delegates to the supplied Space, with tuples sent and received encoded by the given
+     * codec. Clients must use a codec with the same classes registered, see {@link TupleCodecs#REGISTER_PROPERTY}.
+     *
+     * @param space the space
+     * @param codec the codec
+     */
+    public HessianSpaceServlet(final Space space, final TupleCodec codec)
     {
         super();
-        space = new TupleSpace(name);
+        this.space = space;
+        //tuples go over the wire encoded by the codec
+        getSerializerFactory().addFactory(new TupleSerializerFactory(codec));
     }
 
     /**
@@ -126,10 +166,97 @@ public class HessianSpaceServlet extends HessianServlet implements HessianRemote
         return space.readIfExists(tuple, transactionID);
     }
     @Override
+    public void putAll(final Collection<Tuple> tuples, final long timeOut, final TransactionID transactionID) throws TransactionException {
+        space.putAll(tuples, timeOut, transactionID);
+    }
+    @Override
+    public List<Tuple> takeAll(final Tuple template, final int max, final long timeOut, final TransactionID transactionID) throws TransactionException {
+        return space.takeAll(template, max, timeOut, transactionID);
+    }
+    @Override
+    public List<Tuple> readAll(final Tuple template, final int max) {
+        return space.readAll(template, max);
+    }
+    @Override
+    public int count(final Tuple template) {
+        return space.count(template);
+    }
+    @Override
+    public boolean exists(final Tuple template) {
+        return space.exists(template);
+    }
+    @Override
+    public long openScan(final Tuple template) {
+        final long scanId = scanIds.incrementAndGet();
+        final Scan scan = new Scan(space.scan(template));
+        scans.put(scanId, scan);
+        scan.touch(scanId);
+        return scanId;
+    }
+    @Override
+    public List<Tuple> nextPage(final long scanId, final int max) {
+        final Scan scan = scans.get(scanId);
+        if (scan == null) {
+            throw new IllegalArgumentException("Unknown or expired scan " + scanId);
+        }
+        synchronized (scan) {
+            final List<Tuple> page = new ArrayList<Tuple>(Math.min(max, 1024));
+            while (page.size() < max && scan.tuples.hasNext()) {
+                page.add(scan.tuples.next());
+            }
+            if (page.size() < max) {
+                closeScan(scanId);
+            } else {
+                scan.touch(scanId);
+            }
+            return page;
+        }
+    }
+    @Override
+    public void closeScan(final long scanId) {
+        final Scan scan = scans.remove(scanId);
+        if (scan != null && scan.expiry != null) {
+            scan.expiry.cancel();
+        }
+    }
+
+    /**
+     * An open scan, it is closed if it is left idle.
+     */
+    private final class Scan {
+
+        private final Iterator<Tuple> tuples;
+        private volatile TimingWheel.Timeout expiry;
+
+        private Scan(final Iterator<Tuple> tuples) {
+            this.tuples = tuples;
+        }
+
+        private void touch(final long scanId) {
+            if (expiry != null) {
+                expiry.cancel();
+            }
+            expiry = TimingWheel.getDefault().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    scans.remove(scanId);
+                }
+            }, SCAN_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+    @Override
     public void setMatcher(final Matcher<Tuple> tupleMatcher) {
             space.setMatcher(tupleMatcher);
     }
     @Override
+    public void createIndex(final Class<? extends Tuple> type, final String... fields) {
+        space.createIndex(type, fields);
+    }
+    @Override
+    public void createSortedIndex(final Class<? extends Tuple> type, final String field) {
+        space.createSortedIndex(type, field);
+    }
+    @Override
     public List<Tuple> listAllTuples() {
         return space.listAllTuples();
     }
@@ -0,0 +1,133 @@
+package js.co.uk.tuplespace.dist.hess.remote;
+
+import com.caucho.hessian.io.AbstractDeserializer;
+import com.caucho.hessian.io.AbstractHessianInput;
+import com.caucho.hessian.io.AbstractHessianOutput;
+import com.caucho.hessian.io.AbstractSerializer;
+import com.caucho.hessian.io.AbstractSerializerFactory;
+import com.caucho.hessian.io.Deserializer;
+import com.caucho.hessian.io.Serializer;
+import js.co.uk.tuplespace.codec.TupleCodec;
+import js.co.uk.tuplespace.tuple.Tuple;
+
+import java.io.IOException;
+
+/**
+ * Has Hessian send tuples as the bytes written by a {@link TupleCodec} rather than by reflecting over their fields.
+ * Each tuple is still a typed Hessian object, with a single field of bytes, so it can be read wherever Hessian
+ * expects an object. Add it to the SerializerFactory at both ends, see HessianSpaceServlet and
+ * HessianLocalSpaceCreator.
+ */
+public class TupleSerializerFactory extends AbstractSerializerFactory {
+
+    private static final String FIELD = "bytes";
+
+    private final Serializer serializer;
+    private final Deserializer deserializer;
+
+    /**
+     * @param codec the codec, the same one at both ends
+     */
+    public TupleSerializerFactory(final TupleCodec codec) {
+        serializer = new TupleSerializer(codec);
+        deserializer = new TupleDeserializer(codec);
+    }
+
+    @Override
+    public Serializer getSerializer(final Class cl) {
+        return Tuple.class.isAssignableFrom(cl) ? serializer : null;
+    }
+
+    @Override
+    public Deserializer getDeserializer(final Class cl) {
+        return Tuple.class.isAssignableFrom(cl) && !cl.isInterface() ? deserializer : null;
+    }
+
+    private static final class TupleSerializer extends AbstractSerializer {
+
+        private final TupleCodec codec;
+
+        TupleSerializer(final TupleCodec codec) {
+            this.codec = codec;
+        }
+
+        @Override
+        public void writeObject(final Object obj, final AbstractHessianOutput out) throws IOException {
+            if (obj == null) {
+                out.writeNull();
+                return;
+            }
+            if (out.addRef(obj)) {
+                return;
+            }
+            final String type = obj.getClass().getName();
+            final byte[] bytes = codec.encode((Tuple) obj);
+            final int ref = out.writeObjectBegin(type);
+            if (ref < -1) {
+                //written as a map
+                out.writeString(FIELD);
+                out.writeBytes(bytes);
+                out.writeMapEnd();
+            } else {
+                if (ref == -1) {
+                    //the first of this type, define its one field
+                    out.writeInt(1);
+                    out.writeString(FIELD);
+                    out.writeObjectBegin(type);
+                }
+                out.writeBytes(bytes);
+            }
+        }
+    }
+
+    private static final class TupleDeserializer extends AbstractDeserializer {
+
+        private final TupleCodec codec;
+
+        TupleDeserializer(final TupleCodec codec) {
+            this.codec = codec;
+        }
+
+        @Override
+        public Class<?> getType() {
+            return Tuple.class;
+        }
+
+        @Override
+        public Object readMap(final AbstractHessianInput in) throws IOException {
+            byte[] bytes = null;
+            while (!in.isEnd()) {
+                final String key = in.readString();
+                if (FIELD.equals(key)) {
+                    bytes = in.readBytes();
+                } else {
+                    in.readObject();
+                }
+            }
+            in.readMapEnd();
+            return decode(in, bytes);
+        }
+
+        @Override
+        public Object readObject(final AbstractHessianInput in, final Object[] fields) throws IOException {
+            byte[] bytes = null;
+            for (final Object field : fields) {
+                if (FIELD.equals(field)) {
+                    bytes = in.readBytes();
+                } else {
+                    in.readObject();
+                }
+            }
+            return decode(in, bytes);
+        }
+
+        private Object decode(final AbstractHessianInput in, final byte[] bytes) throws IOException {
+            if (bytes == null) {
+                throw error("A tuple was sent without its bytes");
+            }
+            final Tuple tuple = codec.decode(bytes);
+            in.addRef(tuple);
+            return tuple;
+        }
+    }
+}